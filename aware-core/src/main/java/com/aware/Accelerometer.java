@@ -8,15 +8,15 @@ import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.pm.PackageManager;
 import android.database.Cursor;
-import android.database.SQLException;
-import android.database.sqlite.SQLiteException;
 import android.hardware.Sensor;
 import android.hardware.SensorEvent;
 import android.hardware.SensorEventListener;
 import android.hardware.SensorManager;
+import android.hardware.TriggerEvent;
+import android.hardware.TriggerEventListener;
 import android.net.Uri;
-import android.os.AsyncTask;
 import android.os.Binder;
+import android.os.Build;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.IBinder;
@@ -26,13 +26,21 @@ import android.util.Log;
 
 import com.aware.providers.Accelerometer_Provider;
 import com.aware.providers.Accelerometer_Provider.Accelerometer_Data;
+import com.aware.providers.Accelerometer_Provider.Accelerometer_Features;
+import com.aware.providers.Accelerometer_Provider.Accelerometer_Sampling;
 import com.aware.providers.Accelerometer_Provider.Accelerometer_Sensor;
 import com.aware.providers.Barometer_Provider;
 import com.aware.ui.PermissionsHandler;
+import com.aware.utils.AdaptiveSampling;
 import com.aware.utils.Aware_Sensor;
-
-import java.util.ArrayList;
-import java.util.List;
+import com.aware.utils.FeatureWindow;
+import com.aware.utils.SampleBroadcaster;
+import com.aware.utils.RateMeter;
+import com.aware.utils.SampleRingBuffer;
+import com.aware.utils.SampleStream;
+import com.aware.utils.SensorBatching;
+import com.aware.utils.SensorClock;
+import com.aware.utils.WriteBehindQueue;
 
 /**
  * AWARE Accelerometer module
@@ -52,7 +60,8 @@ public class Accelerometer extends Aware_Sensor implements SensorEventListener {
     private static PowerManager powerManager;
     private static PowerManager.WakeLock wakeLock = null;
     private static String LABEL = "";
-    private static int FIFO_SIZE = 0;
+    private SensorBatching batching;
+    private final SensorClock clock = new SensorClock();
 
     private static int FREQUENCY = -1;
 
@@ -68,7 +77,25 @@ public class Accelerometer extends Aware_Sensor implements SensorEventListener {
     public static final String ACTION_AWARE_ACCELEROMETER_LABEL = "ACTION_AWARE_ACCELEROMETER_LABEL";
     public static final String EXTRA_LABEL = "label";
 
-    private List<ContentValues> data_values = new ArrayList<ContentValues>();
+    private SampleRingBuffer sampleBuffer = new SampleRingBuffer(250, Accelerometer_Data.DEVICE_ID, Accelerometer_Data.TIMESTAMP, new String[]{Accelerometer_Data.VALUES_0, Accelerometer_Data.VALUES_1, Accelerometer_Data.VALUES_2}, Accelerometer_Data.ACCURACY, Accelerometer_Data.LABEL);
+    private String DEVICE_ID = "";
+    private volatile boolean db_slow = false;
+    private WriteBehindQueue dataWriter;
+    private SampleBroadcaster broadcaster;
+    private WriteBehindQueue featureWriter;
+    private volatile FeatureWindow featureWindow;
+    private volatile AdaptiveSampling adaptiveSampling;
+    private TriggerEventListener significantMotion;
+
+    /**
+     * Samples for bound in-process clients, kept across service restarts
+     */
+    private static final SampleStream sampleStream = new SampleStream(1024, 3);
+
+    /**
+     * Samples per second, for getFrequency()
+     */
+    private static final RateMeter rateMeter = new RateMeter();
 
     private static DataLabel dataLabeler = new DataLabel();
 
@@ -88,50 +115,114 @@ public class Accelerometer extends Aware_Sensor implements SensorEventListener {
 
     @Override
     public void onSensorChanged(SensorEvent event) {
-        ContentValues rowData = new ContentValues();
-        rowData.put(Accelerometer_Data.DEVICE_ID, Aware.getSetting(getApplicationContext(), Aware_Preferences.DEVICE_ID));
-        rowData.put(Accelerometer_Data.TIMESTAMP, System.currentTimeMillis());
-        rowData.put(Accelerometer_Data.VALUES_0, event.values[0]);
-        rowData.put(Accelerometer_Data.VALUES_1, event.values[1]);
-        rowData.put(Accelerometer_Data.VALUES_2, event.values[2]);
-        rowData.put(Accelerometer_Data.ACCURACY, event.accuracy);
-        rowData.put(Accelerometer_Data.LABEL, LABEL);
-
-        if (data_values.size() < 250) {
-            data_values.add(rowData);
+        long timestamp = clock.toWallClock(event.timestamp);
+        rateMeter.add(timestamp);
+
+        if (sampleBuffer.add(timestamp, event.values, event.accuracy, LABEL)) {
+            ContentValues[] data_buffer = sampleBuffer.drain(DEVICE_ID);
+            if (!db_slow) {
+                dataWriter.addAll(data_buffer);
+            }
+        }
+
+        FeatureWindow features = featureWindow;
+        if (features != null && features.add(timestamp, event.values)) {
+            featureWriter.add(features.toContentValues(DEVICE_ID, LABEL));
+        }
+
+        AdaptiveSampling adaptive = adaptiveSampling;
+        if (adaptive != null && adaptive.add(timestamp, event.values)) {
+            onSamplingChanged(adaptive, "variance");
+        }
+
+        sampleStream.publish(timestamp, event.values, event.accuracy);
+        broadcaster.add(timestamp, event.values, event.accuracy);
+
+        if (broadcaster.legacyBroadcasts()) {
+            ContentValues rowData = new ContentValues();
+            rowData.put(Accelerometer_Data.DEVICE_ID, DEVICE_ID);
+            rowData.put(Accelerometer_Data.TIMESTAMP, timestamp);
+            rowData.put(Accelerometer_Data.VALUES_0, event.values[0]);
+            rowData.put(Accelerometer_Data.VALUES_1, event.values[1]);
+            rowData.put(Accelerometer_Data.VALUES_2, event.values[2]);
+            rowData.put(Accelerometer_Data.ACCURACY, event.accuracy);
+            rowData.put(Accelerometer_Data.LABEL, LABEL);
 
             Intent accelData = new Intent(ACTION_AWARE_ACCELEROMETER);
             accelData.putExtra(EXTRA_DATA, rowData);
             sendBroadcast(accelData);
 
             if (Aware.DEBUG) Log.d(TAG, "Accelerometer: " + rowData.toString());
+        }
+    }
 
-            return;
+    /**
+     * The device became still or moves again: re-register at the matching rate, log the decision and let the other motion sensors know.
+     * Runs on the sensor thread.
+     *
+     * @param adaptive
+     * @param trigger what decided, "variance" or "significant_motion"
+     */
+    private void onSamplingChanged(AdaptiveSampling adaptive, String trigger) {
+        int period = AdaptiveSampling.getPeriod(this, Integer.parseInt(Aware.getSetting(getApplicationContext(), Aware_Preferences.FREQUENCY_ACCELEROMETER)));
+        if (!batching.isRegistered(period)) {
+            batching.register(this, period, sensorHandler);
+            rateMeter.setMaxDelay(batching.getLatency() / 1000);
+            FREQUENCY = period;
         }
 
-        ContentValues[] data_buffer = new ContentValues[data_values.size()];
-        data_values.toArray(data_buffer);
+        watchSignificantMotion(adaptive.isStill());
 
-        try {
-            if (!Aware.getSetting(getApplicationContext(), Aware_Preferences.DEBUG_DB_SLOW).equals("true")) {
-                new AsyncStore().execute(data_buffer);
-            }
-        } catch (SQLiteException e) {
-            if (Aware.DEBUG) Log.d(TAG, e.getMessage());
-        } catch (SQLException e) {
-            if (Aware.DEBUG) Log.d(TAG, e.getMessage());
-        }
-        data_values.clear();
+        long now = System.currentTimeMillis();
+        ContentValues decision = new ContentValues();
+        decision.put(Accelerometer_Sampling.TIMESTAMP, now);
+        decision.put(Accelerometer_Sampling.DEVICE_ID, DEVICE_ID);
+        decision.put(Accelerometer_Sampling.STATE, adaptive.isStill() ? "still" : "moving");
+        decision.put(Accelerometer_Sampling.TRIGGER, trigger);
+        decision.put(Accelerometer_Sampling.DEVIATION, adaptive.getDeviation());
+        decision.put(Accelerometer_Sampling.PERIOD, period);
+        decision.put(Accelerometer_Sampling.PREVIOUS_DURATION, (now - adaptive.getStateSince()) / 1000.0);
+        decision.put(Accelerometer_Sampling.PREVIOUS_SAMPLES, adaptive.getSamples());
+        getContentResolver().insert(Accelerometer_Sampling.CONTENT_URI, decision);
+        adaptive.nextState(now);
+
+        sendBroadcast(new Intent(adaptive.isStill() ? AdaptiveSampling.ACTION_AWARE_DEVICE_STILL : AdaptiveSampling.ACTION_AWARE_DEVICE_MOVING));
+
+        if (Aware.DEBUG) Log.d(TAG, "Adaptive sampling: " + decision.toString());
     }
 
     /**
-     * Database I/O on different thread
+     * While still, the significant motion sensor (if any) wakes us up at full rate without waiting for the slow samples to show it.
+     *
+     * @param still
      */
-    private class AsyncStore extends AsyncTask<ContentValues[], Void, Void> {
-        @Override
-        protected Void doInBackground(ContentValues[]... data) {
-            getContentResolver().bulkInsert(Accelerometer_Data.CONTENT_URI, data[0]);
-            return null;
+    private void watchSignificantMotion(boolean still) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN_MR2) return;
+
+        Sensor motion = mSensorManager.getDefaultSensor(Sensor.TYPE_SIGNIFICANT_MOTION);
+        if (motion == null || (!still && significantMotion == null)) return;
+
+        if (significantMotion == null) {
+            significantMotion = new TriggerEventListener() {
+                @Override
+                public void onTrigger(TriggerEvent event) {
+                    sensorHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            AdaptiveSampling adaptive = adaptiveSampling;
+                            if (adaptive != null && adaptive.moving()) {
+                                onSamplingChanged(adaptive, "significant_motion");
+                            }
+                        }
+                    });
+                }
+            };
+        }
+
+        if (still) {
+            mSensorManager.requestTriggerSensor(significantMotion, motion);
+        } else {
+            mSensorManager.cancelTriggerSensor(significantMotion, motion);
         }
     }
 
@@ -142,14 +233,7 @@ public class Accelerometer extends Aware_Sensor implements SensorEventListener {
      * @return hz
      */
     public static int getFrequency(Context context) {
-        int hz = 0;
-        String[] columns = new String[]{"count(*) as frequency", "datetime(" + Accelerometer_Data.TIMESTAMP + "/1000, 'unixepoch','localtime') as sample_time"};
-        Cursor qry = context.getContentResolver().query(Accelerometer_Data.CONTENT_URI, columns, "1) group by (sample_time", null, "sample_time DESC LIMIT 1 OFFSET 2");
-        if (qry != null && qry.moveToFirst()) {
-            hz = qry.getInt(0);
-        }
-        if (qry != null && !qry.isClosed()) qry.close();
-        return hz;
+        return rateMeter.getHz();
     }
 
     private void saveAccelerometerDevice(Sensor acc) {
@@ -184,16 +268,20 @@ public class Accelerometer extends Aware_Sensor implements SensorEventListener {
     public void onCreate() {
         super.onCreate();
 
+        dataWriter = getDataWriter(Accelerometer_Data.CONTENT_URI);
+        broadcaster = new SampleBroadcaster(this, ACTION_AWARE_ACCELEROMETER, 3);
+        featureWriter = getDataWriter(Accelerometer_Features.CONTENT_URI);
+
         mSensorManager = (SensorManager) getSystemService(SENSOR_SERVICE);
         powerManager = (PowerManager) getSystemService(POWER_SERVICE);
-        mAccelerometer = mSensorManager.getDefaultSensor(Sensor.TYPE_ACCELEROMETER);
-        FIFO_SIZE = mAccelerometer.getFifoReservedEventCount();
+        batching = new SensorBatching(this, mSensorManager, Sensor.TYPE_ACCELEROMETER);
+        mAccelerometer = batching.getSensor();
 
         sensorThread = new HandlerThread(TAG);
         sensorThread.start();
 
         wakeLock = powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, TAG);
-        wakeLock.acquire();
+        batching.keepAwake(wakeLock);
 
         sensorHandler = new Handler(sensorThread.getLooper());
 
@@ -203,19 +291,28 @@ public class Accelerometer extends Aware_Sensor implements SensorEventListener {
 
         DATABASE_TABLES = Accelerometer_Provider.DATABASE_TABLES;
         TABLES_FIELDS = Accelerometer_Provider.TABLES_FIELDS;
-        CONTEXT_URIS = new Uri[]{Accelerometer_Sensor.CONTENT_URI, Accelerometer_Data.CONTENT_URI};
+        CONTEXT_URIS = new Uri[]{Accelerometer_Sensor.CONTENT_URI, Accelerometer_Data.CONTENT_URI, Accelerometer_Features.CONTENT_URI, Accelerometer_Sampling.CONTENT_URI};
 
         if (Aware.DEBUG) Log.d(TAG, "Accelerometer service created!");
     }
 
     @Override
     public void onDestroy() {
-        super.onDestroy();
-
+        batching.flush();
         sensorHandler.removeCallbacksAndMessages(null);
-        mSensorManager.unregisterListener(this, mAccelerometer);
+        batching.unregister();
+        rateMeter.reset();
+        watchSignificantMotion(false);
+        if (AdaptiveSampling.reset()) sendBroadcast(new Intent(AdaptiveSampling.ACTION_AWARE_DEVICE_MOVING)); //the other motion sensors go back to full rate
         sensorThread.quit();
-        wakeLock.release();
+        broadcaster.flush(); //deliver what subscribers still have batched
+
+        //Keep what is still in the sample buffer
+        dataWriter.addAll(sampleBuffer.drain(DEVICE_ID));
+
+        super.onDestroy(); //stores what is still queued
+
+        if (wakeLock.isHeld()) wakeLock.release();
 
         unregisterReceiver(dataLabeler);
 
@@ -241,20 +338,31 @@ public class Accelerometer extends Aware_Sensor implements SensorEventListener {
             } else {
                 DEBUG = Aware.getSetting(this, Aware_Preferences.DEBUG_FLAG).equals("true");
                 Aware.setSetting(this, Aware_Preferences.STATUS_ACCELEROMETER, true);
+                DEVICE_ID = Aware.getSetting(getApplicationContext(), Aware_Preferences.DEVICE_ID);
+                db_slow = Aware.getSetting(getApplicationContext(), Aware_Preferences.DEBUG_DB_SLOW).equals("true");
                 saveAccelerometerDevice(mAccelerometer);
 
                 if (Aware.getSetting(this, Aware_Preferences.FREQUENCY_ACCELEROMETER).length() == 0) {
                     Aware.setSetting(this, Aware_Preferences.FREQUENCY_ACCELEROMETER, 200000);
                 }
 
-                if (FREQUENCY != Integer.parseInt(Aware.getSetting(getApplicationContext(), Aware_Preferences.FREQUENCY_ACCELEROMETER))) {
+                adaptiveSampling = AdaptiveSampling.fromSettings(this, adaptiveSampling);
+                if (adaptiveSampling == null) {
+                    watchSignificantMotion(false);
+                    if (AdaptiveSampling.reset()) sendBroadcast(new Intent(AdaptiveSampling.ACTION_AWARE_DEVICE_MOVING));
+                }
+
+                int period = AdaptiveSampling.getPeriod(this, Integer.parseInt(Aware.getSetting(getApplicationContext(), Aware_Preferences.FREQUENCY_ACCELEROMETER)));
+                if (!batching.isRegistered(period)) {
                     sensorHandler.removeCallbacksAndMessages(null);
-                    mSensorManager.unregisterListener(this, mAccelerometer);
-                    mSensorManager.registerListener(this, mAccelerometer, Integer.parseInt(Aware.getSetting(getApplicationContext(), Aware_Preferences.FREQUENCY_ACCELEROMETER)), FIFO_SIZE, sensorHandler);
+                    batching.register(this, period, sensorHandler);
+                    rateMeter.setMaxDelay(batching.getLatency() / 1000);
 
-                    FREQUENCY = Integer.parseInt(Aware.getSetting(getApplicationContext(), Aware_Preferences.FREQUENCY_ACCELEROMETER));
+                    FREQUENCY = period;
                 }
 
+                featureWindow = FeatureWindow.fromSettings(this, Aware_Preferences.STATUS_ACCELEROMETER_FEATURES, featureWindow);
+
                 if (Aware.DEBUG) Log.d(TAG, "Accelerometer service active: " + FREQUENCY + "ms");
             }
 
@@ -287,6 +395,21 @@ public class Accelerometer extends Aware_Sensor implements SensorEventListener {
         Accelerometer getService() {
             return Accelerometer.getService();
         }
+
+        /**
+         * @return stream of this sensor's samples, read with {@link SampleStream#newReader()}
+         */
+        public SampleStream getSampleStream() {
+            return sampleStream;
+        }
+    }
+
+    @Override
+    protected boolean syncTable(int table) {
+        //raw samples stay on the device when the study only collects features
+        return !(DATABASE_TABLES[table].equals(Accelerometer_Provider.DATABASE_TABLES[1])
+                && featureWindow != null
+                && Aware.getSetting(this, Aware_Preferences.WEBSERVICE_FEATURES_ONLY).equals("true"));
     }
 
     @Override
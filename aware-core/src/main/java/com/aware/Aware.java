@@ -16,6 +16,7 @@ import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageManager;
 import android.content.pm.PackageManager.NameNotFoundException;
 import android.content.res.Configuration;
+import android.database.ContentObserver;
 import android.database.Cursor;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteException;
@@ -41,14 +42,17 @@ import com.aware.providers.Aware_Provider.Aware_Device;
 import com.aware.providers.Aware_Provider.Aware_Plugins;
 import com.aware.providers.Aware_Provider.Aware_Settings;
 import com.aware.providers.Scheduler_Provider;
+import com.aware.providers.Sync_Provider;
 import com.aware.utils.Aware_Plugin;
 import com.aware.utils.DownloadPluginService;
 import com.aware.utils.Http;
 import com.aware.utils.Https;
 import com.aware.utils.PluginsManager;
 import com.aware.utils.SSLManager;
+import com.aware.utils.SampleBroadcaster;
 import com.aware.utils.Scheduler;
 import com.aware.utils.StudyUtils;
+import com.aware.utils.SyncScheduler;
 import com.aware.utils.WebserviceHelper;
 
 import org.json.JSONArray;
@@ -60,10 +64,14 @@ import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Enumeration;
+import java.util.HashSet;
 import java.util.Hashtable;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import dalvik.system.DexFile;
 
@@ -240,6 +248,12 @@ public class Aware extends Service {
         boot.addAction(Intent.ACTION_BOOT_COMPLETED);
         awareContext.registerReceiver(awareBoot, boot);
 
+        //Release held sync when connectivity or charging changes
+        awareContext.registerReceiver(sync_conditions, SyncScheduler.getConditionsFilter());
+
+        //Sensor sample subscriptions (batched deliveries)
+        SampleBroadcaster.listen(awareContext);
+
         if (!Environment.getExternalStorageState().equals(Environment.MEDIA_MOUNTED)) {
             stopSelf();
             return;
@@ -259,6 +273,10 @@ public class Aware extends Service {
             PreferenceManager.setDefaultValues(getApplicationContext(), getPackageName(), Context.MODE_PRIVATE, R.xml.aware_preferences, true);
             prefs.edit().commit(); //commit changes
         } else {
+            //plugins installed before batched samples may still listen for every sample
+            if (Aware.getSetting(getApplicationContext(), Aware_Preferences.STATUS_SAMPLE_BROADCASTS).length() == 0) {
+                Aware.setSetting(getApplicationContext(), Aware_Preferences.STATUS_SAMPLE_BROADCASTS, true, "com.aware.phone");
+            }
             PreferenceManager.setDefaultValues(getApplicationContext(), getPackageName(), Context.MODE_PRIVATE, R.xml.aware_preferences, false);
         }
 
@@ -774,6 +792,86 @@ public class Aware extends Service {
         }
     }
 
+    /**
+     * Settings shared between AWARE and plugins, stored under com.aware.phone
+     */
+    private static final HashSet<String> global_settings = new HashSet<>(Arrays.asList(
+            Aware_Preferences.DEBUG_FLAG,
+            Aware_Preferences.DEBUG_TAG,
+            Aware.STUDY_ID,
+            Aware.STUDY_START,
+            Aware_Preferences.DEVICE_ID,
+            Aware_Preferences.DEVICE_LABEL,
+            Aware_Preferences.STATUS_WEBSERVICE,
+            Aware_Preferences.FREQUENCY_WEBSERVICE,
+            Aware_Preferences.WEBSERVICE_WIFI_ONLY,
+            Aware_Preferences.WEBSERVICE_SERVER,
+            Aware_Preferences.WEBSERVICE_SYNC_THREADS,
+            Aware_Preferences.WEBSERVICE_GZIP_UPLOAD,
+            Aware_Preferences.WEBSERVICE_COLUMNAR_UPLOAD,
+            Aware_Preferences.WEBSERVICE_FEATURES_ONLY,
+            Aware_Preferences.STATUS_SAMPLE_BROADCASTS,
+            Applications.STATUS_AWARE_ACCESSIBILITY,
+
+            //allow plugins to get accessibility events
+            Aware_Preferences.STATUS_APPLICATIONS,
+
+            //allow plugin's to react to MQTT
+            Aware_Preferences.STATUS_MQTT,
+            Aware_Preferences.MQTT_USERNAME,
+            Aware_Preferences.MQTT_PASSWORD,
+            Aware_Preferences.MQTT_SERVER,
+            Aware_Preferences.MQTT_PORT,
+            Aware_Preferences.MQTT_PROTOCOL,
+            Aware_Preferences.MQTT_KEEP_ALIVE,
+            Aware_Preferences.MQTT_QOS
+    ));
+
+    /**
+     * Process-wide settings cache, keyed by package_name and key.
+     * Invalidated by {@link SettingsObserver} and by setSetting.
+     */
+    private static final ConcurrentHashMap<String, String> settings_cache = new ConcurrentHashMap<>();
+    private static final AtomicLong settings_generation = new AtomicLong(0);
+    private static SettingsObserver settingsObserver = null;
+
+    /**
+     * Clears the settings cache whenever the settings table changes, including changes made by plugins in other processes.
+     */
+    private static class SettingsObserver extends ContentObserver {
+        SettingsObserver() {
+            super(null);
+        }
+
+        @Override
+        public void onChange(boolean selfChange) {
+            invalidateSettings();
+        }
+    }
+
+    private static String settingCacheKey(String package_name, String key) {
+        return package_name + "/" + key;
+    }
+
+    private static synchronized void observeSettings(Context context) {
+        if (settingsObserver != null) return;
+        settingsObserver = new SettingsObserver();
+        context.getApplicationContext().getContentResolver().registerContentObserver(Aware_Settings.CONTENT_URI, true, settingsObserver);
+    }
+
+    /**
+     * Drop all cached settings. The next getSetting will read them again from the database.
+     */
+    public static void invalidateSettings() {
+        settings_generation.incrementAndGet();
+        settings_cache.clear();
+    }
+
+    private static void invalidateSetting(String package_name, String key) {
+        settings_generation.incrementAndGet();
+        settings_cache.remove(settingCacheKey(package_name, key));
+    }
+
     /**
      * Retrieve setting value given key.
      *
@@ -782,33 +880,14 @@ public class Aware extends Service {
      */
     public static String getSetting(Context context, String key) {
 
-        boolean is_global;
-
-        ArrayList<String> global_settings = new ArrayList<String>();
-        global_settings.add(Aware_Preferences.DEBUG_FLAG);
-        global_settings.add(Aware_Preferences.DEBUG_TAG);
-        global_settings.add(Aware.STUDY_ID);
-        global_settings.add(Aware.STUDY_START);
-        global_settings.add(Aware_Preferences.DEVICE_ID);
-        global_settings.add(Aware_Preferences.DEVICE_LABEL);
-        global_settings.add(Aware_Preferences.STATUS_WEBSERVICE);
-        global_settings.add(Aware_Preferences.FREQUENCY_WEBSERVICE);
-        global_settings.add(Aware_Preferences.WEBSERVICE_WIFI_ONLY);
-        global_settings.add(Aware_Preferences.WEBSERVICE_SERVER);
-        global_settings.add(Aware_Preferences.STATUS_APPLICATIONS);
-        global_settings.add(Applications.STATUS_AWARE_ACCESSIBILITY);
-
-        //allow plugin's to react to MQTT
-        global_settings.add(Aware_Preferences.STATUS_MQTT);
-        global_settings.add(Aware_Preferences.MQTT_USERNAME);
-        global_settings.add(Aware_Preferences.MQTT_PASSWORD);
-        global_settings.add(Aware_Preferences.MQTT_SERVER);
-        global_settings.add(Aware_Preferences.MQTT_PORT);
-        global_settings.add(Aware_Preferences.MQTT_PROTOCOL);
-        global_settings.add(Aware_Preferences.MQTT_KEEP_ALIVE);
-        global_settings.add(Aware_Preferences.MQTT_QOS);
-
-        is_global = global_settings.contains(key);
+        boolean is_global = global_settings.contains(key);
+        String package_name = (is_global) ? "com.aware.phone" : context.getPackageName();
+
+        String cached = settings_cache.get(settingCacheKey(package_name, key));
+        if (cached != null) return cached;
+
+        observeSettings(context);
+        long generation = settings_generation.get();
 
         String value = "";
         Cursor qry = context.getContentResolver().query(Aware_Settings.CONTENT_URI, null, Aware_Settings.SETTING_KEY + " LIKE '" + key + "' AND " + Aware_Settings.SETTING_PACKAGE_NAME + " LIKE " + ((is_global) ? "'com.aware.phone'" : "'" + context.getPackageName() + "'") + ((is_global) ? " OR " + Aware_Settings.SETTING_PACKAGE_NAME + " LIKE ''" : ""), null, null);
@@ -816,6 +895,11 @@ public class Aware extends Service {
             value = qry.getString(qry.getColumnIndex(Aware_Settings.SETTING_VALUE));
         }
         if (qry != null && !qry.isClosed()) qry.close();
+
+        //Only cache if nothing changed while we were reading
+        if (qry != null && generation == settings_generation.get()) {
+            settings_cache.put(settingCacheKey(package_name, key), value);
+        }
         return value;
     }
 
@@ -828,12 +912,23 @@ public class Aware extends Service {
      * @return value
      */
     public static String getSetting(Context context, String key, String package_name) {
+        String cached = settings_cache.get(settingCacheKey(package_name, key));
+        if (cached != null) return cached;
+
+        observeSettings(context);
+        long generation = settings_generation.get();
+
         String value = "";
         Cursor qry = context.getContentResolver().query(Aware_Settings.CONTENT_URI, null, Aware_Settings.SETTING_KEY + " LIKE '" + key + "' AND " + Aware_Settings.SETTING_PACKAGE_NAME + " LIKE '" + package_name + "'", null, null);
         if (qry != null && qry.moveToFirst()) {
             value = qry.getString(qry.getColumnIndex(Aware_Settings.SETTING_VALUE));
         }
         if (qry != null && !qry.isClosed()) qry.close();
+
+        //Only cache if nothing changed while we were reading
+        if (qry != null && generation == settings_generation.get()) {
+            settings_cache.put(settingCacheKey(package_name, key), value);
+        }
         return value;
     }
 
@@ -844,35 +939,7 @@ public class Aware extends Service {
      * @param value
      */
     public static void setSetting(Context context, String key, Object value) {
-        boolean is_global;
-
-        ArrayList<String> global_settings = new ArrayList<String>();
-        global_settings.add(Aware_Preferences.DEBUG_FLAG);
-        global_settings.add(Aware_Preferences.DEBUG_TAG);
-        global_settings.add(Aware.STUDY_ID);
-        global_settings.add(Aware.STUDY_START);
-        global_settings.add(Aware_Preferences.DEVICE_ID);
-        global_settings.add(Aware_Preferences.DEVICE_LABEL);
-        global_settings.add(Aware_Preferences.STATUS_WEBSERVICE);
-        global_settings.add(Aware_Preferences.FREQUENCY_WEBSERVICE);
-        global_settings.add(Aware_Preferences.WEBSERVICE_WIFI_ONLY);
-        global_settings.add(Aware_Preferences.WEBSERVICE_SERVER);
-        global_settings.add(Applications.STATUS_AWARE_ACCESSIBILITY);
-
-        //allow plugins to get accessibility events
-        global_settings.add(Aware_Preferences.STATUS_APPLICATIONS);
-
-        //allow plugin's to react to MQTT
-        global_settings.add(Aware_Preferences.STATUS_MQTT);
-        global_settings.add(Aware_Preferences.MQTT_USERNAME);
-        global_settings.add(Aware_Preferences.MQTT_PASSWORD);
-        global_settings.add(Aware_Preferences.MQTT_SERVER);
-        global_settings.add(Aware_Preferences.MQTT_PORT);
-        global_settings.add(Aware_Preferences.MQTT_PROTOCOL);
-        global_settings.add(Aware_Preferences.MQTT_KEEP_ALIVE);
-        global_settings.add(Aware_Preferences.MQTT_QOS);
-
-        is_global = global_settings.contains(key);
+        boolean is_global = global_settings.contains(key);
 
         //We already have a Device ID or Group ID, bail-out!
         if (key.equals(Aware_Preferences.DEVICE_ID) && Aware.getSetting(context, Aware_Preferences.DEVICE_ID).length() > 0)
@@ -914,6 +981,8 @@ public class Aware extends Service {
             }
         }
         if (qry != null && !qry.isClosed()) qry.close();
+
+        invalidateSetting((is_global) ? "com.aware.phone" : context.getPackageName(), key);
     }
 
     /**
@@ -960,6 +1029,8 @@ public class Aware extends Service {
             }
         }
         if (qry != null && !qry.isClosed()) qry.close();
+
+        invalidateSetting(package_name, key);
     }
 
     /**
@@ -1144,6 +1215,7 @@ public class Aware extends Service {
             awareContext.unregisterReceiver(aware_BR);
             awareContext.unregisterReceiver(storage_BR);
             awareContext.unregisterReceiver(awareBoot);
+            awareContext.unregisterReceiver(sync_conditions);
         } catch (IllegalArgumentException e) {
             //There is no API to check if a broadcast receiver already is registered. Since Aware.java is shared accross plugins, the receiver is only registered on the client, not the plugins.
         }
@@ -1155,6 +1227,7 @@ public class Aware extends Service {
 
         //Remove all settings
         c.getContentResolver().delete(Aware_Settings.CONTENT_URI, null, null);
+        invalidateSettings();
         c.getContentResolver().delete(Scheduler_Provider.Scheduler_Data.CONTENT_URI, null, null);
 
         //Read default client settings
@@ -1299,6 +1372,8 @@ public class Aware extends Service {
      */
     private static final Aware_Broadcaster aware_BR = new Aware_Broadcaster();
 
+    private static final SyncScheduler.SyncConditions_Broadcaster sync_conditions = new SyncScheduler.SyncConditions_Broadcaster();
+
     public static class Aware_Broadcaster extends BroadcastReceiver {
         @Override
         public void onReceive(Context context, Intent intent) {
@@ -1315,6 +1390,14 @@ public class Aware extends Service {
                 webserviceHelper.putExtra(WebserviceHelper.EXTRA_FIELDS, TABLES_FIELDS[0]);
                 webserviceHelper.putExtra(WebserviceHelper.EXTRA_CONTENT_URI, CONTEXT_URIS[0].toString());
                 context.startService(webserviceHelper);
+
+                //Sync telemetry, so sync can be tuned across devices
+                Intent telemetry = new Intent(context, WebserviceHelper.class);
+                telemetry.setAction(WebserviceHelper.ACTION_AWARE_WEBSERVICE_SYNC_TABLE);
+                telemetry.putExtra(WebserviceHelper.EXTRA_TABLE, Sync_Provider.DATABASE_TABLES[0]);
+                telemetry.putExtra(WebserviceHelper.EXTRA_FIELDS, Sync_Provider.TABLES_FIELDS[0]);
+                telemetry.putExtra(WebserviceHelper.EXTRA_CONTENT_URI, Sync_Provider.Sync_Telemetry.CONTENT_URI.toString());
+                context.startService(telemetry);
             }
 
             if (intent.getAction().equals(Aware.ACTION_AWARE_CLEAR_DATA)) {
@@ -28,6 +28,18 @@ public class Aware_Preferences {
      */
     public static final String DEBUG_DB_SLOW = "debug_db_slow";
 
+    /**
+     * Broadcast every sensor sample as ACTION_AWARE_* with a ContentValues (default = false, true on installs that predate it since their plugins may listen for them).
+     * Consumers should subscribe to batched deliveries instead, see {@link com.aware.utils.SampleBroadcaster}
+     */
+    public static final String STATUS_SAMPLE_BROADCASTS = "status_sample_broadcasts";
+
+    /**
+     * Hardware batching: how long sensors may keep samples in their FIFO before reporting them, in microseconds (default = 0, report right away).
+     * Applies to every SensorManager sensor, see {@link com.aware.utils.SensorBatching}
+     */
+    public static final String SENSOR_BATCHING_LATENCY = "sensor_batching_latency";
+
     /**
      * AWARE Device ID (UUID)
      */
@@ -57,6 +69,37 @@ public class Aware_Preferences {
      */
     public static final String FREQUENCY_ACCELEROMETER = "frequency_accelerometer";
 
+    /**
+     * Activate/deactivate sliding-window accelerometer features (boolean), see {@link com.aware.utils.FeatureWindow}
+     */
+    public static final String STATUS_ACCELEROMETER_FEATURES = "status_accelerometer_features";
+
+    /**
+     * Store raw accelerometer samples in compressed columnar chunks instead of the SQLite table (boolean), see {@link com.aware.utils.TimeSeriesStore}.
+     * Samples already stored are moved in the background (see {@link com.aware.utils.ColumnarStorageService}), and stay where they were until then.
+     */
+    public static final String STATUS_COLUMNAR_STORAGE = "status_columnar_storage";
+
+    /**
+     * Activate/deactivate adaptive sampling (boolean): accelerometer, gyroscope and magnetometer sample slower while the device is still, see {@link com.aware.utils.AdaptiveSampling}
+     */
+    public static final String STATUS_ADAPTIVE_SAMPLING = "status_adaptive_sampling";
+
+    /**
+     * Standard deviation of the accelerometer magnitude under which the device is still, in m/s^2 (default = 0.05)
+     */
+    public static final String ADAPTIVE_SAMPLING_THRESHOLD = "adaptive_sampling_threshold";
+
+    /**
+     * Seconds the device must stay still before sampling slower (default = 60)
+     */
+    public static final String ADAPTIVE_SAMPLING_STILL_AFTER = "adaptive_sampling_still_after";
+
+    /**
+     * Sampling period while the device is still, in microseconds (default = 1000000)
+     */
+    public static final String ADAPTIVE_SAMPLING_STILL_FREQUENCY = "adaptive_sampling_still_frequency";
+
     /**
      * Activate/deactivate application usage log (boolean)
      */
@@ -140,6 +183,11 @@ public class Aware_Preferences {
      */
     public static final String FREQUENCY_GYROSCOPE = "frequency_gyroscope";
 
+    /**
+     * Activate/deactivate sliding-window gyroscope features (boolean)
+     */
+    public static final String STATUS_GYROSCOPE_FEATURES = "status_gyroscope_features";
+
     /**
      * Activate/deactivate GPS location log (boolean)
      */
@@ -189,6 +237,16 @@ public class Aware_Preferences {
      */
     public static final String FREQUENCY_LIGHT = "frequency_light";
 
+    /**
+     * Light change needed to store a sample, in lux. Empty = store every sample, 0 = store every change. See {@link com.aware.utils.Deadband}
+     */
+    public static final String THRESHOLD_LIGHT = "threshold_light";
+
+    /**
+     * Store a light sample at least every N seconds, even if it didn't change (default = 300, 0 = only changes)
+     */
+    public static final String KEEP_ALIVE_LIGHT = "keep_alive_light";
+
     /**
      * Activate/deactivate linear accelerometer log (boolean)
      */
@@ -203,6 +261,21 @@ public class Aware_Preferences {
      */
     public static final String FREQUENCY_LINEAR_ACCELEROMETER = "frequency_linear_accelerometer";
 
+    /**
+     * Activate/deactivate sliding-window linear accelerometer features (boolean)
+     */
+    public static final String STATUS_LINEAR_ACCELEROMETER_FEATURES = "status_linear_accelerometer_features";
+
+    /**
+     * Samples per feature window (default = 128)
+     */
+    public static final String FEATURES_WINDOW = "features_window";
+
+    /**
+     * Samples between two feature rows (default = half the window, i.e., 50% overlap)
+     */
+    public static final String FEATURES_HOP = "features_hop";
+
     /**
      * Activate/deactivate network usage events (boolean)
      */
@@ -246,6 +319,16 @@ public class Aware_Preferences {
      */
     public static final String FREQUENCY_BAROMETER = "frequency_barometer";
 
+    /**
+     * Barometer change needed to store a sample, in mbar. Empty = store every sample, 0 = store every change. See {@link com.aware.utils.Deadband}
+     */
+    public static final String THRESHOLD_BAROMETER = "threshold_barometer";
+
+    /**
+     * Store a barometer sample at least every N seconds, even if it didn't change (default = 300, 0 = only changes)
+     */
+    public static final String KEEP_ALIVE_BAROMETER = "keep_alive_barometer";
+
     /**
      * Activate/deactivate processor log (boolean)
      */
@@ -280,6 +363,16 @@ public class Aware_Preferences {
      */
     public static final String FREQUENCY_PROXIMITY = "frequency_proximity";
 
+    /**
+     * Proximity change needed to store a sample, in cm. Empty = store every sample, 0 = store every change. See {@link com.aware.utils.Deadband}
+     */
+    public static final String THRESHOLD_PROXIMITY = "threshold_proximity";
+
+    /**
+     * Store a proximity sample at least every N seconds, even if it didn't change (default = 300, 0 = only changes)
+     */
+    public static final String KEEP_ALIVE_PROXIMITY = "keep_alive_proximity";
+
     /**
      * Activate/deactivate rotation log (boolean)
      */
@@ -313,6 +406,16 @@ public class Aware_Preferences {
      */
     public static final String FREQUENCY_TEMPERATURE = "frequency_temperature";
 
+    /**
+     * Temperature change needed to store a sample, in Celsius. Empty = store every sample, 0 = store every change. See {@link com.aware.utils.Deadband}
+     */
+    public static final String THRESHOLD_TEMPERATURE = "threshold_temperature";
+
+    /**
+     * Store a temperature sample at least every N seconds, even if it didn't change (default = 300, 0 = only changes)
+     */
+    public static final String KEEP_ALIVE_TEMPERATURE = "keep_alive_temperature";
+
     /**
      * Activate/deactivate telephony log (boolean)
      */
@@ -403,6 +506,26 @@ public class Aware_Preferences {
      */
     public static final String FREQUENCY_WEBSERVICE = "frequency_webservice";
 
+    /**
+     * How many tables are synced at the same time (default = 2)
+     */
+    public static final String WEBSERVICE_SYNC_THREADS = "webservice_sync_threads";
+
+    /**
+     * Compress uploaded data with gzip (Content-Encoding: gzip). Falls back to uncompressed uploads if the server does not accept it. (default = false)
+     */
+    public static final String WEBSERVICE_GZIP_UPLOAD = "webservice_gzip_upload";
+
+    /**
+     * Upload high-frequency sensor tables as compact binary columnar batches (/insert_columnar). Falls back to JSON if the server does not support it. (default = false)
+     */
+    public static final String WEBSERVICE_COLUMNAR_UPLOAD = "webservice_columnar_upload";
+
+    /**
+     * Upload only the features of sensors that compute them, keeping their raw samples on the device (default = false)
+     */
+    public static final String WEBSERVICE_FEATURES_ONLY = "webservice_features_only";
+
     /**
      * How frequently to clean old data?
      * 0 - never
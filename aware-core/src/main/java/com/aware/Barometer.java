@@ -8,14 +8,11 @@ import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.pm.PackageManager;
 import android.database.Cursor;
-import android.database.SQLException;
-import android.database.sqlite.SQLiteException;
 import android.hardware.Sensor;
 import android.hardware.SensorEvent;
 import android.hardware.SensorEventListener;
 import android.hardware.SensorManager;
 import android.net.Uri;
-import android.os.AsyncTask;
 import android.os.Binder;
 import android.os.Handler;
 import android.os.HandlerThread;
@@ -29,9 +26,13 @@ import com.aware.providers.Barometer_Provider.Barometer_Data;
 import com.aware.providers.Barometer_Provider.Barometer_Sensor;
 import com.aware.ui.PermissionsHandler;
 import com.aware.utils.Aware_Sensor;
-
-import java.util.ArrayList;
-import java.util.List;
+import com.aware.utils.Deadband;
+import com.aware.utils.SampleBroadcaster;
+import com.aware.utils.RateMeter;
+import com.aware.utils.SampleStream;
+import com.aware.utils.SensorBatching;
+import com.aware.utils.SensorClock;
+import com.aware.utils.WriteBehindQueue;
 
 /**
  * AWARE Barometer module
@@ -50,7 +51,9 @@ public class Barometer extends Aware_Sensor implements SensorEventListener {
     private static Handler sensorHandler = null;
     private static PowerManager powerManager = null;
     private static PowerManager.WakeLock wakeLock = null;
-    private static int FIFO_SIZE = 0;
+    private SensorBatching batching;
+    private final SensorClock clock = new SensorClock();
+    private volatile Deadband deadband;
 
     private static int FREQUENCY = -1;
 
@@ -65,11 +68,18 @@ public class Barometer extends Aware_Sensor implements SensorEventListener {
     public static final String ACTION_AWARE_BAROMETER_LABEL = "ACTION_AWARE_BAROMETER_LABEL";
     public static final String EXTRA_LABEL = "label";
 
+    private WriteBehindQueue dataWriter;
+    private SampleBroadcaster broadcaster;
+
     /**
-     * Until today, no available Android phone samples higher than 208Hz (Nexus 7).
-     * http://ilessendata.blogspot.com/2012/11/android-accelerometer-sampling-rates.html
+     * Samples for bound in-process clients, kept across service restarts
      */
-    private List<ContentValues> data_values = new ArrayList<ContentValues>();
+    private static final SampleStream sampleStream = new SampleStream(64, 1);
+
+    /**
+     * Samples per second, for getFrequency()
+     */
+    private static final RateMeter rateMeter = new RateMeter();
 
     private static String LABEL = "";
 
@@ -91,49 +101,32 @@ public class Barometer extends Aware_Sensor implements SensorEventListener {
 
     @Override
     public void onSensorChanged(SensorEvent event) {
+        long timestamp = clock.toWallClock(event.timestamp);
+        rateMeter.add(timestamp);
+
         ContentValues rowData = new ContentValues();
         rowData.put(Barometer_Data.DEVICE_ID, Aware.getSetting(getApplicationContext(), Aware_Preferences.DEVICE_ID));
-        rowData.put(Barometer_Data.TIMESTAMP, System.currentTimeMillis());
+        rowData.put(Barometer_Data.TIMESTAMP, timestamp);
         rowData.put(Barometer_Data.AMBIENT_PRESSURE, event.values[0]);
         rowData.put(Barometer_Data.ACCURACY, event.accuracy);
         rowData.put(Barometer_Data.LABEL, LABEL);
 
-        if (data_values.size() < 250) {
-            data_values.add(rowData);
+        Deadband filter = deadband;
+        boolean store = (filter == null || filter.accept(timestamp, event.values[0], event.accuracy));
+        if (store && !Aware.getSetting(getApplicationContext(), Aware_Preferences.DEBUG_DB_SLOW).equals("true")) {
+            dataWriter.add(rowData);
+        }
 
+        sampleStream.publish(timestamp, event.values, event.accuracy);
+        broadcaster.add(timestamp, event.values, event.accuracy);
+
+        if (broadcaster.legacyBroadcasts()) {
             Intent pressureData = new Intent(ACTION_AWARE_BAROMETER);
             pressureData.putExtra(EXTRA_DATA, rowData);
             sendBroadcast(pressureData);
-
-            if (Aware.DEBUG) Log.d(TAG, "Barometer:" + rowData.toString());
-
-            return;
-        }
-
-        ContentValues[] data_buffer = new ContentValues[data_values.size()];
-        data_values.toArray(data_buffer);
-
-        try {
-            if (!Aware.getSetting(getApplicationContext(), Aware_Preferences.DEBUG_DB_SLOW).equals("true")) {
-                new AsyncStore().execute(data_buffer);
-            }
-        } catch (SQLiteException e) {
-            if (Aware.DEBUG) Log.d(TAG, e.getMessage());
-        } catch (SQLException e) {
-            if (Aware.DEBUG) Log.d(TAG, e.getMessage());
         }
-        data_values.clear();
-    }
 
-    /**
-     * Database I/O on different thread
-     */
-    private class AsyncStore extends AsyncTask<ContentValues[], Void, Void> {
-        @Override
-        protected Void doInBackground(ContentValues[]... data) {
-            getContentResolver().bulkInsert(Barometer_Data.CONTENT_URI, data[0]);
-            return null;
-        }
+        if (Aware.DEBUG) Log.d(TAG, "Barometer:" + rowData.toString());
     }
 
     /**
@@ -143,14 +136,7 @@ public class Barometer extends Aware_Sensor implements SensorEventListener {
      * @return hz
      */
     public static int getFrequency(Context context) {
-        int hz = 0;
-        String[] columns = new String[]{"count(*) as frequency", "datetime(" + Barometer_Data.TIMESTAMP + "/1000, 'unixepoch','localtime') as sample_time"};
-        Cursor qry = context.getContentResolver().query(Barometer_Data.CONTENT_URI, columns, "1) group by (sample_time", null, "sample_time DESC LIMIT 1 OFFSET 2");
-        if (qry != null && qry.moveToFirst()) {
-            hz = qry.getInt(0);
-        }
-        if (qry != null && !qry.isClosed()) qry.close();
-        return hz;
+        return rateMeter.getHz();
     }
 
     private void saveSensorDevice(Sensor sensor) {
@@ -183,16 +169,19 @@ public class Barometer extends Aware_Sensor implements SensorEventListener {
     public void onCreate() {
         super.onCreate();
 
+        dataWriter = getDataWriter(Barometer_Data.CONTENT_URI);
+        broadcaster = new SampleBroadcaster(this, ACTION_AWARE_BAROMETER, 1);
+
         mSensorManager = (SensorManager) getSystemService(SENSOR_SERVICE);
         powerManager = (PowerManager) getSystemService(POWER_SERVICE);
-        mPressure = mSensorManager.getDefaultSensor(Sensor.TYPE_PRESSURE);
-        FIFO_SIZE = mPressure.getFifoReservedEventCount();
+        batching = new SensorBatching(this, mSensorManager, Sensor.TYPE_PRESSURE);
+        mPressure = batching.getSensor();
 
         sensorThread = new HandlerThread(TAG);
         sensorThread.start();
 
         wakeLock = powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, TAG);
-        wakeLock.acquire();
+        batching.keepAwake(wakeLock);
 
         sensorHandler = new Handler(sensorThread.getLooper());
 
@@ -209,13 +198,16 @@ public class Barometer extends Aware_Sensor implements SensorEventListener {
 
     @Override
     public void onDestroy() {
-        super.onDestroy();
-
+        batching.flush();
         sensorHandler.removeCallbacksAndMessages(null);
-        mSensorManager.unregisterListener(this, mPressure);
+        batching.unregister();
+        rateMeter.reset();
         sensorThread.quit();
+        broadcaster.flush(); //deliver what subscribers still have batched
+
+        super.onDestroy(); //stores what is still queued
 
-        wakeLock.release();
+        if (wakeLock.isHeld()) wakeLock.release();
 
         unregisterReceiver(dataLabeler);
 
@@ -249,14 +241,17 @@ public class Barometer extends Aware_Sensor implements SensorEventListener {
                     Aware.setSetting(this, Aware_Preferences.FREQUENCY_BAROMETER, 200000);
                 }
 
-                if (FREQUENCY != Integer.parseInt(Aware.getSetting(getApplicationContext(), Aware_Preferences.FREQUENCY_BAROMETER))) {
+                int period = Integer.parseInt(Aware.getSetting(getApplicationContext(), Aware_Preferences.FREQUENCY_BAROMETER));
+                if (!batching.isRegistered(period)) {
                     sensorHandler.removeCallbacksAndMessages(null);
-                    mSensorManager.unregisterListener(this, mPressure);
-                    mSensorManager.registerListener(this, mPressure, Integer.parseInt(Aware.getSetting(getApplicationContext(), Aware_Preferences.FREQUENCY_BAROMETER)), FIFO_SIZE, sensorHandler);
+                    batching.register(this, period, sensorHandler);
+                    rateMeter.setMaxDelay(batching.getLatency() / 1000);
 
-                    FREQUENCY = Integer.parseInt(Aware.getSetting(getApplicationContext(), Aware_Preferences.FREQUENCY_BAROMETER));
+                    FREQUENCY = period;
                 }
 
+                deadband = Deadband.fromSettings(this, Aware_Preferences.THRESHOLD_BAROMETER, Aware_Preferences.KEEP_ALIVE_BAROMETER, deadband);
+
                 if (Aware.DEBUG) Log.d(TAG, "Barometer service active: " + FREQUENCY + "ms");
             }
         } else {
@@ -288,6 +283,13 @@ public class Barometer extends Aware_Sensor implements SensorEventListener {
         Barometer getService() {
             return Barometer.getService();
         }
+
+        /**
+         * @return stream of this sensor's samples, read with {@link SampleStream#newReader()}
+         */
+        public SampleStream getSampleStream() {
+            return sampleStream;
+        }
     }
 
     @Override
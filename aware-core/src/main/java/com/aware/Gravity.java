@@ -8,14 +8,11 @@ import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.pm.PackageManager;
 import android.database.Cursor;
-import android.database.SQLException;
-import android.database.sqlite.SQLiteException;
 import android.hardware.Sensor;
 import android.hardware.SensorEvent;
 import android.hardware.SensorEventListener;
 import android.hardware.SensorManager;
 import android.net.Uri;
-import android.os.AsyncTask;
 import android.os.Binder;
 import android.os.Handler;
 import android.os.HandlerThread;
@@ -30,10 +27,14 @@ import com.aware.providers.Gravity_Provider.Gravity_Data;
 import com.aware.providers.Gravity_Provider.Gravity_Sensor;
 import com.aware.ui.PermissionsHandler;
 import com.aware.utils.Aware_Sensor;
+import com.aware.utils.SampleBroadcaster;
+import com.aware.utils.RateMeter;
+import com.aware.utils.SampleRingBuffer;
+import com.aware.utils.SampleStream;
+import com.aware.utils.SensorBatching;
+import com.aware.utils.SensorClock;
 import com.aware.utils.Converters;
-
-import java.util.ArrayList;
-import java.util.List;
+import com.aware.utils.WriteBehindQueue;
 
 /**
  * AWARE Gravity module
@@ -55,7 +56,8 @@ public class Gravity extends Aware_Sensor implements SensorEventListener {
     private static Handler sensorHandler = null;
     private static PowerManager powerManager = null;
     private static PowerManager.WakeLock wakeLock = null;
-    private static int FIFO_SIZE = 0;
+    private SensorBatching batching;
+    private final SensorClock clock = new SensorClock();
     private static int FREQUENCY = -1;
     
     /**
@@ -73,7 +75,21 @@ public class Gravity extends Aware_Sensor implements SensorEventListener {
      * Until today, no available Android phone samples higher than 208Hz (Nexus 7).
      * http://ilessendata.blogspot.com/2012/11/android-accelerometer-sampling-rates.html
      */
-    private List<ContentValues> data_values = new ArrayList<ContentValues>();
+    private SampleRingBuffer sampleBuffer = new SampleRingBuffer(250, Gravity_Data.DEVICE_ID, Gravity_Data.TIMESTAMP, new String[]{Gravity_Data.VALUES_0, Gravity_Data.VALUES_1, Gravity_Data.VALUES_2}, Gravity_Data.ACCURACY, Gravity_Data.LABEL);
+    private String DEVICE_ID = "";
+    private volatile boolean db_slow = false;
+    private WriteBehindQueue dataWriter;
+    private SampleBroadcaster broadcaster;
+
+    /**
+     * Samples for bound in-process clients, kept across service restarts
+     */
+    private static final SampleStream sampleStream = new SampleStream(1024, 3);
+
+    /**
+     * Samples per second, for getFrequency()
+     */
+    private static final RateMeter rateMeter = new RateMeter();
 
     private static String LABEL = "";
 
@@ -94,50 +110,34 @@ public class Gravity extends Aware_Sensor implements SensorEventListener {
 
     @Override
     public void onSensorChanged(SensorEvent event) {
-        ContentValues rowData = new ContentValues();
-        rowData.put(Gravity_Data.DEVICE_ID, Aware.getSetting(getApplicationContext(), Aware_Preferences.DEVICE_ID));
-        rowData.put(Gravity_Data.TIMESTAMP, System.currentTimeMillis());
-        rowData.put(Gravity_Data.VALUES_0, event.values[0]);
-        rowData.put(Gravity_Data.VALUES_1, event.values[1]);
-        rowData.put(Gravity_Data.VALUES_2, event.values[2]);
-        rowData.put(Gravity_Data.ACCURACY, event.accuracy);
-        rowData.put(Gravity_Data.LABEL, LABEL);
-
-        if( data_values.size() < 250 ) {
-            data_values.add(rowData);
+        long timestamp = clock.toWallClock(event.timestamp);
+        rateMeter.add(timestamp);
 
-            Intent gravityData = new Intent(ACTION_AWARE_GRAVITY);
-            gravityData.putExtra(EXTRA_DATA, rowData);
-            sendBroadcast(gravityData);
+        if (sampleBuffer.add(timestamp, event.values, event.accuracy, LABEL)) {
+            ContentValues[] data_buffer = sampleBuffer.drain(DEVICE_ID);
+            if (!db_slow) {
+                dataWriter.addAll(data_buffer);
+            }
+        }
 
-            if( Aware.DEBUG ) Log.d(TAG, "Gravity:"+ rowData.toString());
+        sampleStream.publish(timestamp, event.values, event.accuracy);
+        broadcaster.add(timestamp, event.values, event.accuracy);
 
-            return;
-        }
+        if (broadcaster.legacyBroadcasts()) {
+            ContentValues rowData = new ContentValues();
+            rowData.put(Gravity_Data.DEVICE_ID, DEVICE_ID);
+            rowData.put(Gravity_Data.TIMESTAMP, timestamp);
+            rowData.put(Gravity_Data.VALUES_0, event.values[0]);
+            rowData.put(Gravity_Data.VALUES_1, event.values[1]);
+            rowData.put(Gravity_Data.VALUES_2, event.values[2]);
+            rowData.put(Gravity_Data.ACCURACY, event.accuracy);
+            rowData.put(Gravity_Data.LABEL, LABEL);
 
-        ContentValues[] data_buffer = new ContentValues[data_values.size()];
-        data_values.toArray(data_buffer);
-
-        try {
-            if( ! Aware.getSetting(getApplicationContext(), Aware_Preferences.DEBUG_DB_SLOW).equals("true") ) {
-        		new AsyncStore().execute(data_buffer);
-        	}
-        }catch( SQLiteException e ) {
-            if(Aware.DEBUG) Log.d(TAG,e.getMessage());
-        }catch( SQLException e ) {
-            if(Aware.DEBUG) Log.d(TAG,e.getMessage());
-        }
-        data_values.clear();
-    }
+            Intent gravityData = new Intent(ACTION_AWARE_GRAVITY);
+            gravityData.putExtra(EXTRA_DATA, rowData);
+            sendBroadcast(gravityData);
 
-    /**
-     * Database I/O on different thread
-     */
-    private class AsyncStore extends AsyncTask<ContentValues[], Void, Void> {
-        @Override
-        protected Void doInBackground(ContentValues[]... data) {
-            getContentResolver().bulkInsert(Gravity_Data.CONTENT_URI, data[0]);
-            return null;
+            if (Aware.DEBUG) Log.d(TAG, "Gravity:" + rowData.toString());
         }
     }
 
@@ -147,14 +147,7 @@ public class Gravity extends Aware_Sensor implements SensorEventListener {
      * @return hz
      */
     public static int getFrequency(Context context) {
-        int hz = 0;
-        String[] columns = new String[]{ "count(*) as frequency", "datetime("+ Gravity_Data.TIMESTAMP+"/1000, 'unixepoch','localtime') as sample_time" };
-        Cursor qry = context.getContentResolver().query(Gravity_Data.CONTENT_URI, columns, "1) group by (sample_time", null, "sample_time DESC LIMIT 1 OFFSET 2");
-        if( qry != null && qry.moveToFirst() ) {
-            hz = qry.getInt(0);
-        }
-        if( qry != null && ! qry.isClosed() ) qry.close();
-        return hz;
+        return rateMeter.getHz();
     }
     
     private void saveSensorDevice(Sensor sensor) {
@@ -187,18 +180,21 @@ public class Gravity extends Aware_Sensor implements SensorEventListener {
     @Override
     public void onCreate() {
         super.onCreate();
+
+        dataWriter = getDataWriter(Gravity_Data.CONTENT_URI);
+        broadcaster = new SampleBroadcaster(this, ACTION_AWARE_GRAVITY, 3);
         
         mSensorManager = (SensorManager) getSystemService(SENSOR_SERVICE);
         powerManager = (PowerManager) getSystemService(POWER_SERVICE);
         
-        mGravity = mSensorManager.getDefaultSensor(Sensor.TYPE_GRAVITY);
-        FIFO_SIZE = mGravity.getFifoReservedEventCount();
+        batching = new SensorBatching(this, mSensorManager, Sensor.TYPE_GRAVITY);
+        mGravity = batching.getSensor();
 
         sensorThread = new HandlerThread(TAG);
         sensorThread.start();
         
         wakeLock = powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, TAG);
-        wakeLock.acquire();
+        batching.keepAwake(wakeLock);
         
         sensorHandler = new Handler(sensorThread.getLooper());
 
@@ -215,14 +211,19 @@ public class Gravity extends Aware_Sensor implements SensorEventListener {
     
     @Override
     public void onDestroy() {
-        super.onDestroy();
-        
+        batching.flush();
         sensorHandler.removeCallbacksAndMessages(null);
-        mSensorManager.unregisterListener(this, mGravity);
-        
+        batching.unregister();
+        rateMeter.reset();
         sensorThread.quit();
+        broadcaster.flush(); //deliver what subscribers still have batched
+
+        //Keep what is still in the sample buffer
+        dataWriter.addAll(sampleBuffer.drain(DEVICE_ID));
+
+        super.onDestroy(); //stores what is still queued
         
-        wakeLock.release();
+        if (wakeLock.isHeld()) wakeLock.release();
 
         unregisterReceiver(dataLabeler);
 
@@ -247,18 +248,21 @@ public class Gravity extends Aware_Sensor implements SensorEventListener {
                 stopSelf();
             } else {
                 Aware.setSetting(this, Aware_Preferences.STATUS_GRAVITY, true);
+                DEVICE_ID = Aware.getSetting(getApplicationContext(), Aware_Preferences.DEVICE_ID);
+                db_slow = Aware.getSetting(getApplicationContext(), Aware_Preferences.DEBUG_DB_SLOW).equals("true");
                 saveSensorDevice(mGravity);
 
                 if( Aware.getSetting(this, Aware_Preferences.FREQUENCY_GRAVITY).length() == 0 ) {
                     Aware.setSetting(this, Aware_Preferences.FREQUENCY_GRAVITY, 200000);
                 }
 
-                if (FREQUENCY != Integer.parseInt(Aware.getSetting(getApplicationContext(), Aware_Preferences.FREQUENCY_GRAVITY))) {
+                int period = Integer.parseInt(Aware.getSetting(getApplicationContext(), Aware_Preferences.FREQUENCY_GRAVITY));
+                if (!batching.isRegistered(period)) {
                     sensorHandler.removeCallbacksAndMessages(null);
-                    mSensorManager.unregisterListener(this, mGravity);
-                    mSensorManager.registerListener(this, mGravity, Integer.parseInt(Aware.getSetting(getApplicationContext(), Aware_Preferences.FREQUENCY_GRAVITY)), FIFO_SIZE, sensorHandler);
+                    batching.register(this, period, sensorHandler);
+                    rateMeter.setMaxDelay(batching.getLatency() / 1000);
 
-                    FREQUENCY = Integer.parseInt(Aware.getSetting(getApplicationContext(), Aware_Preferences.FREQUENCY_GRAVITY));
+                    FREQUENCY = period;
                 }
 
                 if(Aware.DEBUG) Log.d(TAG,"Gravity service active: " + FREQUENCY + "ms");
@@ -290,6 +294,13 @@ public class Gravity extends Aware_Sensor implements SensorEventListener {
         Gravity getService() {
             return Gravity.getService();
         }
+
+        /**
+         * @return stream of this sensor's samples, read with {@link SampleStream#newReader()}
+         */
+        public SampleStream getSampleStream() {
+            return sampleStream;
+        }
     }
     
     @Override
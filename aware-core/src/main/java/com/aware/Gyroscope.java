@@ -8,14 +8,11 @@ import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.pm.PackageManager;
 import android.database.Cursor;
-import android.database.SQLException;
-import android.database.sqlite.SQLiteException;
 import android.hardware.Sensor;
 import android.hardware.SensorEvent;
 import android.hardware.SensorEventListener;
 import android.hardware.SensorManager;
 import android.net.Uri;
-import android.os.AsyncTask;
 import android.os.Binder;
 import android.os.Handler;
 import android.os.HandlerThread;
@@ -27,13 +24,20 @@ import android.util.Log;
 import com.aware.providers.Gravity_Provider;
 import com.aware.providers.Gyroscope_Provider;
 import com.aware.providers.Gyroscope_Provider.Gyroscope_Data;
+import com.aware.providers.Gyroscope_Provider.Gyroscope_Features;
 import com.aware.providers.Gyroscope_Provider.Gyroscope_Sensor;
 import com.aware.ui.PermissionsHandler;
+import com.aware.utils.AdaptiveSampling;
 import com.aware.utils.Aware_Sensor;
+import com.aware.utils.FeatureWindow;
+import com.aware.utils.SampleBroadcaster;
+import com.aware.utils.RateMeter;
+import com.aware.utils.SampleRingBuffer;
+import com.aware.utils.SampleStream;
+import com.aware.utils.SensorBatching;
+import com.aware.utils.SensorClock;
 import com.aware.utils.Converters;
-
-import java.util.ArrayList;
-import java.util.List;
+import com.aware.utils.WriteBehindQueue;
 
 /**
  * Service that logs gyroscope readings from the device
@@ -53,7 +57,8 @@ public class Gyroscope extends Aware_Sensor implements SensorEventListener {
     private static Handler sensorHandler = null;
     private static PowerManager powerManager = null;
     private static PowerManager.WakeLock wakeLock = null;
-    private static int FIFO_SIZE = 0;
+    private SensorBatching batching;
+    private final SensorClock clock = new SensorClock();
     private static int FREQUENCY = -1;
 
     /**
@@ -71,11 +76,38 @@ public class Gyroscope extends Aware_Sensor implements SensorEventListener {
      * Until today, no available Android phone samples higher than 208Hz (Nexus 7).
      * http://ilessendata.blogspot.com/2012/11/android-accelerometer-sampling-rates.html
      */
-    private List<ContentValues> data_values = new ArrayList<ContentValues>();
+    private SampleRingBuffer sampleBuffer = new SampleRingBuffer(250, Gyroscope_Data.DEVICE_ID, Gyroscope_Data.TIMESTAMP, new String[]{Gyroscope_Data.VALUES_0, Gyroscope_Data.VALUES_1, Gyroscope_Data.VALUES_2}, Gyroscope_Data.ACCURACY, Gyroscope_Data.LABEL);
+    private String DEVICE_ID = "";
+    private volatile boolean db_slow = false;
+    private WriteBehindQueue dataWriter;
+    private SampleBroadcaster broadcaster;
+    private WriteBehindQueue featureWriter;
+    private volatile FeatureWindow featureWindow;
+
+    /**
+     * Samples for bound in-process clients, kept across service restarts
+     */
+    private static final SampleStream sampleStream = new SampleStream(1024, 3);
+
+    /**
+     * Samples per second, for getFrequency()
+     */
+    private static final RateMeter rateMeter = new RateMeter();
 
     private static String LABEL = "";
 
     private static DataLabel dataLabeler = new DataLabel();
+    private static SamplingState samplingState = new SamplingState();
+
+    /**
+     * The accelerometer decided the device is still or moving: restart to register at the matching rate
+     */
+    public static class SamplingState extends BroadcastReceiver {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            context.startService(new Intent(context, Gyroscope.class));
+        }
+    }
 
     public static class DataLabel extends BroadcastReceiver {
         @Override
@@ -93,50 +125,39 @@ public class Gyroscope extends Aware_Sensor implements SensorEventListener {
 
     @Override
     public void onSensorChanged(SensorEvent event) {
-        ContentValues rowData = new ContentValues();
-        rowData.put(Gyroscope_Data.DEVICE_ID, Aware.getSetting(getApplicationContext(), Aware_Preferences.DEVICE_ID));
-        rowData.put(Gyroscope_Data.TIMESTAMP, System.currentTimeMillis());
-        rowData.put(Gyroscope_Data.VALUES_0, event.values[0]);
-        rowData.put(Gyroscope_Data.VALUES_1, event.values[1]);
-        rowData.put(Gyroscope_Data.VALUES_2, event.values[2]);
-        rowData.put(Gyroscope_Data.ACCURACY, event.accuracy);
-        rowData.put(Gyroscope_Data.LABEL, LABEL);
-
-        if (data_values.size() < 250) {
-            data_values.add(rowData);
-
-            Intent gyroData = new Intent(ACTION_AWARE_GYROSCOPE);
-            gyroData.putExtra(EXTRA_DATA, rowData);
-            sendBroadcast(gyroData);
+        long timestamp = clock.toWallClock(event.timestamp);
+        rateMeter.add(timestamp);
 
-            if (Aware.DEBUG) Log.d(TAG, "Gyroscope:" + rowData.toString());
+        if (sampleBuffer.add(timestamp, event.values, event.accuracy, LABEL)) {
+            ContentValues[] data_buffer = sampleBuffer.drain(DEVICE_ID);
+            if (!db_slow) {
+                dataWriter.addAll(data_buffer);
+            }
+        }
 
-            return;
+        FeatureWindow features = featureWindow;
+        if (features != null && features.add(timestamp, event.values)) {
+            featureWriter.add(features.toContentValues(DEVICE_ID, LABEL));
         }
 
-        ContentValues[] data_buffer = new ContentValues[data_values.size()];
-        data_values.toArray(data_buffer);
+        sampleStream.publish(timestamp, event.values, event.accuracy);
+        broadcaster.add(timestamp, event.values, event.accuracy);
 
-        try {
-            if (!Aware.getSetting(getApplicationContext(), Aware_Preferences.DEBUG_DB_SLOW).equals("true")) {
-                new AsyncStore().execute(data_buffer);
-            }
-        } catch (SQLiteException e) {
-            if (Aware.DEBUG) Log.d(TAG, e.getMessage());
-        } catch (SQLException e) {
-            if (Aware.DEBUG) Log.d(TAG, e.getMessage());
-        }
-        data_values.clear();
-    }
+        if (broadcaster.legacyBroadcasts()) {
+            ContentValues rowData = new ContentValues();
+            rowData.put(Gyroscope_Data.DEVICE_ID, DEVICE_ID);
+            rowData.put(Gyroscope_Data.TIMESTAMP, timestamp);
+            rowData.put(Gyroscope_Data.VALUES_0, event.values[0]);
+            rowData.put(Gyroscope_Data.VALUES_1, event.values[1]);
+            rowData.put(Gyroscope_Data.VALUES_2, event.values[2]);
+            rowData.put(Gyroscope_Data.ACCURACY, event.accuracy);
+            rowData.put(Gyroscope_Data.LABEL, LABEL);
 
-    /**
-     * Database I/O on different thread
-     */
-    private class AsyncStore extends AsyncTask<ContentValues[], Void, Void> {
-        @Override
-        protected Void doInBackground(ContentValues[]... data) {
-            getContentResolver().bulkInsert(Gyroscope_Data.CONTENT_URI, data[0]);
-            return null;
+            Intent gyroData = new Intent(ACTION_AWARE_GYROSCOPE);
+            gyroData.putExtra(EXTRA_DATA, rowData);
+            sendBroadcast(gyroData);
+
+            if (Aware.DEBUG) Log.d(TAG, "Gyroscope:" + rowData.toString());
         }
     }
 
@@ -147,14 +168,7 @@ public class Gyroscope extends Aware_Sensor implements SensorEventListener {
      * @return hz
      */
     public static int getFrequency(Context context) {
-        int hz = 0;
-        String[] columns = new String[]{"count(*) as frequency", "datetime(" + Gyroscope_Data.TIMESTAMP + "/1000, 'unixepoch','localtime') as sample_time"};
-        Cursor qry = context.getContentResolver().query(Gyroscope_Data.CONTENT_URI, columns, "1) group by (sample_time", null, "sample_time DESC LIMIT 1 OFFSET 2");
-        if (qry != null && qry.moveToFirst()) {
-            hz = qry.getInt(0);
-        }
-        if (qry != null && !qry.isClosed()) qry.close();
-        return hz;
+        return rateMeter.getHz();
     }
 
     private void saveGyroscopeDevice(Sensor gyro) {
@@ -187,42 +201,58 @@ public class Gyroscope extends Aware_Sensor implements SensorEventListener {
     public void onCreate() {
         super.onCreate();
 
+        dataWriter = getDataWriter(Gyroscope_Data.CONTENT_URI);
+        broadcaster = new SampleBroadcaster(this, ACTION_AWARE_GYROSCOPE, 3);
+        featureWriter = getDataWriter(Gyroscope_Features.CONTENT_URI);
+
         mSensorManager = (SensorManager) getSystemService(SENSOR_SERVICE);
         powerManager = (PowerManager) getSystemService(POWER_SERVICE);
 
-        mGyroscope = mSensorManager.getDefaultSensor(Sensor.TYPE_GYROSCOPE);
-        FIFO_SIZE = mGyroscope.getFifoReservedEventCount();
+        batching = new SensorBatching(this, mSensorManager, Sensor.TYPE_GYROSCOPE);
+        mGyroscope = batching.getSensor();
 
         sensorThread = new HandlerThread(TAG);
         sensorThread.start();
 
         wakeLock = powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, TAG);
-        wakeLock.acquire();
+        batching.keepAwake(wakeLock);
 
         sensorHandler = new Handler(sensorThread.getLooper());
 
         DATABASE_TABLES = Gyroscope_Provider.DATABASE_TABLES;
         TABLES_FIELDS = Gyroscope_Provider.TABLES_FIELDS;
-        CONTEXT_URIS = new Uri[]{Gyroscope_Sensor.CONTENT_URI, Gyroscope_Data.CONTENT_URI};
+        CONTEXT_URIS = new Uri[]{Gyroscope_Sensor.CONTENT_URI, Gyroscope_Data.CONTENT_URI, Gyroscope_Features.CONTENT_URI};
 
         IntentFilter filter = new IntentFilter();
         filter.addAction(ACTION_AWARE_GYROSCOPE_LABEL);
         registerReceiver(dataLabeler, filter);
 
+        IntentFilter sampling = new IntentFilter();
+        sampling.addAction(AdaptiveSampling.ACTION_AWARE_DEVICE_STILL);
+        sampling.addAction(AdaptiveSampling.ACTION_AWARE_DEVICE_MOVING);
+        registerReceiver(samplingState, sampling);
+
         if (Aware.DEBUG) Log.d(TAG, "Gyroscope service created!");
     }
 
     @Override
     public void onDestroy() {
-        super.onDestroy();
-
+        batching.flush();
         sensorHandler.removeCallbacksAndMessages(null);
-        mSensorManager.unregisterListener(this, mGyroscope);
+        batching.unregister();
+        rateMeter.reset();
         sensorThread.quit();
+        broadcaster.flush(); //deliver what subscribers still have batched
 
-        wakeLock.release();
+        //Keep what is still in the sample buffer
+        dataWriter.addAll(sampleBuffer.drain(DEVICE_ID));
+
+        super.onDestroy(); //stores what is still queued
+
+        if (wakeLock.isHeld()) wakeLock.release();
 
         unregisterReceiver(dataLabeler);
+        unregisterReceiver(samplingState);
 
         if (Aware.DEBUG) Log.d(TAG, "Gyroscope service terminated...");
     }
@@ -248,21 +278,26 @@ public class Gyroscope extends Aware_Sensor implements SensorEventListener {
                 DEBUG = Aware.getSetting(this, Aware_Preferences.DEBUG_FLAG).equals("true");
 
                 Aware.setSetting(this, Aware_Preferences.STATUS_GYROSCOPE, true);
+                DEVICE_ID = Aware.getSetting(getApplicationContext(), Aware_Preferences.DEVICE_ID);
+                db_slow = Aware.getSetting(getApplicationContext(), Aware_Preferences.DEBUG_DB_SLOW).equals("true");
                 saveGyroscopeDevice(mGyroscope);
 
                 if (Aware.getSetting(this, Aware_Preferences.FREQUENCY_GYROSCOPE).length() == 0) {
                     Aware.setSetting(this, Aware_Preferences.FREQUENCY_GYROSCOPE, 200000);
                 }
 
-                if (FREQUENCY != Integer.parseInt(Aware.getSetting(getApplicationContext(), Aware_Preferences.FREQUENCY_GYROSCOPE))) {
+                int period = AdaptiveSampling.getPeriod(this, Integer.parseInt(Aware.getSetting(getApplicationContext(), Aware_Preferences.FREQUENCY_GYROSCOPE)));
+                if (!batching.isRegistered(period)) {
                     sensorHandler.removeCallbacksAndMessages(null);
-                    mSensorManager.unregisterListener(this, mGyroscope);
-                    mSensorManager.registerListener(this, mGyroscope, Integer.parseInt(Aware.getSetting(getApplicationContext(), Aware_Preferences.FREQUENCY_GYROSCOPE)), FIFO_SIZE, sensorHandler); //Note: FIFO for gyroscope in Cyanogenmod is not working.
+                    batching.register(this, period, sensorHandler); //Note: FIFO for gyroscope in Cyanogenmod is not working.
+                    rateMeter.setMaxDelay(batching.getLatency() / 1000);
 
-                    FREQUENCY = Integer.parseInt(Aware.getSetting(getApplicationContext(), Aware_Preferences.FREQUENCY_GYROSCOPE));
+                    FREQUENCY = period;
                 }
             }
 
+            featureWindow = FeatureWindow.fromSettings(this, Aware_Preferences.STATUS_GYROSCOPE_FEATURES, featureWindow);
+
             if (Aware.DEBUG) Log.d(TAG, "Gyroscope service active: " + FREQUENCY + "ms");
 
         } else {
@@ -294,6 +329,21 @@ public class Gyroscope extends Aware_Sensor implements SensorEventListener {
         Gyroscope getService() {
             return Gyroscope.getService();
         }
+
+        /**
+         * @return stream of this sensor's samples, read with {@link SampleStream#newReader()}
+         */
+        public SampleStream getSampleStream() {
+            return sampleStream;
+        }
+    }
+
+    @Override
+    protected boolean syncTable(int table) {
+        //raw samples stay on the device when the study only collects features
+        return !(DATABASE_TABLES[table].equals(Gyroscope_Provider.DATABASE_TABLES[1])
+                && featureWindow != null
+                && Aware.getSetting(this, Aware_Preferences.WEBSERVICE_FEATURES_ONLY).equals("true"));
     }
 
     @Override
@@ -8,14 +8,11 @@ import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.pm.PackageManager;
 import android.database.Cursor;
-import android.database.SQLException;
-import android.database.sqlite.SQLiteException;
 import android.hardware.Sensor;
 import android.hardware.SensorEvent;
 import android.hardware.SensorEventListener;
 import android.hardware.SensorManager;
 import android.net.Uri;
-import android.os.AsyncTask;
 import android.os.Binder;
 import android.os.Handler;
 import android.os.HandlerThread;
@@ -31,9 +28,13 @@ import com.aware.providers.Light_Provider.Light_Sensor;
 import com.aware.ui.PermissionsHandler;
 import com.aware.utils.Aware_Sensor;
 import com.aware.utils.Converters;
-
-import java.util.ArrayList;
-import java.util.List;
+import com.aware.utils.Deadband;
+import com.aware.utils.SampleBroadcaster;
+import com.aware.utils.RateMeter;
+import com.aware.utils.SampleStream;
+import com.aware.utils.SensorBatching;
+import com.aware.utils.SensorClock;
+import com.aware.utils.WriteBehindQueue;
 
 /**
  * AWARE Light module
@@ -55,7 +56,9 @@ public class Light extends Aware_Sensor implements SensorEventListener {
     private static Handler sensorHandler = null;
     private static PowerManager powerManager = null;
     private static PowerManager.WakeLock wakeLock = null;
-    private static int FIFO_SIZE = 0;
+    private SensorBatching batching;
+    private final SensorClock clock = new SensorClock();
+    private volatile Deadband deadband;
     private static int FREQUENCY = -1;
 
     /**
@@ -69,11 +72,18 @@ public class Light extends Aware_Sensor implements SensorEventListener {
     public static final String ACTION_AWARE_LIGHT_LABEL = "ACTION_AWARE_LIGHT_LABEL";
     public static final String EXTRA_LABEL = "label";
 
+    private WriteBehindQueue dataWriter;
+    private SampleBroadcaster broadcaster;
+
     /**
-     * Until today, no available Android phone samples higher than 208Hz (Nexus 7).
-     * http://ilessendata.blogspot.com/2012/11/android-accelerometer-sampling-rates.html
+     * Samples for bound in-process clients, kept across service restarts
      */
-    private List<ContentValues> data_values = new ArrayList<ContentValues>();
+    private static final SampleStream sampleStream = new SampleStream(64, 1);
+
+    /**
+     * Samples per second, for getFrequency()
+     */
+    private static final RateMeter rateMeter = new RateMeter();
 
     private static String LABEL = "";
 
@@ -95,49 +105,32 @@ public class Light extends Aware_Sensor implements SensorEventListener {
 
     @Override
     public void onSensorChanged(SensorEvent event) {
+        long timestamp = clock.toWallClock(event.timestamp);
+        rateMeter.add(timestamp);
+
         ContentValues rowData = new ContentValues();
         rowData.put(Light_Data.DEVICE_ID, Aware.getSetting(getApplicationContext(), Aware_Preferences.DEVICE_ID));
-        rowData.put(Light_Data.TIMESTAMP, System.currentTimeMillis());
+        rowData.put(Light_Data.TIMESTAMP, timestamp);
         rowData.put(Light_Data.LIGHT_LUX, event.values[0]);
         rowData.put(Light_Data.ACCURACY, event.accuracy);
         rowData.put(Light_Data.LABEL, LABEL);
 
-        if (data_values.size() < 250) {
-            data_values.add(rowData);
+        Deadband filter = deadband;
+        boolean store = (filter == null || filter.accept(timestamp, event.values[0], event.accuracy));
+        if (store && !Aware.getSetting(getApplicationContext(), Aware_Preferences.DEBUG_DB_SLOW).equals("true")) {
+            dataWriter.add(rowData);
+        }
 
+        sampleStream.publish(timestamp, event.values, event.accuracy);
+        broadcaster.add(timestamp, event.values, event.accuracy);
+
+        if (broadcaster.legacyBroadcasts()) {
             Intent lightData = new Intent(ACTION_AWARE_LIGHT);
             lightData.putExtra(EXTRA_DATA, rowData);
             sendBroadcast(lightData);
-
-            if (Aware.DEBUG) Log.d(TAG, "Light:" + rowData.toString());
-
-            return;
-        }
-
-        ContentValues[] data_buffer = new ContentValues[data_values.size()];
-        data_values.toArray(data_buffer);
-
-        try {
-            if (!Aware.getSetting(getApplicationContext(), Aware_Preferences.DEBUG_DB_SLOW).equals("true")) {
-                new AsyncStore().execute(data_buffer);
-            }
-        } catch (SQLiteException e) {
-            if (Aware.DEBUG) Log.d(TAG, e.getMessage());
-        } catch (SQLException e) {
-            if (Aware.DEBUG) Log.d(TAG, e.getMessage());
         }
-        data_values.clear();
-    }
 
-    /**
-     * Database I/O on different thread
-     */
-    private class AsyncStore extends AsyncTask<ContentValues[], Void, Void> {
-        @Override
-        protected Void doInBackground(ContentValues[]... data) {
-            getContentResolver().bulkInsert(Light_Data.CONTENT_URI, data[0]);
-            return null;
-        }
+        if (Aware.DEBUG) Log.d(TAG, "Light:" + rowData.toString());
     }
 
     /**
@@ -147,14 +140,7 @@ public class Light extends Aware_Sensor implements SensorEventListener {
      * @return hz
      */
     public static int getFrequency(Context context) {
-        int hz = 0;
-        String[] columns = new String[]{"count(*) as frequency", "datetime(" + Light_Data.TIMESTAMP + "/1000, 'unixepoch','localtime') as sample_time"};
-        Cursor qry = context.getContentResolver().query(Light_Data.CONTENT_URI, columns, "1) group by (sample_time", null, "sample_time DESC LIMIT 1 OFFSET 2");
-        if (qry != null && qry.moveToFirst()) {
-            hz = qry.getInt(0);
-        }
-        if (qry != null && !qry.isClosed()) qry.close();
-        return hz;
+        return rateMeter.getHz();
     }
 
     private void saveSensorDevice(Sensor sensor) {
@@ -188,17 +174,20 @@ public class Light extends Aware_Sensor implements SensorEventListener {
     public void onCreate() {
         super.onCreate();
 
+        dataWriter = getDataWriter(Light_Data.CONTENT_URI);
+        broadcaster = new SampleBroadcaster(this, ACTION_AWARE_LIGHT, 1);
+
         mSensorManager = (SensorManager) getSystemService(SENSOR_SERVICE);
         powerManager = (PowerManager) getSystemService(POWER_SERVICE);
 
-        mLight = mSensorManager.getDefaultSensor(Sensor.TYPE_LIGHT);
-        FIFO_SIZE = mLight.getFifoReservedEventCount();
+        batching = new SensorBatching(this, mSensorManager, Sensor.TYPE_LIGHT);
+        mLight = batching.getSensor();
 
         sensorThread = new HandlerThread(TAG);
         sensorThread.start();
 
         wakeLock = powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, TAG);
-        wakeLock.acquire();
+        batching.keepAwake(wakeLock);
 
         sensorHandler = new Handler(sensorThread.getLooper());
 
@@ -216,13 +205,16 @@ public class Light extends Aware_Sensor implements SensorEventListener {
 
     @Override
     public void onDestroy() {
-        super.onDestroy();
-
+        batching.flush();
         sensorHandler.removeCallbacksAndMessages(null);
-        mSensorManager.unregisterListener(this, mLight);
+        batching.unregister();
+        rateMeter.reset();
         sensorThread.quit();
+        broadcaster.flush(); //deliver what subscribers still have batched
+
+        super.onDestroy(); //stores what is still queued
 
-        wakeLock.release();
+        if (wakeLock.isHeld()) wakeLock.release();
 
         unregisterReceiver(dataLabeler);
 
@@ -255,14 +247,17 @@ public class Light extends Aware_Sensor implements SensorEventListener {
                     Aware.setSetting(this, Aware_Preferences.FREQUENCY_LIGHT, 200000);
                 }
 
-                if (FREQUENCY != Integer.parseInt(Aware.getSetting(getApplicationContext(), Aware_Preferences.FREQUENCY_LIGHT))) {
+                int period = Integer.parseInt(Aware.getSetting(getApplicationContext(), Aware_Preferences.FREQUENCY_LIGHT));
+                if (!batching.isRegistered(period)) {
                     sensorHandler.removeCallbacksAndMessages(null);
-                    mSensorManager.unregisterListener(this, mLight);
-                    mSensorManager.registerListener(this, mLight, Integer.parseInt(Aware.getSetting(getApplicationContext(), Aware_Preferences.FREQUENCY_LIGHT)), FIFO_SIZE, sensorHandler);
+                    batching.register(this, period, sensorHandler);
+                    rateMeter.setMaxDelay(batching.getLatency() / 1000);
 
-                    FREQUENCY = Integer.parseInt(Aware.getSetting(getApplicationContext(), Aware_Preferences.FREQUENCY_LIGHT));
+                    FREQUENCY = period;
                 }
 
+                deadband = Deadband.fromSettings(this, Aware_Preferences.THRESHOLD_LIGHT, Aware_Preferences.KEEP_ALIVE_LIGHT, deadband);
+
                 if (Aware.DEBUG) Log.d(TAG, "Light service active: " + FREQUENCY + "ms");
             }
         } else {
@@ -294,6 +289,13 @@ public class Light extends Aware_Sensor implements SensorEventListener {
         Light getService() {
             return Light.getService();
         }
+
+        /**
+         * @return stream of this sensor's samples, read with {@link SampleStream#newReader()}
+         */
+        public SampleStream getSampleStream() {
+            return sampleStream;
+        }
     }
 
     @Override
@@ -8,14 +8,11 @@ import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.pm.PackageManager;
 import android.database.Cursor;
-import android.database.SQLException;
-import android.database.sqlite.SQLiteException;
 import android.hardware.Sensor;
 import android.hardware.SensorEvent;
 import android.hardware.SensorEventListener;
 import android.hardware.SensorManager;
 import android.net.Uri;
-import android.os.AsyncTask;
 import android.os.Binder;
 import android.os.Handler;
 import android.os.HandlerThread;
@@ -27,13 +24,19 @@ import android.util.Log;
 import com.aware.providers.Accelerometer_Provider;
 import com.aware.providers.Linear_Accelerometer_Provider;
 import com.aware.providers.Linear_Accelerometer_Provider.Linear_Accelerometer_Data;
+import com.aware.providers.Linear_Accelerometer_Provider.Linear_Accelerometer_Features;
 import com.aware.providers.Linear_Accelerometer_Provider.Linear_Accelerometer_Sensor;
 import com.aware.ui.PermissionsHandler;
 import com.aware.utils.Aware_Sensor;
+import com.aware.utils.FeatureWindow;
+import com.aware.utils.SampleBroadcaster;
+import com.aware.utils.RateMeter;
+import com.aware.utils.SampleRingBuffer;
+import com.aware.utils.SampleStream;
+import com.aware.utils.SensorBatching;
+import com.aware.utils.SensorClock;
 import com.aware.utils.Converters;
-
-import java.util.ArrayList;
-import java.util.List;
+import com.aware.utils.WriteBehindQueue;
 
 /**
  * AWARE Linear-accelerometer module:
@@ -57,7 +60,8 @@ public class LinearAccelerometer extends Aware_Sensor implements SensorEventList
     private static Handler sensorHandler = null;
     private static PowerManager powerManager = null;
     private static PowerManager.WakeLock wakeLock = null;
-    private static int FIFO_SIZE = 0;
+    private SensorBatching batching;
+    private final SensorClock clock = new SensorClock();
     private static int FREQUENCY = -1;
 
     /**
@@ -75,7 +79,23 @@ public class LinearAccelerometer extends Aware_Sensor implements SensorEventList
      * Until today, no available Android phone samples higher than 208Hz (Nexus 7).
      * http://ilessendata.blogspot.com/2012/11/android-accelerometer-sampling-rates.html
      */
-    private List<ContentValues> data_values = new ArrayList<ContentValues>();
+    private SampleRingBuffer sampleBuffer = new SampleRingBuffer(250, Linear_Accelerometer_Data.DEVICE_ID, Linear_Accelerometer_Data.TIMESTAMP, new String[]{Linear_Accelerometer_Data.VALUES_0, Linear_Accelerometer_Data.VALUES_1, Linear_Accelerometer_Data.VALUES_2}, Linear_Accelerometer_Data.ACCURACY, Linear_Accelerometer_Data.LABEL);
+    private String DEVICE_ID = "";
+    private volatile boolean db_slow = false;
+    private WriteBehindQueue dataWriter;
+    private SampleBroadcaster broadcaster;
+    private WriteBehindQueue featureWriter;
+    private volatile FeatureWindow featureWindow;
+
+    /**
+     * Samples for bound in-process clients, kept across service restarts
+     */
+    private static final SampleStream sampleStream = new SampleStream(1024, 3);
+
+    /**
+     * Samples per second, for getFrequency()
+     */
+    private static final RateMeter rateMeter = new RateMeter();
 
     private static String LABEL = "";
 
@@ -97,50 +117,39 @@ public class LinearAccelerometer extends Aware_Sensor implements SensorEventList
 
     @Override
     public void onSensorChanged(SensorEvent event) {
-        ContentValues rowData = new ContentValues();
-        rowData.put(Linear_Accelerometer_Data.DEVICE_ID, Aware.getSetting(getApplicationContext(), Aware_Preferences.DEVICE_ID));
-        rowData.put(Linear_Accelerometer_Data.TIMESTAMP, System.currentTimeMillis());
-        rowData.put(Linear_Accelerometer_Data.VALUES_0, event.values[0]);
-        rowData.put(Linear_Accelerometer_Data.VALUES_1, event.values[1]);
-        rowData.put(Linear_Accelerometer_Data.VALUES_2, event.values[2]);
-        rowData.put(Linear_Accelerometer_Data.ACCURACY, event.accuracy);
-        rowData.put(Linear_Accelerometer_Data.LABEL, LABEL);
-
-        if (data_values.size() < 250) {
-            data_values.add(rowData);
+        long timestamp = clock.toWallClock(event.timestamp);
+        rateMeter.add(timestamp);
 
-            Intent accelData = new Intent(ACTION_AWARE_LINEAR_ACCELEROMETER);
-            accelData.putExtra(EXTRA_DATA, rowData);
-            sendBroadcast(accelData);
-
-            if (Aware.DEBUG) Log.d(TAG, "Linear-accelerometer:" + rowData.toString());
+        if (sampleBuffer.add(timestamp, event.values, event.accuracy, LABEL)) {
+            ContentValues[] data_buffer = sampleBuffer.drain(DEVICE_ID);
+            if (!db_slow) {
+                dataWriter.addAll(data_buffer);
+            }
+        }
 
-            return;
+        FeatureWindow features = featureWindow;
+        if (features != null && features.add(timestamp, event.values)) {
+            featureWriter.add(features.toContentValues(DEVICE_ID, LABEL));
         }
 
-        ContentValues[] data_buffer = new ContentValues[data_values.size()];
-        data_values.toArray(data_buffer);
+        sampleStream.publish(timestamp, event.values, event.accuracy);
+        broadcaster.add(timestamp, event.values, event.accuracy);
 
-        try {
-            if (!Aware.getSetting(getApplicationContext(), Aware_Preferences.DEBUG_DB_SLOW).equals("true")) {
-                new AsyncStore().execute(data_buffer);
-            }
-        } catch (SQLiteException e) {
-            if (Aware.DEBUG) Log.d(TAG, e.getMessage());
-        } catch (SQLException e) {
-            if (Aware.DEBUG) Log.d(TAG, e.getMessage());
-        }
-        data_values.clear();
-    }
+        if (broadcaster.legacyBroadcasts()) {
+            ContentValues rowData = new ContentValues();
+            rowData.put(Linear_Accelerometer_Data.DEVICE_ID, DEVICE_ID);
+            rowData.put(Linear_Accelerometer_Data.TIMESTAMP, timestamp);
+            rowData.put(Linear_Accelerometer_Data.VALUES_0, event.values[0]);
+            rowData.put(Linear_Accelerometer_Data.VALUES_1, event.values[1]);
+            rowData.put(Linear_Accelerometer_Data.VALUES_2, event.values[2]);
+            rowData.put(Linear_Accelerometer_Data.ACCURACY, event.accuracy);
+            rowData.put(Linear_Accelerometer_Data.LABEL, LABEL);
 
-    /**
-     * Database I/O on different thread
-     */
-    private class AsyncStore extends AsyncTask<ContentValues[], Void, Void> {
-        @Override
-        protected Void doInBackground(ContentValues[]... data) {
-            getContentResolver().bulkInsert(Linear_Accelerometer_Data.CONTENT_URI, data[0]);
-            return null;
+            Intent accelData = new Intent(ACTION_AWARE_LINEAR_ACCELEROMETER);
+            accelData.putExtra(EXTRA_DATA, rowData);
+            sendBroadcast(accelData);
+
+            if (Aware.DEBUG) Log.d(TAG, "Linear-accelerometer:" + rowData.toString());
         }
     }
 
@@ -151,14 +160,7 @@ public class LinearAccelerometer extends Aware_Sensor implements SensorEventList
      * @return hz
      */
     public static int getFrequency(Context context) {
-        int hz = 0;
-        String[] columns = new String[]{"count(*) as frequency", "datetime(" + Linear_Accelerometer_Data.TIMESTAMP + "/1000, 'unixepoch','localtime') as sample_time"};
-        Cursor qry = context.getContentResolver().query(Linear_Accelerometer_Data.CONTENT_URI, columns, "1) group by (sample_time", null, "sample_time DESC LIMIT 1 OFFSET 2");
-        if (qry != null && qry.moveToFirst()) {
-            hz = qry.getInt(0);
-        }
-        if (qry != null && !qry.isClosed()) qry.close();
-        return hz;
+        return rateMeter.getHz();
     }
 
     private void saveAccelerometerDevice(Sensor acc) {
@@ -193,23 +195,27 @@ public class LinearAccelerometer extends Aware_Sensor implements SensorEventList
     public void onCreate() {
         super.onCreate();
 
+        dataWriter = getDataWriter(Linear_Accelerometer_Data.CONTENT_URI);
+        broadcaster = new SampleBroadcaster(this, ACTION_AWARE_LINEAR_ACCELEROMETER, 3);
+        featureWriter = getDataWriter(Linear_Accelerometer_Features.CONTENT_URI);
+
         mSensorManager = (SensorManager) getSystemService(SENSOR_SERVICE);
         powerManager = (PowerManager) getSystemService(POWER_SERVICE);
 
-        mLinearAccelerator = mSensorManager.getDefaultSensor(Sensor.TYPE_LINEAR_ACCELERATION);
-        FIFO_SIZE = mLinearAccelerator.getFifoReservedEventCount();
+        batching = new SensorBatching(this, mSensorManager, Sensor.TYPE_LINEAR_ACCELERATION);
+        mLinearAccelerator = batching.getSensor();
 
         sensorThread = new HandlerThread(TAG);
         sensorThread.start();
 
         wakeLock = powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, TAG);
-        wakeLock.acquire();
+        batching.keepAwake(wakeLock);
 
         sensorHandler = new Handler(sensorThread.getLooper());
 
         DATABASE_TABLES = Linear_Accelerometer_Provider.DATABASE_TABLES;
         TABLES_FIELDS = Linear_Accelerometer_Provider.TABLES_FIELDS;
-        CONTEXT_URIS = new Uri[]{Linear_Accelerometer_Sensor.CONTENT_URI, Linear_Accelerometer_Data.CONTENT_URI};
+        CONTEXT_URIS = new Uri[]{Linear_Accelerometer_Sensor.CONTENT_URI, Linear_Accelerometer_Data.CONTENT_URI, Linear_Accelerometer_Features.CONTENT_URI};
 
         IntentFilter filter = new IntentFilter();
         filter.addAction(ACTION_AWARE_LINEAR_LABEL);
@@ -220,13 +226,19 @@ public class LinearAccelerometer extends Aware_Sensor implements SensorEventList
 
     @Override
     public void onDestroy() {
-        super.onDestroy();
-
+        batching.flush();
         sensorHandler.removeCallbacksAndMessages(null);
-        mSensorManager.unregisterListener(this, mLinearAccelerator);
+        batching.unregister();
+        rateMeter.reset();
         sensorThread.quit();
+        broadcaster.flush(); //deliver what subscribers still have batched
+
+        //Keep what is still in the sample buffer
+        dataWriter.addAll(sampleBuffer.drain(DEVICE_ID));
+
+        super.onDestroy(); //stores what is still queued
 
-        wakeLock.release();
+        if (wakeLock.isHeld()) wakeLock.release();
 
         unregisterReceiver(dataLabeler);
 
@@ -254,19 +266,24 @@ public class LinearAccelerometer extends Aware_Sensor implements SensorEventList
                 DEBUG = Aware.getSetting(this, Aware_Preferences.DEBUG_FLAG).equals("true");
                 saveAccelerometerDevice(mLinearAccelerator);
                 Aware.setSetting(this, Aware_Preferences.STATUS_LINEAR_ACCELEROMETER, true);
+                DEVICE_ID = Aware.getSetting(getApplicationContext(), Aware_Preferences.DEVICE_ID);
+                db_slow = Aware.getSetting(getApplicationContext(), Aware_Preferences.DEBUG_DB_SLOW).equals("true");
 
                 if (Aware.getSetting(this, Aware_Preferences.FREQUENCY_LINEAR_ACCELEROMETER).length() == 0) {
                     Aware.setSetting(this, Aware_Preferences.FREQUENCY_LINEAR_ACCELEROMETER, 200000);
                 }
 
-                if (FREQUENCY != Integer.parseInt(Aware.getSetting(getApplicationContext(), Aware_Preferences.FREQUENCY_LINEAR_ACCELEROMETER))) {
+                int period = Integer.parseInt(Aware.getSetting(getApplicationContext(), Aware_Preferences.FREQUENCY_LINEAR_ACCELEROMETER));
+                if (!batching.isRegistered(period)) {
                     sensorHandler.removeCallbacksAndMessages(null);
-                    mSensorManager.unregisterListener(this, mLinearAccelerator);
-                    mSensorManager.registerListener(this, mLinearAccelerator, Integer.parseInt(Aware.getSetting(getApplicationContext(), Aware_Preferences.FREQUENCY_LINEAR_ACCELEROMETER)), FIFO_SIZE, sensorHandler);
+                    batching.register(this, period, sensorHandler);
+                    rateMeter.setMaxDelay(batching.getLatency() / 1000);
 
-                    FREQUENCY = Integer.parseInt(Aware.getSetting(getApplicationContext(), Aware_Preferences.FREQUENCY_LINEAR_ACCELEROMETER));
+                    FREQUENCY = period;
                 }
 
+                featureWindow = FeatureWindow.fromSettings(this, Aware_Preferences.STATUS_LINEAR_ACCELEROMETER_FEATURES, featureWindow);
+
                 if (Aware.DEBUG) Log.d(TAG, "Linear-accelerometer service active: " + FREQUENCY + "ms");
             }
         } else {
@@ -298,6 +315,21 @@ public class LinearAccelerometer extends Aware_Sensor implements SensorEventList
         LinearAccelerometer getService() {
             return LinearAccelerometer.getService();
         }
+
+        /**
+         * @return stream of this sensor's samples, read with {@link SampleStream#newReader()}
+         */
+        public SampleStream getSampleStream() {
+            return sampleStream;
+        }
+    }
+
+    @Override
+    protected boolean syncTable(int table) {
+        //raw samples stay on the device when the study only collects features
+        return !(DATABASE_TABLES[table].equals(Linear_Accelerometer_Provider.DATABASE_TABLES[1])
+                && featureWindow != null
+                && Aware.getSetting(this, Aware_Preferences.WEBSERVICE_FEATURES_ONLY).equals("true"));
     }
 
     @Override
@@ -8,14 +8,11 @@ import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.pm.PackageManager;
 import android.database.Cursor;
-import android.database.SQLException;
-import android.database.sqlite.SQLiteException;
 import android.hardware.Sensor;
 import android.hardware.SensorEvent;
 import android.hardware.SensorEventListener;
 import android.hardware.SensorManager;
 import android.net.Uri;
-import android.os.AsyncTask;
 import android.os.Binder;
 import android.os.Handler;
 import android.os.HandlerThread;
@@ -28,10 +25,15 @@ import com.aware.providers.Magnetometer_Provider;
 import com.aware.providers.Magnetometer_Provider.Magnetometer_Data;
 import com.aware.providers.Magnetometer_Provider.Magnetometer_Sensor;
 import com.aware.ui.PermissionsHandler;
+import com.aware.utils.AdaptiveSampling;
 import com.aware.utils.Aware_Sensor;
-
-import java.util.ArrayList;
-import java.util.List;
+import com.aware.utils.SampleBroadcaster;
+import com.aware.utils.RateMeter;
+import com.aware.utils.SampleRingBuffer;
+import com.aware.utils.SampleStream;
+import com.aware.utils.SensorBatching;
+import com.aware.utils.SensorClock;
+import com.aware.utils.WriteBehindQueue;
 
 /**
  * AWARE Magnetometer module
@@ -53,7 +55,8 @@ public class Magnetometer extends Aware_Sensor implements SensorEventListener {
     private static Handler sensorHandler = null;
     private static PowerManager powerManager = null;
     private static PowerManager.WakeLock wakeLock = null;
-    private static int FIFO_SIZE = 0;
+    private SensorBatching batching;
+    private final SensorClock clock = new SensorClock();
     private static int FREQUENCY = -1;
 
     /**
@@ -71,11 +74,36 @@ public class Magnetometer extends Aware_Sensor implements SensorEventListener {
      * Until today, no available Android phone samples higher than 208Hz (Nexus 7).
      * http://ilessendata.blogspot.com/2012/11/android-accelerometer-sampling-rates.html
      */
-    private List<ContentValues> data_values = new ArrayList<ContentValues>();
+    private SampleRingBuffer sampleBuffer = new SampleRingBuffer(250, Magnetometer_Data.DEVICE_ID, Magnetometer_Data.TIMESTAMP, new String[]{Magnetometer_Data.VALUES_0, Magnetometer_Data.VALUES_1, Magnetometer_Data.VALUES_2}, Magnetometer_Data.ACCURACY, Magnetometer_Data.LABEL);
+    private String DEVICE_ID = "";
+    private volatile boolean db_slow = false;
+    private WriteBehindQueue dataWriter;
+    private SampleBroadcaster broadcaster;
+
+    /**
+     * Samples for bound in-process clients, kept across service restarts
+     */
+    private static final SampleStream sampleStream = new SampleStream(1024, 3);
+
+    /**
+     * Samples per second, for getFrequency()
+     */
+    private static final RateMeter rateMeter = new RateMeter();
 
     private static String LABEL = "";
 
     private static DataLabel dataLabeler = new DataLabel();
+    private static SamplingState samplingState = new SamplingState();
+
+    /**
+     * The accelerometer decided the device is still or moving: restart to register at the matching rate
+     */
+    public static class SamplingState extends BroadcastReceiver {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            context.startService(new Intent(context, Magnetometer.class));
+        }
+    }
 
     public static class DataLabel extends BroadcastReceiver {
         @Override
@@ -93,50 +121,34 @@ public class Magnetometer extends Aware_Sensor implements SensorEventListener {
 
     @Override
     public void onSensorChanged(SensorEvent event) {
-        ContentValues rowData = new ContentValues();
-        rowData.put(Magnetometer_Data.DEVICE_ID, Aware.getSetting(getApplicationContext(), Aware_Preferences.DEVICE_ID));
-        rowData.put(Magnetometer_Data.TIMESTAMP, System.currentTimeMillis());
-        rowData.put(Magnetometer_Data.VALUES_0, event.values[0]);
-        rowData.put(Magnetometer_Data.VALUES_1, event.values[1]);
-        rowData.put(Magnetometer_Data.VALUES_2, event.values[2]);
-        rowData.put(Magnetometer_Data.ACCURACY, event.accuracy);
-        rowData.put(Magnetometer_Data.LABEL, LABEL);
-
-        if (data_values.size() < 250) {
-            data_values.add(rowData);
+        long timestamp = clock.toWallClock(event.timestamp);
+        rateMeter.add(timestamp);
+
+        if (sampleBuffer.add(timestamp, event.values, event.accuracy, LABEL)) {
+            ContentValues[] data_buffer = sampleBuffer.drain(DEVICE_ID);
+            if (!db_slow) {
+                dataWriter.addAll(data_buffer);
+            }
+        }
+
+        sampleStream.publish(timestamp, event.values, event.accuracy);
+        broadcaster.add(timestamp, event.values, event.accuracy);
+
+        if (broadcaster.legacyBroadcasts()) {
+            ContentValues rowData = new ContentValues();
+            rowData.put(Magnetometer_Data.DEVICE_ID, DEVICE_ID);
+            rowData.put(Magnetometer_Data.TIMESTAMP, timestamp);
+            rowData.put(Magnetometer_Data.VALUES_0, event.values[0]);
+            rowData.put(Magnetometer_Data.VALUES_1, event.values[1]);
+            rowData.put(Magnetometer_Data.VALUES_2, event.values[2]);
+            rowData.put(Magnetometer_Data.ACCURACY, event.accuracy);
+            rowData.put(Magnetometer_Data.LABEL, LABEL);
 
             Intent magnetoData = new Intent(ACTION_AWARE_MAGNETOMETER);
             magnetoData.putExtra(EXTRA_DATA, rowData);
             sendBroadcast(magnetoData);
 
             if (Aware.DEBUG) Log.d(TAG, "Magnetometer:" + rowData.toString());
-
-            return;
-        }
-
-        ContentValues[] data_buffer = new ContentValues[data_values.size()];
-        data_values.toArray(data_buffer);
-
-        try {
-            if (!Aware.getSetting(getApplicationContext(), Aware_Preferences.DEBUG_DB_SLOW).equals("true")) {
-                new AsyncStore().execute(data_buffer);
-            }
-        } catch (SQLiteException e) {
-            if (Aware.DEBUG) Log.d(TAG, e.getMessage());
-        } catch (SQLException e) {
-            if (Aware.DEBUG) Log.d(TAG, e.getMessage());
-        }
-        data_values.clear();
-    }
-
-    /**
-     * Database I/O on different thread
-     */
-    private class AsyncStore extends AsyncTask<ContentValues[], Void, Void> {
-        @Override
-        protected Void doInBackground(ContentValues[]... data) {
-            getContentResolver().bulkInsert(Magnetometer_Data.CONTENT_URI, data[0]);
-            return null;
         }
     }
 
@@ -147,14 +159,7 @@ public class Magnetometer extends Aware_Sensor implements SensorEventListener {
      * @return hz
      */
     public static int getFrequency(Context context) {
-        int hz = 0;
-        String[] columns = new String[]{"count(*) as frequency", "datetime(" + Magnetometer_Data.TIMESTAMP + "/1000, 'unixepoch','localtime') as sample_time"};
-        Cursor qry = context.getContentResolver().query(Magnetometer_Data.CONTENT_URI, columns, "1) group by (sample_time", null, "sample_time DESC LIMIT 1 OFFSET 2");
-        if (qry != null && qry.moveToFirst()) {
-            hz = qry.getInt(0);
-        }
-        if (qry != null && !qry.isClosed()) qry.close();
-        return hz;
+        return rateMeter.getHz();
     }
 
     private void saveSensorDevice(Sensor sensor) {
@@ -187,11 +192,14 @@ public class Magnetometer extends Aware_Sensor implements SensorEventListener {
     public void onCreate() {
         super.onCreate();
 
+        dataWriter = getDataWriter(Magnetometer_Data.CONTENT_URI);
+        broadcaster = new SampleBroadcaster(this, ACTION_AWARE_MAGNETOMETER, 3);
+
         mSensorManager = (SensorManager) getSystemService(SENSOR_SERVICE);
         powerManager = (PowerManager) getSystemService(POWER_SERVICE);
 
-        mMagnetometer = mSensorManager.getDefaultSensor(Sensor.TYPE_MAGNETIC_FIELD);
-        FIFO_SIZE = mMagnetometer.getFifoReservedEventCount();
+        batching = new SensorBatching(this, mSensorManager, Sensor.TYPE_MAGNETIC_FIELD);
+        mMagnetometer = batching.getSensor();
 
         DATABASE_TABLES = Magnetometer_Provider.DATABASE_TABLES;
         TABLES_FIELDS = Magnetometer_Provider.TABLES_FIELDS;
@@ -201,7 +209,7 @@ public class Magnetometer extends Aware_Sensor implements SensorEventListener {
         sensorThread.start();
 
         wakeLock = powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, TAG);
-        wakeLock.acquire();
+        batching.keepAwake(wakeLock);
 
         sensorHandler = new Handler(sensorThread.getLooper());
 
@@ -209,20 +217,32 @@ public class Magnetometer extends Aware_Sensor implements SensorEventListener {
         filter.addAction(ACTION_AWARE_MAGNETOMETER_LABEL);
         registerReceiver(dataLabeler, filter);
 
+        IntentFilter sampling = new IntentFilter();
+        sampling.addAction(AdaptiveSampling.ACTION_AWARE_DEVICE_STILL);
+        sampling.addAction(AdaptiveSampling.ACTION_AWARE_DEVICE_MOVING);
+        registerReceiver(samplingState, sampling);
+
         if (Aware.DEBUG) Log.d(TAG, "Magnetometer service created!");
     }
 
     @Override
     public void onDestroy() {
-        super.onDestroy();
-
+        batching.flush();
         sensorHandler.removeCallbacksAndMessages(null);
-        mSensorManager.unregisterListener(this, mMagnetometer);
+        batching.unregister();
+        rateMeter.reset();
         sensorThread.quit();
+        broadcaster.flush(); //deliver what subscribers still have batched
 
-        wakeLock.release();
+        //Keep what is still in the sample buffer
+        dataWriter.addAll(sampleBuffer.drain(DEVICE_ID));
+
+        super.onDestroy(); //stores what is still queued
+
+        if (wakeLock.isHeld()) wakeLock.release();
 
         unregisterReceiver(dataLabeler);
+        unregisterReceiver(samplingState);
 
         if (Aware.DEBUG) Log.d(TAG, "Magnetometer service terminated...");
     }
@@ -247,18 +267,21 @@ public class Magnetometer extends Aware_Sensor implements SensorEventListener {
             } else {
                 DEBUG = Aware.getSetting(this, Aware_Preferences.DEBUG_FLAG).equals("true");
                 Aware.setSetting(this, Aware_Preferences.STATUS_MAGNETOMETER, true);
+                DEVICE_ID = Aware.getSetting(getApplicationContext(), Aware_Preferences.DEVICE_ID);
+                db_slow = Aware.getSetting(getApplicationContext(), Aware_Preferences.DEBUG_DB_SLOW).equals("true");
                 saveSensorDevice(mMagnetometer);
 
                 if (Aware.getSetting(this, Aware_Preferences.FREQUENCY_MAGNETOMETER).length() == 0) {
                     Aware.setSetting(this, Aware_Preferences.FREQUENCY_MAGNETOMETER, 200000);
                 }
 
-                if (FREQUENCY != Integer.parseInt(Aware.getSetting(this, Aware_Preferences.FREQUENCY_MAGNETOMETER))) {
+                int period = AdaptiveSampling.getPeriod(this, Integer.parseInt(Aware.getSetting(this, Aware_Preferences.FREQUENCY_MAGNETOMETER)));
+                if (!batching.isRegistered(period)) {
                     sensorHandler.removeCallbacksAndMessages(null);
-                    mSensorManager.unregisterListener(this, mMagnetometer);
-                    mSensorManager.registerListener(this, mMagnetometer, Integer.parseInt(Aware.getSetting(this, Aware_Preferences.FREQUENCY_MAGNETOMETER)), FIFO_SIZE, sensorHandler);
+                    batching.register(this, period, sensorHandler);
+                    rateMeter.setMaxDelay(batching.getLatency() / 1000);
 
-                    FREQUENCY = Integer.parseInt(Aware.getSetting(this, Aware_Preferences.FREQUENCY_MAGNETOMETER));
+                    FREQUENCY = period;
                 }
                 if (Aware.DEBUG) Log.d(TAG, "Magnetometer service active...");
             }
@@ -291,6 +314,13 @@ public class Magnetometer extends Aware_Sensor implements SensorEventListener {
         Magnetometer getService() {
             return Magnetometer.getService();
         }
+
+        /**
+         * @return stream of this sensor's samples, read with {@link SampleStream#newReader()}
+         */
+        public SampleStream getSampleStream() {
+            return sampleStream;
+        }
     }
 
     @Override
@@ -8,14 +8,11 @@ import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.pm.PackageManager;
 import android.database.Cursor;
-import android.database.SQLException;
-import android.database.sqlite.SQLiteException;
 import android.hardware.Sensor;
 import android.hardware.SensorEvent;
 import android.hardware.SensorEventListener;
 import android.hardware.SensorManager;
 import android.net.Uri;
-import android.os.AsyncTask;
 import android.os.Binder;
 import android.os.Handler;
 import android.os.HandlerThread;
@@ -31,9 +28,13 @@ import com.aware.providers.Temperature_Provider.Temperature_Sensor;
 import com.aware.ui.PermissionsHandler;
 import com.aware.utils.Aware_Sensor;
 import com.aware.utils.Converters;
-
-import java.util.ArrayList;
-import java.util.List;
+import com.aware.utils.Deadband;
+import com.aware.utils.SampleBroadcaster;
+import com.aware.utils.RateMeter;
+import com.aware.utils.SampleStream;
+import com.aware.utils.SensorBatching;
+import com.aware.utils.SensorClock;
+import com.aware.utils.WriteBehindQueue;
 
 /**
  * AWARE Temperature module
@@ -55,7 +56,9 @@ public class Temperature extends Aware_Sensor implements SensorEventListener {
     private static Handler sensorHandler = null;
     private static PowerManager powerManager = null;
     private static PowerManager.WakeLock wakeLock = null;
-    private static int FIFO_SIZE = 0;
+    private SensorBatching batching;
+    private final SensorClock clock = new SensorClock();
+    private volatile Deadband deadband;
     private static int FREQUENCY = -1;
 
     /**
@@ -69,11 +72,18 @@ public class Temperature extends Aware_Sensor implements SensorEventListener {
     public static final String ACTION_AWARE_TEMPERATURE_LABEL = "ACTION_AWARE_TEMPERATURE_LABEL";
     public static final String EXTRA_LABEL = "label";
 
+    private WriteBehindQueue dataWriter;
+    private SampleBroadcaster broadcaster;
+
+    /**
+     * Samples for bound in-process clients, kept across service restarts
+     */
+    private static final SampleStream sampleStream = new SampleStream(64, 1);
+
     /**
-     * Until today, no available Android phone samples higher than 208Hz (Nexus 7).
-     * http://ilessendata.blogspot.com/2012/11/android-accelerometer-sampling-rates.html
+     * Samples per second, for getFrequency()
      */
-    private List<ContentValues> data_values = new ArrayList<ContentValues>();
+    private static final RateMeter rateMeter = new RateMeter();
 
     private static String LABEL = "";
 
@@ -95,48 +105,32 @@ public class Temperature extends Aware_Sensor implements SensorEventListener {
 
     @Override
     public void onSensorChanged(SensorEvent event) {
+        long timestamp = clock.toWallClock(event.timestamp);
+        rateMeter.add(timestamp);
+
         ContentValues rowData = new ContentValues();
         rowData.put(Temperature_Data.DEVICE_ID, Aware.getSetting(getApplicationContext(), Aware_Preferences.DEVICE_ID));
-        rowData.put(Temperature_Data.TIMESTAMP, System.currentTimeMillis());
+        rowData.put(Temperature_Data.TIMESTAMP, timestamp);
         rowData.put(Temperature_Data.TEMPERATURE_CELSIUS, event.values[0]);
         rowData.put(Temperature_Data.ACCURACY, event.accuracy);
         rowData.put(Temperature_Data.LABEL, LABEL);
 
-        if (data_values.size() < 250) {
-            data_values.add(rowData);
+        Deadband filter = deadband;
+        boolean store = (filter == null || filter.accept(timestamp, event.values[0], event.accuracy));
+        if (store && !Aware.getSetting(getApplicationContext(), Aware_Preferences.DEBUG_DB_SLOW).equals("true")) {
+            dataWriter.add(rowData);
+        }
+
+        sampleStream.publish(timestamp, event.values, event.accuracy);
+        broadcaster.add(timestamp, event.values, event.accuracy);
 
+        if (broadcaster.legacyBroadcasts()) {
             Intent temperatureData = new Intent(ACTION_AWARE_TEMPERATURE);
             temperatureData.putExtra(EXTRA_DATA, rowData);
             sendBroadcast(temperatureData);
-
-            if (Aware.DEBUG) Log.d(TAG, "Temperature:" + rowData.toString());
-
-            return;
-        }
-
-        ContentValues[] data_buffer = new ContentValues[data_values.size()];
-        data_values.toArray(data_buffer);
-
-        try {
-            if (!Aware.getSetting(getApplicationContext(), Aware_Preferences.DEBUG_DB_SLOW).equals("true")) {
-                new AsyncStore().execute(data_buffer);
-            }
-        } catch (SQLiteException e) {
-            if (Aware.DEBUG) Log.d(TAG, e.getMessage());
-        } catch (SQLException e) {
-            if (Aware.DEBUG) Log.d(TAG, e.getMessage());
         }
-    }
 
-    /**
-     * Database I/O on different thread
-     */
-    private class AsyncStore extends AsyncTask<ContentValues[], Void, Void> {
-        @Override
-        protected Void doInBackground(ContentValues[]... data) {
-            getContentResolver().bulkInsert(Temperature_Data.CONTENT_URI, data[0]);
-            return null;
-        }
+        if (Aware.DEBUG) Log.d(TAG, "Temperature:" + rowData.toString());
     }
 
     /**
@@ -146,14 +140,7 @@ public class Temperature extends Aware_Sensor implements SensorEventListener {
      * @return hz
      */
     public static int getFrequency(Context context) {
-        int hz = 0;
-        String[] columns = new String[]{"count(*) as frequency", "datetime(" + Temperature_Data.TIMESTAMP + "/1000, 'unixepoch','localtime') as sample_time"};
-        Cursor qry = context.getContentResolver().query(Temperature_Data.CONTENT_URI, columns, "1) group by (sample_time", null, "sample_time DESC LIMIT 1 OFFSET 2");
-        if (qry != null && qry.moveToFirst()) {
-            hz = qry.getInt(0);
-        }
-        if (qry != null && !qry.isClosed()) qry.close();
-        return hz;
+        return rateMeter.getHz();
     }
 
     private void saveSensorDevice(Sensor sensor) {
@@ -186,14 +173,24 @@ public class Temperature extends Aware_Sensor implements SensorEventListener {
     public void onCreate() {
         super.onCreate();
 
+        dataWriter = getDataWriter(Temperature_Data.CONTENT_URI);
+        broadcaster = new SampleBroadcaster(this, ACTION_AWARE_TEMPERATURE, 1);
+
         mSensorManager = (SensorManager) getSystemService(SENSOR_SERVICE);
         powerManager = (PowerManager) getSystemService(POWER_SERVICE);
 
+        if (android.os.Build.VERSION.SDK_INT < android.os.Build.VERSION_CODES.HONEYCOMB) {
+            batching = new SensorBatching(this, mSensorManager, Sensor.TYPE_TEMPERATURE);
+        } else {
+            batching = new SensorBatching(this, mSensorManager, Sensor.TYPE_AMBIENT_TEMPERATURE);
+        }
+        mTemperature = batching.getSensor();
+
         sensorThread = new HandlerThread(TAG);
         sensorThread.start();
 
         wakeLock = powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, TAG);
-        wakeLock.acquire();
+        batching.keepAwake(wakeLock);
 
         sensorHandler = new Handler(sensorThread.getLooper());
 
@@ -205,24 +202,21 @@ public class Temperature extends Aware_Sensor implements SensorEventListener {
         filter.addAction(ACTION_AWARE_TEMPERATURE_LABEL);
         registerReceiver(dataLabeler, filter);
 
-        if (android.os.Build.VERSION.SDK_INT < android.os.Build.VERSION_CODES.HONEYCOMB) {
-            mTemperature = mSensorManager.getDefaultSensor(Sensor.TYPE_TEMPERATURE);
-        } else {
-            mTemperature = mSensorManager.getDefaultSensor(Sensor.TYPE_AMBIENT_TEMPERATURE);
-        }
-
         if (Aware.DEBUG) Log.d(TAG, "Temperature service created!");
     }
 
     @Override
     public void onDestroy() {
-        super.onDestroy();
-
+        batching.flush();
         sensorHandler.removeCallbacksAndMessages(null);
-        mSensorManager.unregisterListener(this, mTemperature);
+        batching.unregister();
+        rateMeter.reset();
         sensorThread.quit();
+        broadcaster.flush(); //deliver what subscribers still have batched
 
-        wakeLock.release();
+        super.onDestroy(); //stores what is still queued
+
+        if (wakeLock.isHeld()) wakeLock.release();
 
         unregisterReceiver(dataLabeler);
 
@@ -248,21 +242,23 @@ public class Temperature extends Aware_Sensor implements SensorEventListener {
                 DEBUG = Aware.getSetting(this, Aware_Preferences.DEBUG_FLAG).equals("true");
                 Aware.setSetting(this, Aware_Preferences.STATUS_TEMPERATURE, true);
 
-                FIFO_SIZE = mTemperature.getFifoReservedEventCount();
                 saveSensorDevice(mTemperature);
 
                 if (Aware.getSetting(this, Aware_Preferences.FREQUENCY_TEMPERATURE).length() == 0) {
                     Aware.setSetting(this, Aware_Preferences.FREQUENCY_TEMPERATURE, 200000);
                 }
 
-                if (FREQUENCY != Integer.parseInt(Aware.getSetting(getApplicationContext(), Aware_Preferences.FREQUENCY_TEMPERATURE))) {
+                int period = Integer.parseInt(Aware.getSetting(getApplicationContext(), Aware_Preferences.FREQUENCY_TEMPERATURE));
+                if (!batching.isRegistered(period)) {
                     sensorHandler.removeCallbacksAndMessages(null);
-                    mSensorManager.unregisterListener(this, mTemperature);
-                    mSensorManager.registerListener(this, mTemperature, Integer.parseInt(Aware.getSetting(getApplicationContext(), Aware_Preferences.FREQUENCY_TEMPERATURE)), FIFO_SIZE, sensorHandler);
+                    batching.register(this, period, sensorHandler);
+                    rateMeter.setMaxDelay(batching.getLatency() / 1000);
 
-                    FREQUENCY = Integer.parseInt(Aware.getSetting(getApplicationContext(), Aware_Preferences.FREQUENCY_TEMPERATURE));
+                    FREQUENCY = period;
                 }
 
+                deadband = Deadband.fromSettings(this, Aware_Preferences.THRESHOLD_TEMPERATURE, Aware_Preferences.KEEP_ALIVE_TEMPERATURE, deadband);
+
                 if (Aware.DEBUG) Log.d(TAG, "Temperature service active...");
             }
         } else {
@@ -294,6 +290,13 @@ public class Temperature extends Aware_Sensor implements SensorEventListener {
         Temperature getService() {
             return Temperature.getService();
         }
+
+        /**
+         * @return stream of this sensor's samples, read with {@link SampleStream#newReader()}
+         */
+        public SampleStream getSampleStream() {
+            return sampleStream;
+        }
     }
 
     @Override
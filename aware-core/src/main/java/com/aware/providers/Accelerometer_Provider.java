@@ -5,6 +5,8 @@ import android.content.ContentProvider;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
 import android.content.UriMatcher;
 import android.database.Cursor;
 import android.database.SQLException;
@@ -15,25 +17,32 @@ import android.os.Environment;
 import android.provider.BaseColumns;
 import android.util.Log;
 
-import com.aware.Accelerometer;
 import com.aware.Aware;
+import com.aware.Aware_Preferences;
 import com.aware.BuildConfig;
+import com.aware.utils.ColumnarStorageService;
 import com.aware.utils.DatabaseHelper;
+import com.aware.utils.FeatureWindow;
+import com.aware.utils.TimeSeriesCursor;
+import com.aware.utils.TimeSeriesStore;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.HashMap;
 
 /**
  * AWARE Accelerometer Content Provider Allows you to access all the recorded
  * accelerometer readings on the database Database is located at the SDCard :
  * /AWARE/accelerometer.db
+ * Raw samples are in /AWARE/accelerometer.tsdb instead, if {@link Aware_Preferences#STATUS_COLUMNAR_STORAGE} is on
+ * (once {@link ColumnarStorageService} moved them there).
  * 
  * @author denzil
  * 
  */
 public class Accelerometer_Provider extends ContentProvider {
 
-	public static final int DATABASE_VERSION = 4;
+	public static final int DATABASE_VERSION = 8;
 
 	/**
 	 * Authority of content provider
@@ -45,6 +54,10 @@ public class Accelerometer_Provider extends ContentProvider {
 	private static final int ACCEL_DEV_ID = 2;
 	private static final int ACCEL_DATA = 3;
 	private static final int ACCEL_DATA_ID = 4;
+	private static final int ACCEL_FEATURES = 5;
+	private static final int ACCEL_FEATURES_ID = 6;
+	private static final int ACCEL_SAMPLING = 7;
+	private static final int ACCEL_SAMPLING_ID = 8;
 
 	/**
 	 * Accelerometer device info
@@ -97,8 +110,63 @@ public class Accelerometer_Provider extends ContentProvider {
 		public static final String LABEL = "label";
 	}
 
+	/**
+	 * Sliding-window features, see {@link FeatureWindow} for the columns
+	 */
+	public static final class Accelerometer_Features implements BaseColumns {
+		private Accelerometer_Features() {
+		}
+
+		public static final Uri CONTENT_URI = Uri.parse("content://"
+				+ Accelerometer_Provider.AUTHORITY + "/accelerometer_features");
+		public static final String CONTENT_TYPE = "vnd.android.cursor.dir/vnd.aware.accelerometer.features";
+		public static final String CONTENT_ITEM_TYPE = "vnd.android.cursor.item/vnd.aware.accelerometer.features";
+
+		public static final String _ID = "_id";
+		public static final String TIMESTAMP = FeatureWindow.TIMESTAMP;
+		public static final String DEVICE_ID = FeatureWindow.DEVICE_ID;
+	}
+
+	/**
+	 * Adaptive sampling decisions, see {@link com.aware.utils.AdaptiveSampling}
+	 */
+	public static final class Accelerometer_Sampling implements BaseColumns {
+		private Accelerometer_Sampling() {
+		}
+
+		public static final Uri CONTENT_URI = Uri.parse("content://"
+				+ Accelerometer_Provider.AUTHORITY + "/accelerometer_sampling");
+		public static final String CONTENT_TYPE = "vnd.android.cursor.dir/vnd.aware.accelerometer.sampling";
+		public static final String CONTENT_ITEM_TYPE = "vnd.android.cursor.item/vnd.aware.accelerometer.sampling";
+
+		public static final String _ID = "_id";
+		public static final String TIMESTAMP = "timestamp";
+		public static final String DEVICE_ID = "device_id";
+		/**
+		 * still or moving
+		 */
+		public static final String STATE = "sampling_state";
+		/**
+		 * variance or significant_motion
+		 */
+		public static final String TRIGGER = "sampling_trigger";
+		public static final String DEVIATION = "double_deviation";
+		/**
+		 * sampling period applied, in microseconds
+		 */
+		public static final String PERIOD = "sampling_period";
+		/**
+		 * duration of the previous state, in milliseconds
+		 */
+		public static final String PREVIOUS_DURATION = "double_previous_duration";
+		/**
+		 * accelerometer samples collected during the previous state
+		 */
+		public static final String PREVIOUS_SAMPLES = "previous_samples";
+	}
+
 	public static String DATABASE_NAME = "accelerometer.db";
-	public static final String[] DATABASE_TABLES = { "sensor_accelerometer", "accelerometer" };
+	public static final String[] DATABASE_TABLES = { "sensor_accelerometer", "accelerometer", "accelerometer_features", "accelerometer_sampling" };
 	public static final String[] TABLES_FIELDS = {
 			// accelerometer device information
 			Accelerometer_Sensor._ID + " integer primary key autoincrement,"
@@ -122,17 +190,70 @@ public class Accelerometer_Provider extends ContentProvider {
 					+ Accelerometer_Data.VALUES_1 + " real default 0,"
 					+ Accelerometer_Data.VALUES_2 + " real default 0,"
 					+ Accelerometer_Data.ACCURACY + " integer default 0,"
-					+ Accelerometer_Data.LABEL + " text default ''" };
+					+ Accelerometer_Data.LABEL + " text default ''",
+
+			// sliding-window features
+			FeatureWindow.TABLE_FIELDS,
+
+			// adaptive sampling decisions
+			Accelerometer_Sampling._ID + " integer primary key autoincrement,"
+					+ Accelerometer_Sampling.TIMESTAMP + " real default 0,"
+					+ Accelerometer_Sampling.DEVICE_ID + " text default '',"
+					+ Accelerometer_Sampling.STATE + " text default '',"
+					+ Accelerometer_Sampling.TRIGGER + " text default '',"
+					+ Accelerometer_Sampling.DEVIATION + " real default 0,"
+					+ Accelerometer_Sampling.PERIOD + " integer default 0,"
+					+ Accelerometer_Sampling.PREVIOUS_DURATION + " real default 0,"
+					+ Accelerometer_Sampling.PREVIOUS_SAMPLES + " integer default 0" };
+
+	/**
+	 * Secondary indexes for each table, see {@link DatabaseHelper}
+	 */
+	public static final String[][] TABLES_INDEXES = {
+			{ Accelerometer_Sensor.TIMESTAMP },
+			{ Accelerometer_Data.TIMESTAMP, Accelerometer_Data.DEVICE_ID + "," + Accelerometer_Data.TIMESTAMP },
+			{ Accelerometer_Features.TIMESTAMP, Accelerometer_Features.DEVICE_ID + "," + Accelerometer_Features.TIMESTAMP },
+			{ Accelerometer_Sampling.TIMESTAMP }
+	};
+
+	/**
+	 * Dictionary-encoded text columns for each table, see {@link DatabaseHelper}
+	 */
+	public static final String[][] TABLES_DICTIONARIES = {
+			{},
+			{ Accelerometer_Data.DEVICE_ID, Accelerometer_Data.LABEL }
+	};
 
 	private static UriMatcher sUriMatcher = null;
 	private static HashMap<String, String> accelDeviceMap = null;
 	private static HashMap<String, String> accelDataMap = null;
+	private static HashMap<String, String> accelFeaturesMap = null;
+	private static HashMap<String, String> accelSamplingMap = null;
 	private static DatabaseHelper databaseHelper = null;
 	private static SQLiteDatabase database = null;
 
+	public static String STORE_NAME = "accelerometer.tsdb";
+
+    /**
+     * Samples moved at a time between the accelerometer table and the store, see {@link #moveSamples(Context)}
+     */
+    public static final int MOVE_SIZE = 5000;
+
+    private static final String PREFERENCES = "aware_columnar_storage";
+    private static final String IN_STORE = "in_store"; //where raw samples are read and written
+    private static final String STALE = "stale"; //the side not in use holds samples to delete before moving there
+
+    /**
+     * Held while raw samples are written, updated or deleted, and while a range of them is moved, so none are missed or brought back
+     */
+    private static final Object samples_lock = new Object();
+    private static TimeSeriesStore store = null;
+    private static Boolean in_store = null;
+    private static boolean moving = false;
+
 	private boolean initializeDB() {
         if (databaseHelper == null) {
-            databaseHelper = new DatabaseHelper( getContext(), DATABASE_NAME, null, DATABASE_VERSION, DATABASE_TABLES, TABLES_FIELDS );
+            databaseHelper = new DatabaseHelper( getContext(), DATABASE_NAME, null, DATABASE_VERSION, DATABASE_TABLES, TABLES_FIELDS, TABLES_INDEXES, TABLES_DICTIONARIES );
         }
         if( database == null || ! database.isOpen() ) {
             database = databaseHelper.getWritableDatabase();
@@ -140,6 +261,218 @@ public class Accelerometer_Provider extends ContentProvider {
         return( database != null );
     }
 
+    private static SharedPreferences preferences(Context context) {
+        return context.getApplicationContext().getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE);
+    }
+
+    private static boolean wantsStore(Context context) {
+        return Aware.getSetting(context, Aware_Preferences.STATUS_COLUMNAR_STORAGE).equals("true");
+    }
+
+    /**
+     * Where raw samples are, see {@link TimeSeriesStore}. When {@link Aware_Preferences#STATUS_COLUMNAR_STORAGE} changes,
+     * they are read and written where they were until {@link ColumnarStorageService} moved them all. Hold samples_lock.
+     *
+     * @return true if in the store, false if in the accelerometer table
+     */
+    private static boolean inStore(Context context) {
+        if (in_store == null) in_store = preferences(context).getBoolean(IN_STORE, false);
+        if (wantsStore(context) != in_store || preferences(context).getBoolean(STALE, false)) startMove(context);
+        return in_store;
+    }
+
+    private static void startMove(Context context) {
+        if (moving) return;
+        moving = true;
+        context.startService(new Intent(context, ColumnarStorageService.class));
+    }
+
+    private static File storeDirectory() {
+        return new File(Environment.getExternalStoragePublicDirectory("AWARE"), STORE_NAME);
+    }
+
+    /**
+     * @return the store, opened on first use
+     * @throws IOException
+     */
+    private static TimeSeriesStore store() throws IOException {
+        if (store == null) {
+            store = new TimeSeriesStore(storeDirectory(), Accelerometer_Data._ID, Accelerometer_Data.TIMESTAMP, Accelerometer_Data.DEVICE_ID,
+                    new String[]{Accelerometer_Data.VALUES_0, Accelerometer_Data.VALUES_1, Accelerometer_Data.VALUES_2},
+                    Accelerometer_Data.ACCURACY, Accelerometer_Data.LABEL);
+        }
+        return store;
+    }
+
+    /**
+     * Samples on the side not in use are deleted before samples are moved there again. Hold samples_lock.
+     */
+    private static void setStale(Context context) {
+        preferences(context).edit().putBoolean(STALE, true).commit();
+        startMove(context);
+    }
+
+    /**
+     * Deletes apply to the side not in use too, so samples moved there so far don't come back. Hold samples_lock.
+     */
+    private static void deleteMoved(Context context, boolean from_store, String selection, String[] selectionArgs) {
+        if (from_store) {
+            databaseHelper.delete(database, DATABASE_TABLES[1], selection, selectionArgs);
+        } else if (store != null || storeDirectory().exists()) {
+            try {
+                store().delete(selection, selectionArgs);
+            } catch (IOException | IllegalArgumentException e) {
+                setStale(context);
+            }
+        }
+    }
+
+    /**
+     * Move the raw samples where {@link Aware_Preferences#STATUS_COLUMNAR_STORAGE} wants them, in ranges of MOVE_SIZE _id, then delete them from where they were.
+     * A range is copied while holding the samples lock, so the provider waits at most for one range. Where to resume is the last _id copied,
+     * so a move interrupted by a restart goes on from there. Only {@link ColumnarStorageService} calls this, never a binder thread.
+     *
+     * @param context
+     * @return samples moved
+     * @throws IOException
+     */
+    public static int moveSamples(Context context) throws IOException {
+        int moved = 0;
+        try {
+            if (database == null) return 0; //the provider never ran in this process
+            while (true) {
+                boolean clear;
+                boolean from_store;
+                synchronized (samples_lock) {
+                    from_store = inStore(context);
+                    clear = preferences(context).getBoolean(STALE, false);
+                    if (!clear) {
+                        if (wantsStore(context) == from_store) break;
+
+                        int copied = from_store ? copyToTable(lastId(false)) : copyToStore(lastId(true));
+                        moved += copied;
+                        if (copied == MOVE_SIZE) continue;
+
+                        //every sample is on the other side: use it, and delete them from here
+                        in_store = !from_store;
+                        preferences(context).edit().putBoolean(IN_STORE, in_store).putBoolean(STALE, true).commit();
+                        if (Aware.DEBUG) Log.d(AUTHORITY, "Moved " + moved + " samples to " + (in_store ? STORE_NAME : DATABASE_NAME));
+                        continue;
+                    }
+                }
+                //nothing is written there meanwhile, no need to hold the lock
+                clearSide(!from_store);
+                synchronized (samples_lock) {
+                    preferences(context).edit().putBoolean(STALE, false).commit();
+                }
+            }
+        } finally {
+            synchronized (samples_lock) {
+                moving = false;
+            }
+        }
+        return moved;
+    }
+
+    /**
+     * @param in_store which side
+     * @return the last _id there, 0 if none
+     */
+    private static long lastId(boolean in_store) throws IOException {
+        if (in_store) return store().lastId();
+        Cursor last = database.query(DATABASE_TABLES[1], new String[]{"MAX(" + Accelerometer_Data._ID + ")"}, null, null, null, null, null);
+        if (last == null) return 0;
+        try {
+            return last.moveToFirst() ? last.getLong(0) : 0;
+        } finally {
+            last.close();
+        }
+    }
+
+    /**
+     * Copy the next MOVE_SIZE rows of the accelerometer table to the store, keeping their _id
+     *
+     * @param after last _id copied
+     * @return rows copied
+     */
+    private static int copyToStore(long after) throws IOException {
+        Cursor rows = database.query(DATABASE_TABLES[1], null, Accelerometer_Data._ID + " > " + after, null, null, null,
+                Accelerometer_Data._ID + " ASC", String.valueOf(MOVE_SIZE));
+        if (rows == null) return 0;
+        int copied = 0;
+        try {
+            while (rows.moveToNext()) {
+                append(rows.getLong(rows.getColumnIndex(Accelerometer_Data._ID)), rows.getDouble(rows.getColumnIndex(Accelerometer_Data.TIMESTAMP)),
+                        rows.getString(rows.getColumnIndex(Accelerometer_Data.DEVICE_ID)),
+                        rows.getDouble(rows.getColumnIndex(Accelerometer_Data.VALUES_0)),
+                        rows.getDouble(rows.getColumnIndex(Accelerometer_Data.VALUES_1)),
+                        rows.getDouble(rows.getColumnIndex(Accelerometer_Data.VALUES_2)),
+                        rows.getInt(rows.getColumnIndex(Accelerometer_Data.ACCURACY)),
+                        rows.getString(rows.getColumnIndex(Accelerometer_Data.LABEL)));
+                copied++;
+            }
+        } finally {
+            rows.close();
+        }
+        store().sync();
+        return copied;
+    }
+
+    /**
+     * Copy the next MOVE_SIZE samples of the store to the accelerometer table, keeping their _id
+     *
+     * @param after last _id copied
+     * @return samples copied
+     */
+    private static int copyToTable(long after) throws IOException {
+        TimeSeriesStore.Result samples = store().after(after, MOVE_SIZE);
+        String[] columns = samples.getColumns();
+        Object[] sample = new Object[columns.length];
+        ContentValues[] rows = new ContentValues[samples.getCount()];
+        for (int i = 0; i < samples.getCount(); i++) {
+            samples.getRow(i, sample);
+            ContentValues row = new ContentValues();
+            for (int c = 0; c < columns.length; c++) {
+                if (sample[c] instanceof Long) row.put(columns[c], (Long) sample[c]);
+                else if (sample[c] instanceof Double) row.put(columns[c], (Double) sample[c]);
+                else if (sample[c] != null) row.put(columns[c], sample[c].toString());
+            }
+            rows[i] = row;
+        }
+        if (rows.length > 0) databaseHelper.insert(database, DATABASE_TABLES[1], rows);
+        return rows.length;
+    }
+
+    /**
+     * Delete every sample of one side, MOVE_SIZE at a time for the accelerometer table
+     *
+     * @param in_store which side
+     */
+    private static void clearSide(boolean in_store) throws IOException {
+        if (in_store) {
+            if (store != null || storeDirectory().exists()) store().clear();
+            return;
+        }
+        String range = Accelerometer_Data._ID + " IN (SELECT " + Accelerometer_Data._ID + " FROM " + DATABASE_TABLES[1] + " LIMIT " + MOVE_SIZE + ")";
+        while (databaseHelper.delete(database, DATABASE_TABLES[1], range, null) == MOVE_SIZE) {
+        }
+    }
+
+    private static long append(long id, double timestamp, String device_id, double x, double y, double z, int accuracy, String label) throws IOException {
+        return store().append(id, (long) timestamp, (device_id != null) ? device_id : "", new float[]{(float) x, (float) y, (float) z}, accuracy, (label != null) ? label : "");
+    }
+
+    private static long append(ContentValues values) throws IOException {
+        return append(0, asDouble(values, Accelerometer_Data.TIMESTAMP), values.getAsString(Accelerometer_Data.DEVICE_ID),
+                asDouble(values, Accelerometer_Data.VALUES_0), asDouble(values, Accelerometer_Data.VALUES_1), asDouble(values, Accelerometer_Data.VALUES_2),
+                (int) asDouble(values, Accelerometer_Data.ACCURACY), values.getAsString(Accelerometer_Data.LABEL));
+    }
+
+    private static double asDouble(ContentValues values, String column) {
+        Double value = values.getAsDouble(column);
+        return (value != null) ? value : 0;
+    }
+
     /**
      * Recreates the ContentProvider
      */
@@ -147,7 +480,7 @@ public class Accelerometer_Provider extends ContentProvider {
         Log.d("AWARE", "Resetting " + DATABASE_NAME + "...");
         File db = new File(DATABASE_NAME);
         if( db.delete() ) {
-			databaseHelper = new DatabaseHelper( c, DATABASE_NAME, null, DATABASE_VERSION, DATABASE_TABLES, TABLES_FIELDS);
+			databaseHelper = new DatabaseHelper( c, DATABASE_NAME, null, DATABASE_VERSION, DATABASE_TABLES, TABLES_FIELDS, TABLES_INDEXES, TABLES_DICTIONARIES );
 			database = databaseHelper.getWritableDatabase();
 		}
 	}
@@ -173,8 +506,34 @@ public class Accelerometer_Provider extends ContentProvider {
             database.endTransaction();
 			break;
 		case ACCEL_DATA:
+            synchronized (samples_lock) {
+                boolean from_store = inStore(getContext());
+                if (from_store) {
+                    try {
+                        count = store().delete(selection, selectionArgs);
+                    } catch (IOException | IllegalArgumentException e) {
+                        Log.e(AUTHORITY, "Failed to delete from " + STORE_NAME + ": " + e.getMessage());
+                        break;
+                    }
+                } else {
+                    database.beginTransaction();
+                    count = databaseHelper.delete(database, DATABASE_TABLES[1], selection, selectionArgs);
+                    database.setTransactionSuccessful();
+                    database.endTransaction();
+                }
+                deleteMoved(getContext(), from_store, selection, selectionArgs);
+            }
+			break;
+		case ACCEL_FEATURES:
+            database.beginTransaction();
+            count = database.delete(DATABASE_TABLES[2], selection,
+					selectionArgs);
+            database.setTransactionSuccessful();
+            database.endTransaction();
+			break;
+		case ACCEL_SAMPLING:
             database.beginTransaction();
-            count = database.delete(DATABASE_TABLES[1], selection,
+            count = database.delete(DATABASE_TABLES[3], selection,
 					selectionArgs);
             database.setTransactionSuccessful();
             database.endTransaction();
@@ -197,6 +556,14 @@ public class Accelerometer_Provider extends ContentProvider {
 			return Accelerometer_Data.CONTENT_TYPE;
 		case ACCEL_DATA_ID:
 			return Accelerometer_Data.CONTENT_ITEM_TYPE;
+		case ACCEL_FEATURES:
+			return Accelerometer_Features.CONTENT_TYPE;
+		case ACCEL_FEATURES_ID:
+			return Accelerometer_Features.CONTENT_ITEM_TYPE;
+		case ACCEL_SAMPLING:
+			return Accelerometer_Sampling.CONTENT_TYPE;
+		case ACCEL_SAMPLING_ID:
+			return Accelerometer_Sampling.CONTENT_ITEM_TYPE;
 		default:
 			throw new IllegalArgumentException("Unknown URI " + uri);
 		}
@@ -228,8 +595,19 @@ public class Accelerometer_Provider extends ContentProvider {
                 }
                 throw new SQLException("Failed to insert row into " + uri);
             case ACCEL_DATA:
-                long accelData_id = database.insertWithOnConflict(DATABASE_TABLES[1],
-                        Accelerometer_Data.DEVICE_ID, values, SQLiteDatabase.CONFLICT_IGNORE);
+                long accelData_id;
+                synchronized (samples_lock) {
+                    if (inStore(getContext())) {
+                        try {
+                            accelData_id = append(values);
+                            store.sync();
+                        } catch (IOException e) {
+                            accelData_id = -1;
+                        }
+                    } else {
+                        accelData_id = databaseHelper.insert(database, DATABASE_TABLES[1], values);
+                    }
+                }
                 if (accelData_id > 0) {
                     Uri accelDataUri = ContentUris.withAppendedId(
                             Accelerometer_Data.CONTENT_URI, accelData_id);
@@ -238,6 +616,28 @@ public class Accelerometer_Provider extends ContentProvider {
                     return accelDataUri;
                 }
                 throw new SQLException("Failed to insert row into " + uri);
+            case ACCEL_FEATURES:
+                long accelFeatures_id = database.insertWithOnConflict(DATABASE_TABLES[2],
+                        Accelerometer_Features.DEVICE_ID, values, SQLiteDatabase.CONFLICT_IGNORE);
+                if (accelFeatures_id > 0) {
+                    Uri accelFeaturesUri = ContentUris.withAppendedId(
+                            Accelerometer_Features.CONTENT_URI, accelFeatures_id);
+                    getContext().getContentResolver().notifyChange(accelFeaturesUri,
+                            null);
+                    return accelFeaturesUri;
+                }
+                throw new SQLException("Failed to insert row into " + uri);
+            case ACCEL_SAMPLING:
+                long accelSampling_id = database.insertWithOnConflict(DATABASE_TABLES[3],
+                        Accelerometer_Sampling.DEVICE_ID, values, SQLiteDatabase.CONFLICT_IGNORE);
+                if (accelSampling_id > 0) {
+                    Uri accelSamplingUri = ContentUris.withAppendedId(
+                            Accelerometer_Sampling.CONTENT_URI, accelSampling_id);
+                    getContext().getContentResolver().notifyChange(accelSamplingUri,
+                            null);
+                    return accelSamplingUri;
+                }
+                throw new SQLException("Failed to insert row into " + uri);
             default:
                 throw new IllegalArgumentException("Unknown URI " + uri);
 		}
@@ -259,41 +659,33 @@ public class Accelerometer_Provider extends ContentProvider {
         int count = 0;
         switch ( sUriMatcher.match(uri) ) {
             case ACCEL_DEV:
-                database.beginTransaction();
-                for (ContentValues v : values) {
-                    long id;
-                    try {
-                        id = database.insertOrThrow( DATABASE_TABLES[0], Accelerometer_Sensor.DEVICE_ID, v );
-                    } catch ( SQLException e ) {
-                        id = database.replace( DATABASE_TABLES[0], Accelerometer_Sensor.DEVICE_ID, v );
-                    }
-                    if( id <= 0 ) {
-                        Log.w(Accelerometer.TAG, "Failed to insert/replace row into " + uri);
-                    } else {
-                        count++;
-                    }
-                }
-                database.setTransactionSuccessful();
-                database.endTransaction();
+                count = DatabaseHelper.bulkInsert(database, DATABASE_TABLES[0], values);
                 getContext().getContentResolver().notifyChange(uri, null);
                 return count;
             case ACCEL_DATA:
-                database.beginTransaction();
-                for (ContentValues v : values) {
-                    long id;
-                    try {
-                        id = database.insertOrThrow( DATABASE_TABLES[1], Accelerometer_Data.DEVICE_ID, v );
-                    } catch ( SQLException e ) {
-                        id = database.replace( DATABASE_TABLES[1], Accelerometer_Data.DEVICE_ID, v );
-                    }
-                    if( id <= 0 ) {
-                        Log.w(Accelerometer.TAG, "Failed to insert/replace row into " + uri);
+                synchronized (samples_lock) {
+                    if (inStore(getContext())) {
+                        try {
+                            for (ContentValues v : values) {
+                                append(v);
+                                count++;
+                            }
+                            store.sync();
+                        } catch (IOException e) {
+                            Log.e(AUTHORITY, "Failed to insert into " + STORE_NAME + ": " + e.getMessage());
+                        }
                     } else {
-                        count++;
+                        count = databaseHelper.insert(database, DATABASE_TABLES[1], values);
                     }
                 }
-                database.setTransactionSuccessful();
-                database.endTransaction();
+                getContext().getContentResolver().notifyChange(uri, null);
+                return count;
+            case ACCEL_FEATURES:
+                count = DatabaseHelper.bulkInsert(database, DATABASE_TABLES[2], values);
+                getContext().getContentResolver().notifyChange(uri, null);
+                return count;
+            case ACCEL_SAMPLING:
+                count = DatabaseHelper.bulkInsert(database, DATABASE_TABLES[3], values);
                 getContext().getContentResolver().notifyChange(uri, null);
                 return count;
             default:
@@ -314,6 +706,14 @@ public class Accelerometer_Provider extends ContentProvider {
                 DATABASE_TABLES[1], ACCEL_DATA);
         sUriMatcher.addURI(Accelerometer_Provider.AUTHORITY, DATABASE_TABLES[1]
                 + "/#", ACCEL_DATA_ID);
+        sUriMatcher.addURI(Accelerometer_Provider.AUTHORITY, DATABASE_TABLES[2],
+                ACCEL_FEATURES);
+        sUriMatcher.addURI(Accelerometer_Provider.AUTHORITY, DATABASE_TABLES[2]
+                + "/#", ACCEL_FEATURES_ID);
+        sUriMatcher.addURI(Accelerometer_Provider.AUTHORITY, DATABASE_TABLES[3],
+                ACCEL_SAMPLING);
+        sUriMatcher.addURI(Accelerometer_Provider.AUTHORITY, DATABASE_TABLES[3]
+                + "/#", ACCEL_SAMPLING_ID);
 
         accelDeviceMap = new HashMap<String, String>();
         accelDeviceMap.put(Accelerometer_Sensor._ID, Accelerometer_Sensor._ID);
@@ -353,6 +753,23 @@ public class Accelerometer_Provider extends ContentProvider {
         accelDataMap.put(Accelerometer_Data.ACCURACY,
                 Accelerometer_Data.ACCURACY);
         accelDataMap.put(Accelerometer_Data.LABEL, Accelerometer_Data.LABEL);
+
+        accelFeaturesMap = new HashMap<String, String>();
+        accelFeaturesMap.put(Accelerometer_Features._ID, Accelerometer_Features._ID);
+        for (String column : FeatureWindow.COLUMNS) {
+            accelFeaturesMap.put(column, column);
+        }
+
+        accelSamplingMap = new HashMap<String, String>();
+        accelSamplingMap.put(Accelerometer_Sampling._ID, Accelerometer_Sampling._ID);
+        accelSamplingMap.put(Accelerometer_Sampling.TIMESTAMP, Accelerometer_Sampling.TIMESTAMP);
+        accelSamplingMap.put(Accelerometer_Sampling.DEVICE_ID, Accelerometer_Sampling.DEVICE_ID);
+        accelSamplingMap.put(Accelerometer_Sampling.STATE, Accelerometer_Sampling.STATE);
+        accelSamplingMap.put(Accelerometer_Sampling.TRIGGER, Accelerometer_Sampling.TRIGGER);
+        accelSamplingMap.put(Accelerometer_Sampling.DEVIATION, Accelerometer_Sampling.DEVIATION);
+        accelSamplingMap.put(Accelerometer_Sampling.PERIOD, Accelerometer_Sampling.PERIOD);
+        accelSamplingMap.put(Accelerometer_Sampling.PREVIOUS_DURATION, Accelerometer_Sampling.PREVIOUS_DURATION);
+        accelSamplingMap.put(Accelerometer_Sampling.PREVIOUS_SAMPLES, Accelerometer_Sampling.PREVIOUS_SAMPLES);
         
 		return true;
 	}
@@ -376,9 +793,36 @@ public class Accelerometer_Provider extends ContentProvider {
 			qb.setProjectionMap(accelDeviceMap);
 			break;
 		case ACCEL_DATA:
+			boolean from_store;
+			synchronized (samples_lock) {
+				from_store = inStore(getContext());
+			}
+			if (from_store) {
+				try {
+					Cursor c = new TimeSeriesCursor(store().query(projection, selection, selectionArgs, sortOrder));
+					c.setNotificationUri(getContext().getContentResolver(), uri);
+					return c;
+				} catch (IOException e) {
+					if (Aware.DEBUG)
+						Log.e(Aware.TAG, e.getMessage());
+					return null;
+				} catch (IllegalArgumentException e) {
+					//a selection the store can't answer (e.g., functions, GROUP BY). The samples are not in the accelerometer table, so no SQLite fallback.
+					Log.w(AUTHORITY, "Unsupported query on " + STORE_NAME + ": " + e.getMessage());
+					return null;
+				}
+			}
 			qb.setTables(DATABASE_TABLES[1]);
 			qb.setProjectionMap(accelDataMap);
 			break;
+		case ACCEL_FEATURES:
+			qb.setTables(DATABASE_TABLES[2]);
+			qb.setProjectionMap(accelFeaturesMap);
+			break;
+		case ACCEL_SAMPLING:
+			qb.setTables(DATABASE_TABLES[3]);
+			qb.setProjectionMap(accelSamplingMap);
+			break;
 		default:
 			throw new IllegalArgumentException("Unknown URI " + uri);
 		}
@@ -416,8 +860,28 @@ public class Accelerometer_Provider extends ContentProvider {
             database.endTransaction();
 			break;
 		case ACCEL_DATA:
+            synchronized (samples_lock) {
+                if (inStore(getContext())) {
+                    Log.w(AUTHORITY, "Samples in " + STORE_NAME + " can't be updated");
+                    break;
+                }
+                database.beginTransaction();
+                count = databaseHelper.update(database, DATABASE_TABLES[1], values, selection, selectionArgs);
+                database.setTransactionSuccessful();
+                database.endTransaction();
+                if (count > 0 && (store != null || storeDirectory().exists())) setStale(getContext()); //copies moved to the store so far are out of date
+            }
+			break;
+		case ACCEL_FEATURES:
+            database.beginTransaction();
+			count = database.update(DATABASE_TABLES[2], values, selection,
+					selectionArgs);
+            database.setTransactionSuccessful();
+            database.endTransaction();
+			break;
+		case ACCEL_SAMPLING:
             database.beginTransaction();
-			count = database.update(DATABASE_TABLES[1], values, selection,
+			count = database.update(DATABASE_TABLES[3], values, selection,
 					selectionArgs);
             database.setTransactionSuccessful();
             database.endTransaction();
@@ -31,7 +31,7 @@ import java.util.HashMap;
  */
 public class Applications_Provider extends ContentProvider {
 
-    public static final int DATABASE_VERSION = 7;
+    public static final int DATABASE_VERSION = 8;
 
     /**
      * Authority of Application content provider
@@ -196,6 +196,16 @@ public class Applications_Provider extends ContentProvider {
                     + Applications_Crashes.ERROR_CONDITION + " integer default 0,"
                     + Applications_Crashes.IS_SYSTEM_APP + " integer default 0"};
 
+    /**
+     * Secondary indexes for each table, see {@link DatabaseHelper}
+     */
+    public static final String[][] TABLES_INDEXES = {
+    		{ Applications_Foreground.TIMESTAMP, Applications_Foreground.DEVICE_ID + "," + Applications_Foreground.TIMESTAMP },
+    		{ Applications_History.TIMESTAMP, Applications_History.DEVICE_ID + "," + Applications_History.TIMESTAMP },
+    		{ Applications_Notifications.TIMESTAMP, Applications_Notifications.DEVICE_ID + "," + Applications_Notifications.TIMESTAMP },
+    		{ Applications_Crashes.TIMESTAMP, Applications_Crashes.DEVICE_ID + "," + Applications_Crashes.TIMESTAMP }
+    };
+
     private static UriMatcher sUriMatcher = null;
     private static HashMap<String, String> foregroundMap = null;
     private static HashMap<String, String> applicationsMap = null;
@@ -206,7 +216,7 @@ public class Applications_Provider extends ContentProvider {
 
     private boolean initializeDB() {
         if (databaseHelper == null) {
-            databaseHelper = new DatabaseHelper(getContext(), DATABASE_NAME, null, DATABASE_VERSION, DATABASE_TABLES, TABLES_FIELDS);
+            databaseHelper = new DatabaseHelper(getContext(), DATABASE_NAME, null, DATABASE_VERSION, DATABASE_TABLES, TABLES_FIELDS, TABLES_INDEXES);
         }
         if (databaseHelper != null && (database == null || !database.isOpen())) {
             database = databaseHelper.getWritableDatabase();
@@ -222,7 +232,7 @@ public class Applications_Provider extends ContentProvider {
 
         File db = new File(DATABASE_NAME);
         db.delete();
-        databaseHelper = new DatabaseHelper(c, DATABASE_NAME, null, DATABASE_VERSION, DATABASE_TABLES, TABLES_FIELDS);
+        databaseHelper = new DatabaseHelper(c, DATABASE_NAME, null, DATABASE_VERSION, DATABASE_TABLES, TABLES_FIELDS, TABLES_INDEXES);
         if (databaseHelper != null) {
             database = databaseHelper.getWritableDatabase();
         }
@@ -29,7 +29,7 @@ import java.util.HashMap;
  */
 public class Aware_Provider extends ContentProvider {
 
-	public static final int DATABASE_VERSION = 9;
+	public static final int DATABASE_VERSION = 10;
 
 	/**
 	 * AWARE framework content authority
@@ -160,6 +160,15 @@ public class Aware_Provider extends ContentProvider {
 			+ Aware_Plugins.PLUGIN_DESCRIPTION + " text default ''"
 			};
 
+	/**
+	 * Secondary indexes for each table, see {@link DatabaseHelper}
+	 */
+	public static final String[][] TABLES_INDEXES = {
+			{ Aware_Device.TIMESTAMP },
+			{ Aware_Settings.SETTING_PACKAGE_NAME + "," + Aware_Settings.SETTING_KEY },
+			{ Aware_Plugins.PLUGIN_PACKAGE_NAME }
+	};
+
 	private static UriMatcher sUriMatcher = null;
 	private static HashMap<String, String> deviceMap = null;
 	private static HashMap<String, String> settingsMap = null;
@@ -170,7 +179,7 @@ public class Aware_Provider extends ContentProvider {
 
 	private boolean initializeDB() {
         if (databaseHelper == null) {
-            databaseHelper = new DatabaseHelper( getContext(), DATABASE_NAME, null, DATABASE_VERSION, DATABASE_TABLES, TABLES_FIELDS );
+            databaseHelper = new DatabaseHelper( getContext(), DATABASE_NAME, null, DATABASE_VERSION, DATABASE_TABLES, TABLES_FIELDS, TABLES_INDEXES );
         }
         if( databaseHelper != null && ( database == null || ! database.isOpen() )) {
             database = databaseHelper.getWritableDatabase();
@@ -31,7 +31,7 @@ import java.util.HashMap;
  */
 public class Battery_Provider extends ContentProvider {
 
-	private static final int DATABASE_VERSION = 4;
+	private static final int DATABASE_VERSION = 5;
 
 	/**
 	 * Authority of Battery content provider
@@ -140,6 +140,15 @@ public class Battery_Provider extends ContentProvider {
 					+ Battery_Charges.BATTERY_END + " integer default 0,"
 					+ Battery_Charges.END_TIMESTAMP + " real default 0" };
 
+	/**
+	 * Secondary indexes for each table, see {@link DatabaseHelper}
+	 */
+	public static final String[][] TABLES_INDEXES = {
+			{ Battery_Data.TIMESTAMP, Battery_Data.DEVICE_ID + "," + Battery_Data.TIMESTAMP },
+			{ Battery_Discharges.TIMESTAMP, Battery_Discharges.DEVICE_ID + "," + Battery_Discharges.TIMESTAMP },
+			{ Battery_Charges.TIMESTAMP, Battery_Charges.DEVICE_ID + "," + Battery_Charges.TIMESTAMP }
+	};
+
 	private static UriMatcher sUriMatcher = null;
 	private static HashMap<String, String> batteryProjectionMap = null;
 	private static HashMap<String, String> batteryDischargesMap = null;
@@ -149,7 +158,7 @@ public class Battery_Provider extends ContentProvider {
 
 	private boolean initializeDB() {
         if (databaseHelper == null) {
-            databaseHelper = new DatabaseHelper( getContext(), DATABASE_NAME, null, DATABASE_VERSION, DATABASE_TABLES, TABLES_FIELDS );
+            databaseHelper = new DatabaseHelper( getContext(), DATABASE_NAME, null, DATABASE_VERSION, DATABASE_TABLES, TABLES_FIELDS, TABLES_INDEXES );
         }
         if( databaseHelper != null && ( database == null || ! database.isOpen() )) {
             database = databaseHelper.getWritableDatabase();
@@ -165,7 +174,7 @@ public class Battery_Provider extends ContentProvider {
 
 		File db = new File(DATABASE_NAME);
 		db.delete();
-		databaseHelper = new DatabaseHelper( c, DATABASE_NAME, null, DATABASE_VERSION, DATABASE_TABLES, TABLES_FIELDS);
+		databaseHelper = new DatabaseHelper( c, DATABASE_NAME, null, DATABASE_VERSION, DATABASE_TABLES, TABLES_FIELDS, TABLES_INDEXES );
 		if( databaseHelper != null ) {
 			database = databaseHelper.getWritableDatabase();
 		}
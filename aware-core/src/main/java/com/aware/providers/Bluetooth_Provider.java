@@ -31,7 +31,7 @@ import java.util.HashMap;
  */
 public class Bluetooth_Provider extends ContentProvider {
 
-    private static final int DATABASE_VERSION = 3;
+    private static final int DATABASE_VERSION = 4;
 
     /**
      * Authority of Bluetooth content provider
@@ -109,6 +109,14 @@ public class Bluetooth_Provider extends ContentProvider {
             + Bluetooth_Data.BT_LABEL + " text default ''"
     };
 
+    /**
+     * Secondary indexes for each table, see {@link DatabaseHelper}
+     */
+    public static final String[][] TABLES_INDEXES = {
+    		{ Bluetooth_Sensor.TIMESTAMP, Bluetooth_Sensor.DEVICE_ID + "," + Bluetooth_Sensor.TIMESTAMP },
+    		{ Bluetooth_Data.TIMESTAMP, Bluetooth_Data.DEVICE_ID + "," + Bluetooth_Data.TIMESTAMP }
+    };
+
     private static UriMatcher sUriMatcher = null;
     private static HashMap<String, String> bluetoothDeviceMap = null;
     private static HashMap<String, String> bluetoothDataMap = null;
@@ -117,7 +125,7 @@ public class Bluetooth_Provider extends ContentProvider {
 
     private boolean initializeDB() {
         if (databaseHelper == null) {
-            databaseHelper = new DatabaseHelper(getContext(), DATABASE_NAME, null, DATABASE_VERSION, DATABASE_TABLES, TABLES_FIELDS);
+            databaseHelper = new DatabaseHelper(getContext(), DATABASE_NAME, null, DATABASE_VERSION, DATABASE_TABLES, TABLES_FIELDS, TABLES_INDEXES);
         }
         if (databaseHelper != null && (database == null || !database.isOpen())) {
             database = databaseHelper.getWritableDatabase();
@@ -133,7 +141,7 @@ public class Bluetooth_Provider extends ContentProvider {
 
         File db = new File(DATABASE_NAME);
         db.delete();
-        databaseHelper = new DatabaseHelper(c, DATABASE_NAME, null, DATABASE_VERSION, DATABASE_TABLES, TABLES_FIELDS);
+        databaseHelper = new DatabaseHelper(c, DATABASE_NAME, null, DATABASE_VERSION, DATABASE_TABLES, TABLES_FIELDS, TABLES_INDEXES);
         if (databaseHelper != null) {
             database = databaseHelper.getWritableDatabase();
         }
@@ -32,7 +32,7 @@ import java.util.HashMap;
  */
 public class Communication_Provider extends ContentProvider {
 
-	public static final int DATABASE_VERSION = 3;
+	public static final int DATABASE_VERSION = 4;
 
 	/**
 	 * Authority of Screen content provider
@@ -109,6 +109,14 @@ public class Communication_Provider extends ContentProvider {
 					+ "message_type integer default 0,"
 					+ "trace text default ''" };
 
+	/**
+	 * Secondary indexes for each table, see {@link DatabaseHelper}
+	 */
+	public static final String[][] TABLES_INDEXES = {
+			{ "timestamp", "device_id,timestamp" },
+			{ "timestamp", "device_id,timestamp" }
+	};
+
 	private static UriMatcher sUriMatcher = null;
 	private static HashMap<String, String> callsProjectionMap = null;
 	private static HashMap<String, String> messageProjectionMap = null;
@@ -117,7 +125,7 @@ public class Communication_Provider extends ContentProvider {
 
 	private boolean initializeDB() {
         if (databaseHelper == null) {
-            databaseHelper = new DatabaseHelper( getContext(), DATABASE_NAME, null, DATABASE_VERSION, DATABASE_TABLES, TABLES_FIELDS );
+            databaseHelper = new DatabaseHelper( getContext(), DATABASE_NAME, null, DATABASE_VERSION, DATABASE_TABLES, TABLES_FIELDS, TABLES_INDEXES );
         }
         if( databaseHelper != null && ( database == null || ! database.isOpen() )) {
             database = databaseHelper.getWritableDatabase();
@@ -133,7 +141,7 @@ public class Communication_Provider extends ContentProvider {
 
 		File db = new File(DATABASE_NAME);
 		db.delete();
-		databaseHelper = new DatabaseHelper( c, DATABASE_NAME, null, DATABASE_VERSION, DATABASE_TABLES, TABLES_FIELDS);
+		databaseHelper = new DatabaseHelper( c, DATABASE_NAME, null, DATABASE_VERSION, DATABASE_TABLES, TABLES_FIELDS, TABLES_INDEXES );
 		if( databaseHelper != null ) {
 			database = databaseHelper.getWritableDatabase();
 		}
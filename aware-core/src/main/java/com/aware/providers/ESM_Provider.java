@@ -31,7 +31,7 @@ import java.util.Hashtable;
  */
 public class ESM_Provider extends ContentProvider {
 
-    public static final int DATABASE_VERSION = 7;
+    public static final int DATABASE_VERSION = 8;
 
     /**
      * Authority of content provider
@@ -82,6 +82,13 @@ public class ESM_Provider extends ContentProvider {
             + ESM_Data.TRIGGER + " text default ''"
     };
 
+    /**
+     * Secondary indexes for each table, see {@link DatabaseHelper}
+     */
+    public static final String[][] TABLES_INDEXES = {
+    		{ ESM_Data.TIMESTAMP, ESM_Data.DEVICE_ID + "," + ESM_Data.TIMESTAMP }
+    };
+
     private static UriMatcher sUriMatcher = null;
     private static HashMap<String, String> questionsMap = null;
     private static DatabaseHelper databaseHelper = null;
@@ -89,7 +96,7 @@ public class ESM_Provider extends ContentProvider {
 
     private boolean initializeDB() {
         if (databaseHelper == null) {
-            databaseHelper = new DatabaseHelper(getContext(), DATABASE_NAME, null, DATABASE_VERSION, DATABASE_TABLES, TABLES_FIELDS);
+            databaseHelper = new DatabaseHelper(getContext(), DATABASE_NAME, null, DATABASE_VERSION, DATABASE_TABLES, TABLES_FIELDS, TABLES_INDEXES);
         }
         if (databaseHelper != null && (database == null || !database.isOpen())) {
             database = databaseHelper.getWritableDatabase();
@@ -105,7 +112,7 @@ public class ESM_Provider extends ContentProvider {
 
         File db = new File(DATABASE_NAME);
         db.delete();
-        databaseHelper = new DatabaseHelper(c, DATABASE_NAME, null, DATABASE_VERSION, DATABASE_TABLES, TABLES_FIELDS);
+        databaseHelper = new DatabaseHelper(c, DATABASE_NAME, null, DATABASE_VERSION, DATABASE_TABLES, TABLES_FIELDS, TABLES_INDEXES);
         if (databaseHelper != null) {
             database = databaseHelper.getWritableDatabase();
         }
@@ -16,7 +16,6 @@ import android.provider.BaseColumns;
 import android.util.Log;
 
 import com.aware.Aware;
-import com.aware.Barometer;
 import com.aware.BuildConfig;
 import com.aware.utils.DatabaseHelper;
 
@@ -32,7 +31,7 @@ import java.util.HashMap;
  */
 public class Gravity_Provider extends ContentProvider {
 
-	private static final int DATABASE_VERSION = 3;
+	private static final int DATABASE_VERSION = 5;
 
 	/**
 	 * Authority of content provider
@@ -126,6 +125,22 @@ public class Gravity_Provider extends ContentProvider {
 					+ Gravity_Data.ACCURACY + " integer default 0,"
 					+ Gravity_Data.LABEL + " text default ''" };
 
+	/**
+	 * Secondary indexes for each table, see {@link DatabaseHelper}
+	 */
+	public static final String[][] TABLES_INDEXES = {
+			{ Gravity_Sensor.TIMESTAMP },
+			{ Gravity_Data.TIMESTAMP, Gravity_Data.DEVICE_ID + "," + Gravity_Data.TIMESTAMP }
+	};
+
+	/**
+	 * Dictionary-encoded text columns for each table, see {@link DatabaseHelper}
+	 */
+	public static final String[][] TABLES_DICTIONARIES = {
+			{},
+			{ Gravity_Data.DEVICE_ID, Gravity_Data.LABEL }
+	};
+
 	private static UriMatcher sUriMatcher = null;
 	private static HashMap<String, String> sensorDeviceMap = null;
 	private static HashMap<String, String> sensorDataMap = null;
@@ -134,7 +149,7 @@ public class Gravity_Provider extends ContentProvider {
 
 	private boolean initializeDB() {
         if (databaseHelper == null) {
-            databaseHelper = new DatabaseHelper( getContext(), DATABASE_NAME, null, DATABASE_VERSION, DATABASE_TABLES, TABLES_FIELDS );
+            databaseHelper = new DatabaseHelper( getContext(), DATABASE_NAME, null, DATABASE_VERSION, DATABASE_TABLES, TABLES_FIELDS, TABLES_INDEXES, TABLES_DICTIONARIES );
         }
         if( databaseHelper != null && ( database == null || ! database.isOpen() )) {
             database = databaseHelper.getWritableDatabase();
@@ -150,7 +165,7 @@ public class Gravity_Provider extends ContentProvider {
 
 		File db = new File(DATABASE_NAME);
 		db.delete();
-		databaseHelper = new DatabaseHelper( c, DATABASE_NAME, null, DATABASE_VERSION, DATABASE_TABLES, TABLES_FIELDS);
+		databaseHelper = new DatabaseHelper( c, DATABASE_NAME, null, DATABASE_VERSION, DATABASE_TABLES, TABLES_FIELDS, TABLES_INDEXES, TABLES_DICTIONARIES );
 		if( databaseHelper != null ) {
 			database = databaseHelper.getWritableDatabase();
 		}
@@ -177,8 +192,7 @@ public class Gravity_Provider extends ContentProvider {
 			break;
 		case SENSOR_DATA:
             database.beginTransaction();
-			count = database.delete(DATABASE_TABLES[1], selection,
-					selectionArgs);
+			count = databaseHelper.delete(database, DATABASE_TABLES[1], selection, selectionArgs);
             database.setTransactionSuccessful();
             database.endTransaction();
 			break;
@@ -236,8 +250,7 @@ public class Gravity_Provider extends ContentProvider {
 			throw new SQLException("Failed to insert row into " + uri);
 		case SENSOR_DATA:
             database.beginTransaction();
-			long accelData_id = database.insertWithOnConflict(DATABASE_TABLES[1],
-					Gravity_Data.DEVICE_ID, values, SQLiteDatabase.CONFLICT_IGNORE);
+			long accelData_id = databaseHelper.insert(database, DATABASE_TABLES[1], values);
             database.setTransactionSuccessful();
             database.endTransaction();
 			if (accelData_id > 0) {
@@ -270,41 +283,11 @@ public class Gravity_Provider extends ContentProvider {
         int count = 0;
         switch ( sUriMatcher.match(uri) ) {
             case SENSOR_DEV:
-                database.beginTransaction();
-                for (ContentValues v : values) {
-                    long id;
-                    try {
-                        id = database.insertOrThrow( DATABASE_TABLES[0], Gravity_Sensor.DEVICE_ID, v );
-                    } catch ( SQLException e ) {
-                        id = database.replace( DATABASE_TABLES[0], Gravity_Sensor.DEVICE_ID, v );
-                    }
-                    if( id <= 0 ) {
-                        Log.w(Barometer.TAG, "Failed to insert/replace row into " + uri);
-                    } else {
-                        count++;
-                    }
-                }
-                database.setTransactionSuccessful();
-                database.endTransaction();
+                count = DatabaseHelper.bulkInsert(database, DATABASE_TABLES[0], values);
                 getContext().getContentResolver().notifyChange(uri, null);
                 return count;
             case SENSOR_DATA:
-                database.beginTransaction();
-                for (ContentValues v : values) {
-                    long id;
-                    try {
-                        id = database.insertOrThrow( DATABASE_TABLES[1], Gravity_Data.DEVICE_ID, v );
-                    } catch ( SQLException e ) {
-                        id = database.replace( DATABASE_TABLES[1], Gravity_Data.DEVICE_ID, v );
-                    }
-                    if( id <= 0 ) {
-                        Log.w(Barometer.TAG, "Failed to insert/replace row into " + uri);
-                    } else {
-                        count++;
-                    }
-                }
-                database.setTransactionSuccessful();
-                database.endTransaction();
+                count = databaseHelper.insert(database, DATABASE_TABLES[1], values);
                 getContext().getContentResolver().notifyChange(uri, null);
                 return count;
             default:
@@ -416,8 +399,7 @@ public class Gravity_Provider extends ContentProvider {
 			break;
 		case SENSOR_DATA:
             database.beginTransaction();
-			count = database.update(DATABASE_TABLES[1], values, selection,
-					selectionArgs);
+			count = databaseHelper.update(database, DATABASE_TABLES[1], values, selection, selectionArgs);
             database.setTransactionSuccessful();
             database.endTransaction();
 			break;
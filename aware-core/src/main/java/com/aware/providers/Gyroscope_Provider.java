@@ -16,9 +16,9 @@ import android.provider.BaseColumns;
 import android.util.Log;
 
 import com.aware.Aware;
-import com.aware.Barometer;
 import com.aware.BuildConfig;
 import com.aware.utils.DatabaseHelper;
+import com.aware.utils.FeatureWindow;
 
 import java.io.File;
 import java.util.HashMap;
@@ -33,7 +33,7 @@ import java.util.HashMap;
  */
 public class Gyroscope_Provider extends ContentProvider {
 
-	public static final int DATABASE_VERSION = 4;
+	public static final int DATABASE_VERSION = 7;
 
 	/**
 	 * Authority of Gyroscope content provider
@@ -45,6 +45,8 @@ public class Gyroscope_Provider extends ContentProvider {
 	private static final int GYRO_DEV_ID = 2;
 	private static final int GYRO_DATA = 3;
 	private static final int GYRO_DATA_ID = 4;
+	private static final int GYRO_FEATURES = 5;
+	private static final int GYRO_FEATURES_ID = 6;
 
 	/**
 	 * Accelerometer device info
@@ -93,10 +95,27 @@ public class Gyroscope_Provider extends ContentProvider {
 		public static final String LABEL = "label";
 	}
 
+	/**
+	 * Sliding-window features, see {@link FeatureWindow} for the columns
+	 */
+	public static final class Gyroscope_Features implements BaseColumns {
+		private Gyroscope_Features() {
+		}
+
+		public static final Uri CONTENT_URI = Uri.parse("content://"
+				+ Gyroscope_Provider.AUTHORITY + "/gyroscope_features");
+		public static final String CONTENT_TYPE = "vnd.android.cursor.dir/vnd.aware.gyroscope.features";
+		public static final String CONTENT_ITEM_TYPE = "vnd.android.cursor.item/vnd.aware.gyroscope.features";
+
+		public static final String _ID = "_id";
+		public static final String TIMESTAMP = FeatureWindow.TIMESTAMP;
+		public static final String DEVICE_ID = FeatureWindow.DEVICE_ID;
+	}
+
 	public static String DATABASE_NAME = "gyroscope.db";
 
 	public static final String[] DATABASE_TABLES = { "sensor_gyroscope",
-			"gyroscope" };
+			"gyroscope", "gyroscope_features" };
 	public static final String[] TABLES_FIELDS = {
 			// gyroscope device information
 			Gyroscope_Sensor._ID + " integer primary key autoincrement,"
@@ -119,17 +138,38 @@ public class Gyroscope_Provider extends ContentProvider {
 					+ Gyroscope_Data.VALUES_1 + " real default 0,"
 					+ Gyroscope_Data.VALUES_2 + " real default 0,"
 					+ Gyroscope_Data.ACCURACY + " integer default 0,"
-					+ Gyroscope_Data.LABEL + " text default ''" };
+					+ Gyroscope_Data.LABEL + " text default ''",
+
+			// sliding-window features
+			FeatureWindow.TABLE_FIELDS };
+
+	/**
+	 * Secondary indexes for each table, see {@link DatabaseHelper}
+	 */
+	public static final String[][] TABLES_INDEXES = {
+			{ Gyroscope_Sensor.TIMESTAMP },
+			{ Gyroscope_Data.TIMESTAMP, Gyroscope_Data.DEVICE_ID + "," + Gyroscope_Data.TIMESTAMP },
+			{ Gyroscope_Features.TIMESTAMP, Gyroscope_Features.DEVICE_ID + "," + Gyroscope_Features.TIMESTAMP }
+	};
+
+	/**
+	 * Dictionary-encoded text columns for each table, see {@link DatabaseHelper}
+	 */
+	public static final String[][] TABLES_DICTIONARIES = {
+			{},
+			{ Gyroscope_Data.DEVICE_ID, Gyroscope_Data.LABEL }
+	};
 
 	private static UriMatcher sUriMatcher = null;
 	private static HashMap<String, String> gyroDeviceMap = null;
 	private static HashMap<String, String> gyroDataMap = null;
+	private static HashMap<String, String> gyroFeaturesMap = null;
 	private static DatabaseHelper databaseHelper = null;
 	private static SQLiteDatabase database = null;
 
 	private boolean initializeDB() {
         if (databaseHelper == null) {
-            databaseHelper = new DatabaseHelper( getContext(), DATABASE_NAME, null, DATABASE_VERSION, DATABASE_TABLES, TABLES_FIELDS );
+            databaseHelper = new DatabaseHelper( getContext(), DATABASE_NAME, null, DATABASE_VERSION, DATABASE_TABLES, TABLES_FIELDS, TABLES_INDEXES, TABLES_DICTIONARIES );
         }
         if( databaseHelper != null && ( database == null || ! database.isOpen() )) {
             database = databaseHelper.getWritableDatabase();
@@ -145,7 +185,7 @@ public class Gyroscope_Provider extends ContentProvider {
 
 		File db = new File(DATABASE_NAME);
 		db.delete();
-		databaseHelper = new DatabaseHelper( c, DATABASE_NAME, null, DATABASE_VERSION, DATABASE_TABLES, TABLES_FIELDS);
+		databaseHelper = new DatabaseHelper( c, DATABASE_NAME, null, DATABASE_VERSION, DATABASE_TABLES, TABLES_FIELDS, TABLES_INDEXES, TABLES_DICTIONARIES );
 		if( databaseHelper != null ) {
 			database = databaseHelper.getWritableDatabase();
 		}
@@ -173,7 +213,13 @@ public class Gyroscope_Provider extends ContentProvider {
 			break;
 		case GYRO_DATA:
             database.beginTransaction();
-			count = database.delete(DATABASE_TABLES[1], selection,
+			count = databaseHelper.delete(database, DATABASE_TABLES[1], selection, selectionArgs);
+            database.setTransactionSuccessful();
+            database.endTransaction();
+			break;
+		case GYRO_FEATURES:
+            database.beginTransaction();
+			count = database.delete(DATABASE_TABLES[2], selection,
 					selectionArgs);
             database.setTransactionSuccessful();
             database.endTransaction();
@@ -198,6 +244,10 @@ public class Gyroscope_Provider extends ContentProvider {
 			return Gyroscope_Data.CONTENT_TYPE;
 		case GYRO_DATA_ID:
 			return Gyroscope_Data.CONTENT_ITEM_TYPE;
+		case GYRO_FEATURES:
+			return Gyroscope_Features.CONTENT_TYPE;
+		case GYRO_FEATURES_ID:
+			return Gyroscope_Features.CONTENT_ITEM_TYPE;
 		default:
 			throw new IllegalArgumentException("Unknown URI " + uri);
 		}
@@ -233,8 +283,7 @@ public class Gyroscope_Provider extends ContentProvider {
 			throw new SQLException("Failed to insert row into " + uri);
 		case GYRO_DATA:
             database.beginTransaction();
-			long gyroData_id = database.insertWithOnConflict(DATABASE_TABLES[1],
-					Gyroscope_Data.DEVICE_ID, values, SQLiteDatabase.CONFLICT_IGNORE);
+			long gyroData_id = databaseHelper.insert(database, DATABASE_TABLES[1], values);
             database.setTransactionSuccessful();
             database.endTransaction();
 			if (gyroData_id > 0) {
@@ -245,6 +294,20 @@ public class Gyroscope_Provider extends ContentProvider {
 				return gyroDataUri;
 			}
 			throw new SQLException("Failed to insert row into " + uri);
+		case GYRO_FEATURES:
+            database.beginTransaction();
+			long gyroFeatures_id = database.insertWithOnConflict(DATABASE_TABLES[2],
+					Gyroscope_Features.DEVICE_ID, values, SQLiteDatabase.CONFLICT_IGNORE);
+            database.setTransactionSuccessful();
+            database.endTransaction();
+			if (gyroFeatures_id > 0) {
+				Uri gyroFeaturesUri = ContentUris.withAppendedId(
+						Gyroscope_Features.CONTENT_URI, gyroFeatures_id);
+				getContext().getContentResolver().notifyChange(gyroFeaturesUri,
+						null);
+				return gyroFeaturesUri;
+			}
+			throw new SQLException("Failed to insert row into " + uri);
 		default:
 
 			throw new IllegalArgumentException("Unknown URI " + uri);
@@ -267,41 +330,15 @@ public class Gyroscope_Provider extends ContentProvider {
         int count = 0;
         switch ( sUriMatcher.match(uri) ) {
             case GYRO_DEV:
-                database.beginTransaction();
-                for (ContentValues v : values) {
-                    long id;
-                    try {
-                        id = database.insertOrThrow( DATABASE_TABLES[0], Gyroscope_Sensor.DEVICE_ID, v );
-                    } catch ( SQLException e ) {
-                        id = database.replace( DATABASE_TABLES[0], Gyroscope_Sensor.DEVICE_ID, v );
-                    }
-                    if( id <= 0 ) {
-                        Log.w(Barometer.TAG, "Failed to insert/replace row into " + uri);
-                    } else {
-                        count++;
-                    }
-                }
-                database.setTransactionSuccessful();
-                database.endTransaction();
+                count = DatabaseHelper.bulkInsert(database, DATABASE_TABLES[0], values);
                 getContext().getContentResolver().notifyChange(uri, null);
                 return count;
             case GYRO_DATA:
-                database.beginTransaction();
-                for (ContentValues v : values) {
-                    long id;
-                    try {
-                        id = database.insertOrThrow( DATABASE_TABLES[1], Gyroscope_Data.DEVICE_ID, v );
-                    } catch ( SQLException e ) {
-                        id = database.replace( DATABASE_TABLES[1], Gyroscope_Data.DEVICE_ID, v );
-                    }
-                    if( id <= 0 ) {
-                        Log.w(Barometer.TAG, "Failed to insert/replace row into " + uri);
-                    } else {
-                        count++;
-                    }
-                }
-                database.setTransactionSuccessful();
-                database.endTransaction();
+                count = databaseHelper.insert(database, DATABASE_TABLES[1], values);
+                getContext().getContentResolver().notifyChange(uri, null);
+                return count;
+            case GYRO_FEATURES:
+                count = DatabaseHelper.bulkInsert(database, DATABASE_TABLES[2], values);
                 getContext().getContentResolver().notifyChange(uri, null);
                 return count;
             default:
@@ -322,6 +359,10 @@ public class Gyroscope_Provider extends ContentProvider {
                 GYRO_DATA);
         sUriMatcher.addURI(Gyroscope_Provider.AUTHORITY, DATABASE_TABLES[1]
                 + "/#", GYRO_DATA_ID);
+        sUriMatcher.addURI(Gyroscope_Provider.AUTHORITY, DATABASE_TABLES[2],
+                GYRO_FEATURES);
+        sUriMatcher.addURI(Gyroscope_Provider.AUTHORITY, DATABASE_TABLES[2]
+                + "/#", GYRO_FEATURES_ID);
 
         gyroDeviceMap = new HashMap<String, String>();
         gyroDeviceMap.put(Gyroscope_Sensor._ID, Gyroscope_Sensor._ID);
@@ -350,6 +391,12 @@ public class Gyroscope_Provider extends ContentProvider {
         gyroDataMap.put(Gyroscope_Data.VALUES_2, Gyroscope_Data.VALUES_2);
         gyroDataMap.put(Gyroscope_Data.ACCURACY, Gyroscope_Data.ACCURACY);
         gyroDataMap.put(Gyroscope_Data.LABEL, Gyroscope_Data.LABEL);
+
+        gyroFeaturesMap = new HashMap<String, String>();
+        gyroFeaturesMap.put(Gyroscope_Features._ID, Gyroscope_Features._ID);
+        for (String column : FeatureWindow.COLUMNS) {
+            gyroFeaturesMap.put(column, column);
+        }
 	    
 		return true;
 	}
@@ -376,6 +423,10 @@ public class Gyroscope_Provider extends ContentProvider {
 			qb.setTables(DATABASE_TABLES[1]);
 			qb.setProjectionMap(gyroDataMap);
 			break;
+		case GYRO_FEATURES:
+			qb.setTables(DATABASE_TABLES[2]);
+			qb.setProjectionMap(gyroFeaturesMap);
+			break;
 		default:
 
 			throw new IllegalArgumentException("Unknown URI " + uri);
@@ -416,7 +467,13 @@ public class Gyroscope_Provider extends ContentProvider {
 			break;
 		case GYRO_DATA:
             database.beginTransaction();
-			count = database.update(DATABASE_TABLES[1], values, selection,
+			count = databaseHelper.update(database, DATABASE_TABLES[1], values, selection, selectionArgs);
+            database.setTransactionSuccessful();
+            database.endTransaction();
+			break;
+		case GYRO_FEATURES:
+            database.beginTransaction();
+			count = database.update(DATABASE_TABLES[2], values, selection,
 					selectionArgs);
             database.setTransactionSuccessful();
             database.endTransaction();
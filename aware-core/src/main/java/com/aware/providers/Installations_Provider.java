@@ -32,7 +32,7 @@ import java.util.HashMap;
  */
 public class Installations_Provider extends ContentProvider {
 
-	private static final int DATABASE_VERSION = 3;
+	private static final int DATABASE_VERSION = 4;
 
 	/**
 	 * Authority of Installations content provider
@@ -79,6 +79,13 @@ public class Installations_Provider extends ContentProvider {
 			+ Installations_Data.APPLICATION_NAME + " text default '',"
 			+ Installations_Data.INSTALLATION_STATUS + " integer default -1" };
 
+	/**
+	 * Secondary indexes for each table, see {@link DatabaseHelper}
+	 */
+	public static final String[][] TABLES_INDEXES = {
+			{ Installations_Data.TIMESTAMP, Installations_Data.DEVICE_ID + "," + Installations_Data.TIMESTAMP }
+	};
+
 	private static UriMatcher sUriMatcher = null;
 	private static HashMap<String, String> installationsMap = null;
 	private static DatabaseHelper databaseHelper = null;
@@ -86,7 +93,7 @@ public class Installations_Provider extends ContentProvider {
 
 	private boolean initializeDB() {
         if (databaseHelper == null) {
-            databaseHelper = new DatabaseHelper( getContext(), DATABASE_NAME, null, DATABASE_VERSION, DATABASE_TABLES, TABLES_FIELDS );
+            databaseHelper = new DatabaseHelper( getContext(), DATABASE_NAME, null, DATABASE_VERSION, DATABASE_TABLES, TABLES_FIELDS, TABLES_INDEXES );
         }
         if( databaseHelper != null && ( database == null || ! database.isOpen() )) {
             database = databaseHelper.getWritableDatabase();
@@ -102,7 +109,7 @@ public class Installations_Provider extends ContentProvider {
 
 		File db = new File(DATABASE_NAME);
 		db.delete();
-		databaseHelper = new DatabaseHelper( c, DATABASE_NAME, null, DATABASE_VERSION, DATABASE_TABLES, TABLES_FIELDS);
+		databaseHelper = new DatabaseHelper( c, DATABASE_NAME, null, DATABASE_VERSION, DATABASE_TABLES, TABLES_FIELDS, TABLES_INDEXES );
 		if( databaseHelper != null ) {
 			database = databaseHelper.getWritableDatabase();
 		}
@@ -25,7 +25,7 @@ import java.util.HashMap;
 * Created by denzil on 21/10/14.
 */
 public class Keyboard_Provider extends ContentProvider {
-    private static final int DATABASE_VERSION = 2;
+    private static final int DATABASE_VERSION = 3;
 
     /**
      * Authority of Installations content provider
@@ -71,6 +71,13 @@ public class Keyboard_Provider extends ContentProvider {
                     + Keyboard_Data.CURRENT_TEXT + " text default '',"
                     + Keyboard_Data.IS_PASSWORD + " integer default -1" };
 
+    /**
+     * Secondary indexes for each table, see {@link DatabaseHelper}
+     */
+    public static final String[][] TABLES_INDEXES = {
+    		{ Keyboard_Data.TIMESTAMP, Keyboard_Data.DEVICE_ID + "," + Keyboard_Data.TIMESTAMP }
+    };
+
     private static UriMatcher sUriMatcher = null;
     private static HashMap<String, String> dataMap = null;
     private static DatabaseHelper databaseHelper = null;
@@ -78,7 +85,7 @@ public class Keyboard_Provider extends ContentProvider {
 
     private boolean initializeDB() {
         if (databaseHelper == null) {
-            databaseHelper = new DatabaseHelper( getContext(), DATABASE_NAME, null, DATABASE_VERSION, DATABASE_TABLES, TABLES_FIELDS );
+            databaseHelper = new DatabaseHelper( getContext(), DATABASE_NAME, null, DATABASE_VERSION, DATABASE_TABLES, TABLES_FIELDS, TABLES_INDEXES );
         }
         if( databaseHelper != null && ( database == null || ! database.isOpen() )) {
             database = databaseHelper.getWritableDatabase();
@@ -94,7 +101,7 @@ public class Keyboard_Provider extends ContentProvider {
 
         File db = new File(DATABASE_NAME);
         db.delete();
-        databaseHelper = new DatabaseHelper( c, DATABASE_NAME, null, DATABASE_VERSION, DATABASE_TABLES, TABLES_FIELDS);
+        databaseHelper = new DatabaseHelper( c, DATABASE_NAME, null, DATABASE_VERSION, DATABASE_TABLES, TABLES_FIELDS, TABLES_INDEXES );
         if( databaseHelper != null ) {
             database = databaseHelper.getWritableDatabase();
         }
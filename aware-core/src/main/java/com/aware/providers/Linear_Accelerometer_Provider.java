@@ -15,10 +15,10 @@ import android.os.Environment;
 import android.provider.BaseColumns;
 import android.util.Log;
 
-import com.aware.Accelerometer;
 import com.aware.Aware;
 import com.aware.BuildConfig;
 import com.aware.utils.DatabaseHelper;
+import com.aware.utils.FeatureWindow;
 
 import java.io.File;
 import java.util.HashMap;
@@ -32,7 +32,7 @@ import java.util.HashMap;
  */
 public class Linear_Accelerometer_Provider extends ContentProvider {
 
-	public static final int DATABASE_VERSION = 3;
+	public static final int DATABASE_VERSION = 6;
 
 	/**
 	 * Authority of content provider
@@ -44,6 +44,8 @@ public class Linear_Accelerometer_Provider extends ContentProvider {
 	private static final int ACCEL_DEV_ID = 2;
 	private static final int ACCEL_DATA = 3;
 	private static final int ACCEL_DATA_ID = 4;
+	private static final int ACCEL_FEATURES = 5;
+	private static final int ACCEL_FEATURES_ID = 6;
 
 	/**
 	 * Sensor device info
@@ -101,10 +103,27 @@ public class Linear_Accelerometer_Provider extends ContentProvider {
 		public static final String LABEL = "label";
 	}
 
+	/**
+	 * Sliding-window features, see {@link FeatureWindow} for the columns
+	 */
+	public static final class Linear_Accelerometer_Features implements BaseColumns {
+		private Linear_Accelerometer_Features() {
+		}
+
+		public static final Uri CONTENT_URI = Uri.parse("content://"
+				+ Linear_Accelerometer_Provider.AUTHORITY + "/linear_accelerometer_features");
+		public static final String CONTENT_TYPE = "vnd.android.cursor.dir/vnd.aware.accelerometer.linear.features";
+		public static final String CONTENT_ITEM_TYPE = "vnd.android.cursor.item/vnd.aware.accelerometer.linear.features";
+
+		public static final String _ID = "_id";
+		public static final String TIMESTAMP = FeatureWindow.TIMESTAMP;
+		public static final String DEVICE_ID = FeatureWindow.DEVICE_ID;
+	}
+
 	public static String DATABASE_NAME = "linear_accelerometer.db";
 
 	public static final String[] DATABASE_TABLES = {
-			"sensor_linear_accelerometer", "linear_accelerometer" };
+			"sensor_linear_accelerometer", "linear_accelerometer", "linear_accelerometer_features" };
 	public static final String[] TABLES_FIELDS = {
 			// sensor information
 			Linear_Accelerometer_Sensor._ID + " integer primary key autoincrement,"
@@ -128,17 +147,38 @@ public class Linear_Accelerometer_Provider extends ContentProvider {
 					+ Linear_Accelerometer_Data.VALUES_1 + " real default 0,"
 					+ Linear_Accelerometer_Data.VALUES_2 + " real default 0,"
 					+ Linear_Accelerometer_Data.ACCURACY + " integer default 0,"
-					+ Linear_Accelerometer_Data.LABEL + " text default ''" };
+					+ Linear_Accelerometer_Data.LABEL + " text default ''",
+
+			// sliding-window features
+			FeatureWindow.TABLE_FIELDS };
+
+	/**
+	 * Secondary indexes for each table, see {@link DatabaseHelper}
+	 */
+	public static final String[][] TABLES_INDEXES = {
+			{ Linear_Accelerometer_Sensor.TIMESTAMP },
+			{ Linear_Accelerometer_Data.TIMESTAMP, Linear_Accelerometer_Data.DEVICE_ID + "," + Linear_Accelerometer_Data.TIMESTAMP },
+			{ Linear_Accelerometer_Features.TIMESTAMP, Linear_Accelerometer_Features.DEVICE_ID + "," + Linear_Accelerometer_Features.TIMESTAMP }
+	};
+
+	/**
+	 * Dictionary-encoded text columns for each table, see {@link DatabaseHelper}
+	 */
+	public static final String[][] TABLES_DICTIONARIES = {
+			{},
+			{ Linear_Accelerometer_Data.DEVICE_ID, Linear_Accelerometer_Data.LABEL }
+	};
 
 	private static UriMatcher sUriMatcher = null;
 	private static HashMap<String, String> accelDeviceMap = null;
 	private static HashMap<String, String> accelDataMap = null;
+	private static HashMap<String, String> accelFeaturesMap = null;
 	private static DatabaseHelper databaseHelper = null;
 	private static SQLiteDatabase database = null;
 
 	private boolean initializeDB() {
         if (databaseHelper == null) {
-            databaseHelper = new DatabaseHelper( getContext(), DATABASE_NAME, null, DATABASE_VERSION, DATABASE_TABLES, TABLES_FIELDS );
+            databaseHelper = new DatabaseHelper( getContext(), DATABASE_NAME, null, DATABASE_VERSION, DATABASE_TABLES, TABLES_FIELDS, TABLES_INDEXES, TABLES_DICTIONARIES );
         }
         if( databaseHelper != null && ( database == null || ! database.isOpen() )) {
             database = databaseHelper.getWritableDatabase();
@@ -154,7 +194,7 @@ public class Linear_Accelerometer_Provider extends ContentProvider {
 
 		File db = new File(DATABASE_NAME);
 		db.delete();
-		databaseHelper = new DatabaseHelper( c, DATABASE_NAME, null, DATABASE_VERSION, DATABASE_TABLES, TABLES_FIELDS);
+		databaseHelper = new DatabaseHelper( c, DATABASE_NAME, null, DATABASE_VERSION, DATABASE_TABLES, TABLES_FIELDS, TABLES_INDEXES, TABLES_DICTIONARIES );
 		if( databaseHelper != null ) {
 			database = databaseHelper.getWritableDatabase();
 		}
@@ -181,7 +221,13 @@ public class Linear_Accelerometer_Provider extends ContentProvider {
 			break;
 		case ACCEL_DATA:
             database.beginTransaction();
-			count = database.delete(DATABASE_TABLES[1], selection,
+			count = databaseHelper.delete(database, DATABASE_TABLES[1], selection, selectionArgs);
+            database.setTransactionSuccessful();
+            database.endTransaction();
+			break;
+		case ACCEL_FEATURES:
+            database.beginTransaction();
+			count = database.delete(DATABASE_TABLES[2], selection,
 					selectionArgs);
             database.setTransactionSuccessful();
             database.endTransaction();
@@ -206,6 +252,10 @@ public class Linear_Accelerometer_Provider extends ContentProvider {
 			return Linear_Accelerometer_Data.CONTENT_TYPE;
 		case ACCEL_DATA_ID:
 			return Linear_Accelerometer_Data.CONTENT_ITEM_TYPE;
+		case ACCEL_FEATURES:
+			return Linear_Accelerometer_Features.CONTENT_TYPE;
+		case ACCEL_FEATURES_ID:
+			return Linear_Accelerometer_Features.CONTENT_ITEM_TYPE;
 		default:
 			throw new IllegalArgumentException("Unknown URI " + uri);
 		}
@@ -240,8 +290,7 @@ public class Linear_Accelerometer_Provider extends ContentProvider {
 			throw new SQLException("Failed to insert row into " + uri);
 		case ACCEL_DATA:
             database.beginTransaction();
-			long accelData_id = database.insertWithOnConflict(DATABASE_TABLES[1],
-					Linear_Accelerometer_Data.DEVICE_ID, values, SQLiteDatabase.CONFLICT_IGNORE);
+			long accelData_id = databaseHelper.insert(database, DATABASE_TABLES[1], values);
             database.setTransactionSuccessful();
             database.endTransaction();
 			if (accelData_id > 0) {
@@ -252,6 +301,20 @@ public class Linear_Accelerometer_Provider extends ContentProvider {
 				return accelDataUri;
 			}
 			throw new SQLException("Failed to insert row into " + uri);
+		case ACCEL_FEATURES:
+            database.beginTransaction();
+			long accelFeatures_id = database.insertWithOnConflict(DATABASE_TABLES[2],
+					Linear_Accelerometer_Features.DEVICE_ID, values, SQLiteDatabase.CONFLICT_IGNORE);
+            database.setTransactionSuccessful();
+            database.endTransaction();
+			if (accelFeatures_id > 0) {
+				Uri accelFeaturesUri = ContentUris.withAppendedId(
+						Linear_Accelerometer_Features.CONTENT_URI, accelFeatures_id);
+				getContext().getContentResolver().notifyChange(accelFeaturesUri,
+						null);
+				return accelFeaturesUri;
+			}
+			throw new SQLException("Failed to insert row into " + uri);
 		default:
 
 			throw new IllegalArgumentException("Unknown URI " + uri);
@@ -274,41 +337,15 @@ public class Linear_Accelerometer_Provider extends ContentProvider {
         int count = 0;
         switch ( sUriMatcher.match(uri) ) {
             case ACCEL_DEV:
-                database.beginTransaction();
-                for (ContentValues v : values) {
-                    long id;
-                    try {
-                        id = database.insertOrThrow( DATABASE_TABLES[0], Linear_Accelerometer_Sensor.DEVICE_ID, v );
-                    } catch ( SQLException e ) {
-                        id = database.replace( DATABASE_TABLES[0], Linear_Accelerometer_Sensor.DEVICE_ID, v );
-                    }
-                    if( id <= 0 ) {
-                        Log.w(Accelerometer.TAG, "Failed to insert/replace row into " + uri);
-                    } else {
-                        count++;
-                    }
-                }
-                database.setTransactionSuccessful();
-                database.endTransaction();
+                count = DatabaseHelper.bulkInsert(database, DATABASE_TABLES[0], values);
                 getContext().getContentResolver().notifyChange(uri, null);
                 return count;
             case ACCEL_DATA:
-                database.beginTransaction();
-                for (ContentValues v : values) {
-                    long id;
-                    try {
-                        id = database.insertOrThrow( DATABASE_TABLES[1], Linear_Accelerometer_Data.DEVICE_ID, v );
-                    } catch ( SQLException e ) {
-                        id = database.replace( DATABASE_TABLES[1], Linear_Accelerometer_Data.DEVICE_ID, v );
-                    }
-                    if( id <= 0 ) {
-                        Log.w(Accelerometer.TAG, "Failed to insert/replace row into " + uri);
-                    } else {
-                        count++;
-                    }
-                }
-                database.setTransactionSuccessful();
-                database.endTransaction();
+                count = databaseHelper.insert(database, DATABASE_TABLES[1], values);
+                getContext().getContentResolver().notifyChange(uri, null);
+                return count;
+            case ACCEL_FEATURES:
+                count = DatabaseHelper.bulkInsert(database, DATABASE_TABLES[2], values);
                 getContext().getContentResolver().notifyChange(uri, null);
                 return count;
             default:
@@ -329,6 +366,10 @@ public class Linear_Accelerometer_Provider extends ContentProvider {
                 DATABASE_TABLES[1], ACCEL_DATA);
         sUriMatcher.addURI(Linear_Accelerometer_Provider.AUTHORITY,
                 DATABASE_TABLES[1] + "/#", ACCEL_DATA_ID);
+        sUriMatcher.addURI(Linear_Accelerometer_Provider.AUTHORITY, DATABASE_TABLES[2],
+                ACCEL_FEATURES);
+        sUriMatcher.addURI(Linear_Accelerometer_Provider.AUTHORITY, DATABASE_TABLES[2]
+                + "/#", ACCEL_FEATURES_ID);
 
         accelDeviceMap = new HashMap<String, String>();
         accelDeviceMap.put(Linear_Accelerometer_Sensor._ID,
@@ -371,6 +412,12 @@ public class Linear_Accelerometer_Provider extends ContentProvider {
                 Linear_Accelerometer_Data.ACCURACY);
         accelDataMap.put(Linear_Accelerometer_Data.LABEL,
                 Linear_Accelerometer_Data.LABEL);
+
+        accelFeaturesMap = new HashMap<String, String>();
+        accelFeaturesMap.put(Linear_Accelerometer_Features._ID, Linear_Accelerometer_Features._ID);
+        for (String column : FeatureWindow.COLUMNS) {
+            accelFeaturesMap.put(column, column);
+        }
 	    
 		return true;
 	}
@@ -397,6 +444,10 @@ public class Linear_Accelerometer_Provider extends ContentProvider {
 			qb.setTables(DATABASE_TABLES[1]);
 			qb.setProjectionMap(accelDataMap);
 			break;
+		case ACCEL_FEATURES:
+			qb.setTables(DATABASE_TABLES[2]);
+			qb.setProjectionMap(accelFeaturesMap);
+			break;
 		default:
 
 			throw new IllegalArgumentException("Unknown URI " + uri);
@@ -437,7 +488,13 @@ public class Linear_Accelerometer_Provider extends ContentProvider {
 			break;
 		case ACCEL_DATA:
             database.beginTransaction();
-			count = database.update(DATABASE_TABLES[1], values, selection,
+			count = databaseHelper.update(database, DATABASE_TABLES[1], values, selection, selectionArgs);
+            database.setTransactionSuccessful();
+            database.endTransaction();
+			break;
+		case ACCEL_FEATURES:
+            database.beginTransaction();
+			count = database.update(DATABASE_TABLES[2], values, selection,
 					selectionArgs);
             database.setTransactionSuccessful();
             database.endTransaction();
@@ -32,7 +32,7 @@ import java.util.HashMap;
  */
 public class Locations_Provider extends ContentProvider {
 
-	public static final int DATABASE_VERSION = 3;
+	public static final int DATABASE_VERSION = 4;
 
 	/**
 	 * Authority of Locations content provider
@@ -87,6 +87,13 @@ public class Locations_Provider extends ContentProvider {
 			+ Locations_Data.ACCURACY + " real default 0,"
 			+ Locations_Data.LABEL + " text default ''" };
 
+	/**
+	 * Secondary indexes for each table, see {@link DatabaseHelper}
+	 */
+	public static final String[][] TABLES_INDEXES = {
+			{ Locations_Data.TIMESTAMP, Locations_Data.DEVICE_ID + "," + Locations_Data.TIMESTAMP }
+	};
+
 	private static UriMatcher sUriMatcher = null;
 	private static HashMap<String, String> locationsProjectionMap = null;
 	private static DatabaseHelper databaseHelper = null;
@@ -94,7 +101,7 @@ public class Locations_Provider extends ContentProvider {
 
 	private boolean initializeDB() {
         if (databaseHelper == null) {
-            databaseHelper = new DatabaseHelper( getContext(), DATABASE_NAME, null, DATABASE_VERSION, DATABASE_TABLES, TABLES_FIELDS );
+            databaseHelper = new DatabaseHelper( getContext(), DATABASE_NAME, null, DATABASE_VERSION, DATABASE_TABLES, TABLES_FIELDS, TABLES_INDEXES );
         }
         if( databaseHelper != null && ( database == null || ! database.isOpen() )) {
             database = databaseHelper.getWritableDatabase();
@@ -110,7 +117,7 @@ public class Locations_Provider extends ContentProvider {
 
 		File db = new File(DATABASE_NAME);
 		db.delete();
-		databaseHelper = new DatabaseHelper( c, DATABASE_NAME, null, DATABASE_VERSION, DATABASE_TABLES, TABLES_FIELDS);
+		databaseHelper = new DatabaseHelper( c, DATABASE_NAME, null, DATABASE_VERSION, DATABASE_TABLES, TABLES_FIELDS, TABLES_INDEXES );
 		if( databaseHelper != null ) {
 			database = databaseHelper.getWritableDatabase();
 		}
@@ -32,7 +32,7 @@ import java.util.HashMap;
  */
 public class Mqtt_Provider extends ContentProvider {
 
-	public static final int DATABASE_VERSION = 3;
+	public static final int DATABASE_VERSION = 4;
 
 	/**
 	 * Authority of MQTT content provider
@@ -95,6 +95,14 @@ public class Mqtt_Provider extends ContentProvider {
 					+ Mqtt_Subscriptions.DEVICE_ID + " text default '',"
 					+ Mqtt_Subscriptions.TOPIC + " text default ''" };
 
+	/**
+	 * Secondary indexes for each table, see {@link DatabaseHelper}
+	 */
+	public static final String[][] TABLES_INDEXES = {
+			{ Mqtt_Messages.TIMESTAMP, Mqtt_Messages.DEVICE_ID + "," + Mqtt_Messages.TIMESTAMP },
+			{ Mqtt_Subscriptions.TIMESTAMP, Mqtt_Subscriptions.DEVICE_ID + "," + Mqtt_Subscriptions.TIMESTAMP }
+	};
+
 	private static UriMatcher sUriMatcher = null;
 	private static HashMap<String, String> messagesMap = null;
 	private static HashMap<String, String> subscriptionMap = null;
@@ -103,7 +111,7 @@ public class Mqtt_Provider extends ContentProvider {
 
 	private boolean initializeDB() {
         if (databaseHelper == null) {
-            databaseHelper = new DatabaseHelper( getContext(), DATABASE_NAME, null, DATABASE_VERSION, DATABASE_TABLES, TABLES_FIELDS );
+            databaseHelper = new DatabaseHelper( getContext(), DATABASE_NAME, null, DATABASE_VERSION, DATABASE_TABLES, TABLES_FIELDS, TABLES_INDEXES );
         }
         if( databaseHelper != null && ( database == null || ! database.isOpen() )) {
             database = databaseHelper.getWritableDatabase();
@@ -119,7 +127,7 @@ public class Mqtt_Provider extends ContentProvider {
 
 		File db = new File(DATABASE_NAME);
 		db.delete();
-		databaseHelper = new DatabaseHelper( c, DATABASE_NAME, null, DATABASE_VERSION, DATABASE_TABLES, TABLES_FIELDS);
+		databaseHelper = new DatabaseHelper( c, DATABASE_NAME, null, DATABASE_VERSION, DATABASE_TABLES, TABLES_FIELDS, TABLES_INDEXES );
 		if( databaseHelper != null ) {
 			database = databaseHelper.getWritableDatabase();
 		}
@@ -31,7 +31,7 @@ import java.util.HashMap;
  */
 public class Network_Provider extends ContentProvider {
 
-	public static final int DATABASE_VERSION = 3;
+	public static final int DATABASE_VERSION = 4;
 
 	/**
 	 * Authority of Screen content provider
@@ -76,6 +76,13 @@ public class Network_Provider extends ContentProvider {
 			+ " integer default 0," + Network_Data.SUBTYPE
 			+ " text default ''," + Network_Data.STATE + " integer default 0" };
 
+	/**
+	 * Secondary indexes for each table, see {@link DatabaseHelper}
+	 */
+	public static final String[][] TABLES_INDEXES = {
+			{ Network_Data.TIMESTAMP, Network_Data.DEVICE_ID + "," + Network_Data.TIMESTAMP }
+	};
+
 	private static UriMatcher sUriMatcher = null;
 	private static HashMap<String, String> networkProjectionMap = null;
 	private static DatabaseHelper databaseHelper = null;
@@ -83,7 +90,7 @@ public class Network_Provider extends ContentProvider {
 
 	private boolean initializeDB() {
         if (databaseHelper == null) {
-            databaseHelper = new DatabaseHelper( getContext(), DATABASE_NAME, null, DATABASE_VERSION, DATABASE_TABLES, TABLES_FIELDS );
+            databaseHelper = new DatabaseHelper( getContext(), DATABASE_NAME, null, DATABASE_VERSION, DATABASE_TABLES, TABLES_FIELDS, TABLES_INDEXES );
         }
         if( databaseHelper != null && ( database == null || ! database.isOpen() )) {
             database = databaseHelper.getWritableDatabase();
@@ -99,7 +106,7 @@ public class Network_Provider extends ContentProvider {
 
 		File db = new File(DATABASE_NAME);
 		db.delete();
-		databaseHelper = new DatabaseHelper( c, DATABASE_NAME, null, DATABASE_VERSION, DATABASE_TABLES, TABLES_FIELDS);
+		databaseHelper = new DatabaseHelper( c, DATABASE_NAME, null, DATABASE_VERSION, DATABASE_TABLES, TABLES_FIELDS, TABLES_INDEXES );
 		if( databaseHelper != null ) {
 			database = databaseHelper.getWritableDatabase();
 		}
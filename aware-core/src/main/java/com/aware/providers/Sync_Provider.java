@@ -0,0 +1,301 @@
+package com.aware.providers;
+
+import android.content.ContentProvider;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.UriMatcher;
+import android.database.Cursor;
+import android.database.SQLException;
+import net.sqlcipher.database.SQLiteDatabase;
+import net.sqlcipher.database.SQLiteQueryBuilder;
+import android.net.Uri;
+import android.provider.BaseColumns;
+import android.util.Log;
+
+import com.aware.Aware;
+import com.aware.utils.DatabaseHelper;
+
+import java.io.File;
+import java.util.HashMap;
+
+/**
+ * Sync Provider: what each sync cost, per table and per sync run (see {@link com.aware.utils.SyncTelemetry})
+ */
+public class Sync_Provider extends ContentProvider {
+
+	public static final int DATABASE_VERSION = 1;
+
+	/**
+	 * Authority of Sync content provider
+	 */
+	public static String AUTHORITY = "com.aware.provider.sync";
+
+	// ContentProvider query paths
+	private static final int SYNC_TELEMETRY = 1;
+	private static final int SYNC_TELEMETRY_ID = 2;
+
+	public static final class Sync_Telemetry implements BaseColumns {
+		private Sync_Telemetry() {
+		}
+
+		public static final Uri CONTENT_URI = Uri.parse("content://" + Sync_Provider.AUTHORITY + "/sync_telemetry");
+		public static final String CONTENT_TYPE = "vnd.android.cursor.dir/vnd.aware.sync.telemetry";
+		public static final String CONTENT_ITEM_TYPE = "vnd.android.cursor.item/vnd.aware.sync.telemetry";
+
+		public static final String _ID = "_id";
+		public static final String TIMESTAMP = "timestamp";
+		public static final String DEVICE_ID = "device_id";
+		/**
+		 * When the sync run started, shared by all the tables synced in that run
+		 */
+		public static final String SYNC_RUN = "sync_run";
+		/**
+		 * Table synced, or {@link com.aware.utils.SyncTelemetry#RUN} for the whole run
+		 */
+		public static final String SYNC_TABLE = "sync_table";
+		public static final String ROWS_READ = "rows_read";
+		public static final String PAGES = "pages";
+		public static final String FAILURES = "failures";
+		public static final String RETRIES = "retries";
+		/**
+		 * Time spent encoding pages (JSON or columnar), in milliseconds
+		 */
+		public static final String ENCODE_TIME = "encode_time";
+		/**
+		 * Request bodies size, before compression
+		 */
+		public static final String BYTES_RAW = "bytes_raw";
+		/**
+		 * Request bodies size, as sent
+		 */
+		public static final String BYTES_SENT = "bytes_sent";
+		/**
+		 * HTTP latency percentiles, in milliseconds, not counting encoding
+		 */
+		public static final String LATENCY_P50 = "latency_p50";
+		public static final String LATENCY_P90 = "latency_p90";
+		public static final String LATENCY_P99 = "latency_p99";
+		public static final String LATENCY_MAX = "latency_max";
+		/**
+		 * Total sync time, in milliseconds
+		 */
+		public static final String ELAPSED = "elapsed";
+	}
+
+	public static String DATABASE_NAME = "sync.db";
+	public static final String[] DATABASE_TABLES = { "sync_telemetry" };
+
+	public static final String[] TABLES_FIELDS = {
+			Sync_Telemetry._ID + " integer primary key autoincrement,"
+			+ Sync_Telemetry.TIMESTAMP + " real default 0,"
+			+ Sync_Telemetry.DEVICE_ID + " text default '',"
+			+ Sync_Telemetry.SYNC_RUN + " real default 0,"
+			+ Sync_Telemetry.SYNC_TABLE + " text default '',"
+			+ Sync_Telemetry.ROWS_READ + " integer default 0,"
+			+ Sync_Telemetry.PAGES + " integer default 0,"
+			+ Sync_Telemetry.FAILURES + " integer default 0,"
+			+ Sync_Telemetry.RETRIES + " integer default 0,"
+			+ Sync_Telemetry.ENCODE_TIME + " real default 0,"
+			+ Sync_Telemetry.BYTES_RAW + " integer default 0,"
+			+ Sync_Telemetry.BYTES_SENT + " integer default 0,"
+			+ Sync_Telemetry.LATENCY_P50 + " real default 0,"
+			+ Sync_Telemetry.LATENCY_P90 + " real default 0,"
+			+ Sync_Telemetry.LATENCY_P99 + " real default 0,"
+			+ Sync_Telemetry.LATENCY_MAX + " real default 0,"
+			+ Sync_Telemetry.ELAPSED + " real default 0" };
+
+	/**
+	 * Secondary indexes for each table, see {@link DatabaseHelper}
+	 */
+	public static final String[][] TABLES_INDEXES = {
+			{ Sync_Telemetry.TIMESTAMP, Sync_Telemetry.SYNC_TABLE + "," + Sync_Telemetry.TIMESTAMP }
+	};
+
+	private static UriMatcher sUriMatcher = null;
+	private static HashMap<String, String> dataMap = null;
+	private static DatabaseHelper databaseHelper = null;
+	private static SQLiteDatabase database = null;
+
+	private boolean initializeDB() {
+		if (databaseHelper == null) {
+			databaseHelper = new DatabaseHelper( getContext(), DATABASE_NAME, null, DATABASE_VERSION, DATABASE_TABLES, TABLES_FIELDS, TABLES_INDEXES );
+		}
+		if( databaseHelper != null && ( database == null || ! database.isOpen() )) {
+			database = databaseHelper.getWritableDatabase();
+		}
+		return( database != null && databaseHelper != null);
+	}
+
+	/**
+	 * Recreates the ContentProvider
+	 */
+	public static void resetDB( Context c ) {
+		Log.d("AWARE", "Resetting " + DATABASE_NAME + "...");
+
+		File db = new File(DATABASE_NAME);
+		db.delete();
+		databaseHelper = new DatabaseHelper( c, DATABASE_NAME, null, DATABASE_VERSION, DATABASE_TABLES, TABLES_FIELDS, TABLES_INDEXES );
+		if( databaseHelper != null ) {
+			database = databaseHelper.getWritableDatabase();
+		}
+	}
+
+	/**
+	 * Delete entry from the database
+	 */
+	@Override
+	public int delete(Uri uri, String selection, String[] selectionArgs) {
+		if( ! initializeDB() ) {
+			Log.w(AUTHORITY,"Database unavailable...");
+			return 0;
+		}
+
+		int count = 0;
+		switch (sUriMatcher.match(uri)) {
+		case SYNC_TELEMETRY:
+			database.beginTransaction();
+			count = database.delete(DATABASE_TABLES[0], selection, selectionArgs);
+			database.setTransactionSuccessful();
+			database.endTransaction();
+			break;
+		default:
+
+			throw new IllegalArgumentException("Unknown URI " + uri);
+		}
+
+		getContext().getContentResolver().notifyChange(uri, null);
+		return count;
+	}
+
+	@Override
+	public String getType(Uri uri) {
+		switch (sUriMatcher.match(uri)) {
+		case SYNC_TELEMETRY:
+			return Sync_Telemetry.CONTENT_TYPE;
+		case SYNC_TELEMETRY_ID:
+			return Sync_Telemetry.CONTENT_ITEM_TYPE;
+		default:
+			throw new IllegalArgumentException("Unknown URI " + uri);
+		}
+	}
+
+	/**
+	 * Insert entry to the database
+	 */
+	@Override
+	public Uri insert(Uri uri, ContentValues initialValues) {
+		if( ! initializeDB() ) {
+			Log.w(AUTHORITY,"Database unavailable...");
+			return null;
+		}
+
+		ContentValues values = (initialValues != null) ? new ContentValues(initialValues) : new ContentValues();
+
+		switch (sUriMatcher.match(uri)) {
+		case SYNC_TELEMETRY:
+			database.beginTransaction();
+			long telemetry_id = database.insertWithOnConflict(DATABASE_TABLES[0], Sync_Telemetry.DEVICE_ID, values, SQLiteDatabase.CONFLICT_IGNORE);
+			database.setTransactionSuccessful();
+			database.endTransaction();
+			if (telemetry_id > 0) {
+				Uri telemetryUri = ContentUris.withAppendedId(Sync_Telemetry.CONTENT_URI, telemetry_id);
+				getContext().getContentResolver().notifyChange(telemetryUri, null);
+				return telemetryUri;
+			}
+			throw new SQLException("Failed to insert row into " + uri);
+		default:
+
+			throw new IllegalArgumentException("Unknown URI " + uri);
+		}
+	}
+
+	@Override
+	public boolean onCreate() {
+		AUTHORITY = getContext().getPackageName() + ".provider.sync";
+
+		sUriMatcher = new UriMatcher(UriMatcher.NO_MATCH);
+		sUriMatcher.addURI(Sync_Provider.AUTHORITY, DATABASE_TABLES[0], SYNC_TELEMETRY);
+		sUriMatcher.addURI(Sync_Provider.AUTHORITY, DATABASE_TABLES[0] + "/#", SYNC_TELEMETRY_ID);
+
+		dataMap = new HashMap<>();
+		dataMap.put(Sync_Telemetry._ID, Sync_Telemetry._ID);
+		dataMap.put(Sync_Telemetry.TIMESTAMP, Sync_Telemetry.TIMESTAMP);
+		dataMap.put(Sync_Telemetry.DEVICE_ID, Sync_Telemetry.DEVICE_ID);
+		dataMap.put(Sync_Telemetry.SYNC_RUN, Sync_Telemetry.SYNC_RUN);
+		dataMap.put(Sync_Telemetry.SYNC_TABLE, Sync_Telemetry.SYNC_TABLE);
+		dataMap.put(Sync_Telemetry.ROWS_READ, Sync_Telemetry.ROWS_READ);
+		dataMap.put(Sync_Telemetry.PAGES, Sync_Telemetry.PAGES);
+		dataMap.put(Sync_Telemetry.FAILURES, Sync_Telemetry.FAILURES);
+		dataMap.put(Sync_Telemetry.RETRIES, Sync_Telemetry.RETRIES);
+		dataMap.put(Sync_Telemetry.ENCODE_TIME, Sync_Telemetry.ENCODE_TIME);
+		dataMap.put(Sync_Telemetry.BYTES_RAW, Sync_Telemetry.BYTES_RAW);
+		dataMap.put(Sync_Telemetry.BYTES_SENT, Sync_Telemetry.BYTES_SENT);
+		dataMap.put(Sync_Telemetry.LATENCY_P50, Sync_Telemetry.LATENCY_P50);
+		dataMap.put(Sync_Telemetry.LATENCY_P90, Sync_Telemetry.LATENCY_P90);
+		dataMap.put(Sync_Telemetry.LATENCY_P99, Sync_Telemetry.LATENCY_P99);
+		dataMap.put(Sync_Telemetry.LATENCY_MAX, Sync_Telemetry.LATENCY_MAX);
+		dataMap.put(Sync_Telemetry.ELAPSED, Sync_Telemetry.ELAPSED);
+
+		return true;
+	}
+
+	/**
+	 * Query entries from the database
+	 */
+	@Override
+	public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs, String sortOrder) {
+		if( ! initializeDB() ) {
+			Log.w(AUTHORITY,"Database unavailable...");
+			return null;
+		}
+
+		SQLiteQueryBuilder qb = new SQLiteQueryBuilder();
+		switch (sUriMatcher.match(uri)) {
+		case SYNC_TELEMETRY:
+			qb.setTables(DATABASE_TABLES[0]);
+			qb.setProjectionMap(dataMap);
+			break;
+		default:
+
+			throw new IllegalArgumentException("Unknown URI " + uri);
+		}
+		try {
+			Cursor c = qb.query(database, projection, selection, selectionArgs, null, null, sortOrder);
+			c.setNotificationUri(getContext().getContentResolver(), uri);
+			return c;
+		} catch (IllegalStateException e) {
+			if (Aware.DEBUG)
+				Log.e(Aware.TAG, e.getMessage());
+
+			return null;
+		}
+	}
+
+	/**
+	 * Update entry on the database
+	 */
+	@Override
+	public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+		if( ! initializeDB() ) {
+			Log.w(AUTHORITY,"Database unavailable...");
+			return 0;
+		}
+
+		int count = 0;
+		switch (sUriMatcher.match(uri)) {
+		case SYNC_TELEMETRY:
+			database.beginTransaction();
+			count = database.update(DATABASE_TABLES[0], values, selection, selectionArgs);
+			database.setTransactionSuccessful();
+			database.endTransaction();
+			break;
+		default:
+
+			throw new IllegalArgumentException("Unknown URI " + uri);
+		}
+
+		getContext().getContentResolver().notifyChange(uri, null);
+		return count;
+	}
+}
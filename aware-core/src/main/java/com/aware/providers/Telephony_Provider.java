@@ -32,7 +32,7 @@ import java.util.HashMap;
  */
 public class Telephony_Provider extends ContentProvider {
 
-	public static final int DATABASE_VERSION = 9;
+	public static final int DATABASE_VERSION = 10;
 
 	/**
 	 * Provider authority: com.aware.TelephonyProvider
@@ -220,6 +220,16 @@ public class Telephony_Provider extends ContentProvider {
 					+ CDMA_Data.EVDO_ECIO + " integer default -1,"
 					+ CDMA_Data.EVDO_SNR + " integer default -1" };
 
+	/**
+	 * Secondary indexes for each table, see {@link DatabaseHelper}
+	 */
+	public static final String[][] TABLES_INDEXES = {
+			{ Telephony_Data.TIMESTAMP, Telephony_Data.DEVICE_ID + "," + Telephony_Data.TIMESTAMP },
+			{ GSM_Data.TIMESTAMP, GSM_Data.DEVICE_ID + "," + GSM_Data.TIMESTAMP },
+			{ GSM_Neighbors_Data.TIMESTAMP, GSM_Neighbors_Data.DEVICE_ID + "," + GSM_Neighbors_Data.TIMESTAMP },
+			{ CDMA_Data.TIMESTAMP, CDMA_Data.DEVICE_ID + "," + CDMA_Data.TIMESTAMP }
+	};
+
 	private static UriMatcher sUriMatcher = null;
 	private static HashMap<String, String> telephonyMap = null;
 	private static HashMap<String, String> gsmMap = null;
@@ -230,7 +240,7 @@ public class Telephony_Provider extends ContentProvider {
 
 	private boolean initializeDB() {
         if (databaseHelper == null) {
-            databaseHelper = new DatabaseHelper( getContext(), DATABASE_NAME, null, DATABASE_VERSION, DATABASE_TABLES, TABLES_FIELDS );
+            databaseHelper = new DatabaseHelper( getContext(), DATABASE_NAME, null, DATABASE_VERSION, DATABASE_TABLES, TABLES_FIELDS, TABLES_INDEXES );
         }
         if( databaseHelper != null && ( database == null || ! database.isOpen() )) {
             database = databaseHelper.getWritableDatabase();
@@ -246,7 +256,7 @@ public class Telephony_Provider extends ContentProvider {
 
 		File db = new File(DATABASE_NAME);
 		db.delete();
-		databaseHelper = new DatabaseHelper( c, DATABASE_NAME, null, DATABASE_VERSION, DATABASE_TABLES, TABLES_FIELDS);
+		databaseHelper = new DatabaseHelper( c, DATABASE_NAME, null, DATABASE_VERSION, DATABASE_TABLES, TABLES_FIELDS, TABLES_INDEXES );
 		if( databaseHelper != null ) {
 			database = databaseHelper.getWritableDatabase();
 		}
@@ -31,7 +31,7 @@ import java.util.HashMap;
  */
 public class TimeZone_Provider extends ContentProvider {
 
-	public static final int DATABASE_VERSION = 7;
+	public static final int DATABASE_VERSION = 8;
 
 	/**
 	 * Provider authority: com.aware.TimeZoneProvider
@@ -73,6 +73,13 @@ public class TimeZone_Provider extends ContentProvider {
 			+ TimeZone_Data.DEVICE_ID + " text default '',"
 			+ TimeZone_Data.TIMEZONE + " text default ''" };
 
+	/**
+	 * Secondary indexes for each table, see {@link DatabaseHelper}
+	 */
+	public static final String[][] TABLES_INDEXES = {
+			{ TimeZone_Data.TIMESTAMP, TimeZone_Data.DEVICE_ID + "," + TimeZone_Data.TIMESTAMP }
+	};
+
 	private static UriMatcher sUriMatcher = null;
 	private static HashMap<String, String> timeZoneMap = null;
 	private static DatabaseHelper databaseHelper = null;
@@ -80,7 +87,7 @@ public class TimeZone_Provider extends ContentProvider {
 
 	private boolean initializeDB() {
         if (databaseHelper == null) {
-            databaseHelper = new DatabaseHelper( getContext(), DATABASE_NAME, null, DATABASE_VERSION, DATABASE_TABLES, TABLES_FIELDS );
+            databaseHelper = new DatabaseHelper( getContext(), DATABASE_NAME, null, DATABASE_VERSION, DATABASE_TABLES, TABLES_FIELDS, TABLES_INDEXES );
         }
         if( databaseHelper != null && ( database == null || ! database.isOpen() )) {
             database = databaseHelper.getWritableDatabase();
@@ -96,7 +103,7 @@ public class TimeZone_Provider extends ContentProvider {
 
 		File db = new File(DATABASE_NAME);
 		db.delete();
-		databaseHelper = new DatabaseHelper( c, DATABASE_NAME, null, DATABASE_VERSION, DATABASE_TABLES, TABLES_FIELDS);
+		databaseHelper = new DatabaseHelper( c, DATABASE_NAME, null, DATABASE_VERSION, DATABASE_TABLES, TABLES_FIELDS, TABLES_INDEXES );
 		if( databaseHelper != null ) {
 			database = databaseHelper.getWritableDatabase();
 		}
@@ -31,7 +31,7 @@ import java.util.HashMap;
  */
 public class WiFi_Provider extends ContentProvider {
 
-	public static final int DATABASE_VERSION = 6;
+	public static final int DATABASE_VERSION = 7;
 
 	/**
 	 * Authority of WiFi content provider
@@ -114,6 +114,14 @@ public class WiFi_Provider extends ContentProvider {
 			+ WiFi_Data.SSID + " text default '',"
 			+ WiFi_Data.BSSID + " text default ''" };
 
+	/**
+	 * Secondary indexes for each table, see {@link DatabaseHelper}
+	 */
+	public static final String[][] TABLES_INDEXES = {
+			{ WiFi_Data.TIMESTAMP, WiFi_Data.DEVICE_ID + "," + WiFi_Data.TIMESTAMP },
+			{ WiFi_Sensor.TIMESTAMP, WiFi_Sensor.DEVICE_ID + "," + WiFi_Sensor.TIMESTAMP }
+	};
+
 	private static DatabaseHelper databaseHelper = null;
 	private static SQLiteDatabase database = null;
 
@@ -123,7 +131,7 @@ public class WiFi_Provider extends ContentProvider {
 
 	private boolean initializeDB() {
         if (databaseHelper == null) {
-            databaseHelper = new DatabaseHelper( getContext(), DATABASE_NAME, null, DATABASE_VERSION, DATABASE_TABLES, TABLES_FIELDS );
+            databaseHelper = new DatabaseHelper( getContext(), DATABASE_NAME, null, DATABASE_VERSION, DATABASE_TABLES, TABLES_FIELDS, TABLES_INDEXES );
         }
         if( databaseHelper != null && ( database == null || ! database.isOpen() )) {
             database = databaseHelper.getWritableDatabase();
@@ -139,7 +147,7 @@ public class WiFi_Provider extends ContentProvider {
 
 		File db = new File(DATABASE_NAME);
 		db.delete();
-		databaseHelper = new DatabaseHelper( c, DATABASE_NAME, null, DATABASE_VERSION, DATABASE_TABLES, TABLES_FIELDS);
+		databaseHelper = new DatabaseHelper( c, DATABASE_NAME, null, DATABASE_VERSION, DATABASE_TABLES, TABLES_FIELDS, TABLES_INDEXES );
 		if( databaseHelper != null ) {
 			database = databaseHelper.getWritableDatabase();
 		}
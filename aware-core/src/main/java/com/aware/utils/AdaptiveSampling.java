@@ -0,0 +1,230 @@
+package com.aware.utils;
+
+import android.content.Context;
+
+import com.aware.Aware;
+import com.aware.Aware_Preferences;
+
+/**
+ * Adaptive sampling: tells when the device is still, from the variance of the accelerometer magnitude.<br/>
+ * While the device is still, motion sensors (accelerometer, gyroscope, magnetometer) sample at Aware_Preferences.ADAPTIVE_SAMPLING_STILL_FREQUENCY
+ * instead of their FREQUENCY_*, and go back to full rate as soon as it moves again.
+ * <p>
+ * The accelerometer feeds {@link #add(long, float[])} and broadcasts ACTION_AWARE_DEVICE_STILL / ACTION_AWARE_DEVICE_MOVING when the state changes,
+ * so the other sensors re-register with {@link #getPeriod(Context, int)}.
+ * <p>
+ * The variance is an exponentially weighted moving variance, O(1) per sample, with a time constant of a few seconds.
+ * The device is still once the standard deviation stayed below the threshold for ADAPTIVE_SAMPLING_STILL_AFTER seconds.
+ * It is moving again as soon as the standard deviation goes above twice the threshold (hysteresis, so noise doesn't flip the state).
+ */
+public class AdaptiveSampling {
+
+    /**
+     * Broadcasted event: the device is still, motion sensors sample slower
+     */
+    public static final String ACTION_AWARE_DEVICE_STILL = "ACTION_AWARE_DEVICE_STILL";
+
+    /**
+     * Broadcasted event: the device moves, motion sensors sample at full rate
+     */
+    public static final String ACTION_AWARE_DEVICE_MOVING = "ACTION_AWARE_DEVICE_MOVING";
+
+    /**
+     * Standard deviation of the accelerometer magnitude under which the device is still, in m/s^2 (default = 0.05)
+     */
+    public static final double DEFAULT_THRESHOLD = 0.05;
+
+    /**
+     * Seconds the device must stay still before we slow down (default = 60)
+     */
+    public static final int DEFAULT_STILL_AFTER = 60;
+
+    /**
+     * Sampling period while still, in microseconds (default = 1 second)
+     */
+    public static final int DEFAULT_STILL_FREQUENCY = 1000000;
+
+    /**
+     * Time constant of the moving variance, in milliseconds
+     */
+    private static final double TIME_CONSTANT = 3000;
+
+    /**
+     * Process-wide state, read by the sensors when they register
+     */
+    private static volatile boolean device_still = false;
+
+    private final double threshold;
+    private final long still_after;
+
+    private boolean still = false;
+    private boolean started = false;
+    private double mean = 0;
+    private double variance = 0;
+    private long last_timestamp = 0;
+    private long quiet_since = -1;
+    private long state_since = 0;
+    private int samples = 0;
+
+    /**
+     * @param threshold   standard deviation under which the device is still, in m/s^2
+     * @param still_after seconds below the threshold before the device is still
+     */
+    public AdaptiveSampling(double threshold, int still_after) {
+        this.threshold = threshold;
+        this.still_after = still_after * 1000L;
+    }
+
+    /**
+     * Controller set in the settings, or null if adaptive sampling is off (then call {@link #reset()})
+     *
+     * @param context
+     * @param current the controller in use, kept if adaptive sampling is still on
+     * @return controller
+     */
+    public static AdaptiveSampling fromSettings(Context context, AdaptiveSampling current) {
+        if (!Aware.getSetting(context, Aware_Preferences.STATUS_ADAPTIVE_SAMPLING).equals("true")) return null;
+        if (current != null) return current;
+
+        double threshold = DEFAULT_THRESHOLD;
+        if (Aware.getSetting(context, Aware_Preferences.ADAPTIVE_SAMPLING_THRESHOLD).length() > 0) {
+            threshold = Double.parseDouble(Aware.getSetting(context, Aware_Preferences.ADAPTIVE_SAMPLING_THRESHOLD));
+        }
+        int still_after = DEFAULT_STILL_AFTER;
+        if (Aware.getSetting(context, Aware_Preferences.ADAPTIVE_SAMPLING_STILL_AFTER).length() > 0) {
+            still_after = Integer.parseInt(Aware.getSetting(context, Aware_Preferences.ADAPTIVE_SAMPLING_STILL_AFTER));
+        }
+        return new AdaptiveSampling(threshold, still_after);
+    }
+
+    /**
+     * Sampling period a motion sensor should register with right now
+     *
+     * @param context
+     * @param frequency the sensor's FREQUENCY_* setting, in microseconds
+     * @return period in microseconds
+     */
+    public static int getPeriod(Context context, int frequency) {
+        if (!device_still || !Aware.getSetting(context, Aware_Preferences.STATUS_ADAPTIVE_SAMPLING).equals("true")) return frequency;
+
+        int still_frequency = DEFAULT_STILL_FREQUENCY;
+        if (Aware.getSetting(context, Aware_Preferences.ADAPTIVE_SAMPLING_STILL_FREQUENCY).length() > 0) {
+            still_frequency = Integer.parseInt(Aware.getSetting(context, Aware_Preferences.ADAPTIVE_SAMPLING_STILL_FREQUENCY));
+        }
+        return Math.max(frequency, still_frequency);
+    }
+
+    /**
+     * The accelerometer stopped, or adaptive sampling was turned off: nothing decides anymore, so the device counts as moving again
+     *
+     * @return true if it was still, and the other motion sensors must be sent ACTION_AWARE_DEVICE_MOVING to go back to full rate
+     */
+    public static boolean reset() {
+        boolean was_still = device_still;
+        device_still = false;
+        return was_still;
+    }
+
+    /**
+     * @return true if the device is still, as last decided by the accelerometer
+     */
+    public static boolean isDeviceStill() {
+        return device_still;
+    }
+
+    /**
+     * Add an accelerometer sample
+     *
+     * @param timestamp    in milliseconds
+     * @param event_values SensorEvent.values
+     * @return true if the state changed
+     */
+    public synchronized boolean add(long timestamp, float[] event_values) {
+        double magnitude = Math.sqrt(event_values[0] * event_values[0] + event_values[1] * event_values[1] + event_values[2] * event_values[2]);
+        samples++;
+
+        if (!started) {
+            started = true;
+            mean = magnitude;
+            variance = 0;
+            last_timestamp = timestamp;
+            state_since = timestamp;
+            return false;
+        }
+
+        double alpha = 1 - Math.exp(-Math.max(0, timestamp - last_timestamp) / TIME_CONSTANT);
+        double delta = magnitude - mean;
+        mean += alpha * delta;
+        variance = (1 - alpha) * (variance + alpha * delta * delta);
+        last_timestamp = timestamp;
+
+        double deviation = Math.sqrt(variance);
+        if (still) {
+            if (deviation > 2 * threshold) return setStill(false);
+        } else {
+            if (deviation < threshold) {
+                if (quiet_since < 0) quiet_since = timestamp;
+                if (timestamp - quiet_since >= still_after) return setStill(true);
+            } else {
+                quiet_since = -1;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The device moved, e.g., a significant motion was detected while sampling slowly
+     *
+     * @return true if the state changed
+     */
+    public synchronized boolean moving() {
+        return still && setStill(false);
+    }
+
+    private boolean setStill(boolean is_still) {
+        still = is_still;
+        device_still = is_still;
+        quiet_since = -1;
+        return true;
+    }
+
+    /**
+     * @return true if the device is still
+     */
+    public boolean isStill() {
+        return still;
+    }
+
+    /**
+     * @return current standard deviation of the accelerometer magnitude
+     */
+    public double getDeviation() {
+        return Math.sqrt(variance);
+    }
+
+    /**
+     * Start of the previous state, used to log how long it lasted. Call {@link #nextState(long)} once the change is logged.
+     *
+     * @return timestamp
+     */
+    public synchronized long getStateSince() {
+        return state_since;
+    }
+
+    /**
+     * @return samples received since the previous state change
+     */
+    public synchronized int getSamples() {
+        return samples;
+    }
+
+    /**
+     * Start counting for the new state
+     *
+     * @param timestamp
+     */
+    public synchronized void nextState(long timestamp) {
+        state_since = timestamp;
+        samples = 0;
+    }
+}
@@ -71,6 +71,11 @@ public class Aware_Sensor extends Service {
 
     private Intent aware;
 
+    /**
+     * Write-behind queues created with {@link #getDataWriter(Uri)}, drained when the sensor stops
+     */
+    private final ArrayList<WriteBehindQueue> data_writers = new ArrayList<>();
+
     /**
      * Interface to share context with other applications/addons<br/>
      * You MUST broadcast your contexts here!
@@ -111,10 +116,41 @@ public class Aware_Sensor extends Service {
         }
     }
 
+    /**
+     * Write-behind queue for this sensor's data: rows are stored in batches on a background thread, and whatever is still queued is stored when the sensor is destroyed.
+     * Rows of slow sensors are stored as they come, see {@link WriteBehindQueue#SLOW_ROW_INTERVAL}.
+     *
+     * @param uri content provider URI where the rows are stored
+     * @return queue
+     */
+    protected WriteBehindQueue getDataWriter(Uri uri) {
+        WriteBehindQueue writer = new WriteBehindQueue(this, uri);
+        synchronized (data_writers) {
+            data_writers.add(writer);
+        }
+        return writer;
+    }
+
+    /**
+     * Whether a table is uploaded when syncing. Sensors override this to keep a table on the device, e.g., raw samples when only features are uploaded.
+     *
+     * @param table index in DATABASE_TABLES
+     * @return true to sync the table (default)
+     */
+    protected boolean syncTable(int table) {
+        return true;
+    }
+
     @Override
     public void onDestroy() {
         super.onDestroy();
 
+        //Store what is still queued before we go, without blocking the main thread for long: what doesn't make it in time is stored in the background
+        synchronized (data_writers) {
+            long deadline = System.currentTimeMillis() + WriteBehindQueue.DRAIN_TIMEOUT;
+            for (WriteBehindQueue writer : data_writers) writer.drain(deadline - System.currentTimeMillis());
+        }
+
         //Unregister Context Broadcaster
         if (contextBroadcaster != null) {
             unregisterReceiver(contextBroadcaster);
@@ -144,6 +180,8 @@ public class Aware_Sensor extends Service {
             if (intent.getAction().equals(Aware.ACTION_AWARE_SYNC_DATA) && Aware.getSetting(context, Aware_Preferences.STATUS_WEBSERVICE).equals("true")) {
                 if (DATABASE_TABLES != null && TABLES_FIELDS != null && CONTEXT_URIS != null) {
                     for (int i = 0; i < DATABASE_TABLES.length; i++) {
+                        if (!syncTable(i)) continue;
+
                         Intent webserviceHelper = new Intent(context, WebserviceHelper.class);
                         webserviceHelper.setAction(WebserviceHelper.ACTION_AWARE_WEBSERVICE_SYNC_TABLE);
                         webserviceHelper.putExtra(WebserviceHelper.EXTRA_TABLE, DATABASE_TABLES[i]);
@@ -0,0 +1,386 @@
+package com.aware.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Compact binary, column-oriented batch of rows, used to upload high-frequency sensor tables.<br/>
+ * The schema (column names and types) is sent once, then each column is written as a block:
+ * - double columns: delta-encoded varints when every value is a whole number (e.g., timestamps), IEEE 754 floats when every value fits, IEEE 754 doubles otherwise
+ * - long/integer columns: delta-encoded zig-zag varints
+ * - text columns: a dictionary of distinct values, then one varint index per row (e.g., device_id, label)
+ * <p>
+ * Layout: "AWCB", version, column count, [name, type]..., row count, column blocks.<br/>
+ * Plain Java (no Android classes), so it can be used and tested anywhere.
+ */
+public class ColumnarBatch {
+
+    public static final String CONTENT_TYPE = "application/vnd.aware.columnar";
+
+    public static final byte TYPE_DOUBLE = 1;
+    public static final byte TYPE_FLOAT = 2;
+    public static final byte TYPE_LONG = 3;
+    public static final byte TYPE_INTEGER = 4;
+    public static final byte TYPE_TEXT = 5;
+
+    private static final byte[] MAGIC = {'A', 'W', 'C', 'B'};
+    private static final byte VERSION = 1;
+
+    private static final byte ENCODING_DOUBLE = 0;
+    private static final byte ENCODING_DELTA = 1;
+    private static final byte ENCODING_FLOAT = 2;
+
+    private final String[] names;
+    private final byte[] types;
+    private final double[][] doubles;
+    private final long[][] longs;
+    private final String[][] texts;
+
+    private int rows = 0;
+    private int capacity;
+
+    /**
+     * @param names    column names
+     * @param types    column types (TYPE_*)
+     * @param capacity expected rows, grows as needed
+     */
+    public ColumnarBatch(String[] names, byte[] types, int capacity) {
+        if (names.length != types.length)
+            throw new IllegalArgumentException("Each column needs a type");
+
+        this.names = names;
+        this.types = types;
+        this.capacity = Math.max(1, capacity);
+
+        doubles = new double[names.length][];
+        longs = new long[names.length][];
+        texts = new String[names.length][];
+        for (int i = 0; i < names.length; i++) {
+            switch (types[i]) {
+                case TYPE_DOUBLE:
+                case TYPE_FLOAT:
+                    doubles[i] = new double[this.capacity];
+                    break;
+                case TYPE_LONG:
+                case TYPE_INTEGER:
+                    longs[i] = new long[this.capacity];
+                    break;
+                case TYPE_TEXT:
+                    texts[i] = new String[this.capacity];
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown column type " + types[i]);
+            }
+        }
+    }
+
+    /**
+     * Column type we use for a column, following the same naming rules as the JSON upload
+     *
+     * @param column_name
+     * @return TYPE_*
+     */
+    public static byte typeOf(String column_name) {
+        if (column_name.equals("timestamp") || column_name.contains("double")) return TYPE_DOUBLE;
+        if (column_name.contains("float")) return TYPE_FLOAT;
+        if (column_name.contains("long")) return TYPE_LONG;
+        if (column_name.contains("blob")) return TYPE_TEXT;
+        if (column_name.contains("integer")) return TYPE_INTEGER;
+        return TYPE_TEXT;
+    }
+
+    /**
+     * Start a new row. Values default to 0 or null.
+     *
+     * @return row index
+     */
+    public int newRow() {
+        if (rows == capacity) {
+            capacity *= 2;
+            for (int i = 0; i < names.length; i++) {
+                if (doubles[i] != null) doubles[i] = Arrays.copyOf(doubles[i], capacity);
+                if (longs[i] != null) longs[i] = Arrays.copyOf(longs[i], capacity);
+                if (texts[i] != null) texts[i] = Arrays.copyOf(texts[i], capacity);
+            }
+        }
+        return rows++;
+    }
+
+    public void setDouble(int row, int column, double value) {
+        doubles[column][row] = value;
+    }
+
+    public void setLong(int row, int column, long value) {
+        longs[column][row] = value;
+    }
+
+    public void setText(int row, int column, String value) {
+        texts[column][row] = value;
+    }
+
+    public double getDouble(int row, int column) {
+        return doubles[column][row];
+    }
+
+    public long getLong(int row, int column) {
+        return longs[column][row];
+    }
+
+    public String getText(int row, int column) {
+        return texts[column][row];
+    }
+
+    public int getRowCount() {
+        return rows;
+    }
+
+    public int getColumnCount() {
+        return names.length;
+    }
+
+    public String getColumnName(int column) {
+        return names[column];
+    }
+
+    public byte getColumnType(int column) {
+        return types[column];
+    }
+
+    /**
+     * @return the encoded batch
+     */
+    public byte[] encode() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + rows * names.length * 4);
+        try {
+            encode(bytes);
+        } catch (IOException e) {
+            //not thrown by ByteArrayOutputStream
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Write the encoded batch to a stream
+     *
+     * @param stream
+     * @throws IOException
+     */
+    public void encode(OutputStream stream) throws IOException {
+        DataOutputStream out = new DataOutputStream(stream);
+        out.write(MAGIC);
+        out.writeByte(VERSION);
+
+        writeVarint(out, names.length);
+        for (int i = 0; i < names.length; i++) {
+            out.writeUTF(names[i]);
+            out.writeByte(types[i]);
+        }
+
+        writeVarint(out, rows);
+        for (int i = 0; i < names.length; i++) {
+            switch (types[i]) {
+                case TYPE_DOUBLE:
+                case TYPE_FLOAT:
+                    writeDoubles(out, doubles[i]);
+                    break;
+                case TYPE_LONG:
+                case TYPE_INTEGER:
+                    writeLongs(out, longs[i]);
+                    break;
+                case TYPE_TEXT:
+                    writeTexts(out, texts[i]);
+                    break;
+            }
+        }
+        out.flush();
+    }
+
+    /**
+     * Read a batch written with {@link #encode(OutputStream)}
+     *
+     * @param stream
+     * @return batch
+     * @throws IOException if this is not a valid batch
+     */
+    public static ColumnarBatch decode(InputStream stream) throws IOException {
+        DataInputStream in = new DataInputStream(stream);
+        byte[] magic = new byte[MAGIC.length];
+        in.readFully(magic);
+        if (!Arrays.equals(magic, MAGIC)) throw new IOException("Not a columnar batch");
+        byte version = in.readByte();
+        if (version != VERSION) throw new IOException("Unsupported columnar batch version " + version);
+
+        int columns = readVarint(in);
+        String[] names = new String[columns];
+        byte[] types = new byte[columns];
+        for (int i = 0; i < columns; i++) {
+            names[i] = in.readUTF();
+            types[i] = in.readByte();
+        }
+
+        int rows = readVarint(in);
+        ColumnarBatch batch = new ColumnarBatch(names, types, rows);
+        batch.rows = rows;
+        for (int i = 0; i < columns; i++) {
+            switch (types[i]) {
+                case TYPE_DOUBLE:
+                case TYPE_FLOAT:
+                    readDoubles(in, batch.doubles[i], rows);
+                    break;
+                case TYPE_LONG:
+                case TYPE_INTEGER:
+                    readLongs(in, batch.longs[i], rows);
+                    break;
+                case TYPE_TEXT:
+                    readTexts(in, batch.texts[i], rows);
+                    break;
+            }
+        }
+        return batch;
+    }
+
+    private void writeDoubles(DataOutputStream out, double[] values) throws IOException {
+        boolean whole = true;
+        boolean single = true;
+        for (int r = 0; r < rows && (whole || single); r++) {
+            double v = values[r];
+            if (whole && (v != Math.rint(v) || Math.abs(v) > (1L << 53) || (v == 0 && 1 / v < 0)))
+                whole = false;
+            if (single && (double) (float) v != v && !Double.isNaN(v)) single = false;
+        }
+
+        if (whole) {
+            out.writeByte(ENCODING_DELTA);
+            long previous = 0;
+            for (int r = 0; r < rows; r++) {
+                long v = (long) values[r];
+                writeVarlong(out, zigzag(v - previous));
+                previous = v;
+            }
+        } else if (single) {
+            out.writeByte(ENCODING_FLOAT);
+            for (int r = 0; r < rows; r++) out.writeFloat((float) values[r]);
+        } else {
+            out.writeByte(ENCODING_DOUBLE);
+            for (int r = 0; r < rows; r++) out.writeDouble(values[r]);
+        }
+    }
+
+    private static void readDoubles(DataInputStream in, double[] values, int rows) throws IOException {
+        byte encoding = in.readByte();
+        switch (encoding) {
+            case ENCODING_DELTA:
+                long previous = 0;
+                for (int r = 0; r < rows; r++) {
+                    previous += unzigzag(readVarlong(in));
+                    values[r] = previous;
+                }
+                break;
+            case ENCODING_FLOAT:
+                for (int r = 0; r < rows; r++) values[r] = in.readFloat();
+                break;
+            case ENCODING_DOUBLE:
+                for (int r = 0; r < rows; r++) values[r] = in.readDouble();
+                break;
+            default:
+                throw new IOException("Unknown column encoding " + encoding);
+        }
+    }
+
+    private void writeLongs(DataOutputStream out, long[] values) throws IOException {
+        long previous = 0;
+        for (int r = 0; r < rows; r++) {
+            writeVarlong(out, zigzag(values[r] - previous));
+            previous = values[r];
+        }
+    }
+
+    private static void readLongs(DataInputStream in, long[] values, int rows) throws IOException {
+        long previous = 0;
+        for (int r = 0; r < rows; r++) {
+            previous += unzigzag(readVarlong(in));
+            values[r] = previous;
+        }
+    }
+
+    private void writeTexts(DataOutputStream out, String[] values) throws IOException {
+        HashMap<String, Integer> dictionary = new HashMap<>();
+        ArrayList<String> entries = new ArrayList<>();
+        for (int r = 0; r < rows; r++) {
+            if (values[r] != null && !dictionary.containsKey(values[r])) {
+                dictionary.put(values[r], entries.size() + 1);
+                entries.add(values[r]);
+            }
+        }
+
+        writeVarint(out, entries.size());
+        for (String entry : entries) {
+            byte[] utf8 = entry.getBytes("UTF-8");
+            writeVarint(out, utf8.length);
+            out.write(utf8);
+        }
+        for (int r = 0; r < rows; r++) {
+            writeVarint(out, (values[r] == null) ? 0 : dictionary.get(values[r])); //0 = null
+        }
+    }
+
+    private static void readTexts(DataInputStream in, String[] values, int rows) throws IOException {
+        int size = readVarint(in);
+        String[] entries = new String[size + 1];
+        for (int i = 1; i <= size; i++) {
+            byte[] utf8 = new byte[readVarint(in)];
+            in.readFully(utf8);
+            entries[i] = new String(utf8, "UTF-8");
+        }
+        for (int r = 0; r < rows; r++) {
+            int index = readVarint(in);
+            if (index > size) throw new IOException("Bad dictionary index " + index);
+            values[r] = entries[index];
+        }
+    }
+
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static void writeVarint(DataOutputStream out, int value) throws IOException {
+        writeVarlong(out, value & 0xFFFFFFFFL);
+    }
+
+    private static int readVarint(DataInputStream in) throws IOException {
+        long value = readVarlong(in);
+        if (value > Integer.MAX_VALUE) throw new IOException("Value too large " + value);
+        return (int) value;
+    }
+
+    private static void writeVarlong(DataOutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    private static long readVarlong(DataInputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.read();
+            if (b == -1) throw new EOFException();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return value;
+        }
+        throw new IOException("Malformed varint");
+    }
+}
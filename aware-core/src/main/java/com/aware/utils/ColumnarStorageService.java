@@ -0,0 +1,32 @@
+package com.aware.utils;
+
+import android.app.IntentService;
+import android.content.Intent;
+import android.util.Log;
+
+import com.aware.Aware;
+import com.aware.providers.Accelerometer_Provider;
+
+import java.io.IOException;
+
+/**
+ * Moves raw accelerometer samples between the accelerometer table and the columnar store when Aware_Preferences.STATUS_COLUMNAR_STORAGE changes,
+ * a range at a time, see {@link Accelerometer_Provider#moveSamples(android.content.Context)}.<br/>
+ * Started by the provider, so the move never blocks the apps reading or writing samples. Runs on its own thread.
+ */
+public class ColumnarStorageService extends IntentService {
+
+    public ColumnarStorageService() {
+        super("AWARE Columnar Storage");
+    }
+
+    @Override
+    protected void onHandleIntent(Intent intent) {
+        try {
+            Accelerometer_Provider.moveSamples(getApplicationContext());
+        } catch (IOException e) {
+            //the provider starts us again on its next call
+            if (Aware.DEBUG) Log.w(Aware.TAG, "Moving accelerometer samples failed: " + e.getMessage());
+        }
+    }
+}
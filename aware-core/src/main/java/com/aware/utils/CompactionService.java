@@ -0,0 +1,128 @@
+package com.aware.utils;
+
+import android.app.IntentService;
+import android.content.Intent;
+import android.database.Cursor;
+import android.database.SQLException;
+import android.net.Uri;
+import android.util.Log;
+
+import com.aware.Aware;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Deletes the rows the server acknowledged (see {@link SyncCheckpoint}), for every table synced with {@link WebserviceHelper}, core and plugins alike.<br/>
+ * Used when space maintenance is "always" (Aware_Preferences.FREQUENCY_CLEAN_OLD_DATA = 4), started by WebserviceHelper after a table is uploaded.
+ * Rows are deleted in chunks of CHUNK_SIZE, so the providers are never locked for long, and the space is then given back to the file system
+ * with an incremental vacuum, a few pages at a time (databases created before incremental auto-vacuum just reuse the free pages).
+ * Runs on its own thread, not the sync's.
+ */
+public class CompactionService extends IntentService {
+
+    /**
+     * Compact one table (extra: table), or all the tables with a checkpoint
+     */
+    public static final String ACTION_AWARE_COMPACT = "ACTION_AWARE_COMPACT";
+
+    /**
+     * Broadcasted event: compaction finished
+     * extra: table (String) or {@link SyncTelemetry#RUN} if all tables
+     * extra: rows (int) rows deleted
+     * extra: bytes (long) bytes given back to the file system
+     */
+    public static final String ACTION_AWARE_COMPACTION_FINISHED = "ACTION_AWARE_COMPACTION_FINISHED";
+
+    public static final String EXTRA_TABLE = "table";
+    public static final String EXTRA_ROWS = "rows";
+    public static final String EXTRA_BYTES = "bytes";
+
+    /**
+     * Rows deleted at a time
+     */
+    public static final int CHUNK_SIZE = 5000;
+
+    /**
+     * Free pages given back to the file system at a time (4MB, with the default 1KB pages)
+     */
+    public static final int VACUUM_PAGES = 4096;
+
+    public CompactionService() {
+        super("AWARE Compaction");
+    }
+
+    @Override
+    protected void onHandleIntent(Intent intent) {
+        if (intent == null) return;
+        String only = intent.getStringExtra(EXTRA_TABLE);
+
+        int deleted = 0;
+        long reclaimed = 0;
+        Set<DatabaseHelper> databases = new HashSet<>();
+
+        List<SyncCheckpoint> checkpoints = SyncCheckpoint.loadAll(getApplicationContext());
+        for (SyncCheckpoint checkpoint : checkpoints) {
+            if (only != null && !only.equals(checkpoint.getTable())) continue;
+            if (checkpoint.getContentUri() == null || WebserviceHelper.isProfileTable(checkpoint.getTable())) continue;
+
+            deleted += compact(checkpoint);
+
+            DatabaseHelper database = DatabaseHelper.forTable(checkpoint.getTable());
+            if (database != null) databases.add(database); //in another process (e.g., a plugin's own app) we can only delete
+        }
+
+        for (DatabaseHelper database : databases) {
+            reclaimed += database.reclaimSpace(VACUUM_PAGES);
+        }
+
+        if (Aware.DEBUG && (deleted > 0 || reclaimed > 0))
+            Log.d(Aware.TAG, "Compaction: deleted " + deleted + " uploaded rows, reclaimed " + reclaimed + " bytes");
+
+        Intent finished = new Intent(ACTION_AWARE_COMPACTION_FINISHED);
+        finished.putExtra(EXTRA_TABLE, (only != null) ? only : SyncTelemetry.RUN);
+        finished.putExtra(EXTRA_ROWS, deleted);
+        finished.putExtra(EXTRA_BYTES, reclaimed);
+        sendBroadcast(finished);
+    }
+
+    /**
+     * Delete a table's acknowledged rows, oldest first, CHUNK_SIZE at a time
+     *
+     * @param checkpoint
+     * @return rows deleted
+     */
+    private int compact(SyncCheckpoint checkpoint) {
+        Uri uri = Uri.parse(checkpoint.getContentUri());
+        int deleted = 0;
+        try {
+            Cursor columns = getContentResolver().query(uri, null, null, null, "timestamp ASC LIMIT 1");
+            if (columns == null) return 0;
+            boolean has_id = columns.getColumnIndex("_id") != -1;
+            columns.close();
+
+            String acknowledged = checkpoint.getAcknowledgedCondition(has_id);
+            if (acknowledged == null) return 0;
+
+            while (true) {
+                //timestamp of the last row in this chunk
+                String chunk = acknowledged;
+                Cursor last = getContentResolver().query(uri, new String[]{"timestamp"}, acknowledged, null, "timestamp ASC LIMIT 1 OFFSET " + (CHUNK_SIZE - 1));
+                if (last != null && last.moveToFirst()) chunk = acknowledged + " AND timestamp <= " + last.getDouble(0);
+                if (last != null && !last.isClosed()) last.close();
+
+                int rows = getContentResolver().delete(uri, chunk, null);
+                deleted += rows;
+                if (chunk.equals(acknowledged) || rows == 0) break; //that was the last chunk
+            }
+        } catch (SQLException | IllegalArgumentException | IllegalStateException e) {
+            if (Aware.DEBUG) Log.w(Aware.TAG, "Compaction of " + checkpoint.getTable() + " failed: " + e.getMessage());
+        }
+
+        if (Aware.DEBUG && deleted > 0)
+            Log.d(Aware.TAG, "Deleted " + deleted + " uploaded rows from " + checkpoint.getTable());
+
+        return deleted;
+    }
+}
@@ -1,12 +1,14 @@
 
 package com.aware.utils;
 
+import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
 import android.database.SQLException;
 import net.sqlcipher.database.SQLiteDatabase;
 import net.sqlcipher.database.SQLiteDatabase.CursorFactory;
 import net.sqlcipher.database.SQLiteOpenHelper;
+import net.sqlcipher.database.SQLiteStatement;
 import android.os.Environment;
 import android.text.TextUtils;
 import android.util.Log;
@@ -20,6 +22,9 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 /**
  * ContentProvider database helper<br/>
@@ -30,27 +35,67 @@ import java.util.List;
 public class DatabaseHelper extends SQLiteOpenHelper {
 	
 	private final boolean DEBUG = true;
-	private final String TAG = "DatabaseHelper";
+	private static final String TAG = "DatabaseHelper";
 	
 	private final String database_name;
 	private final String[] database_tables;
 	private final String[] table_fields;
+	private final String[][] table_indexes;
+	private final String[][] table_dictionaries;
 	private final int new_version;
     private HashMap<String, String> renamed_columns = new HashMap<>();
 	
 	private SQLiteDatabase database;
 	private Context mContext;
 
+    /**
+     * Text values of the dictionary-encoded columns, shared by all the tables of the database
+     */
+    public static final String DICTIONARY_TABLE = "dictionary";
+
+    /**
+     * Suffix of the table that stores the keys of a dictionary-encoded table. The table name itself is a view that reads the text back.
+     */
+    public static final String ENCODED_SUFFIX = "_encoded";
+
+    //dictionary value -> key
+    private final HashMap<String, Long> dictionary = new HashMap<>();
+
+    //table -> helper of the database it is in, for the databases opened in this process
+    private static final ConcurrentHashMap<String, DatabaseHelper> helpers = new ConcurrentHashMap<>();
+
 	public DatabaseHelper(Context context, String database_name, CursorFactory cursor_factory, int database_version, String[] database_tables, String[] table_fields) {
+        this(context, database_name, cursor_factory, database_version, database_tables, table_fields, null);
+    }
+
+    /**
+     * @param table_indexes secondary indexes for each table, e.g., { {"timestamp", "device_id,timestamp"}, ... }. Each entry is a comma-separated list of columns. Can be null.
+     */
+    public DatabaseHelper(Context context, String database_name, CursorFactory cursor_factory, int database_version, String[] database_tables, String[] table_fields, String[][] table_indexes) {
+        this(context, database_name, cursor_factory, database_version, database_tables, table_fields, table_indexes, null);
+    }
+
+    /**
+     * @param table_dictionaries dictionary-encoded text columns for each table, e.g., { {}, {"device_id", "label"} }. Can be null.<br/>
+     *                           Each distinct value is stored once in the dictionary table, and rows only keep its integer key.
+     *                           The table is then a view with the text values, so queries don't change, but rows must be written
+     *                           with {@link #insert(SQLiteDatabase, String, ContentValues)}, {@link #insert(SQLiteDatabase, String, ContentValues[])},
+     *                           {@link #update(SQLiteDatabase, String, ContentValues, String, String[])} and {@link #delete(SQLiteDatabase, String, String, String[])}.
+     */
+    public DatabaseHelper(Context context, String database_name, CursorFactory cursor_factory, int database_version, String[] database_tables, String[] table_fields, String[][] table_indexes, String[][] table_dictionaries) {
         super(context, database_name, cursor_factory, database_version);
 
 		SQLiteDatabase.loadLibs(context);
 		this.database_name = database_name;
         this.database_tables = database_tables;
         this.table_fields = table_fields;
+        this.table_indexes = table_indexes;
+        this.table_dictionaries = table_dictionaries;
         this.new_version = database_version;
 		this.mContext = context;
 
+        for (String table : database_tables) helpers.put(table, this);
+
 		File aware_folder = new File(Environment.getExternalStoragePublicDirectory("AWARE").toString());
 		aware_folder.mkdirs();
 
@@ -69,7 +114,10 @@ public class DatabaseHelper extends SQLiteOpenHelper {
     public void onCreate(SQLiteDatabase db) {
 		if(DEBUG) Log.w(TAG, "Database in use: " + db.getPath());
 		for (int i=0; i < database_tables.length;i++) {
-           db.execSQL("CREATE TABLE IF NOT EXISTS "+database_tables[i] +" ("+table_fields[i]+");");
+           if (isEncoded(i)) createDictionary(db);
+           db.execSQL("CREATE TABLE IF NOT EXISTS "+storageTable(i) +" ("+storageFields(i)+");");
+           createIndexes(db, i);
+           if (isEncoded(i)) createView(db, i);
         }
 		db.setVersion(new_version);
     }
@@ -80,15 +128,38 @@ public class DatabaseHelper extends SQLiteOpenHelper {
 
 		db.beginTransaction();
 		for (int i=0; i < database_tables.length;i++) {
+			String table = storageTable(i);
+			String fields = storageFields(i);
+
+			//The view reads the columns of the encoded table, it is created again below
+			if (isEncoded(i)) {
+				createDictionary(db);
+				if (!isTable(db, database_tables[i])) db.execSQL("DROP VIEW IF EXISTS " + database_tables[i] + ";");
+			}
 
 			//Create a new table if doesn't exist
-			db.execSQL("CREATE TABLE IF NOT EXISTS " + database_tables[i] + " (" + table_fields[i] + ");");
+			db.execSQL("CREATE TABLE IF NOT EXISTS " + table + " (" + fields + ");");
 
-			//Modify existing tables if there are changes, while retaining old data. This also works for brand new tables, where nothing is changed.
-			List<String> columns = getColumns(db, database_tables[i]);
-			db.execSQL("ALTER TABLE " + database_tables[i] + " RENAME TO temp_" + database_tables[i] + ";");
-			db.execSQL("CREATE TABLE " + database_tables[i] + " (" + table_fields[i] + ");");
-			columns.retainAll(getColumns(db, database_tables[i]));
+			//Rows of a table stored as plain text before move to the encoded table
+			if (isEncoded(i) && isTable(db, database_tables[i])) {
+				encodeTable(db, i);
+				createIndexes(db, i);
+				createView(db, i);
+				continue;
+			}
+
+			//Same structure as before: no need to copy the whole table, just make sure the indexes are there
+			if (sameDefinition(db, table, fields)) {
+				createIndexes(db, i);
+				if (isEncoded(i)) createView(db, i);
+				continue;
+			}
+
+			//Modify existing tables if there are changes, while retaining old data.
+			List<String> columns = getColumns(db, table);
+			db.execSQL("ALTER TABLE " + table + " RENAME TO temp_" + table + ";");
+			db.execSQL("CREATE TABLE " + table + " (" + fields + ");");
+			columns.retainAll(getColumns(db, table));
 
 			String cols = TextUtils.join(",", columns);
             String new_cols = cols;
@@ -101,16 +172,373 @@ public class DatabaseHelper extends SQLiteOpenHelper {
             }
 
             //restore old data back
-            if( DEBUG ) Log.d(TAG, String.format("INSERT INTO %s (%s) SELECT %s from temp_%s;", database_tables[i], new_cols, cols, database_tables[i]));
+            if( DEBUG ) Log.d(TAG, String.format("INSERT INTO %s (%s) SELECT %s from temp_%s;", table, new_cols, cols, table));
+
+            db.execSQL(String.format("INSERT INTO %s (%s) SELECT %s from temp_%s;", table, new_cols, cols, table));
+            db.execSQL("DROP TABLE temp_" + table + ";");
 
-            db.execSQL(String.format("INSERT INTO %s (%s) SELECT %s from temp_%s;", database_tables[i], new_cols, cols, database_tables[i]));
-            db.execSQL("DROP TABLE temp_" + database_tables[i] + ";");
+            //the old indexes were dropped with temp_ table
+            createIndexes(db, i);
+            if (isEncoded(i)) createView(db, i);
 		}
 		db.setVersion(new_version);
 		db.setTransactionSuccessful();
 		db.endTransaction();
     }
 
+    /**
+     * Create the declared secondary indexes of a table, if they don't exist yet
+     * @param db
+     * @param table index in database_tables
+     */
+    private void createIndexes(SQLiteDatabase db, int table) {
+        if (table_indexes == null || table >= table_indexes.length || table_indexes[table] == null) return;
+        for (String columns : table_indexes[table]) {
+            String index_name = storageTable(table) + "_" + columns.replace(" ", "").replace(',', '_');
+            db.execSQL("CREATE INDEX IF NOT EXISTS " + index_name + " ON " + storageTable(table) + " (" + columns + ");");
+        }
+    }
+
+    /**
+     * Check if the table in the database was created with the same fields we have now
+     * @param db
+     * @param table
+     * @param fields
+     * @return true if the table does not need to be rebuilt
+     */
+    private boolean sameDefinition(SQLiteDatabase db, String table, String fields) {
+        Cursor c = db.rawQuery("SELECT sql FROM sqlite_master WHERE type='table' AND name=?", new String[]{table});
+        try {
+            if (c == null || !c.moveToFirst() || c.getString(0) == null) return false;
+            String current = c.getString(0).replaceAll("\\s+", "").toLowerCase();
+            String declared = ("CREATE TABLE " + table + " (" + fields + ")").replaceAll("\\s+", "").toLowerCase();
+            return current.equals(declared);
+        } finally {
+            if (c != null) c.close();
+        }
+    }
+
+    private static boolean isTable(SQLiteDatabase db, String table) {
+        Cursor c = db.rawQuery("SELECT name FROM sqlite_master WHERE type='table' AND name=?", new String[]{table});
+        try {
+            return c != null && c.moveToFirst();
+        } finally {
+            if (c != null) c.close();
+        }
+    }
+
+    /**
+     * @param table index in database_tables
+     * @return true if the table has dictionary-encoded columns
+     */
+    private boolean isEncoded(int table) {
+        return table_dictionaries != null && table < table_dictionaries.length && table_dictionaries[table] != null && table_dictionaries[table].length > 0;
+    }
+
+    private int tableIndex(String table) {
+        for (int i = 0; i < database_tables.length; i++) {
+            if (database_tables[i].equals(table)) return i;
+        }
+        return -1;
+    }
+
+    private boolean isDictionaryColumn(int table, String column) {
+        return isEncoded(table) && Arrays.asList(table_dictionaries[table]).contains(column);
+    }
+
+    /**
+     * @param table index in database_tables
+     * @return name of the table where the rows are
+     */
+    private String storageTable(int table) {
+        return isEncoded(table) ? database_tables[table] + ENCODED_SUFFIX : database_tables[table];
+    }
+
+    /**
+     * @param table index in database_tables
+     * @return fields of the storage table: dictionary-encoded columns hold an integer key, 0 being ''
+     */
+    private String storageFields(int table) {
+        String fields = table_fields[table];
+        if (!isEncoded(table)) return fields;
+        for (String column : table_dictionaries[table]) {
+            Matcher declaration = Pattern.compile("(^|,)\\s*" + Pattern.quote(column) + "\\s+[^,]*").matcher(fields);
+            fields = declaration.replaceFirst("$1" + Matcher.quoteReplacement(column + " integer default 0"));
+        }
+        return fields;
+    }
+
+    private static void createDictionary(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE IF NOT EXISTS " + DICTIONARY_TABLE + " (_id integer primary key autoincrement, value text, UNIQUE(value));");
+        db.execSQL("INSERT OR IGNORE INTO " + DICTIONARY_TABLE + " (_id, value) VALUES (0, '');");
+    }
+
+    /**
+     * The table name becomes a view of the storage table, with the text of the dictionary-encoded columns
+     * @param db
+     * @param table index in database_tables
+     */
+    private void createView(SQLiteDatabase db, int table) {
+        StringBuilder select = new StringBuilder();
+        for (String column : getColumns(db, storageTable(table))) {
+            if (select.length() > 0) select.append(',');
+            if (isDictionaryColumn(table, column)) {
+                select.append("(SELECT value FROM ").append(DICTIONARY_TABLE).append(" WHERE _id=").append(storageTable(table)).append('.').append(column).append(") AS ").append(column);
+            } else {
+                select.append(column);
+            }
+        }
+        db.execSQL("CREATE VIEW IF NOT EXISTS " + database_tables[table] + " AS SELECT " + select + " FROM " + storageTable(table) + ";");
+    }
+
+    /**
+     * Move the rows of a table stored as plain text to its storage table, replacing the text with dictionary keys
+     * @param db
+     * @param table index in database_tables
+     */
+    private void encodeTable(SQLiteDatabase db, int table) {
+        List<String> columns = getColumns(db, database_tables[table]);
+        columns.retainAll(getColumns(db, storageTable(table)));
+
+        StringBuilder select = new StringBuilder();
+        for (String column : columns) {
+            if (select.length() > 0) select.append(',');
+            if (isDictionaryColumn(table, column)) {
+                db.execSQL("INSERT OR IGNORE INTO " + DICTIONARY_TABLE + " (value) SELECT DISTINCT " + column + " FROM " + database_tables[table] + " WHERE " + column + " IS NOT NULL;");
+                select.append("(SELECT _id FROM ").append(DICTIONARY_TABLE).append(" WHERE value=").append(database_tables[table]).append('.').append(column).append(')');
+            } else {
+                select.append(column);
+            }
+        }
+
+        String cols = TextUtils.join(",", columns);
+        if (DEBUG) Log.d(TAG, "Encoding " + database_tables[table] + " into " + storageTable(table));
+        db.execSQL(String.format("INSERT INTO %s (%s) SELECT %s FROM %s;", storageTable(table), cols, select, database_tables[table]));
+        db.execSQL("DROP TABLE " + database_tables[table] + ";");
+    }
+
+    /**
+     * @param db
+     * @param value text of a dictionary-encoded column
+     * @return its key, added to the dictionary if new
+     */
+    private long dictionaryKey(SQLiteDatabase db, String value) {
+        synchronized (dictionary) {
+            Long key = dictionary.get(value);
+            if (key != null) return key;
+
+            Cursor c = db.rawQuery("SELECT _id FROM " + DICTIONARY_TABLE + " WHERE value=?", new String[]{value});
+            try {
+                if (c != null && c.moveToFirst()) key = c.getLong(0);
+            } finally {
+                if (c != null) c.close();
+            }
+            if (key == null) {
+                ContentValues entry = new ContentValues();
+                entry.put("value", value);
+                key = db.insertOrThrow(DICTIONARY_TABLE, null, entry);
+            }
+            dictionary.put(value, key);
+            return key;
+        }
+    }
+
+    /**
+     * @param db
+     * @param table index in database_tables
+     * @param values
+     * @return values, with dictionary keys instead of text
+     */
+    private ContentValues encode(SQLiteDatabase db, int table, ContentValues values) {
+        if (!isEncoded(table)) return values;
+        ContentValues encoded = new ContentValues(values);
+        for (String column : table_dictionaries[table]) {
+            if (!values.containsKey(column)) continue;
+            String value = values.getAsString(column);
+            if (value == null) {
+                encoded.putNull(column);
+            } else {
+                encoded.put(column, dictionaryKey(db, value));
+            }
+        }
+        return encoded;
+    }
+
+    /**
+     * Insert a row, ignoring conflicts, encoding the dictionary-encoded columns
+     * @param db
+     * @param table
+     * @param values
+     * @return row ID, or -1
+     */
+    public long insert(SQLiteDatabase db, String table, ContentValues values) {
+        int i = tableIndex(table);
+        if (i == -1 || !isEncoded(i)) return db.insertWithOnConflict(table, "_id", values, SQLiteDatabase.CONFLICT_IGNORE);
+        try {
+            return db.insertWithOnConflict(storageTable(i), "_id", encode(db, i, values), SQLiteDatabase.CONFLICT_IGNORE);
+        } catch (RuntimeException e) {
+            forgetDictionary();
+            throw e;
+        }
+    }
+
+    /**
+     * Same as {@link #bulkInsert(SQLiteDatabase, String, ContentValues[])}, encoding the dictionary-encoded columns
+     * @param db
+     * @param table
+     * @param values
+     * @return number of rows inserted or replaced
+     */
+    public int insert(SQLiteDatabase db, String table, ContentValues[] values) {
+        int i = tableIndex(table);
+        if (i == -1 || !isEncoded(i)) return bulkInsert(db, table, values);
+        try {
+            ContentValues[] encoded = new ContentValues[values.length];
+            for (int v = 0; v < values.length; v++) encoded[v] = encode(db, i, values[v]);
+            return bulkInsert(db, storageTable(i), encoded);
+        } catch (RuntimeException e) {
+            forgetDictionary();
+            throw e;
+        }
+    }
+
+    /**
+     * Update rows, encoding the dictionary-encoded columns. The selection can use their text values.
+     * @param db
+     * @param table
+     * @param values
+     * @param selection
+     * @param selectionArgs
+     * @return rows updated
+     */
+    public int update(SQLiteDatabase db, String table, ContentValues values, String selection, String[] selectionArgs) {
+        int i = tableIndex(table);
+        if (i == -1 || !isEncoded(i)) return db.update(table, values, selection, selectionArgs);
+        try {
+            return db.update(storageTable(i), encode(db, i, values), encodedSelection(table, selection), selectionArgs);
+        } catch (RuntimeException e) {
+            forgetDictionary();
+            throw e;
+        }
+    }
+
+    /**
+     * Delete rows. The selection can use the text values of the dictionary-encoded columns.
+     * @param db
+     * @param table
+     * @param selection
+     * @param selectionArgs
+     * @return rows deleted
+     */
+    public int delete(SQLiteDatabase db, String table, String selection, String[] selectionArgs) {
+        int i = tableIndex(table);
+        if (i == -1 || !isEncoded(i)) return db.delete(table, selection, selectionArgs);
+        return db.delete(storageTable(i), encodedSelection(table, selection), selectionArgs);
+    }
+
+    /**
+     * @return selection on the storage table, for a selection on the view
+     */
+    private static String encodedSelection(String table, String selection) {
+        if (TextUtils.isEmpty(selection)) return null;
+        return "_id IN (SELECT _id FROM " + table + " WHERE " + selection + ")";
+    }
+
+    /**
+     * A rolled back transaction may have dropped dictionary entries we cached
+     */
+    private void forgetDictionary() {
+        synchronized (dictionary) {
+            dictionary.clear();
+        }
+    }
+
+    /**
+     * Inserts rows with one compiled INSERT statement, binding the values directly, in a single transaction.<br/>
+     * Same result as insertOrThrow() falling back to replace() for each row, without building and compiling the SQL again for every row.
+     * The statement is only compiled again if a row has a different set of columns.
+     * @param db
+     * @param table
+     * @param values
+     * @return number of rows inserted or replaced
+     */
+    public static int bulkInsert(SQLiteDatabase db, String table, ContentValues[] values) {
+        int count = 0;
+        String[] columns = null;
+        SQLiteStatement insert = null;
+
+        db.beginTransaction();
+        try {
+            for (ContentValues v : values) {
+                if (insert == null || !sameColumns(columns, v)) {
+                    if (insert != null) insert.close();
+                    columns = v.keySet().toArray(new String[v.size()]);
+                    insert = db.compileStatement(insertSQL(table, columns));
+                }
+
+                insert.clearBindings();
+                for (int i = 0; i < columns.length; i++) {
+                    bind(insert, i + 1, v.get(columns[i]));
+                }
+
+                long id;
+                try {
+                    id = insert.executeInsert();
+                } catch (SQLException e) {
+                    id = -1;
+                }
+                if (id <= 0) {
+                    Log.w(TAG, "Failed to insert/replace row into " + table);
+                } else {
+                    count++;
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            if (insert != null) insert.close();
+            db.endTransaction();
+        }
+        return count;
+    }
+
+    private static String insertSQL(String table, String[] columns) {
+        StringBuilder sql = new StringBuilder("INSERT OR REPLACE INTO ").append(table).append(" (");
+        StringBuilder params = new StringBuilder();
+        for (int i = 0; i < columns.length; i++) {
+            if (i > 0) {
+                sql.append(',');
+                params.append(',');
+            }
+            sql.append(columns[i]);
+            params.append('?');
+        }
+        return sql.append(") VALUES (").append(params).append(')').toString();
+    }
+
+    private static boolean sameColumns(String[] columns, ContentValues v) {
+        if (columns.length != v.size()) return false;
+        for (String column : columns) {
+            if (!v.containsKey(column)) return false;
+        }
+        return true;
+    }
+
+    private static void bind(SQLiteStatement statement, int index, Object value) {
+        if (value == null) {
+            statement.bindNull(index);
+        } else if (value instanceof Double || value instanceof Float) {
+            statement.bindDouble(index, ((Number) value).doubleValue());
+        } else if (value instanceof Number) {
+            statement.bindLong(index, ((Number) value).longValue());
+        } else if (value instanceof Boolean) {
+            statement.bindLong(index, ((Boolean) value) ? 1 : 0);
+        } else if (value instanceof byte[]) {
+            statement.bindBlob(index, (byte[]) value);
+        } else {
+            statement.bindString(index, value.toString());
+        }
+    }
+
 	/**
 	 * Creates a String of a JSONArray representation of a database cursor result
 	 * @param crs
@@ -179,6 +607,8 @@ public class DatabaseHelper extends SQLiteOpenHelper {
 
 			if( current_version != new_version ) {
 				if( current_version == 0 ) {
+					//must be set before the first table is created, so deleted rows can be given back to the file system, see reclaimSpace()
+					current_database.execSQL("PRAGMA auto_vacuum = INCREMENTAL");
 					onCreate(current_database);
 				} else {
 					onUpgrade(current_database, current_version, new_version);
@@ -221,4 +651,50 @@ public class DatabaseHelper extends SQLiteOpenHelper {
 			return null;
 		}
     }
-}
\ No newline at end of file
+
+    /**
+     * @param table
+     * @return helper of the database with this table, if it was opened in this process, or null
+     */
+    public static DatabaseHelper forTable(String table) {
+        return helpers.get(table);
+    }
+
+    /**
+     * Give the space of deleted rows back to the file system, at most max_pages pages at a time.<br/>
+     * Only for databases created with incremental auto-vacuum. Older ones are left alone: switching them needs a full VACUUM,
+     * which locks the provider for the whole run and needs up to twice the file size in free space. Their free pages are reused by new rows instead.
+     *
+     * @param max_pages
+     * @return bytes reclaimed
+     */
+    public long reclaimSpace(int max_pages) {
+        SQLiteDatabase db = getWritableDatabase();
+        if (db == null) return 0;
+
+        File database_file = new File(db.getPath());
+        long before = database_file.length();
+        try {
+            if (pragma(db, "auto_vacuum") == 2 && pragma(db, "freelist_count") > 0) { //2 = INCREMENTAL
+                Cursor vacuum = db.rawQuery("PRAGMA incremental_vacuum(" + max_pages + ")", null);
+                if (vacuum != null) {
+                    vacuum.getCount(); //runs it to the end
+                    vacuum.close();
+                }
+            }
+        } catch (SQLException | IllegalStateException e) {
+            //e.g., a transaction is open, try again next time
+            if (DEBUG) Log.w(TAG, "Unable to reclaim space from " + database_name + ": " + e.getMessage());
+        }
+        return Math.max(0, before - database_file.length());
+    }
+
+    private static long pragma(SQLiteDatabase db, String pragma) {
+        Cursor value = db.rawQuery("PRAGMA " + pragma, null);
+        try {
+            return (value != null && value.moveToFirst()) ? value.getLong(0) : 0;
+        } finally {
+            if (value != null) value.close();
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package com.aware.utils;
+
+import android.content.Context;
+
+import com.aware.Aware;
+
+/**
+ * Change-only logging for slow sensors (light, proximity, barometer, temperature).<br/>
+ * A sample is stored only if:
+ * - its value moved by more than the threshold since the last stored sample, or
+ * - its accuracy changed, or
+ * - the keep-alive interval elapsed since the last stored sample, so a flat signal still shows the sensor was on.
+ * <p>
+ * Off (every sample stored) unless the sensor's threshold is set. Threshold 0 stores every change.
+ * Broadcasts and the sample stream still get every sample, only the database is spared.
+ */
+public class Deadband {
+
+    /**
+     * Keep-alive when only the threshold is set, in seconds (default = 300)
+     */
+    public static final int DEFAULT_KEEP_ALIVE = 300;
+
+    private final double threshold;
+    private final long keep_alive;
+
+    private boolean started = false;
+    private float last_value;
+    private int last_accuracy;
+    private long last_timestamp;
+
+    /**
+     * @param threshold  change needed to store a sample, in the sensor's unit
+     * @param keep_alive seconds after which a sample is stored anyway, 0 = never
+     */
+    public Deadband(double threshold, int keep_alive) {
+        this.threshold = threshold;
+        this.keep_alive = keep_alive * 1000L;
+    }
+
+    /**
+     * Filter set in the settings, or null if every sample is stored
+     *
+     * @param context
+     * @param threshold_key  e.g., Aware_Preferences.THRESHOLD_LIGHT
+     * @param keep_alive_key e.g., Aware_Preferences.KEEP_ALIVE_LIGHT
+     * @param current        the filter in use, kept if the settings didn't change
+     * @return filter
+     */
+    public static Deadband fromSettings(Context context, String threshold_key, String keep_alive_key, Deadband current) {
+        if (Aware.getSetting(context, threshold_key).length() == 0) return null;
+
+        double threshold = Math.abs(Double.parseDouble(Aware.getSetting(context, threshold_key)));
+        int keep_alive = DEFAULT_KEEP_ALIVE;
+        if (Aware.getSetting(context, keep_alive_key).length() > 0) {
+            keep_alive = Math.max(0, Integer.parseInt(Aware.getSetting(context, keep_alive_key)));
+        }
+
+        if (current != null && current.threshold == threshold && current.keep_alive == keep_alive * 1000L) return current;
+        return new Deadband(threshold, keep_alive);
+    }
+
+    /**
+     * @param timestamp
+     * @param value     SensorEvent.values[0]
+     * @param accuracy
+     * @return true if the sample should be stored
+     */
+    public boolean accept(long timestamp, float value, int accuracy) {
+        boolean store = !started
+                || Math.abs(value - last_value) > threshold
+                || (threshold == 0 && value != last_value)
+                || accuracy != last_accuracy
+                || (keep_alive > 0 && timestamp - last_timestamp >= keep_alive);
+
+        if (store) {
+            started = true;
+            last_value = value;
+            last_accuracy = accuracy;
+            last_timestamp = timestamp;
+        }
+        return store;
+    }
+}
@@ -0,0 +1,363 @@
+package com.aware.utils;
+
+import android.content.ContentValues;
+import android.content.Context;
+
+import com.aware.Aware;
+import com.aware.Aware_Preferences;
+
+/**
+ * Sliding-window features for 3-axis motion sensors (accelerometer, linear accelerometer, gyroscope).<br/>
+ * Every sample updates running statistics in O(1), and once the window is full, every hop samples yields a feature row summarizing the last window samples:
+ * - mean and variance of each axis and of the magnitude
+ * - zero crossings of each axis, around the running mean
+ * - energy of the magnitude in 4 frequency bands (sliding DFT, DC excluded)
+ * <p>
+ * Running sums are recomputed from the window every time it wraps around, so rounding errors never build up.
+ * A feature row replaces window samples rows, e.g., one row instead of 128 with the default settings.
+ */
+public class FeatureWindow {
+
+    public static final String TIMESTAMP = "timestamp";
+    public static final String DEVICE_ID = "device_id";
+    public static final String WINDOW_START = "double_window_start";
+    public static final String SAMPLES = "samples";
+    public static final String MEAN_X = "double_mean_x";
+    public static final String MEAN_Y = "double_mean_y";
+    public static final String MEAN_Z = "double_mean_z";
+    public static final String MEAN_MAGNITUDE = "double_mean_magnitude";
+    public static final String VARIANCE_X = "double_variance_x";
+    public static final String VARIANCE_Y = "double_variance_y";
+    public static final String VARIANCE_Z = "double_variance_z";
+    public static final String VARIANCE_MAGNITUDE = "double_variance_magnitude";
+    public static final String ZERO_CROSSINGS_X = "zero_crossings_x";
+    public static final String ZERO_CROSSINGS_Y = "zero_crossings_y";
+    public static final String ZERO_CROSSINGS_Z = "zero_crossings_z";
+    public static final String ENERGY_BAND_0 = "double_energy_band_0";
+    public static final String ENERGY_BAND_1 = "double_energy_band_1";
+    public static final String ENERGY_BAND_2 = "double_energy_band_2";
+    public static final String ENERGY_BAND_3 = "double_energy_band_3";
+    public static final String LABEL = "label";
+
+    /**
+     * Columns of a feature row, besides _id
+     */
+    public static final String[] COLUMNS = {
+            TIMESTAMP, DEVICE_ID, WINDOW_START, SAMPLES,
+            MEAN_X, MEAN_Y, MEAN_Z, MEAN_MAGNITUDE,
+            VARIANCE_X, VARIANCE_Y, VARIANCE_Z, VARIANCE_MAGNITUDE,
+            ZERO_CROSSINGS_X, ZERO_CROSSINGS_Y, ZERO_CROSSINGS_Z,
+            ENERGY_BAND_0, ENERGY_BAND_1, ENERGY_BAND_2, ENERGY_BAND_3,
+            LABEL
+    };
+
+    /**
+     * Feature table fields, shared by the sensors' providers
+     */
+    public static final String TABLE_FIELDS = "_id integer primary key autoincrement,"
+            + TIMESTAMP + " real default 0,"
+            + DEVICE_ID + " text default '',"
+            + WINDOW_START + " real default 0,"
+            + SAMPLES + " integer default 0,"
+            + MEAN_X + " real default 0,"
+            + MEAN_Y + " real default 0,"
+            + MEAN_Z + " real default 0,"
+            + MEAN_MAGNITUDE + " real default 0,"
+            + VARIANCE_X + " real default 0,"
+            + VARIANCE_Y + " real default 0,"
+            + VARIANCE_Z + " real default 0,"
+            + VARIANCE_MAGNITUDE + " real default 0,"
+            + ZERO_CROSSINGS_X + " integer default 0,"
+            + ZERO_CROSSINGS_Y + " integer default 0,"
+            + ZERO_CROSSINGS_Z + " integer default 0,"
+            + ENERGY_BAND_0 + " real default 0,"
+            + ENERGY_BAND_1 + " real default 0,"
+            + ENERGY_BAND_2 + " real default 0,"
+            + ENERGY_BAND_3 + " real default 0,"
+            + LABEL + " text default ''";
+
+    /**
+     * Samples per window (default = 128)
+     */
+    public static final int DEFAULT_WINDOW = 128;
+
+    public static final int BANDS = 4;
+
+    /**
+     * x, y, z and magnitude
+     */
+    private static final int SERIES = 4;
+    private static final int MAX_BINS = 16;
+
+    private final int window;
+    private final int hop;
+
+    private final long[] timestamps;
+    private final double[][] samples;
+    private final boolean[][] crossings;
+    private final boolean[] above;
+
+    private final double[] sum = new double[SERIES];
+    private final double[] sum_squares = new double[SERIES];
+    private final int[] crossing_count = new int[SERIES - 1];
+
+    private final int[] bins;
+    private final int[] bin_band;
+    private final double[] bin_cos;
+    private final double[] bin_sin;
+    private final double[] bin_re;
+    private final double[] bin_im;
+
+    private int next = 0;
+    private int size = 0;
+    private int since_last = 0;
+
+    /**
+     * @param window samples per window
+     * @param hop    samples between two feature rows, window for back-to-back windows, window / 2 for 50% overlap
+     */
+    public FeatureWindow(int window, int hop) {
+        this.window = Math.max(window, 8);
+        this.hop = Math.max(1, Math.min(hop, this.window));
+
+        timestamps = new long[this.window];
+        samples = new double[SERIES][this.window];
+        crossings = new boolean[SERIES - 1][this.window];
+        above = new boolean[SERIES - 1];
+
+        int count = Math.min(this.window / 2, MAX_BINS);
+        bins = new int[count];
+        bin_band = new int[count];
+        bin_cos = new double[count];
+        bin_sin = new double[count];
+        bin_re = new double[count];
+        bin_im = new double[count];
+        for (int j = 0; j < count; j++) {
+            bins[j] = Math.max(1, (int) Math.round((j + 1) * (this.window / 2.0) / count));
+            bin_band[j] = j * BANDS / count;
+            bin_cos[j] = Math.cos(2 * Math.PI * bins[j] / this.window);
+            bin_sin[j] = Math.sin(2 * Math.PI * bins[j] / this.window);
+        }
+    }
+
+    /**
+     * Window set in the settings, or null if features are off for this sensor.
+     *
+     * @param context
+     * @param status_key e.g., Aware_Preferences.STATUS_ACCELEROMETER_FEATURES
+     * @param current    the window in use, kept if the settings didn't change
+     * @return window
+     */
+    public static FeatureWindow fromSettings(Context context, String status_key, FeatureWindow current) {
+        if (!Aware.getSetting(context, status_key).equals("true")) return null;
+
+        int window = DEFAULT_WINDOW;
+        if (Aware.getSetting(context, Aware_Preferences.FEATURES_WINDOW).length() > 0) {
+            window = Integer.parseInt(Aware.getSetting(context, Aware_Preferences.FEATURES_WINDOW));
+        }
+        int hop = window / 2;
+        if (Aware.getSetting(context, Aware_Preferences.FEATURES_HOP).length() > 0) {
+            hop = Integer.parseInt(Aware.getSetting(context, Aware_Preferences.FEATURES_HOP));
+        }
+
+        if (current != null && current.window == Math.max(window, 8) && current.hop == Math.max(1, Math.min(hop, current.window))) {
+            return current;
+        }
+        return new FeatureWindow(window, hop);
+    }
+
+    /**
+     * Add a sample
+     *
+     * @param timestamp
+     * @param event_values SensorEvent.values
+     * @return true if a new feature row is ready
+     */
+    public boolean add(long timestamp, float[] event_values) {
+        double x = event_values[0], y = event_values[1], z = event_values[2];
+        double magnitude = Math.sqrt(x * x + y * y + z * z);
+
+        int slot = next;
+        boolean full = size == window;
+        double leaving = full ? samples[SERIES - 1][slot] : 0;
+
+        if (full) {
+            for (int s = 0; s < SERIES; s++) {
+                sum[s] -= samples[s][slot];
+                sum_squares[s] -= samples[s][slot] * samples[s][slot];
+            }
+            //the sample after the one leaving becomes the oldest: its crossing, with the one leaving, goes too
+            int oldest = (slot + 1) % window;
+            for (int s = 0; s < SERIES - 1; s++) {
+                if (crossings[s][oldest]) {
+                    crossings[s][oldest] = false;
+                    crossing_count[s]--;
+                }
+            }
+        } else {
+            size++;
+        }
+
+        timestamps[slot] = timestamp;
+        samples[0][slot] = x;
+        samples[1][slot] = y;
+        samples[2][slot] = z;
+        samples[SERIES - 1][slot] = magnitude;
+
+        for (int s = 0; s < SERIES; s++) {
+            sum[s] += samples[s][slot];
+            sum_squares[s] += samples[s][slot] * samples[s][slot];
+        }
+
+        for (int s = 0; s < SERIES - 1; s++) {
+            boolean is_above = samples[s][slot] >= sum[s] / size;
+            crossings[s][slot] = size > 1 && is_above != above[s];
+            if (crossings[s][slot]) crossing_count[s]++;
+            above[s] = is_above;
+        }
+
+        //sliding DFT: X(n) = e^(j*2*pi*k/N) * (X(n-1) + x(n) - x(n-N))
+        double delta = magnitude - leaving;
+        for (int j = 0; j < bins.length; j++) {
+            double re = bin_re[j] + delta;
+            double im = bin_im[j];
+            bin_re[j] = bin_cos[j] * re - bin_sin[j] * im;
+            bin_im[j] = bin_sin[j] * re + bin_cos[j] * im;
+        }
+
+        next = (slot + 1) % window;
+        if (next == 0 && size == window) recompute();
+
+        since_last++;
+        if (size == window && since_last >= hop) {
+            since_last = 0;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Exact sums and DFT bins from the samples in the window. Runs once per window, so O(1) per sample.
+     */
+    private void recompute() {
+        for (int s = 0; s < SERIES; s++) {
+            double total = 0, squares = 0;
+            for (int i = 0; i < window; i++) {
+                total += samples[s][i];
+                squares += samples[s][i] * samples[s][i];
+            }
+            sum[s] = total;
+            sum_squares[s] = squares;
+        }
+
+        //the window is in order here: oldest at 0, newest at window - 1
+        for (int j = 0; j < bins.length; j++) {
+            double re = 0, im = 0;
+            double step = 2 * Math.PI * bins[j] / window;
+            for (int m = 0; m < window; m++) {
+                re += samples[SERIES - 1][m] * Math.cos(step * m);
+                im -= samples[SERIES - 1][m] * Math.sin(step * m);
+            }
+            bin_re[j] = re;
+            bin_im[j] = im;
+        }
+    }
+
+    /**
+     * @return samples per window
+     */
+    public int getWindow() {
+        return window;
+    }
+
+    /**
+     * @return samples in the window
+     */
+    public int getSamples() {
+        return size;
+    }
+
+    /**
+     * @return timestamp of the oldest sample in the window
+     */
+    public long getWindowStart() {
+        return timestamps[(size == window) ? next : 0];
+    }
+
+    /**
+     * @return timestamp of the newest sample in the window
+     */
+    public long getWindowEnd() {
+        return timestamps[(next + window - 1) % window];
+    }
+
+    /**
+     * @param axis 0, 1, 2, or 3 for the magnitude
+     * @return mean
+     */
+    public double getMean(int axis) {
+        return (size == 0) ? 0 : sum[axis] / size;
+    }
+
+    /**
+     * @param axis 0, 1, 2, or 3 for the magnitude
+     * @return population variance
+     */
+    public double getVariance(int axis) {
+        if (size == 0) return 0;
+        double mean = sum[axis] / size;
+        return Math.max(0, sum_squares[axis] / size - mean * mean);
+    }
+
+    /**
+     * @param axis 0, 1 or 2
+     * @return how many times the axis crossed its running mean within the window
+     */
+    public int getZeroCrossings(int axis) {
+        return crossing_count[axis];
+    }
+
+    /**
+     * Mean power of the magnitude in a quarter of the spectrum, band 0 being the lowest frequencies
+     *
+     * @param band 0 to BANDS - 1
+     * @return energy
+     */
+    public double getBandEnergy(int band) {
+        double energy = 0;
+        for (int j = 0; j < bins.length; j++) {
+            if (bin_band[j] == band) energy += bin_re[j] * bin_re[j] + bin_im[j] * bin_im[j];
+        }
+        return energy / ((double) window * window);
+    }
+
+    /**
+     * @param device_id
+     * @param label
+     * @return feature row for the current window
+     */
+    public ContentValues toContentValues(String device_id, String label) {
+        ContentValues rowData = new ContentValues();
+        rowData.put(TIMESTAMP, getWindowEnd());
+        rowData.put(DEVICE_ID, device_id);
+        rowData.put(WINDOW_START, getWindowStart());
+        rowData.put(SAMPLES, size);
+        rowData.put(MEAN_X, getMean(0));
+        rowData.put(MEAN_Y, getMean(1));
+        rowData.put(MEAN_Z, getMean(2));
+        rowData.put(MEAN_MAGNITUDE, getMean(3));
+        rowData.put(VARIANCE_X, getVariance(0));
+        rowData.put(VARIANCE_Y, getVariance(1));
+        rowData.put(VARIANCE_Z, getVariance(2));
+        rowData.put(VARIANCE_MAGNITUDE, getVariance(3));
+        rowData.put(ZERO_CROSSINGS_X, getZeroCrossings(0));
+        rowData.put(ZERO_CROSSINGS_Y, getZeroCrossings(1));
+        rowData.put(ZERO_CROSSINGS_Z, getZeroCrossings(2));
+        rowData.put(ENERGY_BAND_0, getBandEnergy(0));
+        rowData.put(ENERGY_BAND_1, getBandEnergy(1));
+        rowData.put(ENERGY_BAND_2, getBandEnergy(2));
+        rowData.put(ENERGY_BAND_3, getBandEnergy(3));
+        rowData.put(LABEL, label);
+        return rowData;
+    }
+}
@@ -3,6 +3,7 @@ package com.aware.utils;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
 
@@ -10,6 +11,17 @@ import java.util.zip.GZIPOutputStream;
  * Created by denzil on 19/11/14.
  */
 public class GZipper {
+
+    /**
+     * Compress everything written to the stream, e.g., an HTTP request body sent with Content-Encoding: gzip
+     * @param out
+     * @return compressing stream. Closing it finishes the gzip trailer and closes out.
+     * @throws IOException
+     */
+    public static GZIPOutputStream zipStream(OutputStream out) throws IOException {
+        return new GZIPOutputStream(out, 8192);
+    }
+
     public static byte[] zip(byte[] fat) {
         ByteArrayOutputStream byteOut = new ByteArrayOutputStream(fat.length);
         try{
@@ -14,17 +14,26 @@ import org.json.JSONObject;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.ByteArrayInputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.net.ConnectException;
 import java.net.HttpURLConnection;
+import java.net.NoRouteToHostException;
+import java.net.SocketTimeoutException;
 import java.net.URL;
+import java.net.UnknownHostException;
 import java.nio.charset.Charset;
+import java.util.Collections;
 import java.util.Enumeration;
 import java.util.Hashtable;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.zip.GZIPInputStream;
 
 import javax.net.ssl.HttpsURLConnection;
@@ -46,12 +55,319 @@ public class Http {
 		sContext = c;
 	}
 
+    /**
+     * Request body that is written directly to the connection, instead of being built in memory first
+     */
+    public interface StreamingBody {
+        /**
+         * Write the URL-encoded value of the streamed field
+         * @param writer
+         * @throws IOException
+         */
+        void writeTo(Writer writer) throws IOException;
+    }
+
+    /**
+     * Make a POST to the URL with the Hashtable<String, String> data, plus one field (e.g., "data") whose value is streamed into the request body.
+     * The request is sent in chunks, so large uploads are never held in memory.
+     * @param url
+     * @param data
+     * @param stream_key name of the streamed field
+     * @param body writes the URL-encoded value of the streamed field
+     * @param is_gzipped
+     * @return String with server response
+     */
+    public String dataPOST(String url, Hashtable<String, String> data, String stream_key, StreamingBody body, boolean is_gzipped) {
+        return dataPOST(url, data, stream_key, body, is_gzipped, false);
+    }
+
+    /**
+     * Same as {@link #dataPOST(String, Hashtable, String, StreamingBody, boolean)}, optionally compressing the request body with gzip (Content-Encoding: gzip).
+     * If the server rejects a compressed body, the request is sent again uncompressed and we stop compressing for that server.
+     * @param url
+     * @param data
+     * @param stream_key name of the streamed field
+     * @param body writes the URL-encoded value of the streamed field. Must be able to write itself again for the fallback.
+     * @param is_gzipped
+     * @param compress_body
+     * @return String with server response
+     */
+    public String dataPOST(String url, Hashtable<String, String> data, String stream_key, StreamingBody body, boolean is_gzipped, boolean compress_body) {
+        if( url.length() == 0 ) return null;
+
+        try{
+
+            URL path = new URL(url);
+            boolean gzip_body = compress_body && acceptsGzipBody(path);
+
+            HttpURLConnection path_connection = (HttpURLConnection) path.openConnection();
+            String page_content = streamPOST(path_connection, data, stream_key, body, is_gzipped, gzip_body);
+
+            if( page_content == null && gzip_body && rejectedGzipBody(path, path_connection) ) {
+                return dataPOST(url, data, stream_key, body, is_gzipped, false);
+            }
+            if( page_content != null && gzip_body ) acceptedGzipBody(path);
+            return page_content;
+        } catch (IOException e) {
+            Log.e(TAG, e.getMessage());
+            return null;
+        } catch (IllegalStateException e ) {
+            Log.e(TAG, e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Hosts that don't accept gzip request bodies, and hosts that already accepted one
+     */
+    private static final Set<String> no_gzip_hosts = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private static final Set<String> gzip_hosts = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    static boolean acceptsGzipBody(URL url) {
+        return !no_gzip_hosts.contains(url.getHost());
+    }
+
+    /**
+     * The server answered a compressed body: from now on, a 400 from this host is about the request, not the compression
+     * @param url
+     */
+    static void acceptedGzipBody(URL url) {
+        gzip_hosts.add(url.getHost());
+    }
+
+    /**
+     * Check if the server refused our compressed body, and if so, remember not to compress for this host anymore.
+     * A 415 always is a refusal. A 400 only is on the first compressed request to a host: afterwards it's an ordinary failure (e.g., a bad page).
+     * @param url
+     * @param connection
+     * @return true if we should send it again uncompressed
+     * @throws IOException
+     */
+    static boolean rejectedGzipBody(URL url, HttpURLConnection connection) throws IOException {
+        int status = connection.getResponseCode();
+        if( status == HttpURLConnection.HTTP_UNSUPPORTED_TYPE || (status == HttpURLConnection.HTTP_BAD_REQUEST && !gzip_hosts.contains(url.getHost())) ) {
+            if (Aware.DEBUG) Log.d(TAG, url.getHost() + " does not accept gzip uploads, sending uncompressed");
+            no_gzip_hosts.add(url.getHost());
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Make a POST to the URL with a raw binary body (e.g., a {@link ColumnarBatch}).
+     * If the server doesn't know the endpoint, we remember it and {@link #acceptsEndpoint(String)} returns false from then on, so callers can fall back to a form POST.
+     * @param url
+     * @param body
+     * @param content_type
+     * @param is_gzipped
+     * @return String with server response, or null
+     */
+    public String dataPOST(String url, byte[] body, String content_type, boolean is_gzipped) {
+        if( url.length() == 0 || !acceptsEndpoint(url) ) return null;
+
+        try{
+            URL path = new URL(url);
+            HttpURLConnection path_connection = (HttpURLConnection) path.openConnection();
+            return binaryPOST(path_connection, body, content_type, is_gzipped);
+        } catch (IOException e) {
+            Log.e(TAG, e.getMessage());
+            return null;
+        } catch (IllegalStateException e ) {
+            Log.e(TAG, e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Endpoints (URL without query) the server told us it doesn't have
+     */
+    private static final Set<String> unsupported_endpoints = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    private static String endpointOf(String url) {
+        int query = url.indexOf('?');
+        return (query == -1) ? url : url.substring(0, query);
+    }
+
+    /**
+     * @param url
+     * @return false if the server already answered that it doesn't have this endpoint
+     */
+    public static boolean acceptsEndpoint(String url) {
+        return !unsupported_endpoints.contains(endpointOf(url));
+    }
+
+    /**
+     * What uploading a request body cost, for the requests made from one thread since {@link #startRequestStats()}
+     */
+    public static final class RequestStats {
+        /**
+         * Times the body was sent (e.g., 2 if the server refused it compressed)
+         */
+        public int attempts;
+        /**
+         * Size of the last body sent, before compression
+         */
+        public long body_bytes;
+        /**
+         * Size of the last body sent, as sent (after compression)
+         */
+        public long sent_bytes;
+    }
+
+    private static final ThreadLocal<RequestStats> request_stats = new ThreadLocal<RequestStats>() {
+        @Override
+        protected RequestStats initialValue() {
+            return new RequestStats();
+        }
+    };
+
+    /**
+     * Start counting what the next request(s) from this thread cost
+     * @return stats, filled in as streamed and binary POST requests are sent from this thread
+     */
+    public static RequestStats startRequestStats() {
+        RequestStats stats = request_stats.get();
+        stats.attempts = 0;
+        stats.body_bytes = 0;
+        stats.sent_bytes = 0;
+        return stats;
+    }
+
+    /**
+     * Counts the bytes written through it
+     */
+    private static class CountingOutputStream extends FilterOutputStream {
+        private long count = 0;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+
+        long getCount() {
+            return count;
+        }
+    }
+
+    /**
+     * Write a raw body to an open connection and read the reply
+     * @return reply, or null if the server did not answer HTTP 200
+     * @throws IOException
+     */
+    static String binaryPOST(HttpURLConnection path_connection, byte[] body, String content_type, boolean is_gzipped) throws IOException {
+        path_connection.setReadTimeout(10000);
+        path_connection.setConnectTimeout(10000);
+        path_connection.setRequestMethod("POST");
+        path_connection.setDoOutput(true);
+        path_connection.setFixedLengthStreamingMode(body.length);
+        path_connection.setRequestProperty("Content-Type", content_type);
+
+        if( is_gzipped ) path_connection.setRequestProperty("accept-encoding","gzip");
+
+        RequestStats stats = request_stats.get();
+        stats.attempts++;
+
+        connect(path_connection);
+        OutputStream os = path_connection.getOutputStream();
+        os.write(body);
+        os.flush();
+        os.close();
+
+        stats.body_bytes = body.length;
+        stats.sent_bytes = body.length;
+
+        int status = path_connection.getResponseCode();
+        if( status != HttpURLConnection.HTTP_OK ) {
+            if( status == HttpURLConnection.HTTP_NOT_FOUND || status == HttpURLConnection.HTTP_BAD_METHOD || status == HttpURLConnection.HTTP_NOT_IMPLEMENTED || status == HttpURLConnection.HTTP_UNSUPPORTED_TYPE ) {
+                if (Aware.DEBUG) Log.d(TAG, path_connection.getURL() + " is not supported by the server");
+                unsupported_endpoints.add(endpointOf(path_connection.getURL().toString()));
+            }
+            if (Aware.DEBUG) {
+                Log.d(TAG,"Request: POST, URL: " + path_connection.getURL());
+                Log.d(TAG, "Status: " + status );
+                Log.e(TAG, path_connection.getResponseMessage() );
+            }
+            discardResponse(path_connection);
+            return null;
+        }
+
+        return readResponse(path_connection);
+    }
+
+    /**
+     * Write the form fields and the streamed field to an open connection and read the reply
+     * @return reply, or null if the server did not answer HTTP 200
+     * @throws IOException
+     */
+    static String streamPOST(HttpURLConnection path_connection, Hashtable<String, String> data, String stream_key, StreamingBody body, boolean is_gzipped, boolean gzip_body) throws IOException {
+        path_connection.setReadTimeout(10000);
+        path_connection.setConnectTimeout(10000);
+        path_connection.setRequestMethod("POST");
+        path_connection.setDoOutput(true);
+        path_connection.setChunkedStreamingMode(0);
+
+        if( is_gzipped ) path_connection.setRequestProperty("accept-encoding","gzip");
+        if( gzip_body ) path_connection.setRequestProperty("Content-Encoding", "gzip");
+
+        Uri.Builder builder = new Uri.Builder();
+        Enumeration e = data.keys();
+        while(e.hasMoreElements()) {
+            String key = (String) e.nextElement();
+            builder.appendQueryParameter(key, data.get(key));
+        }
+
+        RequestStats stats = request_stats.get();
+        stats.attempts++;
+
+        connect(path_connection);
+        CountingOutputStream sent = new CountingOutputStream(path_connection.getOutputStream());
+        OutputStream os = sent;
+        if( gzip_body ) os = GZipper.zipStream(os);
+        CountingOutputStream raw = new CountingOutputStream(os);
+        os = raw;
+
+        BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(os, "UTF-8"));
+        String query = builder.build().getEncodedQuery();
+        if( query != null && query.length() > 0 ) writer.write(query + "&");
+        writer.write(Uri.encode(stream_key) + "=");
+        body.writeTo(writer);
+        writer.flush();
+        writer.close();
+        os.close();
+
+        stats.body_bytes = raw.getCount();
+        stats.sent_bytes = sent.getCount();
+
+        if( path_connection.getResponseCode() != HttpURLConnection.HTTP_OK ) {
+            if (Aware.DEBUG) {
+                Log.d(TAG,"Request: POST, URL: " + path_connection.getURL());
+                Log.d(TAG, "Status: " + path_connection.getResponseCode() );
+                Log.e(TAG, path_connection.getResponseMessage() );
+            }
+            discardResponse(path_connection);
+            return null;
+        }
+
+        return readResponse(path_connection);
+    }
+
     /**
      * Request a GET from an URL.
      * @param url
      * @return String with the content of the reply
      */
-    public synchronized String dataGET(String url, boolean is_gzipped) {
+    public String dataGET(String url, boolean is_gzipped) {
         if( url.length() == 0 ) return null;
 
         try {
@@ -65,7 +381,7 @@ public class Http {
 
             if( is_gzipped ) path_connection.setRequestProperty("accept-encoding","gzip");
 
-            path_connection.connect();
+            connect(path_connection);
 
             if( path_connection.getResponseCode() != HttpURLConnection.HTTP_OK ) {
                 if (Aware.DEBUG) {
@@ -73,21 +389,11 @@ public class Http {
                     Log.d(TAG, "Status: " + path_connection.getResponseCode() );
                     Log.e(TAG, path_connection.getResponseMessage() );
                 }
+                discardResponse(path_connection);
                 return null;
             }
 
-            InputStream stream = path_connection.getInputStream();
-            if("gzip".equals(path_connection.getContentEncoding())) {
-                stream = new GZIPInputStream(stream);
-            }
-
-            BufferedReader br = new BufferedReader(new InputStreamReader(stream));
-
-            String page_content = "";
-            String line;
-            while( (line = br.readLine()) != null ) {
-                page_content+=line;
-            }
+            String page_content = readResponse(path_connection);
 
             if (Aware.DEBUG) {
 //                Log.i(TAG,"Request: GET, URL: " + url);
@@ -109,7 +415,7 @@ public class Http {
      * @param is_gzipped
 	 * @return String with server response. If GZipped, use Http.undoGZIP to recover data
 	 */
-	public synchronized String dataPOST(String url, Hashtable<String, String> data, boolean is_gzipped) {
+	public String dataPOST(String url, Hashtable<String, String> data, boolean is_gzipped) {
         if( url.length() == 0 ) return null;
 
 		try{
@@ -130,6 +436,7 @@ public class Http {
                 builder.appendQueryParameter(key, data.get(key));
             }
 
+            connect(path_connection);
             OutputStream os = path_connection.getOutputStream();
             BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(os, "UTF-8"));
             writer.write(builder.build().getEncodedQuery());
@@ -145,21 +452,11 @@ public class Http {
                     Log.d(TAG, "Status: " + path_connection.getResponseCode() );
                     Log.e(TAG, path_connection.getResponseMessage() );
                 }
+                discardResponse(path_connection);
                 return null;
             }
 
-            InputStream stream = path_connection.getInputStream();
-            if("gzip".equals(path_connection.getContentEncoding())) {
-                stream = new GZIPInputStream(stream);
-            }
-
-            BufferedReader br = new BufferedReader(new InputStreamReader(stream));
-
-            String page_content = "";
-            String line;
-            while( (line = br.readLine()) != null ) {
-                page_content+=line;
-            }
+            String page_content = readResponse(path_connection);
 
             if (Aware.DEBUG) {
 //                Log.d(TAG, "Request: POST, URL: " + url + "\nData:" + builder.build().getEncodedQuery());
@@ -178,4 +475,80 @@ public class Http {
 			return null;
 		}
 	}
+
+    /**
+     * Hosts whose last request could not even connect (unknown host, no route, connection refused, connect timeout), as opposed to an HTTP error
+     */
+    private static final Set<String> unreachable_hosts = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    private static String hostOf(String url) {
+        String host = Uri.parse(url).getHost();
+        return (host != null) ? host : url;
+    }
+
+    /**
+     * @param url
+     * @return false if the last request to this host failed before the server answered
+     */
+    public static boolean isReachable(String url) {
+        return !unreachable_hosts.contains(hostOf(url));
+    }
+
+    /**
+     * Open the connection, before anything is sent. If that fails, the host is unreachable until it answers again.
+     * Failures once connected (e.g., a read timeout, a reset mid-upload) are about this one request, and don't mark the host.
+     * @param connection
+     * @throws IOException
+     */
+    static void connect(HttpURLConnection connection) throws IOException {
+        try {
+            connection.connect();
+        } catch (ConnectException | UnknownHostException | NoRouteToHostException | SocketTimeoutException e) {
+            unreachable_hosts.add(connection.getURL().getHost());
+            throw e;
+        }
+    }
+
+    /**
+     * Read the whole server reply and close the stream, so the connection goes back to the keep-alive pool
+     * @param connection
+     * @return reply
+     * @throws IOException
+     */
+    static String readResponse(HttpURLConnection connection) throws IOException {
+        unreachable_hosts.remove(connection.getURL().getHost()); //the server answered
+        InputStream stream = connection.getInputStream();
+        if("gzip".equals(connection.getContentEncoding())) {
+            stream = new GZIPInputStream(stream);
+        }
+
+        BufferedReader br = new BufferedReader(new InputStreamReader(stream));
+        try {
+            StringBuilder page_content = new StringBuilder();
+            String line;
+            while( (line = br.readLine()) != null ) {
+                page_content.append(line);
+            }
+            return page_content.toString();
+        } finally {
+            br.close();
+        }
+    }
+
+    /**
+     * Drain and close an error reply, so the connection can still be reused
+     * @param connection
+     */
+    static void discardResponse(HttpURLConnection connection) {
+        unreachable_hosts.remove(connection.getURL().getHost()); //the server answered, with an error
+        InputStream error = connection.getErrorStream();
+        if( error == null ) return;
+        try {
+            byte[] buffer = new byte[1024];
+            while( error.read(buffer) != -1 ) {}
+            error.close();
+        } catch (IOException e) {
+            connection.disconnect();
+        }
+    }
 }
@@ -3,6 +3,7 @@ package com.aware.utils;
 import android.content.Context;
 import android.content.Intent;
 import android.net.Uri;
+import android.os.Build;
 import android.util.Log;
 
 import com.aware.Aware;
@@ -11,83 +12,76 @@ import com.aware.R;
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.UnsupportedEncodingException;
 import java.net.URL;
-import java.security.KeyManagementException;
-import java.security.KeyStore;
-import java.security.KeyStoreException;
-import java.security.NoSuchAlgorithmException;
 import java.security.cert.Certificate;
-import java.security.cert.CertificateException;
-import java.security.cert.CertificateFactory;
 import java.util.Enumeration;
+import java.util.HashMap;
 import java.util.Hashtable;
-import java.util.zip.GZIPInputStream;
 
 import javax.net.ssl.HttpsURLConnection;
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLPeerUnverifiedException;
-import javax.net.ssl.TrustManagerFactory;
+import javax.net.ssl.SSLSocketFactory;
 
 public class Https {
 
 	private static final String TAG = "AWARE::HTTPS";
 
-    private static SSLContext sslContext;
+    static {
+        //Fix for known-bug on <= JellyBean (4.x)
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT) {
+            System.setProperty("http.keepAlive", "false");
+        }
+    }
+
+    /**
+     * One shared client per server, so connections (and TLS sessions) are reused across requests
+     */
+    private static final HashMap<String, Https> clients = new HashMap<>();
+
+    private final SSLContext sslContext;
+    private final SSLSocketFactory sslSocketFactory;
     private static Context sContext;
 
     /**
      * The InputStream certificate should be:
      * getResources().openRawResource(R.raw.yourcertificate)<br/>
-     * where the certificate is a .crt public key for connecting to your server.
+     * where the certificate is a .crt public key for connecting to your server.<br/>
+     * To talk with an AWARE server, prefer {@link #getInstance(Context, String)}, which reuses the TLS context and connections.
      * @param c
      * @param certificate
      */
 	public Https(Context c, InputStream certificate ) {
-		sContext = c;
-
-        try {
-
-            KeyStore keyStore = KeyStore.getInstance(KeyStore.getDefaultType());
-            TrustManagerFactory trustManagerFactory = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
-            trustManagerFactory.init(keyStore); //add our keystore to the trusted keystores
-
-            if( certificate != null ) {
-                //Load SSL public certificate so we can talk with the server
-                CertificateFactory cf = CertificateFactory.getInstance("X.509");
-                InputStream caInput = new BufferedInputStream(certificate);
-                Certificate ca = cf.generateCertificate(caInput);
-                keyStore.load(null, null); //initialize as empty keystore
-                keyStore.setCertificateEntry("ca", ca); //add our certificate to keystore
-                trustManagerFactory.init(keyStore); //add our keystore to the trusted keystores
-            }
-
-            //Initialize a SSL connection context
-            sslContext = SSLContext.getInstance("TLS");
-            sslContext.init(null, trustManagerFactory.getTrustManagers(), null);
+        this(c, SSLManager.buildSSLContext(certificate));
+    }
 
-            //Fix for known-bug on <= JellyBean (4.x)
-            System.setProperty("http.keepAlive", "false");
+    private Https(Context c, SSLContext context) {
+        sContext = c;
+        sslContext = context;
+        //Connections are only reused when they share the same socket factory instance
+        sslSocketFactory = (context != null) ? context.getSocketFactory() : null;
+    }
 
-        } catch (CertificateException e) {
-            e.printStackTrace();
-        } catch (KeyManagementException e) {
-            e.printStackTrace();
-        } catch (NoSuchAlgorithmException e) {
-            e.printStackTrace();
-        } catch (KeyStoreException e) {
-            e.printStackTrace();
-        } catch (IOException e) {
-            e.printStackTrace();
+    /**
+     * Shared HTTPS client for an AWARE server, using the cached SSLContext from {@link SSLManager#getSSLContext(Context, String)}
+     * @param c
+     * @param server e.g., https://api.awareframework.com/index.php
+     * @return Https client
+     */
+    public static synchronized Https getInstance(Context c, String server) {
+        SSLContext context = SSLManager.getSSLContext(c, server);
+        Https client = clients.get(server);
+        if (client == null || client.sslContext != context) {
+            client = new Https(c.getApplicationContext(), context);
+            clients.put(server, client);
         }
+        return client;
     }
 
 	/**
@@ -97,7 +91,7 @@ public class Https {
      * @param is_gzipped
 	 * @return String with server response. If gzipped, use Https.undoGZIP on the response.
 	 */
-	public synchronized String dataPOST(String url, Hashtable<String, String> data, boolean is_gzipped) {
+	public String dataPOST(String url, Hashtable<String, String> data, boolean is_gzipped) {
         if( url.length() == 0 ) return null;
 
 		try{
@@ -105,7 +99,7 @@ public class Https {
 			URL path = new URL(url);
 
 			HttpsURLConnection path_connection = (HttpsURLConnection) path.openConnection();
-            path_connection.setSSLSocketFactory(sslContext.getSocketFactory());
+            if( sslSocketFactory != null ) path_connection.setSSLSocketFactory(sslSocketFactory);
             path_connection.setReadTimeout(10000);
             path_connection.setConnectTimeout(10000);
 			path_connection.setRequestMethod("POST");
@@ -120,6 +114,7 @@ public class Https {
 				builder.appendQueryParameter(key, data.get(key));
 			}
 
+			Http.connect(path_connection);
 			OutputStream os = path_connection.getOutputStream();
 			BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(os, "UTF-8"));
 			writer.write(builder.build().getEncodedQuery());
@@ -139,21 +134,11 @@ public class Https {
                     Log.d(TAG, "Status: " + path_connection.getResponseCode() );
                     Log.e(TAG, path_connection.getResponseMessage() );
                 }
+                Http.discardResponse(path_connection);
                 return null;
             }
 
-            InputStream stream = path_connection.getInputStream();
-            if("gzip".equals(path_connection.getContentEncoding())) {
-                stream = new GZIPInputStream(stream);
-            }
-
-            BufferedReader br = new BufferedReader(new InputStreamReader(stream));
-
-            String page_content = "";
-            String line;
-            while( (line = br.readLine()) != null ) {
-                page_content+=line;
-            }
+            String page_content = Http.readResponse(path_connection);
 
 //            if (Aware.DEBUG) {
 //                Log.d(TAG, "Request: POST, URL: " + url + "\nData:" + builder.build().getEncodedQuery());
@@ -173,19 +158,96 @@ public class Https {
 		}
 	}
 
+    /**
+     * Make a POST to the URL with the Hashtable<String, String> data, plus one field (e.g., "data") whose value is streamed into the request body.
+     * The request is sent in chunks, so large uploads are never held in memory.
+     * @param url
+     * @param data
+     * @param stream_key name of the streamed field
+     * @param body writes the URL-encoded value of the streamed field
+     * @param is_gzipped
+     * @return String with server response
+     */
+    public String dataPOST(String url, Hashtable<String, String> data, String stream_key, Http.StreamingBody body, boolean is_gzipped) {
+        return dataPOST(url, data, stream_key, body, is_gzipped, false);
+    }
+
+    /**
+     * Same as {@link #dataPOST(String, Hashtable, String, Http.StreamingBody, boolean)}, optionally compressing the request body with gzip (Content-Encoding: gzip).
+     * If the server rejects a compressed body, the request is sent again uncompressed and we stop compressing for that server.
+     * @param url
+     * @param data
+     * @param stream_key name of the streamed field
+     * @param body writes the URL-encoded value of the streamed field. Must be able to write itself again for the fallback.
+     * @param is_gzipped
+     * @param compress_body
+     * @return String with server response
+     */
+    public String dataPOST(String url, Hashtable<String, String> data, String stream_key, Http.StreamingBody body, boolean is_gzipped, boolean compress_body) {
+        if( url.length() == 0 ) return null;
+
+        try{
+
+            URL path = new URL(url);
+            boolean gzip_body = compress_body && Http.acceptsGzipBody(path);
+
+            HttpsURLConnection path_connection = (HttpsURLConnection) path.openConnection();
+            if( sslSocketFactory != null ) path_connection.setSSLSocketFactory(sslSocketFactory);
+            String page_content = Http.streamPOST(path_connection, data, stream_key, body, is_gzipped, gzip_body);
+
+            if( page_content == null && gzip_body && Http.rejectedGzipBody(path, path_connection) ) {
+                return dataPOST(url, data, stream_key, body, is_gzipped, false);
+            }
+            if( page_content != null && gzip_body ) Http.acceptedGzipBody(path);
+            return page_content;
+        } catch (IOException e) {
+            Log.e(TAG, e.getMessage());
+            return null;
+        } catch (IllegalStateException e ) {
+            Log.e(TAG, e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Make a POST to the URL with a raw binary body (e.g., a {@link ColumnarBatch}).
+     * If the server doesn't know the endpoint, {@link Http#acceptsEndpoint(String)} returns false from then on.
+     * @param url
+     * @param body
+     * @param content_type
+     * @param is_gzipped
+     * @return String with server response, or null
+     */
+    public String dataPOST(String url, byte[] body, String content_type, boolean is_gzipped) {
+        if( url.length() == 0 || !Http.acceptsEndpoint(url) ) return null;
+
+        try{
+            URL path = new URL(url);
+            HttpsURLConnection path_connection = (HttpsURLConnection) path.openConnection();
+            if( sslSocketFactory != null ) path_connection.setSSLSocketFactory(sslSocketFactory);
+            return Http.binaryPOST(path_connection, body, content_type, is_gzipped);
+        } catch (IOException e) {
+            Log.e(TAG, e.getMessage());
+            return null;
+        } catch (IllegalStateException e ) {
+            Log.e(TAG, e.getMessage());
+            return null;
+        }
+    }
+
     /**
      * Request a GET from an URL.
      * @param url
      * @return HttpEntity with the content of the reply. Use EntityUtils to get content.
      */
-    public synchronized String dataGET(String url, boolean is_gzipped) {
+    public String dataGET(String url, boolean is_gzipped) {
         if( url.length() == 0 ) return null;
 
         try {
 
             URL path = new URL(url);
             HttpsURLConnection path_connection = (HttpsURLConnection) path.openConnection();
-            path_connection.setSSLSocketFactory(sslContext.getSocketFactory());
+            if( sslSocketFactory != null ) path_connection.setSSLSocketFactory(sslSocketFactory);
             path_connection.setReadTimeout(10000);
             path_connection.setConnectTimeout(10000);
             path_connection.setRequestMethod("GET");
@@ -197,7 +259,7 @@ public class Https {
 //                print_https_cert(path_connection);
             }
 
-            path_connection.connect();
+            Http.connect(path_connection);
 
             if( path_connection.getResponseCode() != HttpsURLConnection.HTTP_OK ) {
                 if (Aware.DEBUG) {
@@ -205,21 +267,11 @@ public class Https {
                     Log.d(TAG, "Status: " + path_connection.getResponseCode() );
                     Log.e(TAG, path_connection.getResponseMessage() );
                 }
+                Http.discardResponse(path_connection);
                 return null;
             }
 
-            InputStream stream = path_connection.getInputStream();
-            if("gzip".equals(path_connection.getContentEncoding())) {
-                stream = new GZIPInputStream(stream);
-            }
-
-            BufferedReader br = new BufferedReader(new InputStreamReader(stream));
-
-            String page_content = "";
-            String line;
-            while( (line = br.readLine()) != null ) {
-                page_content+=line;
-            }
+            String page_content = Http.readResponse(path_connection);
 
             if (Aware.DEBUG) {
 //                Log.i(TAG,"Request: GET, URL: " + url);
@@ -0,0 +1,72 @@
+package com.aware.utils;
+
+/**
+ * Sampling rate of a sensor, counted in memory as samples arrive: how many samples were taken during the last complete second.<br/>
+ * Constant cost, whatever the size of the sensor's table.
+ * <p>
+ * Seconds are those of the sample timestamps, so samples delivered late from the hardware FIFO are counted in the second they were measured.
+ * When no sample was counted lately (on-change sensor that went quiet, sensor slowed down or stopped), the rate is 0.
+ * Written by the sensor thread only, read from any thread.
+ */
+public class RateMeter {
+
+    private volatile long current_second = -1;
+    private int current_count = 0;
+
+    private volatile int last_count = 0;
+    private volatile long max_delay = 0;
+
+    /**
+     * How late samples may be delivered (e.g., the sensor's report latency when batching), so the rate isn't 0 between two batches
+     *
+     * @param milliseconds
+     */
+    public void setMaxDelay(long milliseconds) {
+        max_delay = Math.max(0, milliseconds);
+    }
+
+    /**
+     * Count a sample. Only call from the sensor thread.
+     *
+     * @param timestamp sample timestamp, in milliseconds
+     */
+    public void add(long timestamp) {
+        long second = timestamp / 1000;
+        if (second == current_second) {
+            current_count++;
+        } else if (second > current_second) {
+            last_count = (second == current_second + 1) ? current_count : 0;
+            current_second = second;
+            current_count = 1;
+        } else if (second == current_second - 1) {
+            last_count = last_count + 1; //late sample for the previous second
+        }
+    }
+
+    /**
+     * @return samples taken during the last complete second, in Hz. 0 if that second is long gone.
+     */
+    public int getHz() {
+        return getHz(System.currentTimeMillis());
+    }
+
+    /**
+     * @param now current time, in milliseconds
+     * @return samples taken during the last complete second before now, in Hz
+     */
+    public int getHz(long now) {
+        int count = last_count;
+        long second = current_second;
+        if (second == -1 || now / 1000 > second + 1 + (max_delay + 999) / 1000) return 0;
+        return count;
+    }
+
+    /**
+     * Forget everything, e.g., when the sensor stops
+     */
+    public void reset() {
+        current_second = -1;
+        current_count = 0;
+        last_count = 0;
+    }
+}
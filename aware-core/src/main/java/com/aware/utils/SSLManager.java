@@ -9,10 +9,23 @@ import com.aware.Aware;
 import com.koushikdutta.async.future.FutureCallback;
 import com.koushikdutta.ion.Ion;
 
+import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.io.InputStream;
+import java.security.KeyManagementException;
+import java.security.KeyStore;
+import java.security.KeyStoreException;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.util.HashMap;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManagerFactory;
 
 /**
  * Created by denzil on 15/12/15.
@@ -33,8 +46,8 @@ public class SSLManager extends IntentService {
     protected void onHandleIntent(Intent intent) {
         String server_url = intent.getStringExtra("aware_server");
 
-        String aware_host = server_url.substring(0, server_url.indexOf("/index.php"));
-        aware_host = aware_host.substring(aware_host.indexOf("//")+2, aware_host.length());
+        String host = server_url.substring(0, server_url.indexOf("/index.php"));
+        final String aware_host = host.substring(host.indexOf("//")+2, host.length());
 
         File host_credentials = new File( getExternalFilesDir(null) + "/Documents/", "credentials/"+ aware_host );
         host_credentials.mkdirs();
@@ -52,6 +65,7 @@ public class SSLManager extends IntentService {
                     public void onCompleted(Exception e, File result) {
                         if( e == null ) {
                             Log.d(Aware.TAG, "SSL certificate " + result.toString());
+                            invalidateSSLContext(aware_host);
                         }
                     }
                 });
@@ -95,4 +109,89 @@ public class SSLManager extends IntentService {
         }
         return null;
     }
+
+    /**
+     * TLS contexts we already built, per server host
+     */
+    private static final HashMap<String, SSLContext> ssl_contexts = new HashMap<>();
+
+    /**
+     * Get the TLS context for the server, built once from the server.crt and then reused by every HTTPS request.
+     * @param c
+     * @param server
+     * @return SSLContext
+     */
+    public static synchronized SSLContext getSSLContext(Context c, String server) {
+        String aware_host = server.substring(0, server.indexOf("/index.php"));
+        aware_host = aware_host.substring(aware_host.indexOf("//")+2, aware_host.length());
+
+        SSLContext context = ssl_contexts.get(aware_host);
+        if( context != null ) return context;
+
+        InputStream certificate;
+        try {
+            certificate = getHTTPS(c, server);
+        } catch (FileNotFoundException e) {
+            certificate = null;
+        }
+        context = buildSSLContext(certificate);
+        if( certificate != null ) {
+            try {
+                certificate.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        if( context != null ) ssl_contexts.put(aware_host, context);
+        return context;
+    }
+
+    /**
+     * Forget the TLS context of a host, e.g., when we downloaded a renewed certificate
+     * @param aware_host
+     */
+    public static synchronized void invalidateSSLContext(String aware_host) {
+        ssl_contexts.remove(aware_host);
+    }
+
+    /**
+     * Create a TLS context that trusts the given certificate
+     * @param certificate .crt public key of the server, or null to use the default trust store
+     * @return SSLContext
+     */
+    static SSLContext buildSSLContext(InputStream certificate) {
+        try {
+            KeyStore keyStore = KeyStore.getInstance(KeyStore.getDefaultType());
+            TrustManagerFactory trustManagerFactory = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+            trustManagerFactory.init(keyStore); //add our keystore to the trusted keystores
+
+            if( certificate != null ) {
+                //Load SSL public certificate so we can talk with the server
+                CertificateFactory cf = CertificateFactory.getInstance("X.509");
+                InputStream caInput = new BufferedInputStream(certificate);
+                Certificate ca = cf.generateCertificate(caInput);
+                keyStore.load(null, null); //initialize as empty keystore
+                keyStore.setCertificateEntry("ca", ca); //add our certificate to keystore
+                trustManagerFactory.init(keyStore); //add our keystore to the trusted keystores
+            }
+
+            //Initialize a SSL connection context
+            SSLContext sslContext = SSLContext.getInstance("TLS");
+            sslContext.init(null, trustManagerFactory.getTrustManagers(), null);
+            return sslContext;
+
+        } catch (CertificateException e) {
+            e.printStackTrace();
+        } catch (KeyManagementException e) {
+            e.printStackTrace();
+        } catch (NoSuchAlgorithmException e) {
+            e.printStackTrace();
+        } catch (KeyStoreException e) {
+            e.printStackTrace();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
 }
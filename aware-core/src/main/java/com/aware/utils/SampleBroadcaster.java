@@ -0,0 +1,354 @@
+package com.aware.utils;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.aware.Aware;
+import com.aware.Aware_Preferences;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Coalesced, rate-limited delivery of sensor samples.<br/>
+ * Instead of receiving one ACTION_AWARE_* broadcast with a ContentValues for every sample, a consumer subscribes to a sensor and receives
+ * ACTION_AWARE_SAMPLES broadcasts carrying several samples packed in primitive arrays, only sent to the subscriber's package:
+ * - EXTRA_BATCH_SIZE: deliver every N samples
+ * - EXTRA_MAX_RATE: deliver at most this many times per second, with every sample collected since the last delivery
+ * Samples never wait more than MAX_LATENCY for their batch to fill (e.g., on-change sensors), and what is left is delivered when the sensor stops ({@link #flush()}).
+ * <p>
+ * Nothing is packed nor broadcast for a sensor nobody subscribed to. The legacy per-sample ACTION_AWARE_* broadcasts, and the ContentValues they carry,
+ * are only sent with Aware_Preferences.STATUS_SAMPLE_BROADCASTS set to true: off on new installs, kept on when upgrading for the plugins that listen for them.
+ * <p>
+ * Subscribe with {@link #subscribe(Context, String, int, int)}, e.g., subscribe(context, Accelerometer.ACTION_AWARE_ACCELEROMETER, 50, 0)
+ */
+public class SampleBroadcaster {
+
+    private static final String TAG = "AWARE::SampleBroadcaster";
+
+    /**
+     * Subscribe to a sensor. Extras: EXTRA_SENSOR_ACTION, EXTRA_SUBSCRIBER, EXTRA_BATCH_SIZE, EXTRA_MAX_RATE
+     */
+    public static final String ACTION_AWARE_SUBSCRIBE_SAMPLES = "ACTION_AWARE_SUBSCRIBE_SAMPLES";
+
+    /**
+     * Stop receiving samples from a sensor. Extras: EXTRA_SENSOR_ACTION, EXTRA_SUBSCRIBER
+     */
+    public static final String ACTION_AWARE_UNSUBSCRIBE_SAMPLES = "ACTION_AWARE_UNSUBSCRIBE_SAMPLES";
+
+    /**
+     * Batched samples. Extras: EXTRA_SENSOR_ACTION, EXTRA_COUNT, EXTRA_AXES, EXTRA_TIMESTAMPS, EXTRA_VALUES, EXTRA_ACCURACIES
+     */
+    public static final String ACTION_AWARE_SAMPLES = "ACTION_AWARE_SAMPLES";
+
+    /**
+     * The sensor's legacy broadcast action, e.g., Accelerometer.ACTION_AWARE_ACCELEROMETER
+     */
+    public static final String EXTRA_SENSOR_ACTION = "sensor_action";
+
+    /**
+     * Package name the samples are delivered to
+     */
+    public static final String EXTRA_SUBSCRIBER = "subscriber";
+    public static final String EXTRA_BATCH_SIZE = "batch_size";
+    public static final String EXTRA_MAX_RATE = "max_rate";
+
+    /**
+     * Number of samples in this delivery
+     */
+    public static final String EXTRA_COUNT = "count";
+
+    /**
+     * Values per sample
+     */
+    public static final String EXTRA_AXES = "axes";
+
+    /**
+     * long[] sample timestamps, in milliseconds
+     */
+    public static final String EXTRA_TIMESTAMPS = "timestamps";
+
+    /**
+     * float[] sample values, interleaved: sample i, axis j = values[i * axes + j]
+     */
+    public static final String EXTRA_VALUES = "values";
+
+    /**
+     * int[] sample accuracies
+     */
+    public static final String EXTRA_ACCURACIES = "accuracies";
+
+    /**
+     * Largest delivery, whatever the subscription asks for
+     */
+    public static final int MAX_BATCH_SIZE = 1000;
+
+    /**
+     * Longest time a sample waits for its batch to fill, in milliseconds (5 seconds)
+     */
+    public static final long MAX_LATENCY = 5 * 1000;
+
+    private static ScheduledExecutorService timer;
+
+    /**
+     * @return the thread delivering batches that waited too long, shared by all sensors
+     */
+    private static synchronized ScheduledExecutorService getTimer() {
+        if (timer == null) {
+            timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, TAG);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return timer;
+    }
+
+    /**
+     * Subscriptions for each sensor action, by subscriber package
+     */
+    private static final ConcurrentHashMap<String, ConcurrentHashMap<String, Subscription>> subscriptions = new ConcurrentHashMap<>();
+
+    private static SubscriptionListener subscriptionListener;
+
+    /**
+     * Subscribe this package to a sensor's samples
+     *
+     * @param context
+     * @param sensor_action the sensor's ACTION_AWARE_* action
+     * @param batch_size    samples per delivery (1 = every sample)
+     * @param max_rate      maximum deliveries per second (0 = no limit)
+     */
+    public static void subscribe(Context context, String sensor_action, int batch_size, int max_rate) {
+        Intent subscribe = new Intent(ACTION_AWARE_SUBSCRIBE_SAMPLES);
+        subscribe.putExtra(EXTRA_SENSOR_ACTION, sensor_action);
+        subscribe.putExtra(EXTRA_SUBSCRIBER, context.getPackageName());
+        subscribe.putExtra(EXTRA_BATCH_SIZE, batch_size);
+        subscribe.putExtra(EXTRA_MAX_RATE, max_rate);
+        context.sendBroadcast(subscribe);
+    }
+
+    /**
+     * Stop delivering a sensor's samples to this package
+     *
+     * @param context
+     * @param sensor_action
+     */
+    public static void unsubscribe(Context context, String sensor_action) {
+        Intent unsubscribe = new Intent(ACTION_AWARE_UNSUBSCRIBE_SAMPLES);
+        unsubscribe.putExtra(EXTRA_SENSOR_ACTION, sensor_action);
+        unsubscribe.putExtra(EXTRA_SUBSCRIBER, context.getPackageName());
+        context.sendBroadcast(unsubscribe);
+    }
+
+    /**
+     * Start listening for subscriptions. Subscriptions are kept for as long as the process lives, so they outlive sensor restarts.
+     *
+     * @param context
+     */
+    public static synchronized void listen(Context context) {
+        if (subscriptionListener != null) return;
+        subscriptionListener = new SubscriptionListener();
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(ACTION_AWARE_SUBSCRIBE_SAMPLES);
+        filter.addAction(ACTION_AWARE_UNSUBSCRIBE_SAMPLES);
+        context.getApplicationContext().registerReceiver(subscriptionListener, filter);
+    }
+
+    private static class SubscriptionListener extends BroadcastReceiver {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            String sensor_action = intent.getStringExtra(EXTRA_SENSOR_ACTION);
+            String subscriber = intent.getStringExtra(EXTRA_SUBSCRIBER);
+            if (sensor_action == null || subscriber == null) return;
+
+            ConcurrentHashMap<String, Subscription> sensor_subscriptions = subscriptions.get(sensor_action);
+            if (intent.getAction().equals(ACTION_AWARE_SUBSCRIBE_SAMPLES)) {
+                if (sensor_subscriptions == null) {
+                    subscriptions.putIfAbsent(sensor_action, new ConcurrentHashMap<String, Subscription>());
+                    sensor_subscriptions = subscriptions.get(sensor_action);
+                }
+                sensor_subscriptions.put(subscriber, new Subscription(subscriber, intent.getIntExtra(EXTRA_BATCH_SIZE, 1), intent.getIntExtra(EXTRA_MAX_RATE, 0)));
+                if (Aware.DEBUG) Log.d(TAG, subscriber + " subscribed to " + sensor_action);
+            }
+            if (intent.getAction().equals(ACTION_AWARE_UNSUBSCRIBE_SAMPLES) && sensor_subscriptions != null) {
+                sensor_subscriptions.remove(subscriber);
+                if (Aware.DEBUG) Log.d(TAG, subscriber + " unsubscribed from " + sensor_action);
+            }
+        }
+    }
+
+    /**
+     * One subscriber's pending samples
+     */
+    private static class Subscription {
+        final String subscriber;
+        final int batch_size;
+        final long min_interval;
+
+        private int axes = 0;
+        private int count = 0;
+        private long[] timestamps;
+        private float[] values;
+        private int[] accuracies;
+        private long last_delivery = 0;
+
+        Subscription(String subscriber, int batch_size, int max_rate) {
+            this.subscriber = subscriber;
+            this.batch_size = Math.max(1, Math.min(batch_size, MAX_BATCH_SIZE));
+            this.min_interval = (max_rate > 0) ? 1000 / max_rate : 0;
+        }
+
+        /**
+         * @return true if a delivery is due
+         */
+        synchronized boolean add(int sensor_axes, long timestamp, float[] event_values, int accuracy) {
+            if (timestamps == null || axes != sensor_axes) {
+                axes = sensor_axes;
+                int capacity = (min_interval > 0) ? MAX_BATCH_SIZE : batch_size;
+                timestamps = new long[capacity];
+                values = new float[capacity * axes];
+                accuracies = new int[capacity];
+                count = 0;
+            }
+
+            int copy = Math.min(axes, event_values.length);
+            timestamps[count] = timestamp;
+            System.arraycopy(event_values, 0, values, count * axes, copy);
+            if (copy < axes) Arrays.fill(values, count * axes + copy, (count + 1) * axes, 0);
+            accuracies[count] = accuracy;
+            count++;
+
+            boolean due = (SystemClock.elapsedRealtime() - last_delivery) >= min_interval;
+            return (count >= batch_size && due) || count == timestamps.length;
+        }
+
+        /**
+         * @param force deliver even if the batch is not full
+         * @return pending samples, or null if nothing to deliver yet
+         */
+        synchronized Intent deliverPending(String sensor_action, boolean force) {
+            if (count == 0) return null;
+            if (!force && (SystemClock.elapsedRealtime() - last_delivery) < min_interval) return null;
+            return deliver(sensor_action);
+        }
+
+        synchronized boolean hasPending() {
+            return count > 0;
+        }
+
+        synchronized Intent deliver(String sensor_action) {
+            Intent samples = new Intent(ACTION_AWARE_SAMPLES);
+            samples.setPackage(subscriber);
+            samples.putExtra(EXTRA_SENSOR_ACTION, sensor_action);
+            samples.putExtra(EXTRA_COUNT, count);
+            samples.putExtra(EXTRA_AXES, axes);
+            samples.putExtra(EXTRA_TIMESTAMPS, Arrays.copyOf(timestamps, count));
+            samples.putExtra(EXTRA_VALUES, Arrays.copyOf(values, count * axes));
+            samples.putExtra(EXTRA_ACCURACIES, Arrays.copyOf(accuracies, count));
+            count = 0;
+            last_delivery = SystemClock.elapsedRealtime();
+            return samples;
+        }
+    }
+
+    private final Context context;
+    private final String sensor_action;
+    private final int axes;
+
+    private ScheduledFuture<?> timed_delivery;
+
+    private final Runnable timedDelivery = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (SampleBroadcaster.this) {
+                timed_delivery = null;
+            }
+            deliverPending(false);
+        }
+    };
+
+    /**
+     * @param context
+     * @param sensor_action the sensor's legacy ACTION_AWARE_* broadcast, which also names the sensor for subscriptions
+     * @param axes          values per sample
+     */
+    public SampleBroadcaster(Context context, String sensor_action, int axes) {
+        this.context = context.getApplicationContext();
+        this.sensor_action = sensor_action;
+        this.axes = axes;
+        listen(this.context);
+    }
+
+    /**
+     * Hand a sample to the subscribers, broadcasting to those whose batch is due. Call from the sensor thread.
+     *
+     * @param timestamp
+     * @param event_values
+     * @param accuracy
+     */
+    public void add(long timestamp, float[] event_values, int accuracy) {
+        ConcurrentHashMap<String, Subscription> sensor_subscriptions = subscriptions.get(sensor_action);
+        if (sensor_subscriptions == null || sensor_subscriptions.isEmpty()) return;
+
+        boolean pending = false;
+        for (Subscription subscription : sensor_subscriptions.values()) {
+            Intent samples = (subscription.add(axes, timestamp, event_values, accuracy)) ? subscription.deliverPending(sensor_action, true) : null;
+            if (samples != null) context.sendBroadcast(samples);
+            else if (subscription.hasPending()) pending = true;
+        }
+        if (pending) scheduleDelivery();
+    }
+
+    /**
+     * Deliver what is still batched, e.g., when the sensor stops
+     */
+    public void flush() {
+        synchronized (this) {
+            if (timed_delivery != null) {
+                timed_delivery.cancel(false);
+                timed_delivery = null;
+            }
+        }
+        deliverPending(true);
+    }
+
+    /**
+     * Make sure batches that don't fill up are delivered within MAX_LATENCY
+     */
+    private synchronized void scheduleDelivery() {
+        if (timed_delivery == null) timed_delivery = getTimer().schedule(timedDelivery, MAX_LATENCY, TimeUnit.MILLISECONDS);
+    }
+
+    private void deliverPending(boolean force) {
+        ConcurrentHashMap<String, Subscription> sensor_subscriptions = subscriptions.get(sensor_action);
+        if (sensor_subscriptions == null) return;
+
+        boolean pending = false;
+        for (Subscription subscription : sensor_subscriptions.values()) {
+            Intent samples = subscription.deliverPending(sensor_action, force);
+            if (samples != null) context.sendBroadcast(samples);
+            else if (subscription.hasPending()) pending = true; //rate limited, try again later
+        }
+        if (pending) scheduleDelivery();
+    }
+
+    /**
+     * @return true if the legacy per-sample ACTION_AWARE_* broadcast should be sent, i.e., Aware_Preferences.STATUS_SAMPLE_BROADCASTS is true
+     */
+    public boolean legacyBroadcasts() {
+        return Aware.getSetting(context, Aware_Preferences.STATUS_SAMPLE_BROADCASTS).equals("true");
+    }
+}
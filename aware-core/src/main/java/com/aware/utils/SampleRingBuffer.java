@@ -0,0 +1,125 @@
+package com.aware.utils;
+
+import android.content.ContentValues;
+
+/**
+ * Primitive-backed ring buffer for high-rate motion sensors (accelerometer, gyroscope, etc).<br/>
+ * Samples are kept in parallel long[]/float[]/int[] arrays, so nothing is allocated or boxed per event.
+ * ContentValues are only built when the buffer is drained to the content provider.
+ */
+public class SampleRingBuffer {
+
+    private final int capacity;
+    private final int axes;
+
+    private final long[] timestamps;
+    private final float[][] values;
+    private final int[] lengths;
+    private final int[] accuracies;
+    private final String[] labels;
+
+    private final String column_device_id;
+    private final String column_timestamp;
+    private final String[] column_values;
+    private final String column_accuracy;
+    private final String column_label;
+
+    private int head = 0;
+    private int size = 0;
+
+    /**
+     * @param capacity        how many samples we keep before a flush is due
+     * @param device_id       device_id column name
+     * @param timestamp       timestamp column name
+     * @param values          column names for values[0..n]
+     * @param accuracy        accuracy column name
+     * @param label           label column name
+     */
+    public SampleRingBuffer(int capacity, String device_id, String timestamp, String[] values, String accuracy, String label) {
+        this.capacity = capacity;
+        this.axes = values.length;
+
+        this.timestamps = new long[capacity];
+        this.values = new float[axes][capacity];
+        this.lengths = new int[capacity];
+        this.accuracies = new int[capacity];
+        this.labels = new String[capacity];
+
+        this.column_device_id = device_id;
+        this.column_timestamp = timestamp;
+        this.column_values = values;
+        this.column_accuracy = accuracy;
+        this.column_label = label;
+    }
+
+    /**
+     * Store a sample. When the buffer is already full, the oldest sample is overwritten.
+     *
+     * @param timestamp
+     * @param event_values SensorEvent.values
+     * @param accuracy
+     * @param label
+     * @return true if the buffer is full and should be drained
+     */
+    public synchronized boolean add(long timestamp, float[] event_values, int accuracy, String label) {
+        int tail = (head + size) % capacity;
+        if (size == capacity) {
+            head = (head + 1) % capacity;
+        } else {
+            size++;
+        }
+
+        int count = Math.min(event_values.length, axes);
+        timestamps[tail] = timestamp;
+        for (int i = 0; i < count; i++) {
+            values[i][tail] = event_values[i];
+        }
+        lengths[tail] = count;
+        accuracies[tail] = accuracy;
+        labels[tail] = label;
+
+        return size == capacity;
+    }
+
+    /**
+     * @return number of samples waiting to be stored
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * @return how many samples this buffer holds before a flush is due
+     */
+    public int capacity() {
+        return capacity;
+    }
+
+    /**
+     * Empties the buffer, building the rows for a content provider bulkInsert.
+     *
+     * @param device_id AWARE device ID to stamp the rows with
+     * @return rows, oldest first
+     */
+    public synchronized ContentValues[] drain(String device_id) {
+        ContentValues[] rows = new ContentValues[size];
+        for (int i = 0; i < size; i++) {
+            int index = (head + i) % capacity;
+
+            ContentValues rowData = new ContentValues();
+            rowData.put(column_device_id, device_id);
+            rowData.put(column_timestamp, timestamps[index]);
+            for (int j = 0; j < lengths[index]; j++) {
+                rowData.put(column_values[j], values[j][index]);
+            }
+            rowData.put(column_accuracy, accuracies[index]);
+            rowData.put(column_label, labels[index]);
+            rows[i] = rowData;
+
+            labels[index] = null;
+        }
+        head = 0;
+        size = 0;
+        return rows;
+    }
+}
@@ -0,0 +1,181 @@
+package com.aware.utils;
+
+/**
+ * In-process stream of sensor samples, for plugins bound to a sensor service (e.g., Accelerometer.ServiceBinder.getSampleStream()).<br/>
+ * The sensor thread is the only writer. It never blocks nor waits for readers: samples go into primitive arrays and are published with one volatile write.
+ * Each bound client reads with its own {@link Reader}, at its own pace, copying samples into its own arrays, without locks, broadcasts or database queries.
+ * <p>
+ * A reader that falls behind by more than {@link #history()} samples skips the oldest ones and counts them in {@link Reader#getLost()}.
+ * <p>
+ * Example:
+ * <pre>
+ * SampleStream.Reader reader = binder.getSampleStream().newReader();
+ * long[] timestamps = new long[128];
+ * float[] values = new float[128 * reader.axes()];
+ * int count = reader.read(timestamps, values, null);
+ * </pre>
+ */
+public class SampleStream {
+
+    private final int capacity;
+    private final int mask;
+    private final int axes;
+
+    private final long[] timestamps;
+    private final float[] values;
+    private final int[] accuracies;
+
+    /**
+     * Number of samples published so far. Slot (n & mask) holds sample n.
+     */
+    private volatile long published = 0;
+
+    /**
+     * @param capacity samples kept in memory, rounded up to a power of two
+     * @param axes     values per sample
+     */
+    public SampleStream(int capacity, int axes) {
+        int size = Integer.highestOneBit(Math.max(capacity, 16) - 1) << 1;
+        this.capacity = size;
+        this.mask = size - 1;
+        this.axes = axes;
+
+        this.timestamps = new long[size];
+        this.values = new float[size * axes];
+        this.accuracies = new int[size];
+    }
+
+    /**
+     * @return values per sample
+     */
+    public int axes() {
+        return axes;
+    }
+
+    /**
+     * Samples a reader can fall behind before it loses any. A quarter of the ring is left to the writer,
+     * so a reader never copies a slot while it is being overwritten.
+     *
+     * @return samples
+     */
+    public int history() {
+        return capacity - (capacity >> 2);
+    }
+
+    /**
+     * @return number of samples published since the stream was created
+     */
+    public long getPublished() {
+        return published;
+    }
+
+    /**
+     * Add a sample. Only call from the sensor thread.
+     *
+     * @param timestamp
+     * @param event_values SensorEvent.values, padded with 0 or cut to axes()
+     * @param accuracy
+     */
+    public void publish(long timestamp, float[] event_values, int accuracy) {
+        long sequence = published;
+        int slot = (int) (sequence & mask);
+        int offset = slot * axes;
+        int count = Math.min(event_values.length, axes);
+
+        timestamps[slot] = timestamp;
+        System.arraycopy(event_values, 0, values, offset, count);
+        for (int i = count; i < axes; i++) values[offset + i] = 0;
+        accuracies[slot] = accuracy;
+
+        published = sequence + 1;
+    }
+
+    /**
+     * @return a reader that starts with the next sample published
+     */
+    public Reader newReader() {
+        return new Reader(published);
+    }
+
+    /**
+     * One client's position in the stream. Not thread-safe: use one reader per consuming thread.
+     */
+    public class Reader {
+
+        private long cursor;
+        private long lost = 0;
+
+        private Reader(long cursor) {
+            this.cursor = cursor;
+        }
+
+        /**
+         * @return values per sample
+         */
+        public int axes() {
+            return axes;
+        }
+
+        /**
+         * @return samples waiting to be read
+         */
+        public int available() {
+            long head = published;
+            return (int) (head - Math.max(cursor, head - history()));
+        }
+
+        /**
+         * @return samples that were overwritten before this reader got to them
+         */
+        public long getLost() {
+            return lost;
+        }
+
+        /**
+         * Skip everything published so far
+         */
+        public void skipToLatest() {
+            cursor = published;
+        }
+
+        /**
+         * Copy the next samples, oldest first.
+         *
+         * @param out_timestamps receives up to out_timestamps.length samples
+         * @param out_values     interleaved values, sample i, axis j = out_values[i * axes() + j]. Must hold out_timestamps.length * axes() floats.
+         * @param out_accuracies may be null
+         * @return number of samples copied
+         */
+        public int read(long[] out_timestamps, float[] out_values, int[] out_accuracies) {
+            if (out_values.length < out_timestamps.length * axes) {
+                throw new IllegalArgumentException("out_values must hold " + (out_timestamps.length * axes) + " floats");
+            }
+
+            long head = published;
+            long start = Math.max(cursor, head - history());
+            int count = (int) Math.min(head - start, out_timestamps.length);
+            if (count <= 0) return 0;
+
+            for (int i = 0; i < count; i++) {
+                int slot = (int) ((start + i) & mask);
+                out_timestamps[i] = timestamps[slot];
+                System.arraycopy(values, slot * axes, out_values, i * axes, axes);
+                if (out_accuracies != null) out_accuracies[i] = accuracies[slot];
+            }
+
+            //Drop what the writer may have overwritten while we were copying
+            long oldest = published - history();
+            int stale = (int) Math.max(0, Math.min(count, oldest - start));
+            if (stale > 0) {
+                count -= stale;
+                System.arraycopy(out_timestamps, stale, out_timestamps, 0, count);
+                System.arraycopy(out_values, stale * axes, out_values, 0, count * axes);
+                if (out_accuracies != null) System.arraycopy(out_accuracies, stale, out_accuracies, 0, count);
+            }
+
+            lost += (start - cursor) + stale;
+            cursor = start + stale + count;
+            return count;
+        }
+    }
+}
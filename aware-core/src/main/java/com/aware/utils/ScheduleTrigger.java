@@ -0,0 +1,285 @@
+package com.aware.utils;
+
+import java.util.Calendar;
+import java.util.Random;
+
+/**
+ * A {@link Scheduler.Schedule}'s time trigger, compiled once into its next fire time, so the {@link Scheduler} can keep them in a priority queue
+ * (earliest first) and only wake up when the earliest one is due.<br/>
+ * - timer: once, at the given time<br/>
+ * - minute, hour, weekday, month: at the start of the next minute/hour/day/month where all the given ones match (e.g., hour 9 and Monday: Mondays at 9:00)<br/>
+ * - interval: every X minutes since it was last triggered<br/>
+ * With random, one of the given values is picked for each fire.
+ */
+public class ScheduleTrigger implements Comparable<ScheduleTrigger> {
+
+    /**
+     * How late a trigger may still fire (e.g., the device was off). Any later, it is skipped.
+     */
+    public static final long GRACE = 5 * 60 * 1000;
+
+    /**
+     * Calendar steps when looking for the next match, before giving up (e.g., hour 25 never matches)
+     */
+    private static final int MAX_STEPS = 10000;
+
+    private final Scheduler.Schedule schedule;
+    private final String schedule_id;
+
+    private long timer = -1;
+    private long interval = 0;
+    private int[] minutes = new int[0];
+    private int[] hours = new int[0];
+    private int[] weekdays = new int[0];
+    private int[] months = new int[0];
+    private boolean random_minute, random_hour, random_weekday, random_month;
+
+    private long last_triggered;
+    private long fire_at = -1;
+    private long expires_at = -1;
+
+    /**
+     * @param schedule       the schedule to perform when due
+     * @param schedule_id
+     * @param last_triggered when it was last triggered, 0 if never
+     */
+    public ScheduleTrigger(Scheduler.Schedule schedule, String schedule_id, long last_triggered) {
+        this.schedule = schedule;
+        this.schedule_id = schedule_id;
+        this.last_triggered = last_triggered;
+    }
+
+    /**
+     * @param timer unix timestamp, -1 if none
+     */
+    public ScheduleTrigger setTimer(long timer) {
+        this.timer = timer;
+        return this;
+    }
+
+    /**
+     * @param minutes 0 if none
+     */
+    public ScheduleTrigger setInterval(long minutes) {
+        this.interval = minutes;
+        return this;
+    }
+
+    /**
+     * @param minutes 0-59
+     * @param random  pick one of them for each fire
+     */
+    public ScheduleTrigger setMinutes(int[] minutes, boolean random) {
+        this.minutes = minutes;
+        this.random_minute = random;
+        return this;
+    }
+
+    /**
+     * @param hours  0-23
+     * @param random pick one of them for each fire
+     */
+    public ScheduleTrigger setHours(int[] hours, boolean random) {
+        this.hours = hours;
+        this.random_hour = random;
+        return this;
+    }
+
+    /**
+     * @param weekdays Calendar.SUNDAY,...,Calendar.SATURDAY
+     * @param random   pick one of them for each fire
+     */
+    public ScheduleTrigger setWeekdays(int[] weekdays, boolean random) {
+        this.weekdays = weekdays;
+        this.random_weekday = random;
+        return this;
+    }
+
+    /**
+     * @param months Calendar.JANUARY,...,Calendar.DECEMBER
+     * @param random pick one of them for each fire
+     */
+    public ScheduleTrigger setMonths(int[] months, boolean random) {
+        this.months = months;
+        this.random_month = random;
+        return this;
+    }
+
+    public Scheduler.Schedule getSchedule() {
+        return schedule;
+    }
+
+    public String getScheduleID() {
+        return schedule_id;
+    }
+
+    /**
+     * @return when it is due, -1 if never
+     */
+    public long getFireTime() {
+        return fire_at;
+    }
+
+    /**
+     * @return after this, it is too late to fire
+     */
+    public long getExpireTime() {
+        return expires_at;
+    }
+
+    /**
+     * It was performed: the next fire time is counted from now
+     *
+     * @param now
+     */
+    public void triggered(long now) {
+        last_triggered = now;
+    }
+
+    /**
+     * Compute the next fire time
+     *
+     * @param now
+     * @param random for random minute/hour/weekday/month
+     * @return false if it will not fire again
+     */
+    public boolean schedule(long now, Random random) {
+        fire_at = -1;
+        expires_at = -1;
+
+        int unit = getUnit();
+        if (timer != -1) {
+            if (last_triggered == 0 && now < timer + GRACE) {
+                fire_at = timer;
+                expires_at = timer + GRACE;
+            }
+        } else if (unit != -1) {
+            int[] minute = (minutes.length > 0) ? pick(minutes, random_minute, random) : (unit == Calendar.MINUTE) ? null : new int[]{0};
+            int[] hour = (hours.length > 0) ? pick(hours, random_hour, random) : (unit == Calendar.MINUTE || unit == Calendar.HOUR_OF_DAY) ? null : new int[]{0};
+            int[] weekday = (weekdays.length > 0) ? pick(weekdays, random_weekday, random) : null;
+            int[] month = (months.length > 0) ? pick(months, random_month, random) : null;
+
+            long next = nextMatch((last_triggered != 0) ? last_triggered : now - getSpan(unit), unit, minute, hour, weekday, month);
+            if (next != -1 && getExpireTime(next, unit) <= now) { //missed it: skip to the current one, or the next one
+                next = nextMatch(now - getSpan(unit), unit, minute, hour, weekday, month);
+                while (next != -1 && getExpireTime(next, unit) <= now) {
+                    next = nextMatch(next, unit, minute, hour, weekday, month);
+                }
+            }
+            if (next != -1) {
+                fire_at = next;
+                expires_at = getExpireTime(next, unit);
+            }
+        } else if (interval > 0) {
+            fire_at = (last_triggered == 0) ? now : last_triggered + interval * 60 * 1000;
+            expires_at = Long.MAX_VALUE;
+        }
+        return fire_at != -1;
+    }
+
+    /**
+     * @return the finest calendar field given (Calendar.MINUTE, HOUR_OF_DAY, DAY_OF_MONTH or MONTH), -1 if none
+     */
+    private int getUnit() {
+        if (minutes.length > 0) return Calendar.MINUTE;
+        if (hours.length > 0) return Calendar.HOUR_OF_DAY;
+        if (weekdays.length > 0) return Calendar.DAY_OF_MONTH;
+        if (months.length > 0) return Calendar.MONTH;
+        return -1;
+    }
+
+    /**
+     * @return how far back a fire may have been and still be current
+     */
+    private static long getSpan(int unit) {
+        switch (unit) {
+            case Calendar.MINUTE:
+                return GRACE;
+            case Calendar.HOUR_OF_DAY:
+                return 60 * 60 * 1000;
+            case Calendar.DAY_OF_MONTH:
+                return 25 * 60 * 60 * 1000; //daylight saving days
+            default:
+                return 31L * 24 * 60 * 60 * 1000;
+        }
+    }
+
+    /**
+     * @return end of the fire's minute/hour/day/month, and no sooner than GRACE
+     */
+    private static long getExpireTime(long fire_at, int unit) {
+        Calendar end = Calendar.getInstance();
+        end.setTimeInMillis(fire_at);
+        end.add(unit, 1);
+        return Math.max(end.getTimeInMillis(), fire_at + GRACE);
+    }
+
+    private static int[] pick(int[] values, boolean random_pick, Random random) {
+        if (!random_pick || values.length < 2) return values;
+        return new int[]{values[random.nextInt(values.length)]};
+    }
+
+    private static boolean allows(int[] values, int value) {
+        if (values == null) return true;
+        for (int allowed : values) {
+            if (allowed == value) return true;
+        }
+        return false;
+    }
+
+    /**
+     * First minute after the given time where the calendar fields match, skipping ahead a month/day/hour at a time when a coarser field does not match
+     *
+     * @param after
+     * @param unit    finest field given. If Calendar.MONTH, only the first day of the month matches.
+     * @param minute  allowed minutes, null if any
+     * @param hour    allowed hours, null if any
+     * @param weekday allowed weekdays, null if any
+     * @param month   allowed months, null if any
+     * @return unix timestamp, -1 if none
+     */
+    private static long nextMatch(long after, int unit, int[] minute, int[] hour, int[] weekday, int[] month) {
+        Calendar next = Calendar.getInstance();
+        next.setTimeInMillis(after);
+        next.set(Calendar.SECOND, 0);
+        next.set(Calendar.MILLISECOND, 0);
+        next.add(Calendar.MINUTE, 1);
+
+        for (int step = 0; step < MAX_STEPS; step++) {
+            if (!allows(month, next.get(Calendar.MONTH))) {
+                next.add(Calendar.MONTH, 1);
+                next.set(Calendar.DAY_OF_MONTH, 1);
+                next.set(Calendar.HOUR_OF_DAY, 0);
+                next.set(Calendar.MINUTE, 0);
+                continue;
+            }
+            if ((unit == Calendar.MONTH && next.get(Calendar.DAY_OF_MONTH) != 1) || !allows(weekday, next.get(Calendar.DAY_OF_WEEK))) {
+                next.add(Calendar.DAY_OF_MONTH, 1);
+                next.set(Calendar.HOUR_OF_DAY, 0);
+                next.set(Calendar.MINUTE, 0);
+                continue;
+            }
+            if (!allows(hour, next.get(Calendar.HOUR_OF_DAY))) {
+                next.add(Calendar.HOUR_OF_DAY, 1);
+                next.set(Calendar.MINUTE, 0);
+                continue;
+            }
+            if (!allows(minute, next.get(Calendar.MINUTE))) {
+                next.add(Calendar.MINUTE, 1);
+                continue;
+            }
+            return next.getTimeInMillis();
+        }
+        return -1;
+    }
+
+    @Override
+    public int compareTo(ScheduleTrigger another) {
+        return (fire_at < another.fire_at) ? -1 : ((fire_at == another.fire_at) ? 0 : 1);
+    }
+
+    @Override
+    public String toString() {
+        return schedule_id + " at " + fire_at;
+    }
+}
@@ -1,5 +1,7 @@
 package com.aware.utils;
 
+import android.app.AlarmManager;
+import android.app.PendingIntent;
 import android.app.Service;
 import android.content.BroadcastReceiver;
 import android.content.ComponentName;
@@ -8,8 +10,8 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.database.Cursor;
+import android.os.Build;
 import android.os.IBinder;
-import android.os.SystemClock;
 import android.util.Log;
 
 import com.aware.Aware;
@@ -23,10 +25,16 @@ import org.json.JSONObject;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Hashtable;
-import java.util.Iterator;
 import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
 import java.util.Random;
 
+/**
+ * Performs the saved {@link Schedule}s of this package.<br/>
+ * Time triggers are compiled once into {@link ScheduleTrigger}s, kept in a priority queue (earliest first), and one exact alarm wakes us up for the earliest.
+ * The queue is rebuilt only when schedules are saved or removed, or the clock changes. Contextual triggers are performed when their broadcasts are received.
+ */
 public class Scheduler extends Service {
 
     private static String TAG = "AWARE::Scheduler";
@@ -71,12 +79,44 @@ public class Scheduler extends Service {
     //String is the scheduler ID, and hashtable contains list of intentfilters and broadcastreceivers
     private static final Hashtable<String, Hashtable<IntentFilter, BroadcastReceiver>> schedulerListeners = new Hashtable<>();
 
+    //Time triggers, earliest first
+    private static final PriorityQueue<ScheduleTrigger> triggers = new PriorityQueue<>();
+    private static volatile boolean triggers_changed = true;
+    private static final Random random = new Random();
+
+    /**
+     * The clock or timezone changed: fire times need to be computed again
+     */
+    private final BroadcastReceiver clockChanged = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            triggers_changed = true;
+            startService(new Intent(getApplicationContext(), Scheduler.class));
+        }
+    };
+
     @Override
     public void onCreate() {
         super.onCreate();
+
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(Intent.ACTION_TIME_CHANGED);
+        filter.addAction(Intent.ACTION_TIMEZONE_CHANGED);
+        registerReceiver(clockChanged, filter);
+
         if (Aware.DEBUG) Log.d(TAG, "Scheduler is created");
     }
 
+    /**
+     * Schedules changed: rebuild the queue of triggers and set the alarm again
+     *
+     * @param context
+     */
+    private static void reschedule(Context context) {
+        triggers_changed = true;
+        context.startService(new Intent(context, Scheduler.class));
+    }
+
     /**
      * Save the defined scheduled task
      *
@@ -99,12 +139,17 @@ public class Scheduler extends Service {
             data.put(Scheduler_Provider.Scheduler_Data.PACKAGE_NAME, (is_global) ? "com.aware.phone" : context.getPackageName());
 
             Cursor schedules = context.getContentResolver().query(Scheduler_Provider.Scheduler_Data.CONTENT_URI, null, Scheduler_Provider.Scheduler_Data.SCHEDULE_ID + " LIKE '" + schedule.getScheduleID() + "' AND " + Scheduler_Provider.Scheduler_Data.PACKAGE_NAME + " LIKE '" + context.getPackageName() + "'", null, null);
-            if (schedules != null && schedules.getCount() == 1) {
-                Log.d(Aware.TAG, "Updating already existing schedule...");
-                context.getContentResolver().update(Scheduler_Provider.Scheduler_Data.CONTENT_URI, data, Scheduler_Provider.Scheduler_Data.SCHEDULE_ID + " LIKE '" + schedule.getScheduleID() + "' AND " + Scheduler_Provider.Scheduler_Data.PACKAGE_NAME + " LIKE '" + ((is_global) ? "com.aware.phone" : context.getPackageName()) + "'", null);
+            if (schedules != null && schedules.getCount() == 1 && schedules.moveToFirst()) {
+                //unchanged (e.g., saved again at every watchdog check): keep its queued trigger
+                if (!data.getAsString(Scheduler_Provider.Scheduler_Data.SCHEDULE).equals(schedules.getString(schedules.getColumnIndex(Scheduler_Provider.Scheduler_Data.SCHEDULE)))) {
+                    Log.d(Aware.TAG, "Updating already existing schedule...");
+                    context.getContentResolver().update(Scheduler_Provider.Scheduler_Data.CONTENT_URI, data, Scheduler_Provider.Scheduler_Data.SCHEDULE_ID + " LIKE '" + schedule.getScheduleID() + "' AND " + Scheduler_Provider.Scheduler_Data.PACKAGE_NAME + " LIKE '" + ((is_global) ? "com.aware.phone" : context.getPackageName()) + "'", null);
+                    reschedule(context);
+                }
             } else {
                 Log.d(Aware.TAG, "New schedule: " + data.toString());
                 context.getContentResolver().insert(Scheduler_Provider.Scheduler_Data.CONTENT_URI, data);
+                reschedule(context);
             }
             if (schedules != null && !schedules.isClosed()) schedules.close();
 
@@ -127,7 +172,8 @@ public class Scheduler extends Service {
 
         boolean is_global = global_settings.contains(schedule_id);
 
-        context.getContentResolver().delete(Scheduler_Provider.Scheduler_Data.CONTENT_URI, Scheduler_Provider.Scheduler_Data.SCHEDULE_ID + " LIKE '" + schedule_id + "' AND " + Scheduler_Provider.Scheduler_Data.PACKAGE_NAME + " LIKE '" + ((is_global) ? "com.aware.phone" : context.getPackageName()) + "'", null);
+        int removed = context.getContentResolver().delete(Scheduler_Provider.Scheduler_Data.CONTENT_URI, Scheduler_Provider.Scheduler_Data.SCHEDULE_ID + " LIKE '" + schedule_id + "' AND " + Scheduler_Provider.Scheduler_Data.PACKAGE_NAME + " LIKE '" + ((is_global) ? "com.aware.phone" : context.getPackageName()) + "'", null);
+        if (removed > 0) reschedule(context);
     }
 
     /**
@@ -445,9 +491,48 @@ public class Scheduler extends Service {
 
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
+        synchronized (triggers) {
+            if (triggers_changed) loadSchedules();
+
+            long now = System.currentTimeMillis();
+            ScheduleTrigger next = triggers.peek();
+            while (next != null && next.getFireTime() <= now) {
+                triggers.poll();
+                if (now < next.getExpireTime()) {
+                    if (Aware.DEBUG) Log.d(Aware.TAG, "Triggering scheduled task: " + next.getScheduleID());
+                    performAction(next.getSchedule());
+                    next.triggered(now);
+                } else {
+                    if (Aware.DEBUG) Log.d(TAG, "Missed scheduled task: " + next.getScheduleID() + ", waiting for the next one");
+                }
+                if (next.schedule(now, random)) triggers.offer(next);
+                next = triggers.peek();
+            }
+            setAlarm(next);
+        }
+        return super.onStartCommand(intent, flags, startId);
+    }
 
-        if (Aware.DEBUG) Log.d(TAG, "Checking for scheduled tasks: " + getPackageName());
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        unregisterReceiver(clockChanged);
+        unregisterListeners();
+
+        AlarmManager alarmManager = (AlarmManager) getSystemService(ALARM_SERVICE);
+        alarmManager.cancel(getAlarmIntent());
+        triggers_changed = true;
+    }
+
+    /**
+     * Compile this package's schedules into the queue of triggers, and listen for the contextual ones
+     */
+    private void loadSchedules() {
+        triggers_changed = false;
+        triggers.clear();
+        unregisterListeners();
 
+        long now = System.currentTimeMillis();
         Cursor scheduled_tasks = getContentResolver().query(Scheduler_Provider.Scheduler_Data.CONTENT_URI, null, Scheduler_Provider.Scheduler_Data.PACKAGE_NAME + " LIKE '" + getPackageName() + "'", null, Scheduler_Provider.Scheduler_Data.TIMESTAMP + " ASC");
         if (scheduled_tasks != null && scheduled_tasks.moveToFirst()) {
             if (Aware.DEBUG)
@@ -458,42 +543,11 @@ public class Scheduler extends Service {
                     schedule.rebuild(new JSONObject(scheduled_tasks.getString(scheduled_tasks.getColumnIndex(Scheduler_Provider.Scheduler_Data.SCHEDULE))));
 
                     if (schedule.getContexts().length() > 0) {
-                        if (!schedulerListeners.containsKey(schedule.getScheduleID())) {
-
-                            final JSONArray contexts = schedule.getContexts();
-
-                            IntentFilter filter = new IntentFilter();
-                            for (int i = 0; i < contexts.length(); i++) {
-                                String context = contexts.getString(i);
-                                filter.addAction(context);
-                            }
-
-                            BroadcastReceiver listener = new BroadcastReceiver() {
-                                @Override
-                                public void onReceive(Context context, Intent intent) {
-                                    if (is_trigger(schedule)) {
-                                        if (Aware.DEBUG)
-                                            Log.d(Aware.TAG, "Received contextual trigger: " + contexts.toString());
-                                        performAction(schedule);
-                                    }
-                                }
-                            };
-
-                            Hashtable<IntentFilter, BroadcastReceiver> scheduler_listener = new Hashtable<>();
-                            scheduler_listener.put(filter, listener);
-                            schedulerListeners.put(schedule.getScheduleID(), scheduler_listener);
-
-                            registerReceiver(listener, filter);
-
-                            if (Aware.DEBUG)
-                                Log.d(Aware.TAG, "Registered a contextual trigger for " + contexts.toString());
-                        }
+                        registerListener(schedule);
                     } else {
-                        if (is_trigger(schedule)) {
-                            if (Aware.DEBUG)
-                                Log.d(Aware.TAG, "Triggering scheduled task: " + schedule.toString());
-                            performAction(schedule);
-                        }
+                        long last_triggered = scheduled_tasks.getLong(scheduled_tasks.getColumnIndex(Scheduler_Provider.Scheduler_Data.LAST_TRIGGERED));
+                        ScheduleTrigger trigger = compile(schedule, last_triggered);
+                        if (trigger.schedule(now, random)) triggers.offer(trigger);
                     }
                 } catch (JSONException e) {
                     e.printStackTrace();
@@ -503,369 +557,136 @@ public class Scheduler extends Service {
             if (Aware.DEBUG) Log.d(TAG, "No scheduled tasks for " + getPackageName());
         }
         if (scheduled_tasks != null && !scheduled_tasks.isClosed()) scheduled_tasks.close();
-
-        return super.onStartCommand(intent, flags, startId);
-    }
-
-    @Override
-    public void onDestroy() {
-        super.onDestroy();
-        for (String schedule_id : schedulerListeners.keySet()) {
-            Hashtable<IntentFilter, BroadcastReceiver> scheduled = schedulerListeners.get(schedule_id);
-            for (IntentFilter filter : scheduled.keySet()) {
-                try {
-                    unregisterReceiver(scheduled.get(filter));
-                } catch (NullPointerException e) {
-                    e.printStackTrace();
-                }
-            }
-        }
-    }
-
-    private boolean is_trigger(Schedule schedule) {
-        Calendar now = Calendar.getInstance();
-        now.setTimeInMillis(System.currentTimeMillis());
-
-        try {
-            //Context schedulers do not have time constrains and it is handled by the broadcast receiver
-            if (schedule.getContexts().length() > 0) {
-                return true;
-            }
-
-            //Has this scheduler been triggered before?
-            long last_triggered = 0;
-            Cursor last_time_triggered = getContentResolver().query(Scheduler_Provider.Scheduler_Data.CONTENT_URI, new String[]{Scheduler_Provider.Scheduler_Data.LAST_TRIGGERED}, Scheduler_Provider.Scheduler_Data.SCHEDULE_ID + " LIKE '" + schedule.getScheduleID() + "'", null, null);
-            if (last_time_triggered != null && last_time_triggered.moveToFirst()) {
-                last_triggered = last_time_triggered.getLong(last_time_triggered.getColumnIndex(Scheduler_Provider.Scheduler_Data.LAST_TRIGGERED));
-                last_time_triggered.close();
-            }
-
-            // This is a scheduled task with a set timestamp.
-            // We trigger it within a 5 minute interval (before & after). The framework checks this at inexact 5 minutes
-            if (schedule.getTimer() != -1 && last_triggered == 0) { //not been triggered yet
-                if (Aware.DEBUG)
-                    Log.d(Aware.TAG, "Checking trigger set for a specific timestamp: " + schedule.getTimer());
-                if ( Math.abs(now.getTimeInMillis()-schedule.getTimer()) < 5 * 60 * 1000)
-                    return true; //trigger within a 5-minute window
-            }
-
-            Calendar previous = null;
-            if (last_triggered != 0) {
-                previous = Calendar.getInstance();
-                previous.setTimeInMillis(last_triggered);
-            }
-
-            boolean execute = false;
-
-            if (schedule.getInterval() > 0 && previous == null) {
-                execute = true;
-            } else if (schedule.getInterval() > 0 && previous != null) {
-                execute = is_interval_elapsed(now, previous, schedule.getInterval());
-            }
-            if (Aware.DEBUG)
-                Log.d(Aware.TAG, "Trigger interval: " + execute);
-
-            if (schedule.getMinutes().length() > 0) {
-                if (previous != null && is_same_minute_hour(now, previous)) {
-                    execute = false;
-                } else
-                    execute = is_trigger_minute(schedule);
-            }
-            if (Aware.DEBUG)
-                Log.d(Aware.TAG, "Trigger minute: " + execute);
-
-            if (schedule.getHours().length() > 0) {
-                if (previous != null && is_same_hour_day(now, previous)) {
-                    execute = false;
-                } else
-                    execute = is_trigger_hour(schedule);
-            }
-            if (Aware.DEBUG)
-                Log.d(Aware.TAG, "Trigger hour: " + execute);
-
-            if (schedule.getWeekdays().length() > 0) {
-                if (previous != null && is_same_weekday(now, previous)) {
-                    execute = false;
-                } else
-                    execute = is_trigger_weekday(schedule);
-            }
-            if (Aware.DEBUG)
-                Log.d(Aware.TAG, "Trigger weekday: " + execute);
-
-            if (schedule.getMonths().length() > 0) {
-                if (previous != null && is_same_month(now, previous)) {
-                    execute = false;
-                } else
-                    execute = is_trigger_month(schedule);
-            }
-            if (Aware.DEBUG)
-                Log.d(Aware.TAG, "Trigger month: " + execute);
-
-            return execute;
-//            if (schedule.getInterval() > 0
-//                    && schedule.getMinutes().length() == 0 && schedule.getHours().length() == 0
-//                    && schedule.getWeekdays().length() == 0 && schedule.getMonths().length() == 0
-//            ) {
-//                if (Aware.DEBUG)
-//                    Log.d(Aware.TAG, "Checking trigger interval, regardless of minute, hour, weekday or month");
-//                if (previous == null) return true;
-//                return is_interval_elapsed(now, previous, schedule.getInterval());
-//            } //triggered at the given minutes, regardless of hour, weekday or month
-//            else if (schedule.getMinutes().length() > 0 && schedule.getHours().length() == 0 && schedule.getWeekdays().length() == 0 && schedule.getMonths().length() == 0) {
-//                if (Aware.DEBUG)
-//                    Log.d(Aware.TAG, "Checking trigger at given minute, regardless of hour, weekday or month");
-//                if (previous != null && is_same_minute_hour(now, previous)) return false;
-//                return is_trigger_minute(schedule);
-//            } //triggered at the given hours, regardless of weekday or month
-//            else if (schedule.getHours().length() > 0 && schedule.getWeekdays().length() == 0 && schedule.getMonths().length() == 0) {
-//                if (Aware.DEBUG)
-//                    Log.d(Aware.TAG, "Checking trigger at given hour, regardless of weekday or month");
-//                if (previous != null && is_same_hour_day(now, previous)) return false;
-//                return is_trigger_hour(schedule);
-//            } //triggered at given hours and week day
-//            else if (schedule.getHours().length() > 0 && schedule.getWeekdays().length() > 0 && schedule.getMonths().length() == 0) {
-//                if (Aware.DEBUG) Log.d(Aware.TAG, "Checking trigger at given hour, and weekday");
-//                if (previous != null && is_same_hour_day(now, previous) && is_same_weekday(now, previous))
-//                    return false;
-//                return is_trigger_hour(schedule) && is_trigger_weekday(schedule);
-//                //triggered at given hours, week day and month
-//            } else if (schedule.getHours().length() > 0 && schedule.getWeekdays().length() > 0 && schedule.getMonths().length() > 0) {
-//                if (Aware.DEBUG)
-//                    Log.d(Aware.TAG, "Checking trigger at given hour, weekday and month");
-//                if (previous != null && is_same_hour_day(now, previous) && is_same_weekday(now, previous) && is_same_month(now, previous))
-//                    return false;
-//                return is_trigger_hour(schedule) && is_trigger_weekday(schedule) && is_trigger_month(schedule);
-//                //triggered at given weekday, regardless of time or month
-//            } else if (schedule.getHours().length() == 0 && schedule.getWeekdays().length() > 0 && schedule.getMonths().length() == 0) {
-//                if (Aware.DEBUG)
-//                    Log.d(Aware.TAG, "Checking trigger at given weekday, regardless of hour or month");
-//                if (previous != null && is_same_weekday(now, previous)) return false;
-//                return is_trigger_weekday(schedule);
-//                //triggered at given weekday and month
-//            } else if (schedule.getHours().length() == 0 && schedule.getWeekdays().length() > 0 && schedule.getMonths().length() > 0) {
-//                if (Aware.DEBUG) Log.d(Aware.TAG, "Checking trigger at given weekday, and month");
-//                if (previous != null && is_same_weekday(now, previous) && is_same_month(now, previous))
-//                    return false;
-//                return is_trigger_weekday(schedule) && is_trigger_month(schedule);
-//                //triggered at given month
-//            } else if (schedule.getHours().length() == 0 && schedule.getWeekdays().length() == 0 && schedule.getMonths().length() > 0) {
-//                if (Aware.DEBUG) Log.d(Aware.TAG, "Checking trigger at given month");
-//                if (previous != null && is_same_month(now, previous)) return false;
-//                return is_trigger_month(schedule);
-//                //Triggered at given hour and months
-//            } else if (schedule.getHours().length() > 0 && schedule.getWeekdays().length() == 0 && schedule.getMonths().length() > 0) {
-//                if (Aware.DEBUG) Log.d(Aware.TAG, "Checking trigger at given hour and month");
-//                if (previous != null && is_same_hour_day(now, previous) && is_same_month(now, previous))
-//                    return false;
-//                return is_trigger_hour(schedule) && is_trigger_month(schedule);
-//            }
-        } catch (JSONException e) {
-            e.printStackTrace();
-        }
-        return false;
-    }
-
-    private boolean is_interval_elapsed(Calendar date_one, Calendar date_two, long required_minutes) {
-        long elapsed = (date_one.getTimeInMillis()-date_two.getTimeInMillis())/1000/60;
-        if (Aware.DEBUG)
-            Log.d(Aware.TAG, "Checking interval elapsed: " + elapsed + " vs " + required_minutes + " minutes elapsed");
-        return (elapsed >= required_minutes);
-    }
-
-    private boolean is_same_minute_hour(Calendar date_one, Calendar date_two) {
-        return date_one.get(Calendar.YEAR) == date_two.get(Calendar.YEAR)
-                && date_one.get(Calendar.DAY_OF_YEAR) == date_two.get(Calendar.DAY_OF_YEAR)
-                && date_one.get(Calendar.HOUR_OF_DAY) == date_two.get(Calendar.HOUR_OF_DAY)
-                && date_one.get(Calendar.MINUTE) == date_two.get(Calendar.MINUTE);
-    }
-
-    private boolean is_same_hour_day(Calendar date_one, Calendar date_two) {
-        return date_one.get(Calendar.YEAR) == date_two.get(Calendar.YEAR)
-                && date_one.get(Calendar.DAY_OF_YEAR) == date_two.get(Calendar.DAY_OF_YEAR)
-                && date_one.get(Calendar.HOUR_OF_DAY) == date_two.get(Calendar.HOUR_OF_DAY);
-    }
-
-    private boolean is_same_weekday(Calendar date_one, Calendar date_two) {
-        return date_one.get(Calendar.YEAR) == date_two.get(Calendar.YEAR)
-                && date_one.get(Calendar.WEEK_OF_YEAR) == date_two.get(Calendar.WEEK_OF_YEAR)
-                && date_one.get(Calendar.DAY_OF_WEEK) == date_two.get(Calendar.DAY_OF_WEEK);
-    }
-
-    private boolean is_same_month(Calendar date_one, Calendar date_two) {
-        return date_one.get(Calendar.YEAR) == date_two.get(Calendar.YEAR)
-                && date_one.get(Calendar.MONTH) == date_two.get(Calendar.MONTH);
     }
 
     /**
-     * Check if this trigger should be triggered at this minute
+     * Compile a schedule's time trigger
      *
      * @param schedule
+     * @param last_triggered
      * @return
+     * @throws JSONException
      */
-    private boolean is_trigger_minute(Schedule schedule) {
-        if (Aware.DEBUG) Log.d(Aware.TAG, "Checking minute matching");
-
-        Calendar now = Calendar.getInstance();
-        now.setTimeInMillis(System.currentTimeMillis());
-
-        try {
-            JSONArray minutes = schedule.getMinutes();
-
-            if (schedule.getRandom().optBoolean(RANDOM_MINUTE)) {
-
-                Random random = new Random();
-                int random_minute = minutes.getInt(random.nextInt(minutes.length()));
-
-                if (Aware.DEBUG)
-                    Log.d(Aware.TAG, "Random minute " + random_minute + " vs now " + now.get(Calendar.MINUTE) + " in trigger minutes: " + minutes.toString());
-
-                if (random_minute == now.get(Calendar.MINUTE)) return true;
-
-            } else {
-                for (int i = 0; i < minutes.length(); i++) {
-                    int minute = minutes.getInt(i);
-
-                    if (Aware.DEBUG)
-                        Log.d(Aware.TAG, "Minute " + minute + " vs now " + now.get(Calendar.MINUTE) + " in trigger minutes: " + minutes.toString());
-
-                    if (now.get(Calendar.MINUTE) == minute) return true;
-                }
-            }
-        } catch (JSONException e) {
-            e.printStackTrace();
-        }
+    private static ScheduleTrigger compile(Schedule schedule, long last_triggered) throws JSONException {
+        JSONObject random = schedule.getRandom();
+        return new ScheduleTrigger(schedule, schedule.getScheduleID(), last_triggered)
+                .setTimer(schedule.getTimer())
+                .setInterval(schedule.getInterval())
+                .setMinutes(toValues(schedule.getMinutes()), random.optBoolean(RANDOM_MINUTE))
+                .setHours(toValues(schedule.getHours()), random.optBoolean(RANDOM_HOUR))
+                .setWeekdays(toCalendarValues(schedule.getWeekdays(), Calendar.DAY_OF_WEEK), random.optBoolean(RANDOM_WEEKDAY))
+                .setMonths(toCalendarValues(schedule.getMonths(), Calendar.MONTH), random.optBoolean(RANDOM_MONTH));
+    }
 
-        return false;
+    private static int[] toValues(JSONArray numbers) throws JSONException {
+        int[] values = new int[numbers.length()];
+        for (int i = 0; i < numbers.length(); i++) values[i] = numbers.getInt(i);
+        return values;
     }
 
     /**
-     * Check if this trigger should be triggered at this hour
+     * Weekday or month names, e.g., "Monday" or "January", in the device's language or in English, to Calendar values
      *
-     * @param schedule
-     * @return
+     * @param names
+     * @param field Calendar.DAY_OF_WEEK or Calendar.MONTH
+     * @return values, -1 for unknown names
+     * @throws JSONException
      */
-    private boolean is_trigger_hour(Schedule schedule) {
-
-        if (Aware.DEBUG) Log.d(Aware.TAG, "Checking hour matching");
-
-        Calendar now = Calendar.getInstance();
-        now.setTimeInMillis(System.currentTimeMillis());
-
-        try {
-            JSONArray hours = schedule.getHours();
-            if (schedule.getRandom().optBoolean(RANDOM_HOUR)) {
-                Random random = new Random();
-                int random_hour = hours.getInt(random.nextInt(hours.length()));
-
-                if (Aware.DEBUG)
-                    Log.d(Aware.TAG, "Random hour " + random_hour + " vs now " + now.get(Calendar.HOUR_OF_DAY) + " in trigger hours: " + hours.toString());
-
-                if (random_hour == now.get(Calendar.HOUR_OF_DAY)) return true;
-
-            } else {
-                for (int i = 0; i < hours.length(); i++) {
-                    int hour = hours.getInt(i);
-
-                    if (Aware.DEBUG)
-                        Log.d(Aware.TAG, "Hour " + hour + " vs now " + now.get(Calendar.HOUR_OF_DAY) + " in trigger hours: " + hours.toString());
+    private static int[] toCalendarValues(JSONArray names, int field) throws JSONException {
+        Calendar calendar = Calendar.getInstance();
+        Map<String, Integer> local = calendar.getDisplayNames(field, Calendar.LONG, Locale.getDefault());
+        Map<String, Integer> english = calendar.getDisplayNames(field, Calendar.LONG, Locale.ENGLISH);
 
-                    if (hour == now.get(Calendar.HOUR_OF_DAY)) return true;
-                }
-            }
-        } catch (JSONException e) {
-            e.printStackTrace();
+        int[] values = new int[names.length()];
+        for (int i = 0; i < names.length(); i++) {
+            values[i] = toCalendarValue(local, names.getString(i));
+            if (values[i] == -1) values[i] = toCalendarValue(english, names.getString(i));
         }
+        return values;
+    }
 
-        return false;
+    private static int toCalendarValue(Map<String, Integer> display_names, String name) {
+        if (display_names == null) return -1;
+        for (Map.Entry<String, Integer> display_name : display_names.entrySet()) {
+            if (display_name.getKey().equalsIgnoreCase(name)) return display_name.getValue();
+        }
+        return -1;
     }
 
     /**
-     * Check if this schedule should be triggered this weekday
+     * One exact alarm, for the earliest trigger
      *
-     * @param schedule
-     * @return
+     * @param next earliest trigger, null if none
      */
-    private boolean is_trigger_weekday(Schedule schedule) {
-
-        if (Aware.DEBUG) Log.d(Aware.TAG, "Checking weekday matching");
-
-        Calendar now = Calendar.getInstance();
-        now.setTimeInMillis(System.currentTimeMillis());
-
-        try {
-            JSONArray weekdays = schedule.getWeekdays();
-            if (schedule.getRandom().optBoolean(RANDOM_WEEKDAY)) {
-                Random random = new Random();
-                String random_weekday = weekdays.getString(random.nextInt(weekdays.length()));
-
-                if (Aware.DEBUG)
-                    Log.d(Aware.TAG, "Random weekday " + random_weekday.toUpperCase() + " vs now " + now.getDisplayName(Calendar.DAY_OF_WEEK, Calendar.LONG, Locale.getDefault()).toUpperCase() + " in trigger weekdays: " + weekdays.toString());
-
-                if (random_weekday.toUpperCase().equals(now.getDisplayName(Calendar.DAY_OF_WEEK, Calendar.LONG, Locale.getDefault()).toUpperCase()))
-                    return true;
-
-            } else {
-                for (int i = 0; i < weekdays.length(); i++) {
-                    String weekday = weekdays.getString(i);
+    private void setAlarm(ScheduleTrigger next) {
+        AlarmManager alarmManager = (AlarmManager) getSystemService(ALARM_SERVICE);
+        PendingIntent alarm = getAlarmIntent();
+        if (next == null) {
+            alarmManager.cancel(alarm);
+            return;
+        }
 
-                    if (Aware.DEBUG)
-                        Log.d(Aware.TAG, "Weekday " + weekday.toUpperCase() + " vs now " + now.getDisplayName(Calendar.DAY_OF_WEEK, Calendar.LONG, Locale.getDefault()).toUpperCase() + " in trigger weekdays: " + weekdays.toString());
+        if (Aware.DEBUG) Log.d(TAG, "Next scheduled task: " + next.getScheduleID() + " in " + (next.getFireTime() - System.currentTimeMillis()) / 1000 + " seconds");
 
-                    if (weekday.toUpperCase().equals(now.getDisplayName(Calendar.DAY_OF_WEEK, Calendar.LONG, Locale.getDefault()).toUpperCase()))
-                        return true;
-                }
-            }
-        } catch (JSONException e) {
-            e.printStackTrace();
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            alarmManager.setExactAndAllowWhileIdle(AlarmManager.RTC_WAKEUP, next.getFireTime(), alarm);
+        } else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            alarmManager.setExact(AlarmManager.RTC_WAKEUP, next.getFireTime(), alarm);
+        } else {
+            alarmManager.set(AlarmManager.RTC_WAKEUP, next.getFireTime(), alarm);
         }
+    }
 
-        return false;
+    private PendingIntent getAlarmIntent() {
+        return PendingIntent.getService(getApplicationContext(), 0, new Intent(getApplicationContext(), Scheduler.class), PendingIntent.FLAG_UPDATE_CURRENT);
     }
 
     /**
-     * Check if this schedule should be triggered this month
+     * Perform a contextual schedule every time one of its broadcasts is received
      *
      * @param schedule
-     * @return
+     * @throws JSONException
      */
-    private boolean is_trigger_month(Schedule schedule) {
+    private void registerListener(final Schedule schedule) throws JSONException {
+        final JSONArray contexts = schedule.getContexts();
 
-        if (Aware.DEBUG) Log.d(Aware.TAG, "Checking month matching");
-
-        Calendar now = Calendar.getInstance();
-        now.setTimeInMillis(System.currentTimeMillis());
-
-        try {
-            JSONArray months = schedule.getMonths();
-
-            if (schedule.getRandom().optBoolean(RANDOM_MONTH)) {
-                Random random = new Random();
-                String random_month = months.getString(random.nextInt(months.length()));
+        IntentFilter filter = new IntentFilter();
+        for (int i = 0; i < contexts.length(); i++) {
+            String context = contexts.getString(i);
+            filter.addAction(context);
+        }
 
+        BroadcastReceiver listener = new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
                 if (Aware.DEBUG)
-                    Log.d(Aware.TAG, "Random month " + random_month.toUpperCase() + " vs now " + now.getDisplayName(Calendar.MONTH, Calendar.LONG, Locale.getDefault()).toUpperCase() + " in trigger months: " + months.toString());
-
-                if (random_month.toUpperCase().equals(now.getDisplayName(Calendar.MONTH, Calendar.LONG, Locale.getDefault()).toUpperCase()))
-                    return true;
+                    Log.d(Aware.TAG, "Received contextual trigger: " + contexts.toString());
+                performAction(schedule);
+            }
+        };
 
-            } else {
+        Hashtable<IntentFilter, BroadcastReceiver> scheduler_listener = new Hashtable<>();
+        scheduler_listener.put(filter, listener);
+        schedulerListeners.put(schedule.getScheduleID(), scheduler_listener);
 
-                for (int i = 0; i < months.length(); i++) {
-                    String month = months.getString(i);
+        registerReceiver(listener, filter);
 
-                    if (Aware.DEBUG)
-                        Log.d(Aware.TAG, "Month " + month.toUpperCase() + " vs now " + now.getDisplayName(Calendar.MONTH, Calendar.LONG, Locale.getDefault()).toUpperCase() + " in trigger months: " + months.toString());
+        if (Aware.DEBUG)
+            Log.d(Aware.TAG, "Registered a contextual trigger for " + contexts.toString());
+    }
 
-                    if (month.toUpperCase().equals(now.getDisplayName(Calendar.MONTH, Calendar.LONG, Locale.getDefault()).toUpperCase()))
-                        return true;
+    private void unregisterListeners() {
+        for (String schedule_id : schedulerListeners.keySet()) {
+            Hashtable<IntentFilter, BroadcastReceiver> scheduled = schedulerListeners.get(schedule_id);
+            for (IntentFilter filter : scheduled.keySet()) {
+                try {
+                    unregisterReceiver(scheduled.get(filter));
+                } catch (NullPointerException | IllegalArgumentException e) {
+                    e.printStackTrace();
                 }
             }
-
-        } catch (JSONException e) {
-            e.printStackTrace();
         }
-
-        return false;
+        schedulerListeners.clear();
     }
 
     private void performAction(Schedule schedule) {
@@ -0,0 +1,254 @@
+package com.aware.utils;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.hardware.Sensor;
+import android.hardware.SensorEvent;
+import android.hardware.SensorEventListener;
+import android.hardware.SensorEventListener2;
+import android.hardware.SensorManager;
+import android.os.Build;
+import android.os.Handler;
+import android.os.PowerManager;
+import android.util.Log;
+
+import com.aware.Aware;
+import com.aware.Aware_Preferences;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hardware batching of a SensorManager sensor.<br/>
+ * With Aware_Preferences.SENSOR_BATCHING_LATENCY set, samples accumulate in the sensor hub FIFO and are reported together,
+ * at most that many microseconds late, so the application processor doesn't wake up for every sample.
+ * The latency is capped so the FIFO reserved for the sensor doesn't overflow at the requested sampling period.
+ * <p>
+ * When batching, the wake-up variant of the sensor is used if the device has one (API 21+): the sensor hub wakes the application processor
+ * when the batch is due, so the service doesn't need a wake lock. Without a wake-up variant, the regular sensor is used and the wake lock kept,
+ * as a non wake-up FIFO is overwritten while the processor sleeps. The setting is read again every time the sensor registers, so the
+ * sensor and the wake lock follow it without restarting the service.
+ * <p>
+ * Without a FIFO or before API 19, samples are reported right away, as before.
+ */
+public class SensorBatching {
+
+    private static final String TAG = "AWARE::SensorBatching";
+
+    /**
+     * How long {@link #flush()} waits for the FIFO to be delivered, in milliseconds
+     */
+    public static final int FLUSH_TIMEOUT = 1000;
+
+    private final Context context;
+    private final SensorManager manager;
+    private final int type;
+
+    private Sensor sensor;
+    private PowerManager.WakeLock wakeLock;
+    private SensorEventListener registered;
+    private int period = -1;
+    private int latency = 0;
+
+    /**
+     * @param context
+     * @param manager
+     * @param type    Sensor.TYPE_*
+     */
+    public SensorBatching(Context context, SensorManager manager, int type) {
+        this.context = context.getApplicationContext();
+        this.manager = manager;
+        this.type = type;
+        this.sensor = select();
+    }
+
+    /**
+     * @return the wake-up variant of the sensor if batching and the device has one, the regular sensor otherwise
+     */
+    private Sensor select() {
+        Sensor wakeup = null;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP && getLatencySetting() > 0) {
+            wakeup = manager.getDefaultSensor(type, true);
+            if (wakeup != null && wakeup.getFifoMaxEventCount() == 0) wakeup = null;
+        }
+        return (wakeup != null) ? wakeup : manager.getDefaultSensor(type);
+    }
+
+    /**
+     * @return the sensor in use, or null if the device doesn't have one
+     */
+    public Sensor getSensor() {
+        return sensor;
+    }
+
+    /**
+     * @return true if the sensor wakes the application processor up by itself, i.e., no wake lock is needed
+     */
+    public boolean isWakeUp() {
+        return sensor != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP && sensor.isWakeUpSensor();
+    }
+
+    /**
+     * @return current report latency, in microseconds
+     */
+    public int getLatency() {
+        return latency;
+    }
+
+    private int getLatencySetting() {
+        try {
+            String setting = Aware.getSetting(context, Aware_Preferences.SENSOR_BATCHING_LATENCY);
+            if (setting.length() == 0) return 0;
+            return Math.max(0, Integer.parseInt(setting));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Hold the service's wake lock while the sensor needs it, i.e., while it isn't a wake-up sensor. Kept up to date on every {@link #register}.
+     *
+     * @param wakeLock
+     */
+    public void keepAwake(PowerManager.WakeLock wakeLock) {
+        this.wakeLock = wakeLock;
+        if (isWakeUp()) {
+            if (wakeLock.isHeld()) wakeLock.release();
+        } else if (!wakeLock.isHeld()) {
+            wakeLock.acquire();
+        }
+    }
+
+    /**
+     * Report latency for a sampling period: the one in the settings, but no more than what fits in the sensor's FIFO
+     *
+     * @param period sampling period in microseconds, or a SensorManager.SENSOR_DELAY_* constant
+     * @return latency in microseconds, 0 if not batching
+     */
+    public int getReportLatency(int period) {
+        if (sensor == null || Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT) return 0;
+
+        int requested = getLatencySetting();
+        if (requested == 0 || sensor.getFifoMaxEventCount() == 0) return 0;
+
+        int fifo = sensor.getFifoReservedEventCount();
+        if (fifo == 0) fifo = sensor.getFifoMaxEventCount(); //shared with other sensors, best effort
+
+        long interval;
+        switch (period) {
+            case SensorManager.SENSOR_DELAY_FASTEST:
+                interval = 0;
+                break;
+            case SensorManager.SENSOR_DELAY_GAME:
+                interval = 20000;
+                break;
+            case SensorManager.SENSOR_DELAY_UI:
+                interval = 66667;
+                break;
+            case SensorManager.SENSOR_DELAY_NORMAL:
+                interval = 200000;
+                break;
+            default:
+                interval = period;
+        }
+        interval = Math.max(interval, sensor.getMinDelay());
+        if (interval <= 0) return requested; //on-change sensor, the FIFO fills as values change
+
+        return (int) Math.min(requested, fifo * interval);
+    }
+
+    /**
+     * @param period
+     * @return true if the listener is registered at this period, with the sensor and latency the settings ask for
+     */
+    public boolean isRegistered(int period) {
+        return registered != null && this.period == period && sensor == select() && latency == getReportLatency(period);
+    }
+
+    /**
+     * (Re-)register a listener
+     *
+     * @param listener
+     * @param period   sampling period in microseconds, or a SensorManager.SENSOR_DELAY_* constant
+     * @param handler  thread receiving the samples
+     */
+    public void register(SensorEventListener listener, int period, Handler handler) {
+        unregister();
+        sensor = select();
+        if (wakeLock != null) keepAwake(wakeLock);
+        if (sensor == null) return;
+
+        this.period = period;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            latency = getReportLatency(period);
+            registered = new FlushListener(listener);
+            manager.registerListener(registered, sensor, period, latency, handler);
+        } else {
+            latency = 0;
+            registered = listener;
+            manager.registerListener(registered, sensor, period, handler);
+        }
+
+        if (Aware.DEBUG) Log.d(TAG, sensor.getName() + ": period " + period + "us, latency " + latency + "us" + (isWakeUp() ? ", wake-up" : ""));
+    }
+
+    /**
+     * Stop receiving samples
+     */
+    public void unregister() {
+        if (registered == null) return;
+        manager.unregisterListener(registered, sensor);
+        registered = null;
+        period = -1;
+    }
+
+    /**
+     * Deliver what is waiting in the FIFO, e.g., before the service stops. Blocks until delivered, at most FLUSH_TIMEOUT.
+     * Don't call from the thread receiving the samples.
+     */
+    public void flush() {
+        if (latency == 0 || !(registered instanceof FlushListener)) return;
+
+        FlushListener flushing = (FlushListener) registered;
+        CountDownLatch delivered = new CountDownLatch(1);
+        flushing.delivered = delivered;
+        if (manager.flush(flushing)) {
+            try {
+                if (!delivered.await(FLUSH_TIMEOUT, TimeUnit.MILLISECONDS) && Aware.DEBUG) {
+                    Log.w(TAG, sensor.getName() + ": FIFO flush timed out");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Forwards samples to the sensor, and tells {@link #flush()} when the FIFO was delivered
+     */
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    private static class FlushListener implements SensorEventListener2 {
+        private final SensorEventListener listener;
+        private volatile CountDownLatch delivered;
+
+        FlushListener(SensorEventListener listener) {
+            this.listener = listener;
+        }
+
+        @Override
+        public void onSensorChanged(SensorEvent event) {
+            listener.onSensorChanged(event);
+        }
+
+        @Override
+        public void onAccuracyChanged(Sensor sensor, int accuracy) {
+            listener.onAccuracyChanged(sensor, accuracy);
+        }
+
+        @Override
+        public void onFlushCompleted(Sensor sensor) {
+            CountDownLatch done = delivered;
+            if (done != null) done.countDown();
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package com.aware.utils;
+
+import android.os.Build;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.aware.Aware;
+
+/**
+ * Converts SensorEvent.timestamp (nanoseconds, not wall clock) to wall clock milliseconds.<br/>
+ * Samples delivered together from the hardware FIFO keep the time they were measured at, instead of all getting the delivery time.
+ * <p>
+ * SensorEvent.timestamp counts from boot: SystemClock.elapsedRealtimeNanos() on most devices, SystemClock.uptimeMillis() on some older ones.
+ * The clock picks whichever the sensor uses from the first sample, and keeps an offset to System.currentTimeMillis(),
+ * refreshed every REFRESH_INTERVAL of sensor time so it follows wall clock changes (NTP, time zone, user).
+ * Between refreshes, converting a sample is an addition, no system call.
+ * <p>
+ * If the sensor timestamps don't match either base, the delivery time is used, as before.
+ * One clock per sensor thread: it isn't thread-safe.
+ */
+public class SensorClock {
+
+    private static final String TAG = "AWARE::SensorClock";
+
+    /**
+     * How often the offset is refreshed, in nanoseconds of sensor time (1 minute)
+     */
+    public static final long REFRESH_INTERVAL = 60 * 1000000000L;
+
+    /**
+     * Timestamps further than this from both bases aren't trusted, in nanoseconds (1 hour)
+     */
+    private static final long MAX_SKEW = 3600 * 1000000000L;
+
+    private static final int BASE_UNKNOWN = 0;
+    private static final int BASE_ELAPSED = 1;
+    private static final int BASE_UPTIME = 2;
+    private static final int BASE_NONE = 3;
+
+    private int base = BASE_UNKNOWN;
+    private long offset = 0;
+    private long refreshed = 0;
+
+    /**
+     * @param event_timestamp SensorEvent.timestamp
+     * @return wall clock time of the sample, in milliseconds
+     */
+    public long toWallClock(long event_timestamp) {
+        if (base == BASE_UNKNOWN) {
+            base = detectBase(event_timestamp);
+            refresh(event_timestamp);
+        }
+        if (base == BASE_NONE) return System.currentTimeMillis();
+
+        if (event_timestamp - refreshed >= REFRESH_INTERVAL || event_timestamp < refreshed - REFRESH_INTERVAL) {
+            refresh(event_timestamp);
+        }
+        return (event_timestamp + offset) / 1000000L;
+    }
+
+    private long now() {
+        if (base == BASE_ELAPSED) return SystemClock.elapsedRealtimeNanos();
+        return SystemClock.uptimeMillis() * 1000000L;
+    }
+
+    private void refresh(long event_timestamp) {
+        if (base == BASE_NONE) return;
+        offset = System.currentTimeMillis() * 1000000L - now();
+        refreshed = event_timestamp;
+    }
+
+    private int detectBase(long event_timestamp) {
+        long from_uptime = Math.abs(SystemClock.uptimeMillis() * 1000000L - event_timestamp);
+        long from_elapsed = Long.MAX_VALUE;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR1) {
+            from_elapsed = Math.abs(SystemClock.elapsedRealtimeNanos() - event_timestamp);
+        }
+
+        int detected;
+        if (Math.min(from_elapsed, from_uptime) > MAX_SKEW) {
+            detected = BASE_NONE;
+        } else {
+            detected = (from_elapsed <= from_uptime) ? BASE_ELAPSED : BASE_UPTIME;
+        }
+
+        if (Aware.DEBUG) Log.d(TAG, "Sensor timestamps base: " + (detected == BASE_ELAPSED ? "elapsed realtime" : detected == BASE_UPTIME ? "uptime" : "unknown, using delivery time"));
+        return detected;
+    }
+}
@@ -0,0 +1,291 @@
+package com.aware.utils;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.text.format.DateUtils;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Where the upload of a table got to, kept on the device so the next sync carries on from there.<br/>
+ * - last (timestamp, _id) the server acknowledged, and the sequence number of the next page
+ * - the server, device and study it applies to, and the table fields the server table was created with
+ * <p>
+ * While the checkpoint is valid (same server, device, study and fields, checked with the server less than MAX_AGE ago),
+ * {@link WebserviceHelper} skips the create_table and latest requests, and starts right after the checkpoint.
+ * Pages carry an idempotency key made from the page's start and sequence, so a retried page has the same key and the server can drop the duplicate.
+ * {@link CompactionService} deletes the rows a checkpoint says the server has.
+ * <p>
+ * Only one sync owns a table's checkpoint at a time (see {@link #load} and {@link #release()}), and every read or write of a table's checkpoint holds that table's lock.
+ */
+public class SyncCheckpoint {
+
+    /**
+     * How long we trust a checkpoint before asking the server for its latest row again (1 day)
+     */
+    public static final long MAX_AGE = DateUtils.DAY_IN_MILLIS;
+
+    /**
+     * Form field (JSON upload) or query parameter (columnar upload) with the page's idempotency key
+     */
+    public static final String IDEMPOTENCY_KEY = "idempotency_key";
+
+    private static final String PREFERENCES = "aware_sync_checkpoints";
+
+    //one lock per table, and the tables a sync is uploading
+    private static final ConcurrentHashMap<String, Object> locks = new ConcurrentHashMap<>();
+    private static final Set<String> owned = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    private final Context context;
+    private final String table;
+    private final String owner;
+
+    private String fields = null;
+    private String uri = null;
+    private boolean has_position = false;
+    private double last_timestamp = 0;
+    private long last_id = 0;
+    private long sequence = 0;
+    private long verified = 0;
+
+    private SyncCheckpoint(Context context, String table, String owner) {
+        this.context = context.getApplicationContext();
+        this.table = table;
+        this.owner = owner;
+    }
+
+    /**
+     * @param context
+     * @param table
+     * @param server    webservice server
+     * @param device_id
+     * @param study_id  may be empty
+     * @return the table's checkpoint, owned by the caller until {@link #release()}. Invalid if none was saved for this server, device and study.
+     * Null if another sync owns it.
+     */
+    public static SyncCheckpoint load(Context context, String table, String server, String device_id, String study_id) {
+        if (!owned.add(table)) return null;
+
+        SyncCheckpoint checkpoint = new SyncCheckpoint(context, table, server + "|" + device_id + "|" + study_id);
+        synchronized (lockOf(table)) {
+            String saved = preferences(context).getString(table, null);
+            if (saved == null) return checkpoint;
+            try {
+                JSONObject json = new JSONObject(saved);
+                checkpoint.sequence = json.optLong("sequence", 0); //keep counting, so keys never repeat
+                checkpoint.uri = json.optString("uri", null);
+                if (!json.optString("owner").equals(checkpoint.owner)) return checkpoint;
+                checkpoint.read(json);
+            } catch (JSONException e) {
+                //start over
+            }
+        }
+        return checkpoint;
+    }
+
+    /**
+     * Done with this checkpoint: another sync may now load it
+     */
+    public void release() {
+        owned.remove(table);
+    }
+
+    private static Object lockOf(String table) {
+        Object lock = locks.get(table);
+        if (lock == null) {
+            Object created = new Object();
+            lock = locks.putIfAbsent(table, created);
+            if (lock == null) lock = created;
+        }
+        return lock;
+    }
+
+    /**
+     * @param context
+     * @return the checkpoints of all the tables, whatever server, device or study they were saved for
+     */
+    public static List<SyncCheckpoint> loadAll(Context context) {
+        List<SyncCheckpoint> checkpoints = new ArrayList<>();
+        for (Map.Entry<String, ?> saved : preferences(context).getAll().entrySet()) {
+            if (!(saved.getValue() instanceof String)) continue;
+            synchronized (lockOf(saved.getKey())) {
+                try {
+                    //the latest one, not the snapshot
+                    String latest = preferences(context).getString(saved.getKey(), null);
+                    if (latest == null) continue;
+                    JSONObject json = new JSONObject(latest);
+                    SyncCheckpoint checkpoint = new SyncCheckpoint(context, saved.getKey(), json.optString("owner"));
+                    checkpoint.sequence = json.optLong("sequence", 0);
+                    checkpoint.uri = json.optString("uri", null);
+                    checkpoint.read(json);
+                    checkpoints.add(checkpoint);
+                } catch (JSONException e) {
+                    //skip it, load() starts it over
+                }
+            }
+        }
+        return checkpoints;
+    }
+
+    private void read(JSONObject json) {
+        fields = json.optString("fields", null);
+        has_position = json.has("timestamp");
+        last_timestamp = json.optDouble("timestamp", 0);
+        last_id = json.optLong("_id", 0);
+        verified = json.optLong("verified", 0);
+    }
+
+    /**
+     * Forget a table's checkpoint, e.g., when the table is cleared on the server
+     *
+     * @param context
+     * @param table
+     */
+    public static void reset(Context context, String table) {
+        synchronized (lockOf(table)) {
+            preferences(context).edit().remove(table).commit();
+        }
+    }
+
+    private static SharedPreferences preferences(Context context) {
+        return context.getApplicationContext().getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * @param table_fields fields the server table must have
+     * @return true if we can carry on without asking the server
+     */
+    public boolean isValid(String table_fields) {
+        long age = System.currentTimeMillis() - verified;
+        return verified > 0 && age >= 0 && age < MAX_AGE && table_fields != null && table_fields.equals(fields);
+    }
+
+    /**
+     * The server has the table, and told us its latest row
+     *
+     * @param table_fields fields the server table was created with
+     * @param timestamp    of the latest row on the server, or null if it has none
+     */
+    public void verify(String table_fields, Double timestamp) {
+        fields = table_fields;
+        if (timestamp == null) {
+            has_position = false;
+        } else if (!has_position || timestamp != last_timestamp) {
+            //the server is right: rows at that timestamp are all there
+            has_position = true;
+            last_timestamp = timestamp;
+            last_id = Long.MAX_VALUE;
+        }
+        verified = System.currentTimeMillis();
+        save();
+    }
+
+    /**
+     * The server acknowledged a page
+     *
+     * @param timestamp of the page's last row
+     * @param id        of the page's last row
+     */
+    public void acknowledge(double timestamp, long id) {
+        synchronized (lockOf(table)) {
+            //never move back, and never reuse a sequence number
+            if (!has_position || timestamp > last_timestamp || (timestamp == last_timestamp && id > last_id)) {
+                has_position = true;
+                last_timestamp = timestamp;
+                last_id = id;
+            }
+            sequence = Math.max(sequence, getSavedSequence()) + 1;
+            save();
+        }
+    }
+
+    private long getSavedSequence() {
+        String saved = preferences(context).getString(table, null);
+        if (saved == null) return 0;
+        try {
+            return new JSONObject(saved).optLong("sequence", 0);
+        } catch (JSONException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * @param content_uri where the table's rows are, saved with the checkpoint
+     */
+    public void setContentUri(String content_uri) {
+        uri = content_uri;
+    }
+
+    /**
+     * @return where the table's rows are, or null if not known
+     */
+    public String getContentUri() {
+        return uri;
+    }
+
+    public String getTable() {
+        return table;
+    }
+
+    /**
+     * @param has_id if the table has an _id column
+     * @return selection of the rows the server acknowledged, or null if none
+     */
+    public String getAcknowledgedCondition(boolean has_id) {
+        if (!has_position) return null;
+        if (!has_id || last_id == Long.MAX_VALUE) return "timestamp <= " + last_timestamp;
+        return "(timestamp < " + last_timestamp + " OR (timestamp = " + last_timestamp + " AND _id <= " + last_id + "))";
+    }
+
+    /**
+     * @param has_id if the table has an _id column
+     * @return selection of the rows after the checkpoint
+     */
+    public String getCondition(boolean has_id) {
+        if (!has_position) return "1";
+        if (!has_id || last_id == Long.MAX_VALUE) return "timestamp > " + last_timestamp;
+        return "(timestamp > " + last_timestamp + " OR (timestamp = " + last_timestamp + " AND _id > " + last_id + "))";
+    }
+
+    /**
+     * @return key of the next page: the same until that page is acknowledged
+     */
+    public String getIdempotencyKey() {
+        String page = owner + "|" + table + "|" + sequence + "|" + (has_position ? last_timestamp + "|" + last_id : "");
+        return UUID.nameUUIDFromBytes(page.getBytes()).toString();
+    }
+
+    private void save() {
+        synchronized (lockOf(table)) {
+            write();
+        }
+    }
+
+    private void write() {
+        try {
+            JSONObject json = new JSONObject();
+            json.put("owner", owner);
+            json.put("fields", fields);
+            json.put("uri", uri);
+            if (has_position) {
+                json.put("timestamp", last_timestamp);
+                json.put("_id", last_id);
+            }
+            json.put("sequence", sequence);
+            json.put("verified", verified);
+            preferences(context).edit().putString(table, json.toString()).commit();
+        } catch (JSONException e) {
+            //NaN timestamp, don't keep it
+            reset(context, table);
+        }
+    }
+}
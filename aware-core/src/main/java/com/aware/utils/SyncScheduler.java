@@ -0,0 +1,195 @@
+package com.aware.utils;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.SharedPreferences;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.BatteryManager;
+import android.text.format.DateUtils;
+import android.util.Log;
+
+import com.aware.Aware;
+import com.aware.Aware_Preferences;
+
+import java.util.Random;
+
+/**
+ * Decides when {@link WebserviceHelper} may talk to the server.<br/>
+ * - conditions: a network connection, Wi-Fi if Aware_Preferences.WEBSERVICE_WIFI_ONLY, charging if Aware_Preferences.WEBSERVICE_CHARGING.
+ * While they are not met, sync is held, and released by {@link SyncConditions_Broadcaster} when connectivity or charging changes.<br/>
+ * - server health: when the server can't be reached, all tables stop trying, and we back off exponentially (with jitter, so devices don't come back all at once).
+ * An alarm at the end of the backoff asks for a sync again.
+ */
+public class SyncScheduler {
+
+    /**
+     * First backoff after the server could not be reached (1 minute)
+     */
+    public static final long BACKOFF_MIN = DateUtils.MINUTE_IN_MILLIS;
+
+    /**
+     * Longest backoff (2 hours)
+     */
+    public static final long BACKOFF_MAX = 2 * DateUtils.HOUR_IN_MILLIS;
+
+    private static final String PREFERENCES = "aware_sync_scheduler";
+    private static final String FAILURES = "failures";
+    private static final String RETRY_AT = "retry_at";
+    private static final String HELD = "held";
+
+    private static final Random random = new Random();
+
+    private static SharedPreferences preferences(Context context) {
+        return context.getApplicationContext().getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Check the sync conditions and the server's health. If the conditions are not met, sync is held until they change.
+     *
+     * @param context
+     * @return true if we can sync now
+     */
+    public static synchronized boolean canSync(Context context) {
+        if (!conditionsMet(context)) {
+            preferences(context).edit().putBoolean(HELD, true).commit();
+            return false;
+        }
+
+        long retry_at = preferences(context).getLong(RETRY_AT, 0);
+        if (System.currentTimeMillis() < retry_at) {
+            if (Aware.DEBUG)
+                Log.d(Aware.TAG, "Server unreachable, next sync in " + DateUtils.formatElapsedTime((retry_at - System.currentTimeMillis()) / 1000));
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * @param context
+     * @return true if we are connected, on Wi-Fi if required, and charging if required
+     */
+    public static boolean conditionsMet(Context context) {
+        context = context.getApplicationContext();
+
+        if (Aware.getSetting(context, Aware_Preferences.WEBSERVICE_CHARGING).equals("true")) {
+            Intent batteryStatus = context.registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+            int status = (batteryStatus != null) ? batteryStatus.getIntExtra(BatteryManager.EXTRA_STATUS, -1) : -1;
+            boolean isCharging = (status == BatteryManager.BATTERY_STATUS_CHARGING || status == BatteryManager.BATTERY_STATUS_FULL);
+            if (!isCharging) {
+                if (Aware.DEBUG)
+                    Log.d(Aware.TAG, "Only synching data if charging...");
+                return false;
+            }
+        }
+
+        ConnectivityManager connManager = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        NetworkInfo activeNetwork = connManager.getActiveNetworkInfo();
+        if (activeNetwork == null || !activeNetwork.isConnected()) {
+            if (Aware.DEBUG)
+                Log.d(Aware.TAG, "No internet connection. Will try again later...");
+            return false;
+        }
+
+        //Check if we are supposed to sync over WiFi only
+        if (Aware.getSetting(context, Aware_Preferences.WEBSERVICE_WIFI_ONLY).equals("true") && activeNetwork.getType() != ConnectivityManager.TYPE_WIFI) {
+            if (Aware.DEBUG)
+                Log.d(Aware.TAG, "Synching data only over Wi-Fi. Will try again later...");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * The server answered (even with an error for one table): forget the backoff
+     *
+     * @param context
+     */
+    public static synchronized void serverAnswered(Context context) {
+        SharedPreferences preferences = preferences(context);
+        if (preferences.getInt(FAILURES, 0) == 0) return;
+
+        preferences.edit().putInt(FAILURES, 0).putLong(RETRY_AT, 0).commit();
+
+        AlarmManager alarmManager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        alarmManager.cancel(getRetryIntent(context));
+    }
+
+    /**
+     * We could not reach the server: back off, and stop syncing the other tables until then
+     *
+     * @param context
+     */
+    public static synchronized void serverUnreachable(Context context) {
+        SharedPreferences preferences = preferences(context);
+        long now = System.currentTimeMillis();
+        if (now < preferences.getLong(RETRY_AT, 0)) return; //another table already noticed
+
+        int failures = preferences.getInt(FAILURES, 0) + 1;
+        long retry_at = now + getBackoff(failures, random);
+        preferences.edit().putInt(FAILURES, failures).putLong(RETRY_AT, retry_at).commit();
+
+        if (Aware.DEBUG)
+            Log.d(Aware.TAG, "Server unreachable (" + failures + "x), next sync in " + DateUtils.formatElapsedTime((retry_at - now) / 1000));
+
+        //not a wakeup alarm: if the device is asleep, we sync when it wakes up
+        AlarmManager alarmManager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        alarmManager.set(AlarmManager.RTC, retry_at, getRetryIntent(context));
+    }
+
+    /**
+     * Exponential backoff with "equal jitter": between half and all of BACKOFF_MIN * 2^(failures-1), up to BACKOFF_MAX
+     *
+     * @param failures consecutive times the server could not be reached
+     * @param random
+     * @return how long to wait, in milliseconds
+     */
+    public static long getBackoff(int failures, Random random) {
+        long backoff = BACKOFF_MAX;
+        if (failures <= 0) {
+            backoff = 0;
+        } else if (failures < 32) {
+            backoff = Math.min(BACKOFF_MAX, BACKOFF_MIN << (failures - 1));
+        }
+        long half = backoff / 2;
+        return half + (long) (random.nextDouble() * (backoff - half));
+    }
+
+    private static PendingIntent getRetryIntent(Context context) {
+        return PendingIntent.getBroadcast(context.getApplicationContext(), 0, new Intent(Aware.ACTION_AWARE_SYNC_DATA), PendingIntent.FLAG_UPDATE_CURRENT);
+    }
+
+    /**
+     * Releases held sync when connectivity or charging changes and the conditions are now met
+     * - {@link ConnectivityManager#CONNECTIVITY_ACTION}
+     * - {@link Intent#ACTION_POWER_CONNECTED}
+     */
+    public static class SyncConditions_Broadcaster extends BroadcastReceiver {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            if (!Aware.getSetting(context, Aware_Preferences.STATUS_WEBSERVICE).equals("true")) return;
+
+            synchronized (SyncScheduler.class) {
+                if (!preferences(context).getBoolean(HELD, false) || !conditionsMet(context)) return;
+                preferences(context).edit().putBoolean(HELD, false).commit();
+            }
+
+            if (Aware.DEBUG) Log.d(Aware.TAG, "Sync conditions met, synching held data...");
+            context.sendBroadcast(new Intent(Aware.ACTION_AWARE_SYNC_DATA));
+        }
+    }
+
+    /**
+     * @return filter for {@link SyncConditions_Broadcaster}
+     */
+    public static IntentFilter getConditionsFilter() {
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(ConnectivityManager.CONNECTIVITY_ACTION);
+        filter.addAction(Intent.ACTION_POWER_CONNECTED);
+        return filter;
+    }
+}
@@ -0,0 +1,203 @@
+package com.aware.utils;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.Intent;
+import android.database.SQLException;
+import android.util.Log;
+
+import com.aware.Aware;
+import com.aware.Aware_Preferences;
+import com.aware.providers.Sync_Provider.Sync_Telemetry;
+
+import java.util.Arrays;
+
+/**
+ * What syncing one table (or a whole sync run) cost: rows read, pages, encode time, bytes before and after compression, HTTP latency, retries and failures.<br/>
+ * {@link WebserviceHelper} fills one per table, adds them up for the run, saves them in {@link com.aware.providers.Sync_Provider}
+ * and sends them along with {@link WebserviceHelper#ACTION_AWARE_WEBSERVICE_SYNC_TABLE_FINISHED} and {@link WebserviceHelper#ACTION_AWARE_WEBSERVICE_SYNC_FINISHED}.
+ */
+public class SyncTelemetry {
+
+    /**
+     * sync_table of the whole run's telemetry
+     */
+    public static final String RUN = "*";
+
+    public static final String EXTRA_PAGES = "pages";
+    public static final String EXTRA_FAILURES = "failures";
+    public static final String EXTRA_RETRIES = "retries";
+    public static final String EXTRA_ENCODE_TIME = "encode_time";
+    public static final String EXTRA_BYTES_RAW = "bytes_raw";
+    public static final String EXTRA_BYTES_SENT = "bytes_sent";
+    public static final String EXTRA_LATENCY_P50 = "latency_p50";
+    public static final String EXTRA_LATENCY_P90 = "latency_p90";
+    public static final String EXTRA_LATENCY_P99 = "latency_p99";
+    public static final String EXTRA_LATENCY_MAX = "latency_max";
+
+    private final String table;
+    private final long run;
+
+    private int rows = 0;
+    private int pages = 0;
+    private int failures = 0;
+    private int retries = 0;
+    private long encode_nanos = 0;
+    private long bytes_raw = 0;
+    private long bytes_sent = 0;
+    private long[] latencies = new long[8];
+    private int requests = 0;
+
+    /**
+     * @param table table synced, or {@link #RUN}
+     * @param run   when the sync run started
+     */
+    public SyncTelemetry(String table, long run) {
+        this.table = table;
+        this.run = run;
+    }
+
+    public String getTable() {
+        return table;
+    }
+
+    /**
+     * A request that is not a page upload (e.g., create_table, latest)
+     *
+     * @param latency in milliseconds
+     * @param success
+     */
+    public synchronized void request(long latency, boolean success) {
+        addLatency(latency);
+        if (!success) failures++;
+    }
+
+    /**
+     * A page upload
+     *
+     * @param rows         read from the local database
+     * @param encode_nanos time spent encoding the page
+     * @param latency      request time, not counting encoding, in milliseconds
+     * @param stats        body sizes and attempts, from {@link Http#startRequestStats()}. Every attempt after the first is a retry (gzip refused, columnar refused).
+     * @param success
+     */
+    public synchronized void page(int rows, long encode_nanos, long latency, Http.RequestStats stats, boolean success) {
+        this.rows += rows;
+        this.pages++;
+        this.encode_nanos += encode_nanos;
+        this.bytes_raw += stats.body_bytes;
+        this.bytes_sent += stats.sent_bytes;
+        if (stats.attempts > 1) this.retries += stats.attempts - 1;
+        addLatency(latency);
+        if (!success) failures++;
+    }
+
+    /**
+     * Add a table's telemetry to the run's
+     *
+     * @param other
+     */
+    public synchronized void add(SyncTelemetry other) {
+        synchronized (other) {
+            rows += other.rows;
+            pages += other.pages;
+            failures += other.failures;
+            retries += other.retries;
+            encode_nanos += other.encode_nanos;
+            bytes_raw += other.bytes_raw;
+            bytes_sent += other.bytes_sent;
+            for (int i = 0; i < other.requests; i++) addLatency(other.latencies[i]);
+        }
+    }
+
+    private void addLatency(long latency) {
+        if (requests == latencies.length) latencies = Arrays.copyOf(latencies, requests * 2);
+        latencies[requests++] = latency;
+    }
+
+    /**
+     * @return true if we talked to the server at all
+     */
+    public synchronized boolean hasRequests() {
+        return requests > 0;
+    }
+
+    /**
+     * Nearest-rank percentile of the HTTP latencies
+     *
+     * @param percentile between 0 and 100
+     * @return latency, in milliseconds, or 0 if there were no requests
+     */
+    public synchronized long getLatency(double percentile) {
+        if (requests == 0) return 0;
+        long[] sorted = Arrays.copyOf(latencies, requests);
+        Arrays.sort(sorted);
+        int rank = (int) Math.ceil(percentile / 100.0 * requests);
+        return sorted[Math.min(requests, Math.max(1, rank)) - 1];
+    }
+
+    /**
+     * @param device_id
+     * @param elapsed   total sync time, in milliseconds
+     * @return row for {@link Sync_Telemetry#CONTENT_URI}
+     */
+    public synchronized ContentValues toContentValues(String device_id, long elapsed) {
+        ContentValues values = new ContentValues();
+        values.put(Sync_Telemetry.TIMESTAMP, System.currentTimeMillis());
+        values.put(Sync_Telemetry.DEVICE_ID, device_id);
+        values.put(Sync_Telemetry.SYNC_RUN, run);
+        values.put(Sync_Telemetry.SYNC_TABLE, table);
+        values.put(Sync_Telemetry.ROWS_READ, rows);
+        values.put(Sync_Telemetry.PAGES, pages);
+        values.put(Sync_Telemetry.FAILURES, failures);
+        values.put(Sync_Telemetry.RETRIES, retries);
+        values.put(Sync_Telemetry.ENCODE_TIME, encode_nanos / 1e6);
+        values.put(Sync_Telemetry.BYTES_RAW, bytes_raw);
+        values.put(Sync_Telemetry.BYTES_SENT, bytes_sent);
+        values.put(Sync_Telemetry.LATENCY_P50, getLatency(50));
+        values.put(Sync_Telemetry.LATENCY_P90, getLatency(90));
+        values.put(Sync_Telemetry.LATENCY_P99, getLatency(99));
+        values.put(Sync_Telemetry.LATENCY_MAX, getLatency(100));
+        values.put(Sync_Telemetry.ELAPSED, elapsed);
+        return values;
+    }
+
+    /**
+     * @param broadcast
+     * @return the broadcast, with the telemetry as extras
+     */
+    public synchronized Intent putExtras(Intent broadcast) {
+        broadcast.putExtra(WebserviceHelper.EXTRA_ROWS, rows);
+        broadcast.putExtra(EXTRA_PAGES, pages);
+        broadcast.putExtra(EXTRA_FAILURES, failures);
+        broadcast.putExtra(EXTRA_RETRIES, retries);
+        broadcast.putExtra(EXTRA_ENCODE_TIME, encode_nanos / 1000000);
+        broadcast.putExtra(EXTRA_BYTES_RAW, bytes_raw);
+        broadcast.putExtra(EXTRA_BYTES_SENT, bytes_sent);
+        broadcast.putExtra(EXTRA_LATENCY_P50, getLatency(50));
+        broadcast.putExtra(EXTRA_LATENCY_P90, getLatency(90));
+        broadcast.putExtra(EXTRA_LATENCY_P99, getLatency(99));
+        broadcast.putExtra(EXTRA_LATENCY_MAX, getLatency(100));
+        return broadcast;
+    }
+
+    /**
+     * Keep it in {@link com.aware.providers.Sync_Provider}
+     *
+     * @param context
+     * @param elapsed total sync time, in milliseconds
+     */
+    public void save(Context context, long elapsed) {
+        try {
+            context.getContentResolver().insert(Sync_Telemetry.CONTENT_URI, toContentValues(Aware.getSetting(context, Aware_Preferences.DEVICE_ID), elapsed));
+        } catch (SQLException | IllegalArgumentException e) {
+            if (Aware.DEBUG) Log.e(Aware.TAG, "Sync telemetry: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return table + ": " + rows + " rows, " + pages + " pages, " + failures + " failures, " + retries + " retries, encode " + (encode_nanos / 1000000) + " ms, "
+                + bytes_raw + " -> " + bytes_sent + " bytes, latency p50/p90/p99/max " + getLatency(50) + "/" + getLatency(90) + "/" + getLatency(99) + "/" + getLatency(100) + " ms";
+    }
+}
@@ -0,0 +1,239 @@
+package com.aware.utils;
+
+import java.util.Arrays;
+
+/**
+ * Column compression for {@link TimeSeriesStore}, after Facebook's Gorilla (Pelkonen et al., VLDB 2015):
+ * - integer columns (timestamps, _id, accuracy, dictionary indexes) store the delta-of-delta, 1 bit when a sensor ticks at a steady rate
+ * - float columns store the XOR with the previous value, only its meaningful bits, 1 bit when the value repeats
+ */
+public class TimeSeriesCodec {
+
+    private TimeSeriesCodec() {
+    }
+
+    /**
+     * Encode an integer column with delta-of-delta
+     *
+     * @param values
+     * @param count  values to encode
+     * @return bytes
+     */
+    public static byte[] encodeLongs(long[] values, int count) {
+        BitWriter out = new BitWriter(count / 4 + 16);
+        if (count == 0) return out.toByteArray();
+
+        out.write(values[0], 64);
+        long previous_delta = 0;
+        for (int i = 1; i < count; i++) {
+            long delta = values[i] - values[i - 1];
+            long dod = delta - previous_delta;
+            previous_delta = delta;
+
+            long zigzag = (dod << 1) ^ (dod >> 63);
+            if (zigzag == 0) {
+                out.write(0, 1);
+            } else if (zigzag >>> 7 == 0) {
+                out.write(0x2, 2);
+                out.write(zigzag, 7);
+            } else if (zigzag >>> 9 == 0) {
+                out.write(0x6, 3);
+                out.write(zigzag, 9);
+            } else if (zigzag >>> 12 == 0) {
+                out.write(0xE, 4);
+                out.write(zigzag, 12);
+            } else {
+                out.write(0xF, 4);
+                out.write(dod, 64);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * @param bytes from {@link #encodeLongs(long[], int)}
+     * @param count values encoded
+     * @return values
+     */
+    public static long[] decodeLongs(byte[] bytes, int count) {
+        long[] values = new long[count];
+        if (count == 0) return values;
+
+        BitReader in = new BitReader(bytes);
+        values[0] = in.read(64);
+        long delta = 0;
+        for (int i = 1; i < count; i++) {
+            long dod;
+            if (in.read(1) == 0) {
+                dod = 0;
+            } else if (in.read(1) == 0) {
+                dod = unzigzag(in.read(7));
+            } else if (in.read(1) == 0) {
+                dod = unzigzag(in.read(9));
+            } else if (in.read(1) == 0) {
+                dod = unzigzag(in.read(12));
+            } else {
+                dod = in.read(64);
+            }
+            delta += dod;
+            values[i] = values[i - 1] + delta;
+        }
+        return values;
+    }
+
+    private static long unzigzag(long zigzag) {
+        return (zigzag >>> 1) ^ -(zigzag & 1);
+    }
+
+    /**
+     * Encode a float column with XOR of consecutive values
+     *
+     * @param values
+     * @param count  values to encode
+     * @return bytes
+     */
+    public static byte[] encodeFloats(float[] values, int count) {
+        BitWriter out = new BitWriter(count * 3 + 16);
+        if (count == 0) return out.toByteArray();
+
+        int previous = Float.floatToRawIntBits(values[0]);
+        out.write(previous & 0xFFFFFFFFL, 32);
+        int previous_leading = -1;
+        int previous_trailing = 0;
+        for (int i = 1; i < count; i++) {
+            int bits = Float.floatToRawIntBits(values[i]);
+            int xor = bits ^ previous;
+            previous = bits;
+
+            if (xor == 0) {
+                out.write(0, 1);
+                continue;
+            }
+            out.write(1, 1);
+
+            int leading = Math.min(Integer.numberOfLeadingZeros(xor), 31);
+            int trailing = Integer.numberOfTrailingZeros(xor);
+            if (previous_leading >= 0 && leading >= previous_leading && trailing >= previous_trailing) {
+                //fits in the previous window of meaningful bits
+                out.write(0, 1);
+                out.write((xor >>> previous_trailing) & 0xFFFFFFFFL, 32 - previous_leading - previous_trailing);
+            } else {
+                int meaningful = 32 - leading - trailing;
+                out.write(1, 1);
+                out.write(leading, 5);
+                out.write(meaningful - 1, 5);
+                out.write((xor >>> trailing) & 0xFFFFFFFFL, meaningful);
+                previous_leading = leading;
+                previous_trailing = trailing;
+            }
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * @param bytes from {@link #encodeFloats(float[], int)}
+     * @param count values encoded
+     * @return values
+     */
+    public static float[] decodeFloats(byte[] bytes, int count) {
+        float[] values = new float[count];
+        if (count == 0) return values;
+
+        BitReader in = new BitReader(bytes);
+        int previous = (int) in.read(32);
+        values[0] = Float.intBitsToFloat(previous);
+        int leading = 0;
+        int trailing = 0;
+        for (int i = 1; i < count; i++) {
+            if (in.read(1) != 0) {
+                if (in.read(1) != 0) {
+                    leading = (int) in.read(5);
+                    int meaningful = (int) in.read(5) + 1;
+                    trailing = 32 - leading - meaningful;
+                }
+                int xor = (int) (in.read(32 - leading - trailing) << trailing);
+                previous ^= xor;
+            }
+            values[i] = Float.intBitsToFloat(previous);
+        }
+        return values;
+    }
+
+    /**
+     * Writes bits, most significant first
+     */
+    static final class BitWriter {
+        private byte[] bytes;
+        private int length = 0;
+        private long pending = 0;
+        private int pending_bits = 0;
+
+        BitWriter(int capacity) {
+            bytes = new byte[Math.max(capacity, 16)];
+        }
+
+        /**
+         * @param value the lowest bits are written
+         * @param bits  0 to 64
+         */
+        void write(long value, int bits) {
+            if (bits > 32) {
+                write(value >>> 32, bits - 32);
+                write(value, 32);
+                return;
+            }
+            if (bits == 0) return;
+
+            pending = (pending << bits) | (value & ((1L << bits) - 1));
+            pending_bits += bits;
+            while (pending_bits >= 8) {
+                if (length == bytes.length) bytes = Arrays.copyOf(bytes, bytes.length * 2);
+                bytes[length++] = (byte) (pending >>> (pending_bits - 8));
+                pending_bits -= 8;
+            }
+            pending &= (1L << pending_bits) - 1;
+        }
+
+        byte[] toByteArray() {
+            byte[] out = Arrays.copyOf(bytes, length + ((pending_bits > 0) ? 1 : 0));
+            if (pending_bits > 0) out[length] = (byte) (pending << (8 - pending_bits));
+            return out;
+        }
+    }
+
+    /**
+     * Reads bits written by {@link BitWriter}
+     */
+    static final class BitReader {
+        private final byte[] bytes;
+        private int position = 0;
+        private long pending = 0;
+        private int pending_bits = 0;
+
+        BitReader(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        /**
+         * @param bits 0 to 64
+         * @return value
+         */
+        long read(int bits) {
+            if (bits > 32) {
+                long high = read(bits - 32);
+                return (high << 32) | read(32);
+            }
+            if (bits == 0) return 0;
+
+            while (pending_bits < bits) {
+                if (position == bytes.length) throw new IllegalStateException("Truncated column");
+                pending = (pending << 8) | (bytes[position++] & 0xFF);
+                pending_bits += 8;
+            }
+            long value = (pending >>> (pending_bits - bits)) & ((1L << bits) - 1);
+            pending_bits -= bits;
+            pending &= (1L << pending_bits) - 1;
+            return value;
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package com.aware.utils;
+
+import android.database.AbstractCursor;
+import android.database.Cursor;
+import android.util.Log;
+
+import com.aware.Aware;
+
+import java.io.IOException;
+
+/**
+ * Cursor over a {@link TimeSeriesStore} query. Rows are read from the store as the cursor moves, so a large page doesn't need to fit in memory.
+ * Values read like the SQLite table they replace: _id, timestamp and accuracy as integers, values as doubles, device_id and label as text.
+ */
+public class TimeSeriesCursor extends AbstractCursor {
+
+    private final TimeSeriesStore.Result result;
+    private final Object[] row;
+
+    public TimeSeriesCursor(TimeSeriesStore.Result result) {
+        this.result = result;
+        this.row = new Object[result.getColumns().length];
+    }
+
+    @Override
+    public boolean onMove(int oldPosition, int newPosition) {
+        try {
+            result.getRow(newPosition, row);
+            return true;
+        } catch (IOException e) {
+            if (Aware.DEBUG) Log.e(Aware.TAG, "Time series cursor: " + e.getMessage());
+            return false;
+        }
+    }
+
+    @Override
+    public int getCount() {
+        return result.getCount();
+    }
+
+    @Override
+    public String[] getColumnNames() {
+        return result.getColumns();
+    }
+
+    @Override
+    public String getString(int column) {
+        Object value = row[column];
+        return (value != null) ? value.toString() : null;
+    }
+
+    @Override
+    public short getShort(int column) {
+        return (short) getLong(column);
+    }
+
+    @Override
+    public int getInt(int column) {
+        return (int) getLong(column);
+    }
+
+    @Override
+    public long getLong(int column) {
+        Object value = row[column];
+        if (value instanceof Number) return ((Number) value).longValue();
+        return (long) getDouble(column);
+    }
+
+    @Override
+    public float getFloat(int column) {
+        return (float) getDouble(column);
+    }
+
+    @Override
+    public double getDouble(int column) {
+        Object value = row[column];
+        if (value instanceof Number) return ((Number) value).doubleValue();
+        if (value == null) return 0;
+        try {
+            return Double.parseDouble(value.toString());
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    @Override
+    public boolean isNull(int column) {
+        return row[column] == null;
+    }
+
+    @Override
+    public int getType(int column) {
+        Object value = row[column];
+        if (value == null) return Cursor.FIELD_TYPE_NULL;
+        if (value instanceof Long) return Cursor.FIELD_TYPE_INTEGER;
+        if (value instanceof Double) return Cursor.FIELD_TYPE_FLOAT;
+        return Cursor.FIELD_TYPE_STRING;
+    }
+}
@@ -0,0 +1,646 @@
+package com.aware.utils;
+
+import java.util.ArrayList;
+import java.util.Locale;
+
+/**
+ * ContentProvider query arguments (projection, selection, sort order), evaluated over {@link TimeSeriesStore} chunks instead of SQLite.<br/>
+ * Supports what AWARE and its plugins send to sensor tables:
+ * - projection: columns, *, count(*), with optional AS aliases
+ * - selection: comparisons (=, ==, !=, &lt;&gt;, &lt;, &lt;=, &gt;, &gt;=), IS [NOT] NULL, [NOT] BETWEEN, [NOT] IN, AND, OR, NOT, parentheses, numbers, 'strings' and ? arguments
+ * - sort order: columns with ASC/DESC, then LIMIT n [OFFSET m] or LIMIT m, n
+ * <p>
+ * Anything else throws IllegalArgumentException, rather than returning rows SQLite wouldn't have.
+ * Bounds on timestamp that hold for the whole selection are extracted, so chunks outside them are never read.
+ */
+public class TimeSeriesQuery {
+
+    /**
+     * Projection index of count(*)
+     */
+    public static final int COUNT = -1;
+
+    /**
+     * Row access for evaluation
+     */
+    public interface Rows {
+        /**
+         * @param column schema index
+         * @param row
+         * @return Long, Double, String or null
+         */
+        Object value(int column, int row);
+    }
+
+    final String[] schema;
+    final String[] columns;
+    final int[] projection;
+    final Node where;
+    final boolean range_only;
+    long min_timestamp = Long.MIN_VALUE;
+    long max_timestamp = Long.MAX_VALUE;
+    final int[] sort_columns;
+    final boolean[] sort_descending;
+    long limit = -1;
+    long offset = 0;
+
+    private final int timestamp_column;
+
+    /**
+     * @param schema           the store's column names
+     * @param timestamp_column schema index of the timestamp
+     * @param projection       null or empty for all columns
+     * @param selection        null or empty for all rows
+     * @param selection_args   values for ? in the selection
+     * @param sort_order       null or empty for storage order
+     */
+    public TimeSeriesQuery(String[] schema, int timestamp_column, String[] projection, String selection, String[] selection_args, String sort_order) {
+        this.schema = schema;
+        this.timestamp_column = timestamp_column;
+
+        //Projection
+        ArrayList<String> names = new ArrayList<>();
+        ArrayList<Integer> indexes = new ArrayList<>();
+        if (projection == null || projection.length == 0) projection = new String[]{"*"};
+        for (String item : projection) {
+            String expression = item.trim();
+            String alias = null;
+            int as = expression.toLowerCase(Locale.ENGLISH).lastIndexOf(" as ");
+            if (as > 0) {
+                alias = expression.substring(as + 4).trim();
+                expression = expression.substring(0, as).trim();
+            }
+            if (expression.equals("*")) {
+                for (int c = 0; c < schema.length; c++) {
+                    names.add(schema[c]);
+                    indexes.add(c);
+                }
+            } else if (expression.replace(" ", "").equalsIgnoreCase("count(*)")) {
+                names.add((alias != null) ? alias : "count(*)");
+                indexes.add(COUNT);
+            } else {
+                names.add((alias != null) ? alias : expression);
+                indexes.add(column(expression));
+            }
+        }
+        columns = names.toArray(new String[names.size()]);
+        this.projection = new int[indexes.size()];
+        for (int i = 0; i < this.projection.length; i++) this.projection[i] = indexes.get(i);
+        if (isCount() && this.projection.length > 1) {
+            throw new IllegalArgumentException("count(*) can't be mixed with columns");
+        }
+
+        //Selection
+        if (selection != null && selection.trim().length() > 0) {
+            Parser parser = new Parser(selection, selection_args);
+            where = parser.expression();
+            parser.end();
+            range_only = bounds(where);
+        } else {
+            where = null;
+            range_only = true;
+        }
+
+        //Sort order and limit
+        ArrayList<Integer> sort = new ArrayList<>();
+        ArrayList<Boolean> descending = new ArrayList<>();
+        if (sort_order != null && sort_order.trim().length() > 0) {
+            Parser parser = new Parser(sort_order, null);
+            while (!parser.done() && !parser.keyword("LIMIT")) {
+                sort.add(column(parser.identifier()));
+                boolean desc = false;
+                if (parser.keyword("DESC")) {
+                    desc = true;
+                } else {
+                    parser.keyword("ASC");
+                }
+                descending.add(desc);
+                if (!parser.symbol(",")) break;
+            }
+            if (parser.keyword("LIMIT") || parser.previousWas("LIMIT")) {
+                long first = parser.integer();
+                if (parser.symbol(",")) {
+                    offset = first;
+                    limit = parser.integer();
+                } else {
+                    limit = first;
+                    if (parser.keyword("OFFSET")) offset = parser.integer();
+                }
+            }
+            parser.end();
+        }
+        sort_columns = new int[sort.size()];
+        sort_descending = new boolean[sort.size()];
+        for (int i = 0; i < sort_columns.length; i++) {
+            sort_columns[i] = sort.get(i);
+            sort_descending[i] = descending.get(i);
+        }
+    }
+
+    private int column(String name) {
+        String clean = name.trim();
+        if (clean.startsWith("\"") && clean.endsWith("\"") && clean.length() > 1) clean = clean.substring(1, clean.length() - 1);
+        int dot = clean.lastIndexOf('.');
+        if (dot >= 0) clean = clean.substring(dot + 1); //table.column
+        for (int c = 0; c < schema.length; c++) {
+            if (schema[c].equalsIgnoreCase(clean)) return c;
+        }
+        throw new IllegalArgumentException("Unknown column " + name);
+    }
+
+    /**
+     * @return true if the projection is count(*)
+     */
+    public boolean isCount() {
+        return projection.length > 0 && projection[0] == COUNT;
+    }
+
+    /**
+     * @return true if the selection only bounds the timestamp, i.e., rows between getMinTimestamp() and getMaxTimestamp() all match
+     */
+    public boolean isRangeOnly() {
+        return range_only;
+    }
+
+    public long getMinTimestamp() {
+        return min_timestamp;
+    }
+
+    public long getMaxTimestamp() {
+        return max_timestamp;
+    }
+
+    /**
+     * @param rows
+     * @param row
+     * @return true if the row matches the selection
+     */
+    public boolean matches(Rows rows, int row) {
+        if (where == null) {
+            return true;
+        }
+        if (range_only) {
+            Object timestamp = rows.value(timestamp_column, row);
+            if (timestamp == null) return false;
+            long value = ((Number) timestamp).longValue();
+            return value >= min_timestamp && value <= max_timestamp;
+        }
+        return truth(where.eval(rows, row));
+    }
+
+    /**
+     * Narrow the timestamp bounds with the AND-ed comparisons of the selection
+     *
+     * @return true if the bounds are the whole selection
+     */
+    private boolean bounds(Node node) {
+        if (node instanceof Logic && ((Logic) node).op.equals("AND")) {
+            boolean left = bounds(((Logic) node).left);
+            boolean right = bounds(((Logic) node).right);
+            return left && right;
+        }
+        if (node instanceof Literal) {
+            return truth(((Literal) node).value); //e.g., "1"
+        }
+        if (!(node instanceof Compare)) return false;
+
+        Compare compare = (Compare) node;
+        String op = compare.op;
+        Node column = compare.left;
+        Node literal = compare.right;
+        if (compare.right instanceof Column) {
+            column = compare.right;
+            literal = compare.left;
+            op = flip(op);
+        }
+        if (!(column instanceof Column) || ((Column) column).index != timestamp_column) return false;
+        if (!(literal instanceof Literal) || !(((Literal) literal).value instanceof Number)) return false;
+
+        double value = ((Number) ((Literal) literal).value).doubleValue();
+        long floor = (long) Math.floor(value);
+        long ceil = (long) Math.ceil(value);
+        switch (op) {
+            case ">":
+                min_timestamp = Math.max(min_timestamp, floor + 1);
+                return true;
+            case ">=":
+                min_timestamp = Math.max(min_timestamp, ceil);
+                return true;
+            case "<":
+                max_timestamp = Math.min(max_timestamp, ceil - 1);
+                return true;
+            case "<=":
+                max_timestamp = Math.min(max_timestamp, floor);
+                return true;
+            case "=":
+                min_timestamp = Math.max(min_timestamp, ceil);
+                max_timestamp = Math.min(max_timestamp, floor);
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private static String flip(String op) {
+        switch (op) {
+            case ">":
+                return "<";
+            case ">=":
+                return "<=";
+            case "<":
+                return ">";
+            case "<=":
+                return ">=";
+            default:
+                return op;
+        }
+    }
+
+    static boolean truth(Object value) {
+        if (value == null) return false;
+        if (value instanceof Number) return ((Number) value).doubleValue() != 0;
+        try {
+            return Double.parseDouble(value.toString().trim()) != 0;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    /**
+     * SQLite-like comparison: numbers numerically, text as text, null never compares
+     *
+     * @return negative, 0, positive, or null
+     */
+    static Integer compare(Object a, Object b) {
+        if (a == null || b == null) return null;
+        if (a instanceof Number && b instanceof Number) {
+            return Double.compare(((Number) a).doubleValue(), ((Number) b).doubleValue());
+        }
+        if (a instanceof Number || b instanceof Number) {
+            Double left = number(a);
+            Double right = number(b);
+            if (left != null && right != null) return Double.compare(left, right);
+            return (a instanceof Number) ? -1 : 1; //numbers sort before text
+        }
+        return a.toString().compareTo(b.toString());
+    }
+
+    private static Double number(Object value) {
+        if (value instanceof Number) return ((Number) value).doubleValue();
+        try {
+            return Double.parseDouble(value.toString().trim());
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static final Double TRUE = 1.0;
+    private static final Double FALSE = 0.0;
+
+    abstract static class Node {
+        abstract Object eval(Rows rows, int row);
+    }
+
+    static final class Column extends Node {
+        final int index;
+
+        Column(int index) {
+            this.index = index;
+        }
+
+        @Override
+        Object eval(Rows rows, int row) {
+            return rows.value(index, row);
+        }
+    }
+
+    static final class Literal extends Node {
+        final Object value;
+
+        Literal(Object value) {
+            this.value = value;
+        }
+
+        @Override
+        Object eval(Rows rows, int row) {
+            return value;
+        }
+    }
+
+    static final class Compare extends Node {
+        final Node left;
+        final String op;
+        final Node right;
+
+        Compare(Node left, String op, Node right) {
+            this.left = left;
+            this.op = op;
+            this.right = right;
+        }
+
+        @Override
+        Object eval(Rows rows, int row) {
+            Integer result = compare(left.eval(rows, row), right.eval(rows, row));
+            if (result == null) return null;
+            switch (op) {
+                case "=":
+                    return (result == 0) ? TRUE : FALSE;
+                case "!=":
+                    return (result != 0) ? TRUE : FALSE;
+                case "<":
+                    return (result < 0) ? TRUE : FALSE;
+                case "<=":
+                    return (result <= 0) ? TRUE : FALSE;
+                case ">":
+                    return (result > 0) ? TRUE : FALSE;
+                default:
+                    return (result >= 0) ? TRUE : FALSE;
+            }
+        }
+    }
+
+    static final class Logic extends Node {
+        final Node left;
+        final String op;
+        final Node right;
+
+        Logic(Node left, String op, Node right) {
+            this.left = left;
+            this.op = op;
+            this.right = right;
+        }
+
+        @Override
+        Object eval(Rows rows, int row) {
+            Object a = left.eval(rows, row);
+            if (op.equals("AND")) {
+                if (a != null && !truth(a)) return FALSE;
+                Object b = right.eval(rows, row);
+                if (b != null && !truth(b)) return FALSE;
+                return (a == null || b == null) ? null : TRUE;
+            } else {
+                if (truth(a)) return TRUE;
+                Object b = right.eval(rows, row);
+                if (truth(b)) return TRUE;
+                return (a == null || b == null) ? null : FALSE;
+            }
+        }
+    }
+
+    static final class Not extends Node {
+        final Node node;
+
+        Not(Node node) {
+            this.node = node;
+        }
+
+        @Override
+        Object eval(Rows rows, int row) {
+            Object value = node.eval(rows, row);
+            if (value == null) return null;
+            return truth(value) ? FALSE : TRUE;
+        }
+    }
+
+    static final class IsNull extends Node {
+        final Node node;
+
+        IsNull(Node node) {
+            this.node = node;
+        }
+
+        @Override
+        Object eval(Rows rows, int row) {
+            return (node.eval(rows, row) == null) ? TRUE : FALSE;
+        }
+    }
+
+    static final class In extends Node {
+        final Node node;
+        final Node[] values;
+
+        In(Node node, Node[] values) {
+            this.node = node;
+            this.values = values;
+        }
+
+        @Override
+        Object eval(Rows rows, int row) {
+            Object value = node.eval(rows, row);
+            if (value == null) return null;
+            for (Node candidate : values) {
+                Integer result = compare(value, candidate.eval(rows, row));
+                if (result != null && result == 0) return TRUE;
+            }
+            return FALSE;
+        }
+    }
+
+    /**
+     * Recursive descent over the selection
+     */
+    private final class Parser {
+        private final String text;
+        private final String[] args;
+        private int position = 0;
+        private int next_arg = 0;
+        private String previous = null;
+
+        Parser(String text, String[] args) {
+            this.text = text;
+            this.args = args;
+        }
+
+        private void skipSpaces() {
+            while (position < text.length() && Character.isWhitespace(text.charAt(position))) position++;
+        }
+
+        boolean done() {
+            skipSpaces();
+            return position >= text.length();
+        }
+
+        void end() {
+            if (!done()) throw unsupported();
+        }
+
+        private IllegalArgumentException unsupported() {
+            return new IllegalArgumentException("Unsupported near position " + position + ": " + text);
+        }
+
+        boolean previousWas(String keyword) {
+            return keyword.equalsIgnoreCase(previous);
+        }
+
+        boolean keyword(String keyword) {
+            skipSpaces();
+            int end = position + keyword.length();
+            if (end <= text.length() && text.substring(position, end).equalsIgnoreCase(keyword)
+                    && (end == text.length() || !isWordChar(text.charAt(end)))) {
+                position = end;
+                previous = keyword;
+                return true;
+            }
+            return false;
+        }
+
+        boolean symbol(String symbol) {
+            skipSpaces();
+            if (text.startsWith(symbol, position)) {
+                position += symbol.length();
+                previous = symbol;
+                return true;
+            }
+            return false;
+        }
+
+        private boolean isWordChar(char c) {
+            return Character.isLetterOrDigit(c) || c == '_' || c == '.';
+        }
+
+        String identifier() {
+            skipSpaces();
+            int start = position;
+            if (position < text.length() && text.charAt(position) == '"') {
+                int close = text.indexOf('"', position + 1);
+                if (close < 0) throw unsupported();
+                position = close + 1;
+                return text.substring(start, position);
+            }
+            while (position < text.length() && isWordChar(text.charAt(position))) position++;
+            if (start == position) throw unsupported();
+            previous = text.substring(start, position);
+            return previous;
+        }
+
+        long integer() {
+            skipSpaces();
+            int start = position;
+            while (position < text.length() && Character.isDigit(text.charAt(position))) position++;
+            if (start == position) throw unsupported();
+            return Long.parseLong(text.substring(start, position));
+        }
+
+        Node expression() {
+            Node left = and();
+            while (keyword("OR")) left = new Logic(left, "OR", and());
+            return left;
+        }
+
+        private Node and() {
+            Node left = not();
+            while (keyword("AND")) left = new Logic(left, "AND", not());
+            return left;
+        }
+
+        private Node not() {
+            if (keyword("NOT")) return new Not(not());
+            return predicate();
+        }
+
+        private Node predicate() {
+            Node left = operand();
+            if (keyword("IS")) {
+                boolean negate = keyword("NOT");
+                if (!keyword("NULL")) throw unsupported();
+                Node is_null = new IsNull(left);
+                return negate ? new Not(is_null) : is_null;
+            }
+            boolean negate = keyword("NOT");
+            if (keyword("BETWEEN")) {
+                Node low = operand();
+                if (!keyword("AND")) throw unsupported();
+                Node high = operand();
+                Node between = new Logic(new Compare(left, ">=", low), "AND", new Compare(left, "<=", high));
+                return negate ? new Not(between) : between;
+            }
+            if (keyword("IN")) {
+                if (!symbol("(")) throw unsupported();
+                ArrayList<Node> values = new ArrayList<>();
+                do {
+                    values.add(operand());
+                } while (symbol(","));
+                if (!symbol(")")) throw unsupported();
+                Node in = new In(left, values.toArray(new Node[values.size()]));
+                return negate ? new Not(in) : in;
+            }
+            if (negate) throw unsupported();
+
+            String[] operators = {"<=", ">=", "==", "!=", "<>", "=", "<", ">"};
+            for (String op : operators) {
+                if (symbol(op)) {
+                    String normalized = op.equals("==") ? "=" : op.equals("<>") ? "!=" : op;
+                    return new Compare(left, normalized, operand());
+                }
+            }
+            return left;
+        }
+
+        private Node operand() {
+            skipSpaces();
+            if (position >= text.length()) throw unsupported();
+            char c = text.charAt(position);
+
+            if (symbol("(")) {
+                Node inner = expression();
+                if (!symbol(")")) throw unsupported();
+                return inner;
+            }
+            if (symbol("?")) {
+                if (args == null || next_arg >= args.length) throw new IllegalArgumentException("Missing selection argument " + (next_arg + 1));
+                return new Literal(argument(args[next_arg++]));
+            }
+            if (c == '\'') {
+                StringBuilder value = new StringBuilder();
+                position++;
+                while (true) {
+                    if (position >= text.length()) throw unsupported();
+                    char s = text.charAt(position++);
+                    if (s == '\'') {
+                        if (position < text.length() && text.charAt(position) == '\'') {
+                            value.append('\'');
+                            position++;
+                        } else {
+                            break;
+                        }
+                    } else {
+                        value.append(s);
+                    }
+                }
+                return new Literal(value.toString());
+            }
+            if (c == '-' || c == '+' || c == '.' || Character.isDigit(c)) {
+                int start = position;
+                position++;
+                while (position < text.length() && (Character.isDigit(text.charAt(position)) || text.charAt(position) == '.'
+                        || text.charAt(position) == 'e' || text.charAt(position) == 'E'
+                        || ((text.charAt(position) == '-' || text.charAt(position) == '+') && (text.charAt(position - 1) == 'e' || text.charAt(position - 1) == 'E')))) {
+                    position++;
+                }
+                try {
+                    return new Literal(Double.parseDouble(text.substring(start, position)));
+                } catch (NumberFormatException e) {
+                    throw unsupported();
+                }
+            }
+            if (keyword("NULL")) return new Literal(null);
+
+            String name = identifier();
+            skipSpaces();
+            if (position < text.length() && text.charAt(position) == '(') throw unsupported(); //functions
+            return new Column(column(name));
+        }
+
+        /**
+         * Selection arguments are strings: compare as numbers when they are numbers, like SQLite does with numeric columns
+         */
+        private Object argument(String value) {
+            if (value == null) return null;
+            try {
+                return Double.parseDouble(value.trim());
+            } catch (NumberFormatException e) {
+                return value;
+            }
+        }
+    }
+}
@@ -0,0 +1,1219 @@
+package com.aware.utils;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.zip.CRC32;
+
+/**
+ * Columnar storage for high-frequency sensor data (e.g., accelerometer), instead of one SQLite row per sample.<br/>
+ * - Samples are buffered in memory and sealed into chunks of up to CHUNK_SIZE samples, sorted by timestamp.
+ * - Each column of a chunk is compressed on its own with {@link TimeSeriesCodec}: delta-of-delta for timestamps and integers, XOR for floats,
+ * and a per-chunk dictionary for device_id and label.
+ * - Chunks are appended to one file per hour of data (time partitions). A chunk index (time range, _id range, location) lets queries skip
+ * every chunk outside the timestamp range they ask for, without reading it.
+ * - A chunk is never modified: deleting rows drops whole chunks, or appends a rewritten chunk and points the index to it.
+ * A partition file is deleted once none of its chunks are in the index.
+ * <p>
+ * The open chunk is sealed when full, when the data moves to another partition, when it holds more than MAX_OPEN_TIME of data, and on {@link #flush()}.
+ * Until then, it is in memory, where queries see it, and in a journal file: once {@link #sync()} returns, its samples survive the process dying
+ * and are loaded back when the store is opened again.
+ * <p>
+ * Rows have the columns of the SQLite table they replace: _id, timestamp, device_id, the float values, accuracy and label,
+ * queried with {@link TimeSeriesQuery}. Plain Java, no Android dependencies.
+ */
+public class TimeSeriesStore {
+
+    /**
+     * Samples per chunk
+     */
+    public static final int CHUNK_SIZE = 8192;
+
+    /**
+     * Time span of a partition file, in milliseconds (1 hour)
+     */
+    public static final long PARTITION_LENGTH = 3600 * 1000L;
+
+    /**
+     * Longest span of data kept in the open chunk before sealing, in milliseconds (1 minute)
+     */
+    public static final long MAX_OPEN_TIME = 60 * 1000L;
+
+    private static final int CHUNK_MAGIC = 0x41545343; //ATSC
+    private static final int INDEX_MAGIC = 0x41545349; //ATSI
+    private static final int VERSION = 1;
+    private static final String INDEX_FILE = "chunks.idx";
+    private static final String JOURNAL_FILE = "open.journal";
+    private static final String PARTITION_EXTENSION = ".tsd";
+
+    private final File directory;
+    private final String[] schema;
+    private final int axes;
+
+    /**
+     * Schema indexes
+     */
+    public static final int ID = 0;
+    public static final int TIMESTAMP = 1;
+    public static final int DEVICE_ID = 2;
+    private final int accuracy_column;
+    private final int label_column;
+
+    private final ArrayList<Entry> index = new ArrayList<>();
+    private long next_id = 1;
+
+    //Open chunk
+    private long[] open_ids = new long[64];
+    private long[] open_timestamps = new long[64];
+    private float[][] open_values;
+    private long[] open_accuracies = new long[64];
+    private String[] open_devices = new String[64];
+    private String[] open_labels = new String[64];
+    private int open_count = 0;
+    private long open_partition = Long.MIN_VALUE;
+    private long open_min_timestamp = Long.MAX_VALUE;
+
+    //Journal of the open chunk
+    private FileOutputStream journal_file;
+    private DataOutputStream journal;
+
+    /**
+     * Open (or create) a store
+     *
+     * @param directory where the chunks are kept
+     * @param id        name of the _id column
+     * @param timestamp name of the timestamp column
+     * @param device_id name of the device_id column
+     * @param values    names of the float value columns
+     * @param accuracy  name of the accuracy column
+     * @param label     name of the label column
+     * @throws IOException
+     */
+    public TimeSeriesStore(File directory, String id, String timestamp, String device_id, String[] values, String accuracy, String label) throws IOException {
+        this.directory = directory;
+        this.axes = values.length;
+
+        schema = new String[values.length + 5];
+        schema[ID] = id;
+        schema[TIMESTAMP] = timestamp;
+        schema[DEVICE_ID] = device_id;
+        System.arraycopy(values, 0, schema, 3, axes);
+        accuracy_column = 3 + axes;
+        label_column = 4 + axes;
+        schema[accuracy_column] = accuracy;
+        schema[label_column] = label;
+
+        open_values = new float[axes][64];
+
+        if (!directory.exists() && !directory.mkdirs()) throw new IOException("Can't create " + directory);
+        loadIndex();
+        replayJournal();
+    }
+
+    /**
+     * @return column names, in table order
+     */
+    public String[] getColumns() {
+        return schema.clone();
+    }
+
+    /**
+     * Add a sample
+     *
+     * @param id        _id to keep (e.g., when migrating rows), or 0 to assign the next one
+     * @param timestamp
+     * @param device_id
+     * @param values    one per value column, missing ones are 0
+     * @param accuracy
+     * @param label     may be null
+     * @return the sample's _id
+     * @throws IOException if a chunk had to be sealed and couldn't be written, or the sample couldn't be journaled
+     */
+    public synchronized long append(long id, long timestamp, String device_id, float[] values, int accuracy, String label) throws IOException {
+        long partition = Math.floorDiv(timestamp, PARTITION_LENGTH) * PARTITION_LENGTH;
+        if (open_count > 0 && (open_count == CHUNK_SIZE || partition != open_partition || timestamp - open_min_timestamp > MAX_OPEN_TIME)) {
+            seal();
+        }
+
+        if (id <= 0) id = next_id;
+        add(id, timestamp, device_id, values, accuracy, label);
+        try {
+            writeOpen(journal(), open_count - 1);
+        } catch (IOException e) {
+            open_count--; //not kept, the caller is told it failed
+            throw e;
+        }
+        return id;
+    }
+
+    /**
+     * Add a sample to the open chunk
+     */
+    private void add(long id, long timestamp, String device_id, float[] values, int accuracy, String label) {
+        if (open_count == 0) {
+            open_partition = Math.floorDiv(timestamp, PARTITION_LENGTH) * PARTITION_LENGTH;
+            open_min_timestamp = timestamp;
+        }
+        if (open_count == open_ids.length) grow();
+
+        next_id = Math.max(next_id, id + 1);
+
+        open_ids[open_count] = id;
+        open_timestamps[open_count] = timestamp;
+        for (int a = 0; a < axes; a++) {
+            open_values[a][open_count] = (values != null && a < values.length) ? values[a] : 0;
+        }
+        open_accuracies[open_count] = accuracy;
+        open_devices[open_count] = device_id;
+        open_labels[open_count] = label;
+        open_count++;
+        open_min_timestamp = Math.min(open_min_timestamp, timestamp);
+    }
+
+    private void grow() {
+        int size = Math.min(open_ids.length * 2, CHUNK_SIZE);
+        open_ids = Arrays.copyOf(open_ids, size);
+        open_timestamps = Arrays.copyOf(open_timestamps, size);
+        for (int a = 0; a < axes; a++) open_values[a] = Arrays.copyOf(open_values[a], size);
+        open_accuracies = Arrays.copyOf(open_accuracies, size);
+        open_devices = Arrays.copyOf(open_devices, size);
+        open_labels = Arrays.copyOf(open_labels, size);
+    }
+
+    /**
+     * Seal the open chunk, e.g., when the sensor stops
+     *
+     * @throws IOException
+     */
+    public synchronized void flush() throws IOException {
+        if (open_count > 0) seal();
+    }
+
+    /**
+     * Write the journal to disk, so the samples appended so far survive the process dying (e.g., before telling the caller they are stored)
+     *
+     * @throws IOException
+     */
+    public synchronized void sync() throws IOException {
+        if (journal == null) return;
+        journal.flush();
+        journal_file.getFD().sync();
+    }
+
+    private DataOutputStream journal() throws IOException {
+        if (journal == null) {
+            journal_file = new FileOutputStream(new File(directory, JOURNAL_FILE), true);
+            journal = new DataOutputStream(new BufferedOutputStream(journal_file));
+        }
+        return journal;
+    }
+
+    private void writeOpen(DataOutputStream out, int row) throws IOException {
+        out.writeLong(open_ids[row]);
+        out.writeLong(open_timestamps[row]);
+        for (int a = 0; a < axes; a++) out.writeFloat(open_values[a][row]);
+        out.writeLong(open_accuracies[row]);
+        out.writeBoolean(open_devices[row] != null);
+        if (open_devices[row] != null) out.writeUTF(open_devices[row]);
+        out.writeBoolean(open_labels[row] != null);
+        if (open_labels[row] != null) out.writeUTF(open_labels[row]);
+    }
+
+    private void closeJournal() throws IOException {
+        if (journal == null) return;
+        try {
+            journal.close();
+        } finally {
+            journal = null;
+            journal_file = null;
+        }
+    }
+
+    /**
+     * The open chunk is empty: so is the journal. If it can't be deleted, the samples in it are sealed already and are left out when replaying it.
+     */
+    private void resetJournal() throws IOException {
+        closeJournal();
+        File file = new File(directory, JOURNAL_FILE);
+        if (file.exists() && !file.delete()) file.deleteOnExit();
+    }
+
+    /**
+     * Replace the journal with the open chunk as it is now, atomically
+     */
+    private void rewriteJournal() throws IOException {
+        closeJournal();
+        File temporary = new File(directory, JOURNAL_FILE + ".tmp");
+        FileOutputStream out = new FileOutputStream(temporary);
+        try {
+            DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out));
+            for (int i = 0; i < open_count; i++) writeOpen(data, i);
+            data.flush();
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (!temporary.renameTo(new File(directory, JOURNAL_FILE))) throw new IOException("Can't replace " + JOURNAL_FILE);
+    }
+
+    /**
+     * Load the open chunk back from the journal. Samples already sealed (the process died between sealing their chunk and emptying the journal)
+     * and a half-written last sample are left out.
+     */
+    private void replayJournal() throws IOException {
+        File file = new File(directory, JOURNAL_FILE);
+        if (!file.exists()) return;
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(readFile(file)));
+        HashMap<Entry, long[]> sealed_ids = new HashMap<>();
+        float[] values = new float[axes];
+        try {
+            while (in.available() > 0) {
+                long id = in.readLong();
+                long timestamp = in.readLong();
+                for (int a = 0; a < axes; a++) values[a] = in.readFloat();
+                int accuracy = (int) in.readLong();
+                String device_id = in.readBoolean() ? in.readUTF() : null;
+                String label = in.readBoolean() ? in.readUTF() : null;
+                if (!isSealed(id, sealed_ids)) add(id, timestamp, device_id, values, accuracy, label);
+            }
+        } catch (EOFException e) {
+            //half-written last sample
+        }
+        rewriteJournal();
+    }
+
+    private boolean isSealed(long id, HashMap<Entry, long[]> sealed_ids) throws IOException {
+        for (Entry entry : index) {
+            if (id < entry.min_id || id > entry.max_id) continue;
+            long[] ids = sealed_ids.get(entry);
+            if (ids == null) {
+                Chunk chunk = read(entry);
+                ids = TimeSeriesCodec.decodeLongs(chunk.encoded[ID], chunk.count);
+                sealed_ids.put(entry, ids);
+            }
+            for (long sealed : ids) {
+                if (sealed == id) return true;
+            }
+        }
+        return false;
+    }
+
+    private void seal() throws IOException {
+        Chunk open = openChunk();
+        Entry entry = write(open, open_partition);
+        index.add(entry);
+        sortIndex();
+
+        FileOutputStream out = new FileOutputStream(new File(directory, INDEX_FILE), true);
+        try {
+            DataOutputStream data = new DataOutputStream(out);
+            if (out.getChannel().size() == 0) {
+                data.writeInt(INDEX_MAGIC);
+                data.writeInt(VERSION);
+                data.writeLong(next_id);
+            }
+            entry.write(data);
+            data.flush();
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+
+        open_count = 0;
+        open_min_timestamp = Long.MAX_VALUE;
+        open_partition = Long.MIN_VALUE;
+        resetJournal();
+    }
+
+    /**
+     * @return the open chunk's samples, sorted, as a chunk
+     */
+    private Chunk openChunk() {
+        int count = open_count;
+        Integer[] order = new Integer[count];
+        for (int i = 0; i < count; i++) order[i] = i;
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                int result = compareLong(open_timestamps[a], open_timestamps[b]);
+                return (result != 0) ? result : compareLong(open_ids[a], open_ids[b]);
+            }
+        });
+
+        Chunk chunk = new Chunk(null, count);
+        chunk.ids = new long[count];
+        chunk.timestamps = new long[count];
+        chunk.values = new float[axes][count];
+        chunk.accuracies = new long[count];
+        chunk.devices = new String[count];
+        chunk.labels = new String[count];
+        for (int i = 0; i < count; i++) {
+            int from = order[i];
+            chunk.ids[i] = open_ids[from];
+            chunk.timestamps[i] = open_timestamps[from];
+            for (int a = 0; a < axes; a++) chunk.values[a][i] = open_values[a][from];
+            chunk.accuracies[i] = open_accuracies[from];
+            chunk.devices[i] = open_devices[from];
+            chunk.labels[i] = open_labels[from];
+        }
+        return chunk;
+    }
+
+    private static int compareLong(long a, long b) {
+        return (a < b) ? -1 : ((a == b) ? 0 : 1);
+    }
+
+    /**
+     * Append a chunk to its partition file
+     */
+    private Entry write(Chunk chunk, long partition) throws IOException {
+        int count = chunk.count;
+
+        //dictionaries, 0 is null
+        ArrayList<String> device_dictionary = new ArrayList<>();
+        ArrayList<String> label_dictionary = new ArrayList<>();
+        long[] device_codes = encodeStrings(chunk.devices, count, device_dictionary);
+        long[] label_codes = encodeStrings(chunk.labels, count, label_dictionary);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(count * 12 + 256);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(CHUNK_MAGIC);
+        out.writeInt(count);
+        writeDictionary(out, device_dictionary);
+        writeDictionary(out, label_dictionary);
+
+        out.writeInt(axes + 5);
+        writeColumn(out, TimeSeriesCodec.encodeLongs(chunk.ids, count));
+        writeColumn(out, TimeSeriesCodec.encodeLongs(chunk.timestamps, count));
+        for (int a = 0; a < axes; a++) writeColumn(out, TimeSeriesCodec.encodeFloats(chunk.values[a], count));
+        writeColumn(out, TimeSeriesCodec.encodeLongs(chunk.accuracies, count));
+        writeColumn(out, TimeSeriesCodec.encodeLongs(device_codes, count));
+        writeColumn(out, TimeSeriesCodec.encodeLongs(label_codes, count));
+
+        CRC32 crc = new CRC32();
+        crc.update(bytes.toByteArray());
+        out.writeInt((int) crc.getValue());
+        out.flush();
+        byte[] block = bytes.toByteArray();
+
+        File file = partitionFile(partition);
+        RandomAccessFile partition_file = new RandomAccessFile(file, "rw");
+        long offset;
+        try {
+            offset = partition_file.length();
+            partition_file.seek(offset);
+            partition_file.write(block);
+            partition_file.getFD().sync();
+        } finally {
+            partition_file.close();
+        }
+
+        Entry entry = new Entry();
+        entry.partition = partition;
+        entry.offset = offset;
+        entry.length = block.length;
+        entry.count = count;
+        entry.min_timestamp = Long.MAX_VALUE;
+        entry.max_timestamp = Long.MIN_VALUE;
+        entry.min_id = Long.MAX_VALUE;
+        entry.max_id = Long.MIN_VALUE;
+        for (int i = 0; i < count; i++) {
+            entry.min_timestamp = Math.min(entry.min_timestamp, chunk.timestamps[i]);
+            entry.max_timestamp = Math.max(entry.max_timestamp, chunk.timestamps[i]);
+            entry.min_id = Math.min(entry.min_id, chunk.ids[i]);
+            entry.max_id = Math.max(entry.max_id, chunk.ids[i]);
+        }
+        return entry;
+    }
+
+    private static long[] encodeStrings(String[] strings, int count, ArrayList<String> dictionary) {
+        HashMap<String, Integer> codes = new HashMap<>();
+        long[] encoded = new long[count];
+        for (int i = 0; i < count; i++) {
+            String value = strings[i];
+            if (value == null) continue;
+            Integer code = codes.get(value);
+            if (code == null) {
+                dictionary.add(value);
+                code = dictionary.size();
+                codes.put(value, code);
+            }
+            encoded[i] = code;
+        }
+        return encoded;
+    }
+
+    private static void writeDictionary(DataOutputStream out, ArrayList<String> dictionary) throws IOException {
+        out.writeInt(dictionary.size());
+        for (String value : dictionary) out.writeUTF(value);
+    }
+
+    private static void writeColumn(DataOutputStream out, byte[] column) throws IOException {
+        out.writeInt(column.length);
+        out.write(column);
+    }
+
+    private File partitionFile(long partition) {
+        return new File(directory, partition + PARTITION_EXTENSION);
+    }
+
+    /**
+     * Read a sealed chunk. Columns are decoded when first used.
+     */
+    private Chunk read(Entry entry) throws IOException {
+        byte[] block = new byte[entry.length];
+        RandomAccessFile file = new RandomAccessFile(partitionFile(entry.partition), "r");
+        try {
+            file.seek(entry.offset);
+            file.readFully(block);
+        } finally {
+            file.close();
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(block, 0, block.length - 4);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(block));
+        if (in.readInt() != CHUNK_MAGIC) throw new IOException("Not a chunk: " + entry);
+        int count = in.readInt();
+        Chunk chunk = new Chunk(entry, count);
+        chunk.device_dictionary = readDictionary(in);
+        chunk.label_dictionary = readDictionary(in);
+        int columns = in.readInt();
+        if (columns != axes + 5) throw new IOException("Chunk has " + columns + " columns, expected " + (axes + 5));
+        chunk.encoded = new byte[columns][];
+        for (int c = 0; c < columns; c++) {
+            chunk.encoded[c] = new byte[in.readInt()];
+            in.readFully(chunk.encoded[c]);
+        }
+        if (in.readInt() != (int) crc.getValue()) throw new IOException("Corrupted chunk: " + entry);
+        return chunk;
+    }
+
+    private static String[] readDictionary(DataInputStream in) throws IOException {
+        String[] dictionary = new String[in.readInt() + 1];
+        for (int i = 1; i < dictionary.length; i++) dictionary[i] = in.readUTF();
+        return dictionary;
+    }
+
+    private void loadIndex() throws IOException {
+        index.clear();
+        File file = new File(directory, INDEX_FILE);
+        boolean dropped = false;
+        if (file.exists()) {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(readFile(file)));
+            if (file.length() < 16) {
+                dropped = true;
+            } else {
+                if (in.readInt() != INDEX_MAGIC || in.readInt() != VERSION) throw new IOException("Unknown chunk index " + file);
+                next_id = in.readLong(); //_id are never reused, like AUTOINCREMENT
+                HashMap<Long, Long> partition_sizes = new HashMap<>();
+                while (in.available() >= Entry.SIZE) {
+                    Entry entry = Entry.read(in);
+                    Long size = partition_sizes.get(entry.partition);
+                    if (size == null) {
+                        size = partitionFile(entry.partition).length();
+                        partition_sizes.put(entry.partition, size);
+                    }
+                    if (entry.offset + entry.length <= size) {
+                        index.add(entry);
+                    } else {
+                        dropped = true; //partition lost or cut short
+                    }
+                }
+                if (in.available() > 0) dropped = true; //half-written entry
+            }
+        }
+        sortIndex();
+        for (Entry entry : index) next_id = Math.max(next_id, entry.max_id + 1);
+        if (dropped) saveIndex();
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        byte[] bytes = new byte[(int) file.length()];
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            in.readFully(bytes);
+        } finally {
+            in.close();
+        }
+        return bytes;
+    }
+
+    /**
+     * Rewrite the whole index, atomically
+     */
+    private void saveIndex() throws IOException {
+        File temporary = new File(directory, INDEX_FILE + ".tmp");
+        FileOutputStream out = new FileOutputStream(temporary);
+        try {
+            DataOutputStream data = new DataOutputStream(out);
+            data.writeInt(INDEX_MAGIC);
+            data.writeInt(VERSION);
+            data.writeLong(next_id);
+            for (Entry entry : index) entry.write(data);
+            data.flush();
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (!temporary.renameTo(new File(directory, INDEX_FILE))) throw new IOException("Can't replace " + INDEX_FILE);
+    }
+
+    private void sortIndex() {
+        Collections.sort(index, new Comparator<Entry>() {
+            @Override
+            public int compare(Entry a, Entry b) {
+                int result = compareLong(a.min_timestamp, b.min_timestamp);
+                return (result != 0) ? result : compareLong(a.min_id, b.min_id);
+            }
+        });
+    }
+
+    /**
+     * @return samples stored, including the open chunk
+     */
+    public synchronized long size() {
+        long size = open_count;
+        for (Entry entry : index) size += entry.count;
+        return size;
+    }
+
+    /**
+     * @return the highest _id stored, 0 if none
+     */
+    public synchronized long lastId() {
+        long last = 0;
+        for (Entry entry : index) last = Math.max(last, entry.max_id);
+        for (int i = 0; i < open_count; i++) last = Math.max(last, open_ids[i]);
+        return last;
+    }
+
+    /**
+     * @return bytes on disk, index included
+     */
+    public synchronized long bytes() {
+        long bytes = new File(directory, INDEX_FILE).length();
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.getName().endsWith(PARTITION_EXTENSION)) bytes += file.length();
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * @return chunks to look at for the query, in index order, the open chunk last
+     */
+    private ArrayList<Chunk> candidates(TimeSeriesQuery query) throws IOException {
+        ArrayList<Chunk> chunks = new ArrayList<>();
+        for (Entry entry : index) {
+            if (entry.max_timestamp < query.getMinTimestamp() || entry.min_timestamp > query.getMaxTimestamp()) continue;
+            chunks.add(new Chunk(entry, entry.count));
+        }
+        if (open_count > 0) chunks.add(openChunk());
+        return chunks;
+    }
+
+    /**
+     * Rows of a chunk matching a query
+     *
+     * @return matching rows, ascending, or null if they all match
+     */
+    private int[] matches(Chunk chunk, TimeSeriesQuery query) throws IOException {
+        if (query.where == null) return null;
+        if (query.isRangeOnly() && chunk.entry != null
+                && chunk.entry.min_timestamp >= query.getMinTimestamp() && chunk.entry.max_timestamp <= query.getMaxTimestamp()) {
+            return null;
+        }
+
+        load(chunk);
+        int[] rows = new int[chunk.count];
+        int matched = 0;
+        if (query.isRangeOnly()) {
+            //timestamps are sorted within a chunk
+            int from = lowerBound(chunk.timestamps(), query.getMinTimestamp());
+            int to = (query.getMaxTimestamp() == Long.MAX_VALUE) ? chunk.count : lowerBound(chunk.timestamps(), query.getMaxTimestamp() + 1);
+            for (int i = from; i < to; i++) rows[matched++] = i;
+        } else {
+            for (int i = 0; i < chunk.count; i++) {
+                if (query.matches(chunk, i)) rows[matched++] = i;
+            }
+        }
+        if (matched == chunk.count) return null;
+        return Arrays.copyOf(rows, matched);
+    }
+
+    private static int lowerBound(long[] sorted, long value) {
+        int low = 0;
+        int high = sorted.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (sorted[middle] < value) low = middle + 1;
+            else high = middle;
+        }
+        return low;
+    }
+
+    private void load(Chunk chunk) throws IOException {
+        if (chunk.entry != null && chunk.encoded == null) {
+            Chunk loaded = read(chunk.entry);
+            chunk.encoded = loaded.encoded;
+            chunk.device_dictionary = loaded.device_dictionary;
+            chunk.label_dictionary = loaded.label_dictionary;
+        }
+    }
+
+    /**
+     * Query the store. The result reads chunks as rows are asked for.
+     *
+     * @param projection
+     * @param selection
+     * @param selection_args
+     * @param sort_order
+     * @return result
+     * @throws IOException
+     */
+    public synchronized Result query(String[] projection, String selection, String[] selection_args, String sort_order) throws IOException {
+        TimeSeriesQuery query = new TimeSeriesQuery(schema, TIMESTAMP, projection, selection, selection_args, sort_order);
+        ArrayList<Chunk> chunks = candidates(query);
+
+        if (query.isCount()) {
+            long count = 0;
+            for (Chunk chunk : chunks) {
+                int[] rows = matches(chunk, query);
+                count += (rows == null) ? chunk.count : rows.length;
+                chunk.release();
+            }
+            return new Result(this, query, count);
+        }
+
+        //Rows come out in storage order if the sort asks for the timestamp, and chunks don't overlap
+        boolean storage_order = query.sort_columns.length == 0;
+        boolean descending = false;
+        if (query.sort_columns.length > 0 && query.sort_columns[0] == TIMESTAMP) {
+            descending = query.sort_descending[0];
+            storage_order = query.sort_columns.length == 1
+                    || (query.sort_columns.length == 2 && query.sort_columns[1] == ID && query.sort_descending[1] == descending);
+            for (int i = 1; storage_order && i < chunks.size(); i++) {
+                Entry previous = chunks.get(i - 1).entry;
+                Chunk next = chunks.get(i);
+                long next_timestamp = (next.entry != null) ? next.entry.min_timestamp : next.timestamps[0];
+                long next_id = (next.entry != null) ? next.entry.min_id : next.ids[0];
+                storage_order = previous.max_timestamp < next_timestamp
+                        || (previous.max_timestamp == next_timestamp && previous.max_id < next_id);
+            }
+        }
+
+        if (storage_order) {
+            long needed = (query.limit >= 0) ? query.offset + query.limit : Long.MAX_VALUE;
+            ArrayList<Chunk> matched_chunks = new ArrayList<>();
+            ArrayList<int[]> matched_rows = new ArrayList<>();
+            long matched = 0;
+            for (int i = 0; i < chunks.size() && matched < needed; i++) {
+                Chunk chunk = chunks.get(descending ? chunks.size() - 1 - i : i);
+                int[] rows = matches(chunk, query);
+                int count = (rows == null) ? chunk.count : rows.length;
+                chunk.release();
+                if (count == 0) continue;
+                matched_chunks.add(chunk);
+                matched_rows.add(rows);
+                matched += count;
+            }
+            return new Result(this, query, matched_chunks, matched_rows, descending);
+        }
+
+        //Any other order: sort the matching rows, as chunk << 32 | row
+        ArrayList<Long> positions = new ArrayList<>();
+        for (int c = 0; c < chunks.size(); c++) {
+            Chunk chunk = chunks.get(c);
+            int[] rows = matches(chunk, query);
+            int count = (rows == null) ? chunk.count : rows.length;
+            if (count > 0) load(chunk);
+            for (int r = 0; r < count; r++) positions.add(((long) c << 32) | ((rows == null) ? r : rows[r]));
+        }
+        final ArrayList<Chunk> sorted_chunks = chunks;
+        final TimeSeriesQuery sorting = query;
+        Collections.sort(positions, new Comparator<Long>() {
+            @Override
+            public int compare(Long a, Long b) {
+                Chunk left = sorted_chunks.get((int) (a >>> 32));
+                Chunk right = sorted_chunks.get((int) (b >>> 32));
+                for (int s = 0; s < sorting.sort_columns.length; s++) {
+                    Object left_value = left.value(sorting.sort_columns[s], a.intValue());
+                    Object right_value = right.value(sorting.sort_columns[s], b.intValue());
+                    Integer result = TimeSeriesQuery.compare(left_value, right_value);
+                    if (result == null) {
+                        //nulls first, like SQLite
+                        result = (left_value == right_value) ? 0 : ((left_value == null) ? -1 : 1);
+                    }
+                    if (result != 0) return sorting.sort_descending[s] ? -result : result;
+                }
+                return 0;
+            }
+        });
+        return new Result(this, query, chunks, positions);
+    }
+
+    /**
+     * Rows with an _id above the given one, in _id order, e.g., to move the samples elsewhere a range at a time.
+     * Only the chunks that may hold the next limit _id are read.
+     *
+     * @param id
+     * @param limit
+     * @return result
+     * @throws IOException
+     */
+    public synchronized Result after(long id, int limit) throws IOException {
+        TimeSeriesQuery query = new TimeSeriesQuery(schema, TIMESTAMP, null, null, null, schema[ID] + " ASC LIMIT " + limit);
+        ArrayList<Chunk> chunks = new ArrayList<>();
+        for (Entry entry : index) {
+            if (entry.max_id > id) chunks.add(new Chunk(entry, entry.count));
+        }
+        if (open_count > 0) chunks.add(openChunk());
+        Collections.sort(chunks, new Comparator<Chunk>() {
+            @Override
+            public int compare(Chunk a, Chunk b) {
+                return compareLong(minId(a), minId(b));
+            }
+        });
+
+        final ArrayList<Chunk> read = new ArrayList<>();
+        ArrayList<Long> positions = new ArrayList<>();
+        ArrayList<Long> ids = new ArrayList<>();
+        for (Chunk chunk : chunks) {
+            if (ids.size() >= limit) {
+                Collections.sort(ids);
+                if (minId(chunk) > ids.get(limit - 1)) break; //this chunk and the next ones only have later _id
+            }
+            load(chunk);
+            int c = read.size();
+            read.add(chunk);
+            for (int r = 0; r < chunk.count; r++) {
+                long row_id = (Long) chunk.value(ID, r);
+                if (row_id <= id) continue;
+                positions.add(((long) c << 32) | r);
+                ids.add(row_id);
+            }
+        }
+        Collections.sort(positions, new Comparator<Long>() {
+            @Override
+            public int compare(Long a, Long b) {
+                return compareLong((Long) read.get((int) (a >>> 32)).value(ID, a.intValue()), (Long) read.get((int) (b >>> 32)).value(ID, b.intValue()));
+            }
+        });
+        return new Result(this, query, read, positions);
+    }
+
+    private static long minId(Chunk chunk) {
+        if (chunk.entry != null) return chunk.entry.min_id;
+        long min = Long.MAX_VALUE;
+        for (int i = 0; i < chunk.count; i++) min = Math.min(min, chunk.ids[i]);
+        return min;
+    }
+
+    /**
+     * Delete the rows matching a selection
+     *
+     * @param selection
+     * @param selection_args
+     * @return rows deleted
+     * @throws IOException
+     */
+    public synchronized int delete(String selection, String[] selection_args) throws IOException {
+        TimeSeriesQuery query = new TimeSeriesQuery(schema, TIMESTAMP, null, selection, selection_args, null);
+        int deleted = 0;
+        boolean changed = false;
+
+        ArrayList<Entry> kept = new ArrayList<>();
+        for (Entry entry : index) {
+            if (entry.max_timestamp < query.getMinTimestamp() || entry.min_timestamp > query.getMaxTimestamp()) {
+                kept.add(entry);
+                continue;
+            }
+            Chunk chunk = new Chunk(entry, entry.count);
+            int[] rows = matches(chunk, query);
+            int count = (rows == null) ? chunk.count : rows.length;
+            if (count == 0) {
+                kept.add(entry);
+                continue;
+            }
+            changed = true;
+            deleted += count;
+            if (count < chunk.count) {
+                kept.add(write(chunk.without(rows), entry.partition));
+            }
+        }
+
+        //open chunk
+        if (open_count > 0) {
+            Chunk open = openChunk();
+            int[] rows = matches(open, query);
+            int count = (rows == null) ? open.count : rows.length;
+            if (count > 0) {
+                deleted += count;
+                Chunk survivors = open.without(rows);
+                open_count = 0;
+                for (int i = 0; i < survivors.count; i++) {
+                    open_ids[open_count] = survivors.ids[i];
+                    open_timestamps[open_count] = survivors.timestamps[i];
+                    for (int a = 0; a < axes; a++) open_values[a][open_count] = survivors.values[a][i];
+                    open_accuracies[open_count] = survivors.accuracies[i];
+                    open_devices[open_count] = survivors.devices[i];
+                    open_labels[open_count] = survivors.labels[i];
+                    open_count++;
+                }
+                rewriteJournal();
+            }
+        }
+
+        if (changed) {
+            index.clear();
+            index.addAll(kept);
+            sortIndex();
+            saveIndex();
+            removeEmptyPartitions();
+        }
+        return deleted;
+    }
+
+    private void removeEmptyPartitions() {
+        File[] files = directory.listFiles();
+        if (files == null) return;
+        for (File file : files) {
+            if (!file.getName().endsWith(PARTITION_EXTENSION)) continue;
+            boolean used = false;
+            for (Entry entry : index) {
+                if (file.getName().equals(entry.partition + PARTITION_EXTENSION)) {
+                    used = true;
+                    break;
+                }
+            }
+            if (!used && !file.delete()) file.deleteOnExit();
+        }
+    }
+
+    /**
+     * Delete every sample. _id keep counting from where they were.
+     *
+     * @throws IOException
+     */
+    public synchronized void clear() throws IOException {
+        open_count = 0;
+        resetJournal();
+        index.clear();
+        saveIndex();
+        removeEmptyPartitions();
+    }
+
+    /**
+     * Where a sealed chunk is, and what it holds
+     */
+    static final class Entry {
+        static final int SIZE = 8 + 8 + 4 + 4 + 8 * 4;
+
+        long partition;
+        long offset;
+        int length;
+        int count;
+        long min_timestamp;
+        long max_timestamp;
+        long min_id;
+        long max_id;
+
+        void write(DataOutputStream out) throws IOException {
+            out.writeLong(partition);
+            out.writeLong(offset);
+            out.writeInt(length);
+            out.writeInt(count);
+            out.writeLong(min_timestamp);
+            out.writeLong(max_timestamp);
+            out.writeLong(min_id);
+            out.writeLong(max_id);
+        }
+
+        static Entry read(DataInputStream in) throws IOException {
+            Entry entry = new Entry();
+            entry.partition = in.readLong();
+            entry.offset = in.readLong();
+            entry.length = in.readInt();
+            entry.count = in.readInt();
+            entry.min_timestamp = in.readLong();
+            entry.max_timestamp = in.readLong();
+            entry.min_id = in.readLong();
+            entry.max_id = in.readLong();
+            return entry;
+        }
+
+        @Override
+        public String toString() {
+            return partition + PARTITION_EXTENSION + "@" + offset + " (" + count + " samples)";
+        }
+    }
+
+    /**
+     * A chunk's rows. Sealed chunks keep their compressed columns and decode each one the first time it is used.
+     */
+    final class Chunk implements TimeSeriesQuery.Rows {
+        final Entry entry;
+        final int count;
+
+        byte[][] encoded;
+        String[] device_dictionary;
+        String[] label_dictionary;
+
+        long[] ids;
+        long[] timestamps;
+        float[][] values;
+        long[] accuracies;
+        String[] devices;
+        String[] labels;
+        private long[] device_codes;
+        private long[] label_codes;
+
+        Chunk(Entry entry, int count) {
+            this.entry = entry;
+            this.count = count;
+        }
+
+        long[] timestamps() {
+            if (timestamps == null) timestamps = TimeSeriesCodec.decodeLongs(encoded[1], count);
+            return timestamps;
+        }
+
+        @Override
+        public Object value(int column, int row) {
+            if (column == ID) {
+                if (ids == null) ids = TimeSeriesCodec.decodeLongs(encoded[0], count);
+                return ids[row];
+            }
+            if (column == TIMESTAMP) {
+                return timestamps()[row];
+            }
+            if (column == DEVICE_ID) {
+                if (devices != null) return devices[row];
+                if (device_codes == null) device_codes = TimeSeriesCodec.decodeLongs(encoded[3 + axes], count);
+                return device_dictionary[(int) device_codes[row]];
+            }
+            if (column == accuracy_column) {
+                if (accuracies == null) accuracies = TimeSeriesCodec.decodeLongs(encoded[2 + axes], count);
+                return accuracies[row];
+            }
+            if (column == label_column) {
+                if (labels != null) return labels[row];
+                if (label_codes == null) label_codes = TimeSeriesCodec.decodeLongs(encoded[4 + axes], count);
+                return label_dictionary[(int) label_codes[row]];
+            }
+            int axis = column - 3;
+            if (values == null) values = new float[axes][];
+            if (values[axis] == null) values[axis] = TimeSeriesCodec.decodeFloats(encoded[2 + axis], count);
+            return (double) values[axis][row];
+        }
+
+        /**
+         * Decode every column
+         */
+        void decode() {
+            if (count == 0) return;
+            for (int c = 0; c < schema.length; c++) value(c, 0);
+            if (devices == null) {
+                devices = new String[count];
+                for (int i = 0; i < count; i++) devices[i] = device_dictionary[(int) device_codes[i]];
+            }
+            if (labels == null) {
+                labels = new String[count];
+                for (int i = 0; i < count; i++) labels[i] = label_dictionary[(int) label_codes[i]];
+            }
+        }
+
+        /**
+         * @param rows sorted rows to leave out, null for all
+         * @return the remaining rows, as a new chunk
+         */
+        Chunk without(int[] rows) throws IOException {
+            load(this);
+            decode();
+            int remaining = (rows == null) ? 0 : count - rows.length;
+            Chunk chunk = new Chunk(null, remaining);
+            chunk.ids = new long[remaining];
+            chunk.timestamps = new long[remaining];
+            chunk.values = new float[axes][remaining];
+            chunk.accuracies = new long[remaining];
+            chunk.devices = new String[remaining];
+            chunk.labels = new String[remaining];
+            if (rows == null) return chunk;
+
+            int next = 0;
+            int out = 0;
+            for (int i = 0; i < count; i++) {
+                if (next < rows.length && rows[next] == i) {
+                    next++;
+                    continue;
+                }
+                chunk.ids[out] = ids[i];
+                chunk.timestamps[out] = timestamps[i];
+                for (int a = 0; a < axes; a++) chunk.values[a][out] = values[a][i];
+                chunk.accuracies[out] = accuracies[i];
+                chunk.devices[out] = devices[i];
+                chunk.labels[out] = labels[i];
+                out++;
+            }
+            return chunk;
+        }
+
+        /**
+         * Forget the compressed and decoded columns of a sealed chunk, they are read again when needed
+         */
+        void release() {
+            if (entry == null) return;
+            encoded = null;
+            ids = null;
+            timestamps = null;
+            values = null;
+            accuracies = null;
+            devices = null;
+            labels = null;
+            device_codes = null;
+            label_codes = null;
+        }
+    }
+
+    /**
+     * Rows of a query, by position. Sealed chunks are read one at a time, as positions move through them.
+     */
+    public static final class Result {
+        private final TimeSeriesStore store;
+        private final String[] columns;
+        private final int[] projection;
+
+        private final long count_value;
+        private final ArrayList<Chunk> chunks;
+        private final ArrayList<int[]> rows;
+        private final long[] starts;
+        private final boolean descending;
+        private final ArrayList<Long> positions;
+        private final int first;
+        private final int count;
+
+        private Chunk current;
+
+        //count(*)
+        Result(TimeSeriesStore store, TimeSeriesQuery query, long count_value) {
+            this.store = store;
+            this.columns = query.columns;
+            this.projection = query.projection;
+            this.count_value = count_value;
+            this.chunks = null;
+            this.rows = null;
+            this.starts = null;
+            this.descending = false;
+            this.positions = null;
+            this.first = 0;
+            this.count = 1;
+        }
+
+        //storage order
+        Result(TimeSeriesStore store, TimeSeriesQuery query, ArrayList<Chunk> chunks, ArrayList<int[]> rows, boolean descending) {
+            this.store = store;
+            this.columns = query.columns;
+            this.projection = query.projection;
+            this.count_value = 0;
+            this.chunks = chunks;
+            this.rows = rows;
+            this.descending = descending;
+            this.positions = null;
+
+            starts = new long[chunks.size() + 1];
+            for (int c = 0; c < chunks.size(); c++) {
+                starts[c + 1] = starts[c] + ((rows.get(c) == null) ? chunks.get(c).count : rows.get(c).length);
+            }
+            long total = starts[chunks.size()];
+            this.first = (int) Math.min(query.offset, total);
+            this.count = (int) Math.min(total - first, (query.limit >= 0) ? query.limit : Integer.MAX_VALUE);
+        }
+
+        //sorted
+        Result(TimeSeriesStore store, TimeSeriesQuery query, ArrayList<Chunk> chunks, ArrayList<Long> positions) {
+            this.store = store;
+            this.columns = query.columns;
+            this.projection = query.projection;
+            this.count_value = 0;
+            this.chunks = chunks;
+            this.rows = null;
+            this.starts = null;
+            this.descending = false;
+            this.positions = positions;
+            this.first = (int) Math.min(query.offset, positions.size());
+            this.count = (int) Math.min(positions.size() - first, (query.limit >= 0) ? query.limit : Integer.MAX_VALUE);
+        }
+
+        public String[] getColumns() {
+            return columns;
+        }
+
+        public int getCount() {
+            return count;
+        }
+
+        /**
+         * @param position 0 to getCount() - 1
+         * @param out      receives one value per column: Long, Double, String or null
+         * @throws IOException if the chunk can't be read anymore (e.g., deleted meanwhile)
+         */
+        public void getRow(int position, Object[] out) throws IOException {
+            if (position < 0 || position >= count) throw new IndexOutOfBoundsException("Row " + position + " of " + count);
+
+            if (chunks == null) {
+                out[0] = count_value;
+                return;
+            }
+
+            int chunk_index;
+            int row;
+            long index = first + position;
+            if (positions != null) {
+                long located = positions.get((int) index);
+                chunk_index = (int) (located >>> 32);
+                row = (int) located;
+            } else {
+                //chunks are already in output order, rows within a chunk are reversed when descending
+                int low = 0;
+                int high = chunks.size() - 1;
+                while (low < high) {
+                    int middle = (low + high + 1) >>> 1;
+                    if (starts[middle] <= index) low = middle;
+                    else high = middle - 1;
+                }
+                chunk_index = low;
+                int within = (int) (index - starts[low]);
+                int[] matched = rows.get(low);
+                int size = (matched == null) ? chunks.get(low).count : matched.length;
+                if (descending) within = size - 1 - within;
+                row = (matched == null) ? within : matched[within];
+            }
+
+            Chunk chunk = chunks.get(chunk_index);
+            if (current != chunk) {
+                if (current != null && positions == null) current.release();
+                current = chunk;
+            }
+            synchronized (store) {
+                store.load(chunk);
+            }
+            for (int c = 0; c < projection.length; c++) out[c] = chunk.value(projection[c], row);
+        }
+    }
+}
@@ -1,17 +1,16 @@
 
 package com.aware.utils;
 
-import android.app.IntentService;
 import android.app.NotificationManager;
 import android.app.PendingIntent;
+import android.app.Service;
 import android.content.Context;
 import android.content.Intent;
-import android.content.IntentFilter;
 import android.database.Cursor;
-import android.net.ConnectivityManager;
-import android.net.NetworkInfo;
 import android.net.Uri;
-import android.os.BatteryManager;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
 import android.support.v4.app.NotificationCompat;
 import android.text.format.DateUtils;
 import android.util.Log;
@@ -24,26 +23,170 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import java.io.FileNotFoundException;
-import java.util.ArrayList;
+import java.io.IOException;
+import java.io.Writer;
+import java.net.URLEncoder;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.Hashtable;
-
-public class WebserviceHelper extends IntentService {
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Uploads the local database tables to the webservice server.<br/>
+ * Each table is synced by a worker from a bounded pool (Aware_Preferences.WEBSERVICE_SYNC_THREADS, default = 2),
+ * so one slow table does not hold back the others. Small tables (aware_device, sensor_*) are synced first.
+ * Where each table's upload got to is kept in a {@link SyncCheckpoint}, so an interrupted sync resumes after the last acknowledged page.
+ * {@link SyncScheduler} decides if we sync at all: sync conditions (Wi-Fi, charging) and backoff when the server is unreachable.
+ */
+public class WebserviceHelper extends Service {
 
     public static final String ACTION_AWARE_WEBSERVICE_SYNC_TABLE = "ACTION_AWARE_WEBSERVICE_SYNC_TABLE";
     public static final String ACTION_AWARE_WEBSERVICE_CLEAR_TABLE = "ACTION_AWARE_WEBSERVICE_CLEAR_TABLE";
 
+    /**
+     * Broadcasted event: a table finished syncing
+     * extra: table (String)
+     * extra: rows (int) rows uploaded
+     * extra: elapsed (long) sync time, in milliseconds
+     * extra: pages, failures, retries (int), encode_time, bytes_raw, bytes_sent, latency_p50, latency_p90, latency_p99, latency_max (long), see {@link SyncTelemetry}
+     */
+    public static final String ACTION_AWARE_WEBSERVICE_SYNC_TABLE_FINISHED = "ACTION_AWARE_WEBSERVICE_SYNC_TABLE_FINISHED";
+
+    /**
+     * Broadcasted event: a sync run finished (all the tables queued were synced)
+     * extra: same as {@link #ACTION_AWARE_WEBSERVICE_SYNC_TABLE_FINISHED}, for the whole run, with table = {@link SyncTelemetry#RUN}
+     */
+    public static final String ACTION_AWARE_WEBSERVICE_SYNC_FINISHED = "ACTION_AWARE_WEBSERVICE_SYNC_FINISHED";
+
     public static final String EXTRA_TABLE = "table";
     public static final String EXTRA_FIELDS = "fields";
     public static final String EXTRA_CONTENT_URI = "uri";
+    public static final String EXTRA_ROWS = "rows";
+    public static final String EXTRA_ELAPSED = "elapsed";
 
     private static final int WEBSERVICES_NOTIFICATION_ID = 98765;
 
+    /**
+     * Default number of tables we sync at the same time
+     */
+    private static final int DEFAULT_SYNC_THREADS = 2;
+
+    /**
+     * Sensor tables that grow fast: uploaded as a columnar batch (if enabled)
+     */
+    private static final Set<String> HIGH_FREQUENCY_SENSORS = new HashSet<>(Arrays.asList(
+            "accelerometer", "gyroscope", "barometer", "gravity", "light", "linear_accelerometer",
+            "magnetometer", "rotation", "temperature", "proximity"
+    ));
+
     private NotificationManager notManager;
     private long sync_start = 0;
+    private SyncTelemetry run_telemetry;
+
+    private ThreadPoolExecutor syncExecutor;
+    private final AtomicLong sync_sequence = new AtomicLong(0);
+    private final AtomicInteger pending_tasks = new AtomicInteger(0);
+    private final Set<String> queued_tables = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private int last_start_id = 0;
+
+    /**
+     * One table upload (or remote clear). Higher priority tasks run first, then in the order they were requested.
+     */
+    private class SyncTask implements Runnable, Comparable<SyncTask> {
+        private final Intent intent;
+        private final String key;
+        private final int priority;
+        private final long sequence;
+
+        SyncTask(Intent intent, String key) {
+            this.intent = intent;
+            this.key = key;
+            this.priority = getPriority(intent.getStringExtra(EXTRA_TABLE));
+            this.sequence = sync_sequence.getAndIncrement();
+        }
+
+        @Override
+        public void run() {
+            try {
+                String table = intent.getStringExtra(EXTRA_TABLE);
+                SyncTelemetry telemetry = new SyncTelemetry(table, sync_start);
+                long start = System.currentTimeMillis();
+                int rows = handleIntent(intent, telemetry);
+                long elapsed = System.currentTimeMillis() - start;
+
+                if (rows > 0) {
+                    if (Aware.DEBUG)
+                        Log.d(Aware.TAG, table + " synced " + rows + " rows in " + elapsed + " ms (" + ((elapsed > 0) ? (rows * 1000L / elapsed) : rows) + " rows/s)");
+
+                    Intent finished = telemetry.putExtras(new Intent(ACTION_AWARE_WEBSERVICE_SYNC_TABLE_FINISHED));
+                    finished.putExtra(EXTRA_TABLE, table);
+                    finished.putExtra(EXTRA_ROWS, rows);
+                    finished.putExtra(EXTRA_ELAPSED, elapsed);
+                    sendBroadcast(finished);
+                }
+
+                //Only if we talked to the server, so held or backed off syncs don't fill the table
+                if (telemetry.hasRequests()) {
+                    if (Aware.DEBUG) Log.d(Aware.TAG, "Sync telemetry " + telemetry);
+                    telemetry.save(getApplicationContext(), elapsed);
+                    run_telemetry.add(telemetry);
+                }
+            } finally {
+                queued_tables.remove(key); //only once uploaded, so two workers never post the same pages
+                if (pending_tasks.decrementAndGet() == 0) {
+                    //stop on the main thread, so we don't race with a new onStartCommand
+                    mainHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (pending_tasks.get() == 0) stopSelf(last_start_id);
+                        }
+                    });
+                }
+            }
+        }
+
+        @Override
+        public int compareTo(SyncTask another) {
+            if (priority != another.priority) return (priority < another.priority) ? -1 : 1;
+            return (sequence < another.sequence) ? -1 : ((sequence == another.sequence) ? 0 : 1);
+        }
+    }
+
+    /**
+     * Device profile and sensor information tables are tiny, sync them first
+     *
+     * @param table
+     * @return 0 for high priority, 1 otherwise
+     */
+    private static int getPriority(String table) {
+        if (table == null) return 1;
+        if (isProfileTable(table)) return 0;
+        return 1;
+    }
 
-    public WebserviceHelper() {
-        super(Aware.TAG + " Webservice Sync");
+    /**
+     * @param table
+     * @return true for the device profile and sensor information tables, which we keep locally after upload
+     */
+    static boolean isProfileTable(String table) {
+        return table.equalsIgnoreCase("aware_device") || table.matches("sensor_.*");
+    }
+
+    /**
+     * A request returned nothing. If we couldn't even connect to the server, back off: the tables still waiting are skipped. Any other failure only concerns this table.
+     *
+     * @param server
+     */
+    private void requestFailed(String server) {
+        if (!Http.isReachable(server)) SyncScheduler.serverUnreachable(getApplicationContext());
     }
 
     private boolean exists(String[] array, String find) {
@@ -64,6 +207,51 @@ public class WebserviceHelper extends IntentService {
         notifyUser("Synching initiated...", false, true);
 
         sync_start = System.currentTimeMillis();
+        run_telemetry = new SyncTelemetry(SyncTelemetry.RUN, sync_start);
+
+        int threads = DEFAULT_SYNC_THREADS;
+        try {
+            if (Aware.getSetting(getApplicationContext(), Aware_Preferences.WEBSERVICE_SYNC_THREADS).length() > 0) {
+                threads = Math.max(1, Integer.parseInt(Aware.getSetting(getApplicationContext(), Aware_Preferences.WEBSERVICE_SYNC_THREADS)));
+            }
+        } catch (NumberFormatException e) {
+            threads = DEFAULT_SYNC_THREADS;
+        }
+        syncExecutor = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS, new PriorityBlockingQueue<Runnable>());
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        last_start_id = startId;
+
+        if (intent == null || intent.getAction() == null) {
+            if (pending_tasks.get() == 0) stopSelf(startId);
+            return START_NOT_STICKY;
+        }
+
+        //Held until the conditions change, or backing off from an unreachable server: don't even queue it
+        if (intent.getAction().equals(ACTION_AWARE_WEBSERVICE_SYNC_TABLE) && !SyncScheduler.canSync(getApplicationContext())) {
+            if (pending_tasks.get() == 0) stopSelf(startId);
+            return START_NOT_STICKY;
+        }
+
+        //Don't queue or run the same table twice, new rows are picked up by the sync already waiting or running (it uploads until a short page)
+        String key = intent.getAction() + "/" + intent.getStringExtra(EXTRA_TABLE);
+        if (!queued_tables.add(key)) {
+            if (Aware.DEBUG) Log.d(Aware.TAG, "Already synching " + intent.getStringExtra(EXTRA_TABLE));
+            if (pending_tasks.get() == 0) stopSelf(startId);
+            return START_NOT_STICKY;
+        }
+
+        pending_tasks.incrementAndGet();
+        syncExecutor.execute(new SyncTask(intent, key));
+
+        return START_NOT_STICKY;
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return null;
     }
 
     private void notifyUser(String message, boolean dismiss, boolean indetermined) {
@@ -86,14 +274,21 @@ public class WebserviceHelper extends IntentService {
         }
     }
 
-    @Override
-    protected void onHandleIntent(Intent intent) {
+    /**
+     * Sync or clear one table
+     *
+     * @param intent
+     * @param telemetry what syncing the table costs
+     * @return rows uploaded
+     */
+    private int handleIntent(Intent intent, SyncTelemetry telemetry) {
 
         String WEBSERVER = Aware.getSetting(getApplicationContext(), Aware_Preferences.WEBSERVICE_SERVER);
-        String protocol = WEBSERVER.substring(0, WEBSERVER.indexOf(":"));
 
         //Fixed: not using webservices
-        if (WEBSERVER.length() == 0) return;
+        if (WEBSERVER.length() == 0) return 0;
+
+        String protocol = WEBSERVER.substring(0, WEBSERVER.indexOf(":"));
 
         /**
          * Max number of rows to place on the HTTP(s) post
@@ -107,265 +302,234 @@ public class WebserviceHelper extends IntentService {
         boolean DEBUG = Aware.getSetting(getApplicationContext(), Aware_Preferences.DEBUG_FLAG).equals("true");
         String DATABASE_TABLE = intent.getStringExtra(EXTRA_TABLE);
         String TABLES_FIELDS = intent.getStringExtra(EXTRA_FIELDS);
+        boolean GZIP_UPLOAD = Aware.getSetting(getApplicationContext(), Aware_Preferences.WEBSERVICE_GZIP_UPLOAD).equals("true");
+        boolean COLUMNAR_UPLOAD = Aware.getSetting(getApplicationContext(), Aware_Preferences.WEBSERVICE_COLUMNAR_UPLOAD).equals("true");
 
         if (intent.getAction().equals(ACTION_AWARE_WEBSERVICE_SYNC_TABLE)) {
 
             Uri CONTENT_URI = Uri.parse(intent.getStringExtra(EXTRA_CONTENT_URI));
 
-            if (Aware.getSetting(getApplicationContext(), Aware_Preferences.WEBSERVICE_CHARGING).equals("true")) {
-                IntentFilter ifilter = new IntentFilter(Intent.ACTION_BATTERY_CHANGED);
-                Intent batteryStatus = registerReceiver(null, ifilter);
-                int status = batteryStatus.getIntExtra(BatteryManager.EXTRA_STATUS, -1);
-                boolean isCharging = (status == BatteryManager.BATTERY_STATUS_CHARGING || status == BatteryManager.BATTERY_STATUS_FULL);
+            //Wi-Fi only, charging only, or backing off from an unreachable server
+            if (!SyncScheduler.canSync(getApplicationContext())) return 0;
 
-                if (!isCharging) {
-                    if (Aware.DEBUG)
-                        Log.d(Aware.TAG, "Only synching data if charging...");
-                    return;
-                } else {
-                    if (Aware.DEBUG)
-                        Log.d(Aware.TAG, "Device is charging, can we sync?");
-                }
+            //Tables whose rows are completed later (e.g., ESM answers) are synced on their completion columns, everything else from the local checkpoint
+            String[] columnsStr = new String[]{};
+            Cursor columnsDB = getContentResolver().query(CONTENT_URI, null, null, null, null);
+            if (columnsDB != null) {
+                columnsStr = columnsDB.getColumnNames(); //known even if the table is empty
             }
+            if (columnsDB != null && !columnsDB.isClosed()) columnsDB.close();
 
-            //Check if we are supposed to sync over WiFi only
-            if (Aware.getSetting(getApplicationContext(), Aware_Preferences.WEBSERVICE_WIFI_ONLY).equals("true")) {
-                ConnectivityManager connManager = (ConnectivityManager) getSystemService(CONNECTIVITY_SERVICE);
-                NetworkInfo activeNetwork = connManager.getActiveNetworkInfo();
-                if (activeNetwork != null && activeNetwork.getType() == ConnectivityManager.TYPE_WIFI && activeNetwork.isConnected()) {
-                    if (Aware.DEBUG)
-                        Log.d(Aware.TAG, "Synching data only over Wi-Fi and internet is available, let's sync!");
-                } else {
-                    if (Aware.DEBUG)
-                        Log.d(Aware.TAG, "Synching data only over Wi-Fi. Will try again later...");
-                    return;
-                }
+            boolean completed_later = exists(columnsStr, "double_end_timestamp") || exists(columnsStr, "double_esm_user_answer_timestamp");
+            boolean has_id = exists(columnsStr, "_id");
+
+            SyncCheckpoint checkpoint = SyncCheckpoint.load(getApplicationContext(), DATABASE_TABLE, WEBSERVER, DEVICE_ID, Aware.getSetting(getApplicationContext(), Aware.STUDY_ID));
+            if (checkpoint == null) {
+                if (DEBUG) Log.d(Aware.TAG, DATABASE_TABLE + " is already synching");
+                return 0;
             }
+            checkpoint.setContentUri(CONTENT_URI.toString());
 
-            //Check first if we have database table remotely, otherwise create it!
-            Hashtable<String, String> fields = new Hashtable<>();
-            fields.put(Aware_Preferences.DEVICE_ID, DEVICE_ID);
-            fields.put(EXTRA_FIELDS, TABLES_FIELDS);
+            try {
+                //Rows that still need to be uploaded
+                String sync_condition;
 
-            //Create table if doesn't exist on the remote webservice server
-            String response;
-            if (protocol.equals("https")) {
-                try {
-                    response = new Https(getApplicationContext(), SSLManager.getHTTPS(getApplicationContext(), WEBSERVER)).dataPOST(WEBSERVER + "/" + DATABASE_TABLE + "/create_table", fields, true);
-                } catch (FileNotFoundException e) {
-                    response = null;
-                }
-            } else {
-                response = new Http(getApplicationContext()).dataPOST(WEBSERVER + "/" + DATABASE_TABLE + "/create_table", fields, true);
-            }
+                if (!completed_later && checkpoint.isValid(TABLES_FIELDS)) {
+                    //The server already has the table and acknowledged everything up to the checkpoint
+                    if (DEBUG)
+                        Log.d(Aware.TAG, DATABASE_TABLE + " resuming after the last acknowledged page");
 
-            if (response != null) {
-                String[] columnsStr = new String[]{};
-                Cursor columnsDB = getContentResolver().query(CONTENT_URI, null, null, null, null);
-                if (columnsDB != null && columnsDB.moveToFirst()) {
-                    columnsStr = columnsDB.getColumnNames();
-                }
-                if (columnsDB != null && !columnsDB.isClosed()) columnsDB.close();
+                    sync_condition = checkpoint.getCondition(has_id);
+                } else {
+                    //Check first if we have database table remotely, otherwise create it!
+                    Hashtable<String, String> fields = new Hashtable<>();
+                    fields.put(Aware_Preferences.DEVICE_ID, DEVICE_ID);
+                    fields.put(EXTRA_FIELDS, TABLES_FIELDS);
+
+                    //Create table if doesn't exist on the remote webservice server
+                    long request_start = System.currentTimeMillis();
+                    String response;
+                    if (protocol.equals("https")) {
+                        response = Https.getInstance(getApplicationContext(), WEBSERVER).dataPOST(WEBSERVER + "/" + DATABASE_TABLE + "/create_table", fields, true);
+                    } else {
+                        response = new Http(getApplicationContext()).dataPOST(WEBSERVER + "/" + DATABASE_TABLE + "/create_table", fields, true);
+                    }
+                    telemetry.request(System.currentTimeMillis() - request_start, response != null);
+                    if (response == null) { //unable to reach the server, cancel this sync
+                        requestFailed(WEBSERVER);
+                        return 0;
+                    }
 
-                try {
                     Hashtable<String, String> request = new Hashtable<>();
                     request.put(Aware_Preferences.DEVICE_ID, DEVICE_ID);
 
                     //check the latest entry in remote database
+                    request_start = System.currentTimeMillis();
                     String latest;
                     if (protocol.equals("https")) {
-                        try {
-                            latest = new Https(getApplicationContext(), SSLManager.getHTTPS(getApplicationContext(), WEBSERVER)).dataPOST(WEBSERVER + "/" + DATABASE_TABLE + "/latest", request, true);
-                        } catch (FileNotFoundException e) {
-                            latest = null;
-                        }
+                        latest = Https.getInstance(getApplicationContext(), WEBSERVER).dataPOST(WEBSERVER + "/" + DATABASE_TABLE + "/latest", request, true);
                     } else {
                         latest = new Http(getApplicationContext()).dataPOST(WEBSERVER + "/" + DATABASE_TABLE + "/latest", request, true);
                     }
-                    if (latest == null) return; //unable to reach the server, cancel this sync
-
-                    //If in a study, get only data from joined date onwards
-                    String study_condition = "";
-                    if (Aware.getSetting(getApplicationContext(), Aware.STUDY_ID).length() > 0 && Aware.getSetting(getApplicationContext(), Aware.STUDY_START).length() > 0) {
-                        study_condition = " AND timestamp > " + Long.parseLong(Aware.getSetting(getApplicationContext(), Aware.STUDY_START));
+                    telemetry.request(System.currentTimeMillis() - request_start, latest != null);
+                    if (latest == null) { //unable to reach the server, cancel this sync
+                        requestFailed(WEBSERVER);
+                        return 0;
                     }
-
-                    //However, we always want to sync the device's profile and hardware sensor profiles for any study, no matter when we join it
-                    if (DATABASE_TABLE.equalsIgnoreCase("aware_device") || DATABASE_TABLE.matches("sensor_.*")) study_condition = "";
+                    SyncScheduler.serverAnswered(getApplicationContext());
 
                     JSONArray remoteData = new JSONArray(latest);
 
-                    int TOTAL_RECORDS = 0;
-                    if (remoteData.length() == 0) {
-                        if (exists(columnsStr, "double_end_timestamp")) {
-                            Cursor counter = getContentResolver().query(CONTENT_URI, new String[]{"count(*) as entries"}, "double_end_timestamp != 0" + study_condition, null, "timestamp ASC");
-                            if (counter != null && counter.moveToFirst()) {
-                                TOTAL_RECORDS = counter.getInt(0);
-                                counter.close();
-                            }
-                        } else if (exists(columnsStr, "double_esm_user_answer_timestamp")) {
-                            Cursor counter = getContentResolver().query(CONTENT_URI, new String[]{"count(*) as entries"}, "double_esm_user_answer_timestamp != 0" + study_condition, null, "timestamp ASC");
-                            if (counter != null && counter.moveToFirst()) {
-                                TOTAL_RECORDS = counter.getInt(0);
-                                counter.close();
+                    if (completed_later) {
+                        if (remoteData.length() == 0) {
+                            if (exists(columnsStr, "double_end_timestamp")) {
+                                sync_condition = "double_end_timestamp != 0";
+                            } else {
+                                sync_condition = "double_esm_user_answer_timestamp != 0";
                             }
                         } else {
-                            Cursor counter = getContentResolver().query(CONTENT_URI, new String[]{"count(*) as entries"}, "1" + study_condition, null, "timestamp ASC");
-                            if (counter != null && counter.moveToFirst()) {
-                                TOTAL_RECORDS = counter.getInt(0);
-                                counter.close();
+                            long last;
+                            if (exists(columnsStr, "double_end_timestamp")) {
+                                last = remoteData.getJSONObject(0).getLong("double_end_timestamp");
+                                sync_condition = "timestamp > " + last + " AND double_end_timestamp != 0";
+                            } else {
+                                last = remoteData.getJSONObject(0).getLong("double_esm_user_answer_timestamp");
+                                sync_condition = "timestamp > " + last + " AND double_esm_user_answer_timestamp != 0";
                             }
                         }
                     } else {
-                        long last;
-                        if (exists(columnsStr, "double_end_timestamp")) {
-                            last = remoteData.getJSONObject(0).getLong("double_end_timestamp");
-                            Cursor counter = getContentResolver().query(CONTENT_URI, new String[]{"count(*) as entries"}, "timestamp > " + last + " AND double_end_timestamp != 0" + study_condition, null, "timestamp ASC");
-                            if (counter != null && counter.moveToFirst()) {
-                                TOTAL_RECORDS = counter.getInt(0);
-                                counter.close();
-                            }
-                        } else if (exists(columnsStr, "double_esm_user_answer_timestamp")) {
-                            last = remoteData.getJSONObject(0).getLong("double_esm_user_answer_timestamp");
-                            Cursor counter = getContentResolver().query(CONTENT_URI, new String[]{"count(*) as entries"}, "timestamp > " + last + " AND double_esm_user_answer_timestamp != 0" + study_condition, null, "timestamp ASC");
-                            if (counter != null && counter.moveToFirst()) {
-                                TOTAL_RECORDS = counter.getInt(0);
-                                counter.close();
-                            }
-                        } else {
-                            last = remoteData.getJSONObject(0).getLong("timestamp");
-                            Cursor counter = getContentResolver().query(CONTENT_URI, new String[]{"count(*) as entries"}, "timestamp > " + last + study_condition, null, "timestamp ASC");
-                            if (counter != null && counter.moveToFirst()) {
-                                TOTAL_RECORDS = counter.getInt(0);
-                                counter.close();
-                            }
-                        }
+                        checkpoint.verify(TABLES_FIELDS, (remoteData.length() == 0) ? null : remoteData.getJSONObject(0).getDouble("timestamp"));
+                        sync_condition = checkpoint.getCondition(has_id);
                     }
+                }
+
+                //If in a study, get only data from joined date onwards
+                String study_condition = "";
+                if (Aware.getSetting(getApplicationContext(), Aware.STUDY_ID).length() > 0 && Aware.getSetting(getApplicationContext(), Aware.STUDY_START).length() > 0) {
+                    study_condition = " AND timestamp > " + Long.parseLong(Aware.getSetting(getApplicationContext(), Aware.STUDY_START));
+                }
+
+                //However, we always want to sync the device's profile and hardware sensor profiles for any study, no matter when we join it
+                if (isProfileTable(DATABASE_TABLE)) study_condition = "";
+
+                sync_condition += study_condition;
+
+                long start = System.currentTimeMillis();
 
-                    if (TOTAL_RECORDS == 0) {
-                        return; //nothing to upload, no need to do anything now.
+                //Keyset pagination: each page continues after the last (timestamp, _id) we sent, instead of skipping an ever growing offset
+                String page_order = "timestamp ASC" + ((has_id) ? ", _id ASC" : "") + " LIMIT " + MAX_POST_SIZE;
+                String keyset_condition = "";
+
+                int UPLOADED = 0;
+                while (true) { //paginate cursor so it does not explode the phone's memory
+                    Cursor context_data = getContentResolver().query(CONTENT_URI, null, sync_condition + keyset_condition, null, page_order);
+                    if (context_data == null || !context_data.moveToFirst()) {
+                        if (context_data != null && !context_data.isClosed()) context_data.close();
+                        break; //nothing (else) to upload
                     }
 
-                    if (DEBUG)
-                        Log.d(Aware.TAG, "Syncing " + TOTAL_RECORDS + " records from " + DATABASE_TABLE);
+                    if (UPLOADED == 0) {
+                        if (DEBUG)
+                            Log.d(Aware.TAG, "Syncing " + DATABASE_TABLE);
 
-                    notifyUser("Syncing " + TOTAL_RECORDS + " from " + DATABASE_TABLE, false, true);
+                        notifyUser("Syncing " + DATABASE_TABLE, false, true);
+                    }
 
-                    long start = System.currentTimeMillis();
+                    CursorStreamer rows = new CursorStreamer(context_data);
 
-                    int UPLOADED = 0;
-                    while (UPLOADED < TOTAL_RECORDS) { //paginate cursor so it does not explode the phone's memory
-                        Cursor context_data;
-                        if (remoteData.length() == 0) {
-                            if (exists(columnsStr, "double_end_timestamp")) {
-                                context_data = getContentResolver().query(CONTENT_URI, null, "double_end_timestamp != 0" + study_condition, null, "timestamp ASC LIMIT " + UPLOADED + ", " + MAX_POST_SIZE);
-                            } else if (exists(columnsStr, "double_esm_user_answer_timestamp")) {
-                                context_data = getContentResolver().query(CONTENT_URI, null, "double_esm_user_answer_timestamp != 0" + study_condition, null, "timestamp ASC LIMIT " + UPLOADED + ", " + MAX_POST_SIZE);
-                            } else {
-                                context_data = getContentResolver().query(CONTENT_URI, null, "1" + study_condition, null, "timestamp ASC LIMIT " + UPLOADED + ", " + MAX_POST_SIZE);
-                            }
+                    //Same key if this page is sent again, so the server can drop the duplicate
+                    String idempotency_key = (completed_later) ? null : checkpoint.getIdempotencyKey();
+
+                    String success = null;
+                    Http.RequestStats stats = Http.startRequestStats();
+                    long encode_time = 0;
+                    long page_start = System.nanoTime();
+
+                    //High-frequency sensors go as a compact columnar batch, if the server supports it
+                    String columnar_url = WEBSERVER + "/" + DATABASE_TABLE + "/insert_columnar?" + Aware_Preferences.DEVICE_ID + "=" + Uri.encode(DEVICE_ID);
+                    boolean columnar = COLUMNAR_UPLOAD && HIGH_FREQUENCY_SENSORS.contains(DATABASE_TABLE) && Http.acceptsEndpoint(columnar_url);
+                    if (columnar) {
+                        if (idempotency_key != null)
+                            columnar_url += "&" + SyncCheckpoint.IDEMPOTENCY_KEY + "=" + idempotency_key;
+
+                        long encode_start = System.nanoTime();
+                        byte[] batch = rows.toColumnarBatch().encode();
+                        encode_time += System.nanoTime() - encode_start;
+
+                        if (protocol.equals("https")) {
+                            success = Https.getInstance(getApplicationContext(), WEBSERVER).dataPOST(columnar_url, batch, ColumnarBatch.CONTENT_TYPE, true);
                         } else {
-                            long last;
-                            if (exists(columnsStr, "double_end_timestamp")) {
-                                last = remoteData.getJSONObject(0).getLong("double_end_timestamp");
-                                context_data = getContentResolver().query(CONTENT_URI, null, "timestamp > " + last + " AND double_end_timestamp != 0" + study_condition, null, "timestamp ASC LIMIT " + UPLOADED + ", " + MAX_POST_SIZE);
-                            } else if (exists(columnsStr, "double_esm_user_answer_timestamp")) {
-                                last = remoteData.getJSONObject(0).getLong("double_esm_user_answer_timestamp");
-                                context_data = getContentResolver().query(CONTENT_URI, null, "timestamp > " + last + " AND double_esm_user_answer_timestamp != 0" + study_condition, null, "timestamp ASC LIMIT " + UPLOADED + ", " + MAX_POST_SIZE);
-                            } else {
-                                last = remoteData.getJSONObject(0).getLong("timestamp");
-                                context_data = getContentResolver().query(CONTENT_URI, null, "timestamp > " + last + study_condition, null, "timestamp ASC LIMIT " + UPLOADED + ", " + MAX_POST_SIZE);
-                            }
+                            success = new Http(getApplicationContext()).dataPOST(columnar_url, batch, ColumnarBatch.CONTENT_TYPE, true);
+                        }
+                        if (success == null && !Http.acceptsEndpoint(columnar_url)) {
+                            if (DEBUG)
+                                Log.d(Aware.TAG, DATABASE_TABLE + " columnar upload not supported by the server, sending JSON");
+                            columnar = false;
                         }
+                    }
 
-                        JSONArray rows = new JSONArray();
-                        if (context_data != null && context_data.moveToFirst()) {
-                            do {
-                                JSONObject row = new JSONObject();
-                                String[] columns = context_data.getColumnNames();
-                                for (String c_name : columns) {
-                                    if (c_name.equals("_id")) continue; //Skip local database ID
-                                    if (c_name.equals("timestamp") || c_name.contains("double")) {
-                                        row.put(c_name, context_data.getDouble(context_data.getColumnIndex(c_name)));
-                                    } else if (c_name.contains("float")) {
-                                        row.put(c_name, context_data.getFloat(context_data.getColumnIndex(c_name)));
-                                    } else if (c_name.contains("long")) {
-                                        row.put(c_name, context_data.getLong(context_data.getColumnIndex(c_name)));
-                                    } else if (c_name.contains("blob")) {
-                                        row.put(c_name, context_data.getBlob(context_data.getColumnIndex(c_name)));
-                                    } else if (c_name.contains("integer")) {
-                                        row.put(c_name, context_data.getInt(context_data.getColumnIndex(c_name)));
-                                    } else {
-                                        row.put(c_name, context_data.getString(context_data.getColumnIndex(c_name)));
-                                    }
-                                }
-                                rows.put(row);
-                            } while (context_data.moveToNext());
-
-                            context_data.close(); //clear phone's memory immediately
-
-                            request = new Hashtable<>();
-                            request.put(Aware_Preferences.DEVICE_ID, DEVICE_ID);
-                            request.put("data", rows.toString());
-
-                            String success;
-                            if (protocol.equals("https")) {
-                                try {
-                                    success = new Https(getApplicationContext(), SSLManager.getHTTPS(getApplicationContext(), WEBSERVER)).dataPOST(WEBSERVER + "/" + DATABASE_TABLE + "/insert", request, true);
-                                    if (DEBUG)
-                                        Log.d(Aware.TAG, "Sync " + DATABASE_TABLE + " OK");
-                                } catch (FileNotFoundException e) {
-                                    success = null;
-                                }
-                            } else {
-                                success = new Http(getApplicationContext()).dataPOST(WEBSERVER + "/" + DATABASE_TABLE + "/insert", request, true);
-                                if (DEBUG)
-                                    Log.d(Aware.TAG, "Sync " + DATABASE_TABLE + " OK");
-                            }
+                    if (!columnar) {
+                        Hashtable<String, String> request = new Hashtable<>();
+                        request.put(Aware_Preferences.DEVICE_ID, DEVICE_ID);
+                        if (idempotency_key != null) request.put(SyncCheckpoint.IDEMPOTENCY_KEY, idempotency_key);
 
-                            //Something went wrong, e.g., server is down, lost internet, etc.
-                            if (success == null) {
-                                if (DEBUG)
-                                    Log.d(Aware.TAG, DATABASE_TABLE + " FAILED to upload. Server down?");
-                                break;
-                            } else { //Are we performing database space maintenance?
-                                ArrayList<String> highFrequencySensors = new ArrayList<>();
-                                highFrequencySensors.add("accelerometer");
-                                highFrequencySensors.add("gyroscope");
-                                highFrequencySensors.add("barometer");
-                                highFrequencySensors.add("gravity");
-                                highFrequencySensors.add("light");
-                                highFrequencySensors.add("linear_accelerometer");
-                                highFrequencySensors.add("magnetometer");
-                                highFrequencySensors.add("rotation");
-                                highFrequencySensors.add("temperature");
-                                highFrequencySensors.add("proximity");
-
-                                //Clean the local database, now that it is uploaded to the server, if required
-                                if (Aware.getSetting(getApplicationContext(), Aware_Preferences.FREQUENCY_CLEAN_OLD_DATA).length() > 0
-                                        && Integer.parseInt(Aware.getSetting(getApplicationContext(), Aware_Preferences.FREQUENCY_CLEAN_OLD_DATA)) == 4
-                                        && highFrequencySensors.contains(DATABASE_TABLE)) {
-
-                                    long last = rows.getJSONObject(rows.length()-1).getLong("timestamp");
-                                    getContentResolver().delete(CONTENT_URI, "timestamp <= " + last, null);
-
-                                    if (DEBUG)
-                                        Log.d(Aware.TAG, "Deleted local old records for " + DATABASE_TABLE);
-
-                                    notifyUser("Cleaned old records from " + DATABASE_TABLE, false, true);
-                                }
-                            }
+                        if (protocol.equals("https")) {
+                            success = Https.getInstance(getApplicationContext(), WEBSERVER).dataPOST(WEBSERVER + "/" + DATABASE_TABLE + "/insert", request, "data", rows, true, GZIP_UPLOAD);
+                        } else {
+                            success = new Http(getApplicationContext()).dataPOST(WEBSERVER + "/" + DATABASE_TABLE + "/insert", request, "data", rows, true, GZIP_UPLOAD);
                         }
+                        encode_time += rows.getEncodeTime();
+                    }
+
+                    long latency = (System.nanoTime() - page_start - encode_time) / 1000000;
+                    telemetry.page(context_data.getCount(), encode_time, Math.max(0, latency), stats, success != null);
 
-                        UPLOADED += MAX_POST_SIZE;
+                    if (DEBUG && success != null)
+                        Log.d(Aware.TAG, "Sync " + DATABASE_TABLE + " OK");
+
+                    context_data.close(); //clear phone's memory immediately
+
+                    //Something went wrong, e.g., server is down, lost internet, etc. The next sync starts again from the checkpoint.
+                    if (success == null) {
+                        if (DEBUG)
+                            Log.d(Aware.TAG, DATABASE_TABLE + " FAILED to upload. Server down?");
+                        requestFailed(WEBSERVER);
+                        break;
                     }
+                    SyncScheduler.serverAnswered(getApplicationContext());
 
-                    if (DEBUG)
-                        Log.d(Aware.TAG, DATABASE_TABLE + " sync time: " + DateUtils.formatElapsedTime((System.currentTimeMillis() - start) / 1000));
+                    if (!completed_later) checkpoint.acknowledge(rows.getLastTimestamp(), rows.getLastId());
+
+                    UPLOADED += rows.getRows();
+                    if (rows.getRows() < MAX_POST_SIZE) break; //last page
+
+                    if (has_id) {
+                        keyset_condition = " AND (timestamp > " + rows.getLastTimestamp() + " OR (timestamp = " + rows.getLastTimestamp() + " AND _id > " + rows.getLastId() + "))";
+                    } else {
+                        keyset_condition = " AND timestamp > " + rows.getLastTimestamp();
+                    }
+                }
 
-                } catch (JSONException e) {
-                    e.printStackTrace();
+                if (DEBUG && UPLOADED > 0)
+                    Log.d(Aware.TAG, DATABASE_TABLE + " sync time: " + DateUtils.formatElapsedTime((System.currentTimeMillis() - start) / 1000));
+
+                //Are we performing database space maintenance?
+                //Clean the local database, now that it is uploaded to the server, if required. Off this thread, from the checkpoint.
+                if (UPLOADED > 0 && !completed_later
+                        && Aware.getSetting(getApplicationContext(), Aware_Preferences.FREQUENCY_CLEAN_OLD_DATA).length() > 0
+                        && Integer.parseInt(Aware.getSetting(getApplicationContext(), Aware_Preferences.FREQUENCY_CLEAN_OLD_DATA)) == 4) {
+                    Intent compact = new Intent(getApplicationContext(), CompactionService.class);
+                    compact.setAction(CompactionService.ACTION_AWARE_COMPACT);
+                    compact.putExtra(CompactionService.EXTRA_TABLE, DATABASE_TABLE);
+                    startService(compact);
                 }
+
+                return UPLOADED;
+
+            } catch (JSONException e) {
+                e.printStackTrace();
+            } finally {
+                checkpoint.release();
             }
         }
 
@@ -375,27 +539,198 @@ public class WebserviceHelper extends IntentService {
             if (Aware.DEBUG)
                 Log.d(Aware.TAG, "Clearing data..." + DATABASE_TABLE);
 
+            //the server table starts over, and so does our checkpoint
+            SyncCheckpoint.reset(getApplicationContext(), DATABASE_TABLE);
+
             Hashtable<String, String> request = new Hashtable<>();
             request.put(Aware_Preferences.DEVICE_ID, DEVICE_ID);
 
             if (protocol.equals("https")) {
-                try {
-                    new Https(getApplicationContext(), SSLManager.getHTTPS(getApplicationContext(), WEBSERVER)).dataPOST(WEBSERVER + "/" + DATABASE_TABLE + "/clear_table", request, true);
-                } catch (FileNotFoundException e) {
-                    e.printStackTrace();
-                }
+                Https.getInstance(getApplicationContext(), WEBSERVER).dataPOST(WEBSERVER + "/" + DATABASE_TABLE + "/clear_table", request, true);
             } else {
                 new Http(getApplicationContext()).dataPOST(WEBSERVER + "/" + DATABASE_TABLE + "/clear_table", request, true);
             }
         }
+        return 0;
+    }
+
+    /**
+     * Writes a page of local data as a JSON array directly into the HTTP(s) request body, one cursor row at a time,
+     * so we never hold the whole page as JSONObjects or as a String.
+     */
+    private static class CursorStreamer implements Http.StreamingBody {
+        private final Cursor cursor;
+        private final String[] columns;
+        private final int id_index;
+        private final int timestamp_index;
+
+        private int rows = 0;
+        private double last_timestamp = 0;
+        private long last_id = 0;
+        private long encode_time = 0;
+
+        CursorStreamer(Cursor cursor) {
+            this.cursor = cursor;
+            this.columns = cursor.getColumnNames();
+            this.id_index = cursor.getColumnIndex("_id");
+            this.timestamp_index = cursor.getColumnIndex("timestamp");
+        }
+
+        @Override
+        public void writeTo(Writer writer) throws IOException {
+            //we might be asked to write the page again, e.g., uncompressed
+            cursor.moveToFirst();
+            rows = 0;
+            encode_time = 0;
+
+            StringBuilder row = new StringBuilder();
+            writer.write(URLEncoder.encode("[", "UTF-8"));
+            do {
+                long encode_start = System.nanoTime();
+                row.setLength(0);
+                if (rows > 0) row.append(',');
+                row.append('{');
+                boolean first = true;
+                for (int i = 0; i < columns.length; i++) {
+                    String c_name = columns[i];
+                    if (c_name.equals("_id")) continue; //Skip local database ID
+
+                    String value = toJSON(i, c_name);
+                    if (value == null) continue; //same as JSONObject.put(name, null)
+
+                    if (!first) row.append(',');
+                    row.append(JSONObject.quote(c_name)).append(':').append(value);
+                    first = false;
+                }
+                row.append('}');
+                String encoded = URLEncoder.encode(row.toString(), "UTF-8");
+                encode_time += System.nanoTime() - encode_start;
+
+                writer.write(encoded);
+
+                if (timestamp_index != -1) last_timestamp = cursor.getDouble(timestamp_index);
+                if (id_index != -1) last_id = cursor.getLong(id_index);
+                rows++;
+            } while (cursor.moveToNext());
+            writer.write(URLEncoder.encode("]", "UTF-8"));
+        }
+
+        private String toJSON(int index, String c_name) {
+            try {
+                if (c_name.equals("timestamp") || c_name.contains("double")) {
+                    return JSONObject.numberToString(cursor.getDouble(index));
+                } else if (c_name.contains("float")) {
+                    return JSONObject.numberToString((double) cursor.getFloat(index));
+                } else if (c_name.contains("long")) {
+                    return JSONObject.numberToString(cursor.getLong(index));
+                } else if (c_name.contains("blob")) {
+                    byte[] blob = cursor.getBlob(index);
+                    return (blob != null) ? JSONObject.quote(blob.toString()) : null;
+                } else if (c_name.contains("integer")) {
+                    return JSONObject.numberToString(cursor.getInt(index));
+                } else {
+                    String text = cursor.getString(index);
+                    return (text != null) ? JSONObject.quote(text) : null;
+                }
+            } catch (JSONException e) {
+                return null; //NaN or infinite
+            }
+        }
+
+        /**
+         * Same page as a columnar batch, using the same column types as the JSON
+         *
+         * @return batch, without the local _id
+         */
+        ColumnarBatch toColumnarBatch() {
+            int count = (id_index != -1) ? columns.length - 1 : columns.length;
+            String[] names = new String[count];
+            byte[] types = new byte[count];
+            int[] indexes = new int[count];
+            for (int i = 0, j = 0; i < columns.length; i++) {
+                if (i == id_index) continue;
+                names[j] = columns[i];
+                types[j] = ColumnarBatch.typeOf(columns[i]);
+                indexes[j++] = i;
+            }
+
+            cursor.moveToFirst();
+            rows = 0;
+
+            ColumnarBatch batch = new ColumnarBatch(names, types, cursor.getCount());
+            do {
+                int row = batch.newRow();
+                for (int j = 0; j < count; j++) {
+                    int index = indexes[j];
+                    switch (types[j]) {
+                        case ColumnarBatch.TYPE_DOUBLE:
+                            batch.setDouble(row, j, cursor.getDouble(index));
+                            break;
+                        case ColumnarBatch.TYPE_FLOAT:
+                            batch.setDouble(row, j, cursor.getFloat(index));
+                            break;
+                        case ColumnarBatch.TYPE_LONG:
+                            batch.setLong(row, j, cursor.getLong(index));
+                            break;
+                        case ColumnarBatch.TYPE_INTEGER:
+                            batch.setLong(row, j, cursor.getInt(index));
+                            break;
+                        default:
+                            if (names[j].contains("blob")) {
+                                byte[] blob = cursor.getBlob(index);
+                                batch.setText(row, j, (blob != null) ? blob.toString() : null);
+                            } else {
+                                batch.setText(row, j, cursor.getString(index));
+                            }
+                    }
+                }
+
+                if (timestamp_index != -1) last_timestamp = cursor.getDouble(timestamp_index);
+                if (id_index != -1) last_id = cursor.getLong(id_index);
+                rows++;
+            } while (cursor.moveToNext());
+            return batch;
+        }
+
+        int getRows() {
+            return rows;
+        }
+
+        double getLastTimestamp() {
+            return last_timestamp;
+        }
+
+        long getLastId() {
+            return last_id;
+        }
+
+        /**
+         * @return time spent encoding rows the last time the page was written as JSON, in nanoseconds
+         */
+        long getEncodeTime() {
+            return encode_time;
+        }
     }
 
     @Override
     public void onDestroy() {
         super.onDestroy();
 
+        if (syncExecutor != null) syncExecutor.shutdown();
+
+        long elapsed = System.currentTimeMillis() - sync_start;
         if (Aware.DEBUG)
-            Log.d(Aware.TAG, "Finished synching all the databases in " + DateUtils.formatElapsedTime((System.currentTimeMillis() - sync_start) / 1000));
+            Log.d(Aware.TAG, "Finished synching all the databases in " + DateUtils.formatElapsedTime(elapsed / 1000));
+
+        if (run_telemetry != null && run_telemetry.hasRequests()) {
+            if (Aware.DEBUG) Log.d(Aware.TAG, "Sync telemetry " + run_telemetry);
+            run_telemetry.save(getApplicationContext(), elapsed);
+
+            Intent finished = run_telemetry.putExtras(new Intent(ACTION_AWARE_WEBSERVICE_SYNC_FINISHED));
+            finished.putExtra(EXTRA_TABLE, SyncTelemetry.RUN);
+            finished.putExtra(EXTRA_ELAPSED, elapsed);
+            sendBroadcast(finished);
+        }
 
         notifyUser("Finished syncing", true, false);
     }
@@ -0,0 +1,266 @@
+package com.aware.utils;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteException;
+import android.net.Uri;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Write-behind queue for sensor data.<br/>
+ * Rows are kept in memory and stored with one bulkInsert when:
+ * - the queue reaches flush_size rows, or
+ * - flush_delay milliseconds have passed since the first row was queued, or
+ * - rows arrive at most one per SLOW_ROW_INTERVAL, e.g., light, proximity or feature rows: they are stored right away
+ * <p>
+ * So rows of fast sensors reach the content provider up to flush_delay late, while slow sensors' rows are there as soon as they're sampled.
+ * <p>
+ * All queues share one writer thread, so database I/O never happens on the sensor or main thread.
+ * If the writer falls behind by more than max_pending rows, add() blocks until it catches up (backpressure), instead of growing without bounds.
+ * Call {@link #drain(long)} when the sensor stops, so nothing is lost.
+ */
+public class WriteBehindQueue {
+
+    private static final String TAG = "AWARE::WriteBehind";
+
+    /**
+     * Rows stored per bulkInsert (default = 250)
+     */
+    public static final int DEFAULT_FLUSH_SIZE = 250;
+
+    /**
+     * Longest time a row waits in memory, in milliseconds (default = 30 seconds)
+     */
+    public static final long DEFAULT_FLUSH_DELAY = 30 * 1000;
+
+    /**
+     * Rows arriving at least this far apart, in milliseconds, are stored right away instead of batched (default = 1 second)
+     */
+    public static final long SLOW_ROW_INTERVAL = 1000;
+
+    /**
+     * Longest time a stopping sensor waits for its queues to be stored, in milliseconds (default = 2 seconds)
+     */
+    public static final long DRAIN_TIMEOUT = 2 * 1000;
+
+    private static ScheduledExecutorService writer;
+
+    /**
+     * @return the writer thread shared by all queues
+     */
+    private static synchronized ScheduledExecutorService getWriter() {
+        if (writer == null) {
+            writer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable r) {
+                    return new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                            r.run();
+                        }
+                    }, TAG);
+                }
+            });
+        }
+        return writer;
+    }
+
+    private final ContentResolver resolver;
+    private final Uri uri;
+    private final int flush_size;
+    private final long flush_delay;
+    private final int max_pending;
+
+    private final Object lock = new Object();
+    private final ArrayList<ContentValues> pending;
+    private boolean flush_requested = false;
+    private ScheduledFuture<?> timed_flush;
+    private long last_added = 0;
+
+    private final Runnable flusher = new Runnable() {
+        @Override
+        public void run() {
+            write();
+        }
+    };
+
+    /**
+     * Queue with the default flush size and delay
+     *
+     * @param context
+     * @param uri content provider URI where the rows are stored
+     */
+    public WriteBehindQueue(Context context, Uri uri) {
+        this(context, uri, DEFAULT_FLUSH_SIZE, DEFAULT_FLUSH_DELAY);
+    }
+
+    /**
+     * @param context
+     * @param uri         content provider URI where the rows are stored
+     * @param flush_size  rows stored per bulkInsert
+     * @param flush_delay longest time a row waits in memory, in milliseconds
+     */
+    public WriteBehindQueue(Context context, Uri uri, int flush_size, long flush_delay) {
+        this.resolver = context.getApplicationContext().getContentResolver();
+        this.uri = uri;
+        this.flush_size = Math.max(1, flush_size);
+        this.flush_delay = flush_delay;
+        this.max_pending = this.flush_size * 8;
+        this.pending = new ArrayList<>(this.flush_size);
+    }
+
+    /**
+     * Queue one row
+     *
+     * @param row
+     */
+    public void add(ContentValues row) {
+        synchronized (lock) {
+            awaitRoom();
+            pending.add(row);
+            scheduleFlush(1);
+        }
+    }
+
+    /**
+     * Queue several rows, e.g., a drained {@link SampleRingBuffer}
+     *
+     * @param rows
+     */
+    public void addAll(ContentValues[] rows) {
+        if (rows.length == 0) return;
+        synchronized (lock) {
+            awaitRoom();
+            Collections.addAll(pending, rows);
+            scheduleFlush(rows.length);
+        }
+    }
+
+    /**
+     * @return rows waiting to be stored
+     */
+    public int size() {
+        synchronized (lock) {
+            return pending.size();
+        }
+    }
+
+    /**
+     * Store what is queued as soon as possible, without waiting for it
+     */
+    public void flush() {
+        synchronized (lock) {
+            if (!pending.isEmpty()) requestFlush();
+        }
+    }
+
+    /**
+     * Store what is queued and wait until it is in the database, for at most timeout milliseconds. Used when the sensor is stopping, often on the main thread.
+     * If it takes longer (e.g., other sensors' flushes ahead of it on the shared writer), the rows are still stored, we just don't wait for them.
+     *
+     * @param timeout in milliseconds
+     * @return true if the queue is stored
+     */
+    public boolean drain(long timeout) {
+        Future<?> drained = getWriter().submit(flusher);
+        try {
+            drained.get(Math.max(0, timeout), TimeUnit.MILLISECONDS);
+            return true;
+        } catch (TimeoutException e) {
+            Log.w(TAG, "Still storing " + uri + " in the background");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            Log.e(TAG, "Failed to store " + uri + ": " + e.getMessage());
+        }
+        return false;
+    }
+
+    /**
+     * Backpressure: wait for the writer if it is too far behind. Caller holds the lock.
+     */
+    private void awaitRoom() {
+        while (pending.size() >= max_pending) {
+            requestFlush();
+            try {
+                lock.wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Flush now if we have a full batch or the rows come in slowly, otherwise make sure a timed flush is on its way. Caller holds the lock.
+     *
+     * @param added rows just queued
+     */
+    private void scheduleFlush(int added) {
+        long now = SystemClock.elapsedRealtime();
+        boolean slow = now - last_added >= SLOW_ROW_INTERVAL * added;
+        last_added = now;
+
+        if (pending.size() >= flush_size || slow) {
+            requestFlush();
+        } else if (!flush_requested && timed_flush == null) {
+            timed_flush = getWriter().schedule(flusher, flush_delay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Caller holds the lock.
+     */
+    private void requestFlush() {
+        if (flush_requested) return;
+        flush_requested = true;
+        if (timed_flush != null) {
+            timed_flush.cancel(false);
+            timed_flush = null;
+        }
+        getWriter().execute(flusher);
+    }
+
+    /**
+     * Runs on the writer thread
+     */
+    private void write() {
+        ContentValues[] rows;
+        synchronized (lock) {
+            flush_requested = false;
+            if (timed_flush != null) {
+                timed_flush.cancel(false);
+                timed_flush = null;
+            }
+            if (pending.isEmpty()) return;
+
+            rows = pending.toArray(new ContentValues[pending.size()]);
+            pending.clear();
+            lock.notifyAll();
+        }
+
+        try {
+            resolver.bulkInsert(uri, rows);
+        } catch (SQLiteException e) {
+            Log.e(TAG, "Failed to store " + rows.length + " rows in " + uri + ": " + e.getMessage());
+        } catch (SQLException e) {
+            Log.e(TAG, "Failed to store " + rows.length + " rows in " + uri + ": " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package com.aware.tests;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.aware.providers.Accelerometer_Provider;
+import com.aware.providers.Accelerometer_Provider.Accelerometer_Data;
+import com.aware.utils.DatabaseHelper;
+
+import net.sqlcipher.database.SQLiteDatabase;
+
+import java.io.File;
+import java.util.Locale;
+
+/**
+ * Rows per second on SQLCipher: one insertOrThrow() per row (what providers did before) vs. DatabaseHelper.bulkInsert()
+ */
+public class BulkInsertBenchmark extends AndroidTestCase {
+
+    private static final String TAG = "AWARE::Benchmark";
+    private static final int ROWS = 10000;
+
+    private SQLiteDatabase database;
+    private File database_file;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        SQLiteDatabase.loadLibs(getContext());
+        database_file = getContext().getDatabasePath("bulk_insert_benchmark.db");
+        database_file.getParentFile().mkdirs();
+        database_file.delete();
+        database = SQLiteDatabase.openOrCreateDatabase(database_file.getPath(), "passwordChangeMe", null, null);
+        database.execSQL("CREATE TABLE " + Accelerometer_Provider.DATABASE_TABLES[1] + " (" + Accelerometer_Provider.TABLES_FIELDS[1] + ");");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        database.close();
+        database_file.delete();
+        super.tearDown();
+    }
+
+    private ContentValues[] rows(long start) {
+        ContentValues[] rows = new ContentValues[ROWS];
+        for (int i = 0; i < ROWS; i++) {
+            ContentValues row = new ContentValues();
+            row.put(Accelerometer_Data.DEVICE_ID, "6c3b8a43-5d3e-4e3b-9a0e-1d2c3b4a5f60");
+            row.put(Accelerometer_Data.TIMESTAMP, start + i * 20);
+            row.put(Accelerometer_Data.VALUES_0, (float) Math.sin(i));
+            row.put(Accelerometer_Data.VALUES_1, (float) Math.cos(i));
+            row.put(Accelerometer_Data.VALUES_2, 9.81f);
+            row.put(Accelerometer_Data.ACCURACY, 3);
+            row.put(Accelerometer_Data.LABEL, "");
+            rows[i] = row;
+        }
+        return rows;
+    }
+
+    public void testBulkInsertThroughput() {
+        String table = Accelerometer_Provider.DATABASE_TABLES[1];
+
+        ContentValues[] before = rows(0);
+        long start = System.nanoTime();
+        database.beginTransaction();
+        for (ContentValues v : before) {
+            database.insertOrThrow(table, Accelerometer_Data.DEVICE_ID, v);
+        }
+        database.setTransactionSuccessful();
+        database.endTransaction();
+        double per_row = ROWS / ((System.nanoTime() - start) / 1e9);
+
+        ContentValues[] after = rows(ROWS * 20);
+        start = System.nanoTime();
+        int inserted = DatabaseHelper.bulkInsert(database, table, after);
+        double prepared = ROWS / ((System.nanoTime() - start) / 1e9);
+
+        Log.i(TAG, String.format(Locale.ENGLISH, "insertOrThrow: %.0f rows/s, bulkInsert: %.0f rows/s", per_row, prepared));
+
+        assertEquals(ROWS, inserted);
+        assertEquals(ROWS * 2, count(table));
+    }
+
+    private int count(String table) {
+        Cursor c = database.rawQuery("SELECT count(*) FROM " + table, null);
+        try {
+            c.moveToFirst();
+            return c.getInt(0);
+        } finally {
+            c.close();
+        }
+    }
+}
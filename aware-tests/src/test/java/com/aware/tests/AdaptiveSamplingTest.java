@@ -0,0 +1,77 @@
+package com.aware.tests;
+
+import com.aware.utils.AdaptiveSampling;
+
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Still/moving decisions of adaptive sampling, and what happens to them when the accelerometer stops
+ */
+public class AdaptiveSamplingTest {
+
+    private static final float[] FLAT = {0, 0, 9.81f};
+
+    @After
+    public void stopped() {
+        AdaptiveSampling.reset();
+    }
+
+    /**
+     * Feed the same sample at 50Hz
+     *
+     * @return timestamp of the last sample
+     */
+    private long lieFlat(AdaptiveSampling adaptive, long from, long duration) {
+        long timestamp = from;
+        for (; timestamp <= from + duration; timestamp += 20) {
+            adaptive.add(timestamp, FLAT);
+        }
+        return timestamp - 20;
+    }
+
+    @Test
+    public void still() {
+        AdaptiveSampling adaptive = new AdaptiveSampling(AdaptiveSampling.DEFAULT_THRESHOLD, 1);
+        long now = lieFlat(adaptive, 0, 500);
+        assertFalse(adaptive.isStill());
+        assertFalse(AdaptiveSampling.isDeviceStill());
+
+        lieFlat(adaptive, now + 20, 1000);
+        assertTrue(adaptive.isStill());
+        assertTrue(AdaptiveSampling.isDeviceStill());
+    }
+
+    @Test
+    public void moving() {
+        AdaptiveSampling adaptive = new AdaptiveSampling(AdaptiveSampling.DEFAULT_THRESHOLD, 1);
+        long now = lieFlat(adaptive, 0, 2000);
+        assertTrue(adaptive.isStill());
+
+        assertTrue(adaptive.add(now + 20, new float[]{3, 2, 12}));
+        assertFalse(adaptive.isStill());
+        assertFalse(AdaptiveSampling.isDeviceStill());
+    }
+
+    @Test
+    public void stoppedWhileStill() {
+        AdaptiveSampling adaptive = new AdaptiveSampling(AdaptiveSampling.DEFAULT_THRESHOLD, 1);
+        lieFlat(adaptive, 0, 2000);
+        assertTrue(AdaptiveSampling.isDeviceStill());
+
+        //the other motion sensors must be told to go back to full rate, once
+        assertTrue(AdaptiveSampling.reset());
+        assertFalse(AdaptiveSampling.isDeviceStill());
+        assertFalse(AdaptiveSampling.reset());
+    }
+
+    @Test
+    public void stoppedWhileMoving() {
+        AdaptiveSampling adaptive = new AdaptiveSampling(AdaptiveSampling.DEFAULT_THRESHOLD, 1);
+        lieFlat(adaptive, 0, 500);
+        assertFalse(AdaptiveSampling.reset());
+        assertFalse(AdaptiveSampling.isDeviceStill());
+    }
+}
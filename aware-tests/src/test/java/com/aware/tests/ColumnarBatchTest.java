@@ -0,0 +1,118 @@
+package com.aware.tests;
+
+import com.aware.utils.ColumnarBatch;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Round-trip of the columnar upload format, and how it compares to the JSON we upload today
+ */
+public class ColumnarBatchTest {
+
+    private static final String[] ACCELEROMETER = {"timestamp", "device_id", "double_values_0", "double_values_1", "double_values_2", "accuracy", "label"};
+
+    private ColumnarBatch accelerometer(int rows) {
+        byte[] types = new byte[ACCELEROMETER.length];
+        for (int i = 0; i < ACCELEROMETER.length; i++) types[i] = ColumnarBatch.typeOf(ACCELEROMETER[i]);
+
+        Random random = new Random(42);
+        ColumnarBatch batch = new ColumnarBatch(ACCELEROMETER, types, 16);
+        long timestamp = 1476700000000L;
+        for (int i = 0; i < rows; i++) {
+            int row = batch.newRow();
+            timestamp += 18 + random.nextInt(5);
+            batch.setDouble(row, 0, timestamp);
+            batch.setText(row, 1, "6c3b8a43-5d3e-4e3b-9a0e-1d2c3b4a5f60");
+            batch.setDouble(row, 2, (float) (random.nextGaussian()));
+            batch.setDouble(row, 3, (float) (random.nextGaussian()));
+            batch.setDouble(row, 4, (float) (9.81 + random.nextGaussian()));
+            batch.setText(row, 5, "3");
+            batch.setText(row, 6, (i % 100 == 0) ? null : "walking");
+        }
+        return batch;
+    }
+
+    private String toJSON(ColumnarBatch batch) {
+        StringBuilder json = new StringBuilder("[");
+        for (int r = 0; r < batch.getRowCount(); r++) {
+            if (r > 0) json.append(',');
+            json.append('{');
+            for (int c = 0; c < batch.getColumnCount(); c++) {
+                if (c > 0) json.append(',');
+                json.append('"').append(batch.getColumnName(c)).append("\":");
+                if (batch.getColumnType(c) == ColumnarBatch.TYPE_TEXT) {
+                    json.append('"').append(batch.getText(r, c)).append('"');
+                } else {
+                    json.append(batch.getDouble(r, c));
+                }
+            }
+            json.append('}');
+        }
+        return json.append(']').toString();
+    }
+
+    @Test
+    public void roundTrip() throws Exception {
+        ColumnarBatch batch = accelerometer(1000);
+        ColumnarBatch decoded = ColumnarBatch.decode(new ByteArrayInputStream(batch.encode()));
+
+        assertEquals(batch.getRowCount(), decoded.getRowCount());
+        assertEquals(batch.getColumnCount(), decoded.getColumnCount());
+        for (int c = 0; c < batch.getColumnCount(); c++) {
+            assertEquals(batch.getColumnName(c), decoded.getColumnName(c));
+            assertEquals(batch.getColumnType(c), decoded.getColumnType(c));
+            for (int r = 0; r < batch.getRowCount(); r++) {
+                if (batch.getColumnType(c) == ColumnarBatch.TYPE_TEXT) {
+                    assertEquals(batch.getText(r, c), decoded.getText(r, c));
+                } else {
+                    assertEquals(batch.getDouble(r, c), decoded.getDouble(r, c), 0);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void roundTripDoublesAndLongs() throws Exception {
+        ColumnarBatch batch = new ColumnarBatch(
+                new String[]{"double_precise", "double_whole", "long_value", "integer_value"},
+                new byte[]{ColumnarBatch.TYPE_DOUBLE, ColumnarBatch.TYPE_DOUBLE, ColumnarBatch.TYPE_LONG, ColumnarBatch.TYPE_INTEGER}, 1);
+
+        double[] precise = {Math.PI, -0.1, Double.MAX_VALUE, Double.NaN};
+        long[] longs = {Long.MIN_VALUE, Long.MAX_VALUE, 0, -1};
+        for (int i = 0; i < precise.length; i++) {
+            int row = batch.newRow();
+            batch.setDouble(row, 0, precise[i]);
+            batch.setDouble(row, 1, -i * 1000);
+            batch.setLong(row, 2, longs[i]);
+            batch.setLong(row, 3, Integer.MIN_VALUE + i);
+        }
+
+        ColumnarBatch decoded = ColumnarBatch.decode(new ByteArrayInputStream(batch.encode()));
+        for (int i = 0; i < precise.length; i++) {
+            assertEquals(precise[i], decoded.getDouble(i, 0), 0);
+            assertEquals(-i * 1000, decoded.getDouble(i, 1), 0);
+            assertEquals(longs[i], decoded.getLong(i, 2));
+            assertEquals(Integer.MIN_VALUE + i, decoded.getLong(i, 3));
+        }
+    }
+
+    @Test(expected = java.io.IOException.class)
+    public void rejectsGarbage() throws Exception {
+        ColumnarBatch.decode(new ByteArrayInputStream("[{\"timestamp\":1}]".getBytes("UTF-8")));
+    }
+
+    @Test
+    public void smallerThanJSON() throws Exception {
+        ColumnarBatch batch = accelerometer(10000);
+
+        byte[] columnar = batch.encode();
+        byte[] json = toJSON(batch).getBytes("UTF-8");
+
+        assertTrue(columnar.length * 4 < json.length);
+    }
+}
@@ -0,0 +1,129 @@
+package com.aware.tests;
+
+import com.aware.utils.FeatureWindow;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Sliding-window features, against the same features computed from scratch over the last window samples
+ */
+public class FeatureWindowTest {
+
+    private static final long START = 1476700000000L;
+
+    /**
+     * Population variance of the last window values
+     */
+    private double variance(double[] values, int end, int window) {
+        double mean = 0;
+        for (int i = end - window; i < end; i++) mean += values[i];
+        mean /= window;
+        double variance = 0;
+        for (int i = end - window; i < end; i++) variance += (values[i] - mean) * (values[i] - mean);
+        return variance / window;
+    }
+
+    /**
+     * Energy of the last window values in each band, with a naive DFT at the bins FeatureWindow uses
+     */
+    private double[] bandEnergies(double[] values, int end, int window) {
+        double[] energies = new double[FeatureWindow.BANDS];
+        int count = Math.min(window / 2, 16);
+        for (int j = 0; j < count; j++) {
+            int bin = Math.max(1, (int) Math.round((j + 1) * (window / 2.0) / count));
+            double re = 0, im = 0;
+            for (int m = 0; m < window; m++) {
+                re += values[end - window + m] * Math.cos(2 * Math.PI * bin * m / window);
+                im -= values[end - window + m] * Math.sin(2 * Math.PI * bin * m / window);
+            }
+            energies[j * FeatureWindow.BANDS / count] += re * re + im * im;
+        }
+        for (int b = 0; b < FeatureWindow.BANDS; b++) energies[b] /= (double) window * window;
+        return energies;
+    }
+
+    /**
+     * Sign changes between consecutive samples of the last window values
+     */
+    private int signChanges(double[] values, int end, int window) {
+        int changes = 0;
+        for (int i = end - window + 1; i < end; i++) {
+            if ((values[i] > 0) != (values[i - 1] > 0)) changes++;
+        }
+        return changes;
+    }
+
+    private void check(int window, int hop) {
+        int count = window * 5 + 13;
+        Random random = new Random(window * 31 + hop);
+        double[][] series = new double[4][count];
+
+        FeatureWindow features = new FeatureWindow(window, hop);
+        int rows = 0;
+        for (int i = 0; i < count; i++) {
+            //x: a walking-like oscillation with noise, y: a square wave, z: gravity, slowly tilting
+            float x = (float) (2 * Math.sin(2 * Math.PI * i / 25.0) + 0.3 * random.nextGaussian());
+            float y = ((i / 3) % 2 == 0) ? 1 : -1;
+            float z = (float) (9.81 + 0.01 * i);
+            series[0][i] = x;
+            series[1][i] = y;
+            series[2][i] = z;
+            series[3][i] = Math.sqrt((double) x * x + (double) y * y + (double) z * z);
+
+            if (!features.add(START + i * 20, new float[]{x, y, z})) continue;
+            rows++;
+
+            int end = i + 1;
+            String at = "window " + window + ", hop " + hop + ", sample " + i;
+            assertEquals(at, window, features.getSamples());
+            assertEquals(at, START + (end - window) * 20, features.getWindowStart());
+            assertEquals(at, START + i * 20, features.getWindowEnd());
+
+            for (int s = 0; s < 4; s++) {
+                double expected = variance(series[s], end, window);
+                assertEquals(at + ", variance " + s, expected, features.getVariance(s), 1e-6 * Math.max(1, expected));
+            }
+
+            double[] expected = bandEnergies(series[3], end, window);
+            for (int b = 0; b < FeatureWindow.BANDS; b++) {
+                assertEquals(at + ", band " + b, expected[b], features.getBandEnergy(b), 1e-6 * Math.max(1, expected[b]));
+            }
+
+            //the square wave crosses its mean whenever it changes sign, the tilt is never below its mean
+            assertEquals(at, signChanges(series[1], end, window), features.getZeroCrossings(1));
+            assertEquals(at, 0, features.getZeroCrossings(2));
+        }
+        assertEquals(1 + (count - window) / hop, rows);
+    }
+
+    @Test
+    public void backToBack() {
+        check(128, 128);
+    }
+
+    @Test
+    public void overlapping() {
+        check(128, 64);
+        check(50, 7);
+    }
+
+    @Test
+    public void everySample() {
+        check(32, 1);
+        check(8, 1);
+    }
+
+    @Test
+    public void notFullYet() {
+        FeatureWindow features = new FeatureWindow(16, 8);
+        for (int i = 0; i < 15; i++) {
+            assertFalse(features.add(START + i, new float[]{i % 2, 0, 9.81f}));
+        }
+        assertEquals(15, features.getSamples());
+        assertTrue(features.add(START + 15, new float[]{1, 0, 9.81f}));
+    }
+}
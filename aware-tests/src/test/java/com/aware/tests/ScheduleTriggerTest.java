@@ -0,0 +1,149 @@
+package com.aware.tests;
+
+import com.aware.utils.ScheduleTrigger;
+
+import org.junit.Test;
+
+import java.util.Calendar;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Next fire times of the scheduler's compiled triggers, and their order in the scheduler's queue
+ */
+public class ScheduleTriggerTest {
+
+    //Monday, 17th October 2016, 8:30
+    private static final long NOW = at(2016, Calendar.OCTOBER, 17, 8, 30);
+
+    private static long at(int year, int month, int day, int hour, int minute) {
+        Calendar date = Calendar.getInstance();
+        date.clear();
+        date.set(year, month, day, hour, minute);
+        return date.getTimeInMillis();
+    }
+
+    private static ScheduleTrigger trigger(String schedule_id, long last_triggered) {
+        return new ScheduleTrigger(null, schedule_id, last_triggered);
+    }
+
+    @Test
+    public void hour() {
+        ScheduleTrigger trigger = trigger("hour", 0).setHours(new int[]{9, 21}, false);
+        assertTrue(trigger.schedule(NOW, new Random()));
+        assertEquals(at(2016, Calendar.OCTOBER, 17, 9, 0), trigger.getFireTime());
+        assertEquals(at(2016, Calendar.OCTOBER, 17, 10, 0), trigger.getExpireTime());
+
+        long fired = at(2016, Calendar.OCTOBER, 17, 9, 0);
+        trigger.triggered(fired);
+        trigger.schedule(fired, new Random());
+        assertEquals(at(2016, Calendar.OCTOBER, 17, 21, 0), trigger.getFireTime());
+    }
+
+    @Test
+    public void minute() {
+        ScheduleTrigger trigger = trigger("minute", 0).setMinutes(new int[]{15}, false);
+        trigger.schedule(NOW, new Random());
+        assertEquals(at(2016, Calendar.OCTOBER, 17, 9, 15), trigger.getFireTime());
+    }
+
+    @Test
+    public void weekday() {
+        ScheduleTrigger sunday = trigger("sunday", 0).setWeekdays(new int[]{Calendar.SUNDAY}, false);
+        sunday.schedule(NOW, new Random());
+        assertEquals(at(2016, Calendar.OCTOBER, 23, 0, 0), sunday.getFireTime());
+
+        //never triggered, and today is Monday: due now
+        ScheduleTrigger monday = trigger("monday", 0).setWeekdays(new int[]{Calendar.MONDAY}, false);
+        monday.schedule(NOW, new Random());
+        assertTrue(monday.getFireTime() <= NOW && NOW < monday.getExpireTime());
+    }
+
+    @Test
+    public void hourAndWeekday() {
+        ScheduleTrigger trigger = trigger("tuesday", 0).setHours(new int[]{9}, false).setWeekdays(new int[]{Calendar.TUESDAY}, false);
+        trigger.schedule(NOW, new Random());
+        assertEquals(at(2016, Calendar.OCTOBER, 18, 9, 0), trigger.getFireTime());
+    }
+
+    @Test
+    public void month() {
+        ScheduleTrigger trigger = trigger("february", 0).setMonths(new int[]{Calendar.FEBRUARY}, false);
+        trigger.schedule(NOW, new Random());
+        assertEquals(at(2017, Calendar.FEBRUARY, 1, 0, 0), trigger.getFireTime());
+    }
+
+    @Test
+    public void missed() {
+        //last triggered on Friday, device off since: today's 9:00 is not missed yet
+        ScheduleTrigger trigger = trigger("hour", at(2016, Calendar.OCTOBER, 14, 9, 0)).setHours(new int[]{9}, false);
+        trigger.schedule(NOW, new Random());
+        assertEquals(at(2016, Calendar.OCTOBER, 17, 9, 0), trigger.getFireTime());
+
+        //at noon it is: wait for tomorrow
+        trigger.schedule(at(2016, Calendar.OCTOBER, 17, 12, 0), new Random());
+        assertEquals(at(2016, Calendar.OCTOBER, 18, 9, 0), trigger.getFireTime());
+    }
+
+    @Test
+    public void never() {
+        assertFalse(trigger("hour", 0).setHours(new int[]{25}, false).schedule(NOW, new Random()));
+        assertFalse(trigger("nothing", 0).schedule(NOW, new Random()));
+    }
+
+    @Test
+    public void timer() {
+        ScheduleTrigger trigger = trigger("timer", 0).setTimer(NOW + 60 * 1000);
+        assertTrue(trigger.schedule(NOW, new Random()));
+        assertEquals(NOW + 60 * 1000, trigger.getFireTime());
+
+        trigger.triggered(NOW + 60 * 1000);
+        assertFalse(trigger.schedule(NOW + 60 * 1000, new Random()));
+
+        assertFalse(trigger("past", 0).setTimer(NOW - ScheduleTrigger.GRACE).schedule(NOW, new Random()));
+    }
+
+    @Test
+    public void interval() {
+        ScheduleTrigger trigger = trigger("interval", 0).setInterval(30);
+        trigger.schedule(NOW, new Random());
+        assertEquals(NOW, trigger.getFireTime());
+
+        trigger.triggered(NOW);
+        trigger.schedule(NOW, new Random());
+        assertEquals(NOW + 30 * 60 * 1000, trigger.getFireTime());
+    }
+
+    @Test
+    public void random() {
+        Random random = new Random(42);
+        for (int i = 0; i < 20; i++) {
+            ScheduleTrigger trigger = trigger("random", 0).setHours(new int[]{10, 14, 18}, true);
+            trigger.schedule(NOW, random);
+            Calendar fire = Calendar.getInstance();
+            fire.setTimeInMillis(trigger.getFireTime());
+            int hour = fire.get(Calendar.HOUR_OF_DAY);
+            assertTrue(hour == 10 || hour == 14 || hour == 18);
+            assertEquals(17, fire.get(Calendar.DAY_OF_MONTH));
+        }
+    }
+
+    @Test
+    public void earliestFirst() {
+        PriorityQueue<ScheduleTrigger> triggers = new PriorityQueue<>();
+        triggers.offer(trigger("sunday", 0).setWeekdays(new int[]{Calendar.SUNDAY}, false));
+        triggers.offer(trigger("minute", 0).setMinutes(new int[]{15}, false));
+        triggers.offer(trigger("hour", 0).setHours(new int[]{9}, false));
+        for (ScheduleTrigger trigger : triggers.toArray(new ScheduleTrigger[0])) {
+            triggers.remove(trigger);
+            trigger.schedule(NOW, new Random());
+            triggers.offer(trigger);
+        }
+
+        assertEquals("hour", triggers.poll().getScheduleID());
+        assertEquals("minute", triggers.poll().getScheduleID());
+        assertEquals("sunday", triggers.poll().getScheduleID());
+    }
+}
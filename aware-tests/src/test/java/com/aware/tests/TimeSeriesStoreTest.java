@@ -0,0 +1,271 @@
+package com.aware.tests;
+
+import com.aware.utils.TimeSeriesCodec;
+import com.aware.utils.TimeSeriesStore;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Columnar storage of raw accelerometer samples, and how it compares to the SQLite table it replaces
+ */
+public class TimeSeriesStoreTest {
+
+    private static final String DEVICE_ID = "6c3b8a43-5d3e-4e3b-9a0e-1d2c3b4a5f60";
+    private static final long START = 1476700000000L;
+
+    //Same table and indexes as Accelerometer_Provider
+    private static final String TABLE_FIELDS = "_id integer primary key autoincrement,"
+            + "timestamp real default 0,"
+            + "device_id text default '',"
+            + "double_values_0 real default 0,"
+            + "double_values_1 real default 0,"
+            + "double_values_2 real default 0,"
+            + "accuracy integer default 0,"
+            + "label text default ''";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private TimeSeriesStore open(File directory) throws Exception {
+        return new TimeSeriesStore(directory, "_id", "timestamp", "device_id",
+                new String[]{"double_values_0", "double_values_1", "double_values_2"}, "accuracy", "label");
+    }
+
+    /**
+     * 50Hz samples, a few seconds missing now and then
+     */
+    private void fill(TimeSeriesStore store, int samples) throws Exception {
+        Random random = new Random(42);
+        long timestamp = START;
+        for (int i = 0; i < samples; i++) {
+            timestamp += 18 + random.nextInt(5) + ((i % 10000 == 0) ? 5000 : 0);
+            store.append(0, timestamp, DEVICE_ID, new float[]{
+                    (float) random.nextGaussian(), (float) random.nextGaussian(), (float) (9.81 + random.nextGaussian())}, 3, "");
+        }
+    }
+
+    private Object[] row(TimeSeriesStore.Result result, int position) throws Exception {
+        Object[] row = new Object[result.getColumns().length];
+        result.getRow(position, row);
+        return row;
+    }
+
+    @Test
+    public void codecRoundTrip() {
+        long[] longs = {Long.MIN_VALUE, Long.MAX_VALUE, 0, -1, 1, 1476700000000L, 1476700000020L, 1476700000040L};
+        assertArrayEquals(longs, TimeSeriesCodec.decodeLongs(TimeSeriesCodec.encodeLongs(longs, longs.length), longs.length));
+
+        float[] floats = {9.81f, 9.81f, -0f, Float.NaN, Float.MIN_VALUE, Float.MAX_VALUE, Float.NEGATIVE_INFINITY, 0.1f};
+        float[] decoded = TimeSeriesCodec.decodeFloats(TimeSeriesCodec.encodeFloats(floats, floats.length), floats.length);
+        for (int i = 0; i < floats.length; i++) {
+            assertEquals(Float.floatToRawIntBits(floats[i]), Float.floatToRawIntBits(decoded[i]));
+        }
+    }
+
+    @Test
+    public void roundTripAndReopen() throws Exception {
+        File directory = folder.newFolder();
+        TimeSeriesStore store = open(directory);
+        fill(store, 20000);
+        store.append(0, START + 1, "other", new float[]{1, 2, 3}, 0, null);
+
+        TimeSeriesStore.Result all = store.query(null, null, null, null);
+        assertEquals(20001, all.getCount());
+
+        store.flush();
+        store = open(directory);
+        assertEquals(20001, store.size());
+
+        //the late sample sorts first, and keeps its _id
+        Object[] first = row(store.query(null, null, null, "timestamp ASC LIMIT 1"), 0);
+        assertEquals(20001L, first[0]);
+        assertEquals(START + 1, first[1]);
+        assertEquals("other", first[2]);
+        assertEquals(2.0, (Double) first[4], 0);
+        assertNull(first[7]);
+
+        //_id continue after reopening
+        assertEquals(20002, store.append(0, START + 10000000, DEVICE_ID, new float[]{0, 0, 0}, 3, ""));
+    }
+
+    @Test
+    public void selectionSortAndLimit() throws Exception {
+        TimeSeriesStore store = open(folder.newFolder());
+        fill(store, 30000);
+
+        TimeSeriesStore.Result count = store.query(new String[]{"count(*) AS entries"}, "timestamp > ? AND device_id = ?",
+                new String[]{String.valueOf(START + 60000), DEVICE_ID}, null);
+        assertEquals("entries", count.getColumns()[0]);
+        long entries = (Long) row(count, 0)[0];
+        assertTrue(entries > 0 && entries < 30000);
+
+        //keyset pagination, as when syncing
+        TimeSeriesStore.Result page = store.query(new String[]{"_id", "timestamp"},
+                "timestamp > " + START + " AND (timestamp > " + (START + 60000) + " OR (timestamp = " + (START + 60000) + " AND _id > 10))",
+                null, "timestamp ASC, _id ASC LIMIT 100");
+        assertEquals(100, page.getCount());
+        long previous = 0;
+        for (int i = 0; i < page.getCount(); i++) {
+            long timestamp = (Long) row(page, i)[1];
+            assertTrue(timestamp > START + 60000 && timestamp > previous);
+            previous = timestamp;
+        }
+
+        TimeSeriesStore.Result latest = store.query(new String[]{"_id"}, null, null, "timestamp DESC LIMIT 3 OFFSET 1");
+        assertEquals(3, latest.getCount());
+        assertEquals(29999L, row(latest, 0)[0]);
+
+        TimeSeriesStore.Result sorted = store.query(null, "double_values_2 > 12", null, "double_values_2 DESC");
+        for (int i = 1; i < sorted.getCount(); i++) {
+            assertTrue((Double) row(sorted, i - 1)[5] >= (Double) row(sorted, i)[5]);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsUnsupportedSelection() throws Exception {
+        open(folder.newFolder()).query(null, "1) GROUP BY (timestamp", null, null);
+    }
+
+    @Test
+    public void delete() throws Exception {
+        File directory = folder.newFolder();
+        TimeSeriesStore store = open(directory);
+        fill(store, 30000);
+        store.flush();
+
+        long cut = (Long) row(store.query(new String[]{"timestamp"}, null, null, "timestamp ASC LIMIT 1 OFFSET 12345"), 0)[0];
+        assertEquals(12345, store.delete("timestamp < ?", new String[]{String.valueOf(cut)}));
+        assertEquals(30000 - 12345, store.size());
+
+        store = open(directory);
+        assertEquals(30000 - 12345, store.size());
+        assertEquals(0, (long) (Long) row(store.query(new String[]{"count(*)"}, "timestamp < " + cut, null, null), 0)[0]);
+
+        assertEquals(30000 - 12345, store.delete(null, null));
+        assertEquals(0, store.size());
+    }
+
+    @Test
+    public void journal() throws Exception {
+        File directory = folder.newFolder();
+        TimeSeriesStore store = open(directory);
+        fill(store, 100);
+        store.sync();
+
+        //the process dies before the open chunk is sealed
+        store = open(directory);
+        assertEquals(100, store.size());
+        assertEquals(101, store.append(0, START + 10000000, DEVICE_ID, new float[]{0, 0, 0}, 3, ""));
+        store.sync();
+
+        //and between sealing it and emptying the journal
+        File journal = new File(directory, "open.journal");
+        File copy = folder.newFile();
+        Files.copy(journal.toPath(), copy.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        store.flush();
+        Files.copy(copy.toPath(), journal.toPath());
+        store = open(directory);
+        assertEquals(101, store.size());
+    }
+
+    @Test
+    public void after() throws Exception {
+        TimeSeriesStore store = open(folder.newFolder());
+        fill(store, 30000);
+        store.delete("_id > 10000 AND _id <= 20000", null);
+        store.append(15000, START, DEVICE_ID, new float[]{0, 0, 0}, 3, "");
+
+        //a range at a time, as when moving the samples elsewhere
+        long last = 0;
+        int moved = 0;
+        TimeSeriesStore.Result range;
+        do {
+            range = store.after(last, 4000);
+            for (int i = 0; i < range.getCount(); i++) {
+                long id = (Long) row(range, i)[0];
+                assertTrue(id > last);
+                last = id;
+                moved++;
+            }
+        } while (range.getCount() == 4000);
+        assertEquals(20001, moved);
+        assertEquals(30000L, last);
+    }
+
+    @Test
+    public void smallerThanSQLite() throws Exception {
+        int samples = 100000;
+        File directory = folder.newFolder();
+        TimeSeriesStore store = open(directory);
+        fill(store, samples);
+        store.flush();
+
+        File database = folder.newFile("accelerometer.db");
+        Connection sqlite = DriverManager.getConnection("jdbc:sqlite:" + database.getAbsolutePath());
+        Statement statement = sqlite.createStatement();
+        statement.execute("CREATE TABLE accelerometer (" + TABLE_FIELDS + ")");
+        statement.execute("CREATE INDEX accelerometer_timestamp ON accelerometer (timestamp)");
+        statement.execute("CREATE INDEX accelerometer_device_id_timestamp ON accelerometer (device_id,timestamp)");
+        sqlite.setAutoCommit(false);
+        PreparedStatement insert = sqlite.prepareStatement("INSERT INTO accelerometer (timestamp,device_id,double_values_0,double_values_1,double_values_2,accuracy,label) VALUES (?,?,?,?,?,?,?)");
+        TimeSeriesStore.Result all = store.query(null, null, null, "timestamp ASC");
+        for (int i = 0; i < all.getCount(); i++) {
+            Object[] row = row(all, i);
+            insert.setDouble(1, (Long) row[1]);
+            insert.setString(2, (String) row[2]);
+            insert.setDouble(3, (Double) row[3]);
+            insert.setDouble(4, (Double) row[4]);
+            insert.setDouble(5, (Double) row[5]);
+            insert.setLong(6, (Long) row[6]);
+            insert.setString(7, (String) row[7]);
+            insert.addBatch();
+        }
+        insert.executeBatch();
+        sqlite.commit();
+
+        //an hour in the middle
+        long from = START + samples * 10L;
+        long to = from + 3600 * 1000L;
+        String range = "timestamp >= " + from + " AND timestamp < " + to;
+
+        double store_sum = 0;
+        TimeSeriesStore.Result scan = store.query(new String[]{"timestamp", "double_values_2"}, range, null, "timestamp ASC");
+        Object[] row = new Object[2];
+        for (int i = 0; i < scan.getCount(); i++) {
+            scan.getRow(i, row);
+            store_sum += (Double) row[1];
+        }
+
+        double sqlite_sum = 0;
+        int sqlite_rows = 0;
+        ResultSet rows = statement.executeQuery("SELECT timestamp, double_values_2 FROM accelerometer WHERE " + range + " ORDER BY timestamp ASC");
+        while (rows.next()) {
+            sqlite_sum += rows.getDouble(2);
+            sqlite_rows++;
+        }
+        rows.close();
+        sqlite.close();
+
+        double store_bytes = store.bytes() / (double) samples;
+        double sqlite_bytes = database.length() / (double) samples;
+
+        //same range scan, at less than a quarter of the space
+        assertEquals(sqlite_rows, scan.getCount());
+        assertEquals(sqlite_sum, store_sum, 1e-6);
+        assertTrue(store_bytes * 4 < sqlite_bytes);
+    }
+}